@@ -1,5 +1,12 @@
 package com.agentclient;
 
+import com.auctionprotocol.FrameDecoder;
+import com.auctionprotocol.FrameEncoder;
+import com.auctionprotocol.Heartbeats;
+import com.auctionprotocol.TimingWheel;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -13,11 +20,31 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class to represent an instance of the agent client independent of JavaFX UI.
+ *
+ * The bank IP may list a standby bank after the primary, separated by commas. If the binary
+ * connection is lost the agent logs back into its account on the first bank that answers.
+ *
+ * Connections to the bank and auction houses that agree heartbeats are watched on one timing
+ * wheel. A heartbeat is sent once a connection has been quiet for a while, and a connection
+ * that stays silent is closed, so a bank or auction house that vanished is noticed.
  */
-public class AgentClient implements Runnable {
+public class AgentClient implements Runnable, Heartbeats.Peer {
+    private static final Logger log = Log.get("agent.bank");
+
+    /** Time to keep trying to reconnect after losing the bank */
+    private static final long FAILOVER_MILLIS = 30_000;
+    private static final long RETRY_MILLIS = 500;
+    /** First and longest pause before sending a request again that the bank was too busy for */
+    private static final long BUSY_MILLIS = 10;
+    private static final long MAX_BUSY_MILLIS = 1_000;
+    /** Precision of heartbeat checks */
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_SLOTS = 256;
 
     private final String hostName;
     /** Agent Name*/
@@ -30,6 +57,8 @@ public class AgentClient implements Runnable {
     private DataInputStream bankIn;
     /** Client ID given via bank connection */
     private int ID;
+    /** Token the bank sent with the ID, to log in to the same account again */
+    private long token;
     /** Auction House Connections */
     private ConcurrentHashMap<Integer, AuctionHouseConnection> ahConns;
     /** Data for current*/
@@ -39,9 +68,39 @@ public class AgentClient implements Runnable {
     private HashMap<Integer, Item> items;
     private HashMap<Integer, Item> wonItems;
     private final LoginController loginThread;
-    private Socket bankSocket;
+    private volatile Socket bankSocket;
     // private final int bankPort = 1026;
     private final int bankPort;
+    /** Flag if the bank agreed to binary frames rather than JSON */
+    private boolean binary;
+    /** Encodes frames sent to the bank */
+    private final FrameEncoder encoder;
+    /** Decodes frames read from the bank */
+    private final FrameDecoder decoder;
+    /** Queued in place of a response once the bank connection is lost */
+    private static final Object DISCONNECTED = new Object();
+    /** Queued in place of a response to a request the bank was too busy to take */
+    private static final Object BUSY = new Object();
+    /** Version of the bank's auction house directory last received, 0 if none */
+    private volatile long directoryVersion;
+    /** Flag if the bank pushes auction houses joining and leaving */
+    private boolean subscribed;
+    /** Responses to requests in binary mode, handed over by the bank reader thread */
+    private final LinkedBlockingQueue<Object> responses;
+    /** Guards a request to the bank and its response, requests come from several threads */
+    private final Object bankLock;
+    /** Flag if the agent is closing its bank connection itself */
+    private volatile boolean shuttingDown;
+    /** Flag if the bank accepts idempotency keys, so a transfer can be retried safely */
+    private volatile boolean keyed;
+    /** Idempotency key of the last transfer, seeded with the time so keys differ across restarts */
+    private final AtomicLong transferKeys = new AtomicLong(System.currentTimeMillis() << 20);
+    /** Timeouts of this agent's connections */
+    private final TimingWheel timers;
+    /** Watches the bank and auction house connections for silence */
+    private final Heartbeats heartbeats;
+    /** Watch of the bank connection, null unless heartbeats were agreed. Only used by the bank reader thread. */
+    private Heartbeats.Watch bankWatch;
 
     /**
      * Agent client constructor. Establishes connection with bank and sends
@@ -61,6 +120,12 @@ public class AgentClient implements Runnable {
         wonItems = new HashMap<>(0);
         bankPort = port;
         hostName = IP;
+        encoder = new FrameEncoder();
+        decoder = new FrameDecoder();
+        bankLock = new Object();
+        responses = new LinkedBlockingQueue<>();
+        timers = new TimingWheel(TIMER_TICK_MILLIS, TIMER_SLOTS);
+        heartbeats = new Heartbeats(timers);
     }
 
 
@@ -69,24 +134,56 @@ public class AgentClient implements Runnable {
      */
     @Override
     public void run() {
+        Thread wheel = new Thread(timers, "timing-wheel");
+        wheel.setDaemon(true);
+        wheel.start();
+
         // Open socket
         bankSocket = null;
         try {
 
-            bankSocket = new Socket(hostName, bankPort);
+            bankSocket = connect();
             bankOut = new DataOutputStream(new BufferedOutputStream(bankSocket.getOutputStream()));
             bankIn = new DataInputStream(new BufferedInputStream(bankSocket.getInputStream()));
 
-            // Store agent login info in JSON Object
-            JSONObject agentInfo = new JSONObject();
-            agentInfo.put("name", name);
-            agentInfo.put("balance", initBal);
+            // Agree on binary frames if the bank supports them
+            int features = WireProtocol.offer(bankOut, bankIn, WireProtocol.FEATURE_BINARY
+                    | WireProtocol.FEATURE_JSON | WireProtocol.FEATURE_DIRECTORY_PUSH | WireProtocol.FEATURE_IDEMPOTENCY_KEYS
+                    | WireProtocol.FEATURE_BUSY | WireProtocol.FEATURE_HEARTBEAT);
+            binary = WireProtocol.isBinary(features);
+            keyed = binary && (features & WireProtocol.FEATURE_IDEMPOTENCY_KEYS) != 0;
+
+            if(binary){
+                encoder.begin('l').putString(name).putLong(initBal).end();
+                sendFrame();
+                if(decoder.readFrom(bankIn) != 'i')
+                    throw new IOException("Bank did not send an ID");
+                ID = decoder.getInt(); // Acquire client ID
+                token = decoder.getLong();  // Proves the ID is ours when reconnecting
+                watchBank(features);
+
+                // Responses and pushed auction houses are read on their own thread from now on
+                new Thread(this::readBank, "bank-reader").start();
+
+                if((features & WireProtocol.FEATURE_DIRECTORY_PUSH) != 0){
+                    synchronized (bankLock){
+                        encoder.begin('S').end();
+                        subscribed = request() == Boolean.TRUE;
+                    }
+                }
+            }
+            else{
+                // Store agent login info in JSON Object
+                JSONObject agentInfo = new JSONObject();
+                agentInfo.put("name", name);
+                agentInfo.put("balance", initBal);
 
-            // Pass agent login info
-            bankOut.writeUTF(agentInfo.toJSONString());
-            bankOut.flush();
+                // Pass agent login info
+                bankOut.writeUTF(agentInfo.toJSONString());
+                bankOut.flush();
 
-            ID = bankIn.readInt(); // Acquire client ID
+                ID = bankIn.readInt(); // Acquire client ID
+            }
 
         } catch (IOException e) {
             synchronized (loginThread){
@@ -123,38 +220,336 @@ public class AgentClient implements Runnable {
      *
      */
     public void updateAHConnections(){
-        System.out.println("Updating Connected Auction Houses");
+        log.debug("Updating Connected Auction Houses");
         String data;
         JSONObject AHConnInfo;
         int AHID;
         String AHIP;
         int AHPort;
-        AuctionHouseConnection newConnection;
         try{
-            // Make request for auction house info
-            bankOut.writeChar('a');
-            bankOut.flush();
+            synchronized (bankLock){
+                if(binary){
+                    if(subscribed)
+                        return;     // Kept current by the bank as houses join and leave
+
+                    // Only ask for auction houses that joined or left since the last update
+                    encoder.begin('D').putLong(directoryVersion).end();
+                    if(request() != Boolean.TRUE)
+                        throw new IOException("Unexpected response from bank");
+                    return;
+                }
 
-            while(true){
-                data = bankIn.readUTF(); // Read
-                if(data.equals("0"))    // Check if end of data transmission was reached
-                    break;
-                AHConnInfo = (JSONObject) parser.parse(data);
-                AHID = Integer.parseInt((String) AHConnInfo.get("ID"));
-                // New connection available
-                if(!ahConns.containsKey(AHID)){
-                    // Get info
-                    AHIP = (String) AHConnInfo.get("ip");
-                    AHPort = Integer.parseInt((String) AHConnInfo.get("port"));
-                    newConnection = new AuctionHouseConnection(AHPort, AHIP, this, AHID); // Create connection
-                    new Thread(newConnection).start();      // Start connection thread
-                    ahConns.put(AHID, newConnection);             // Add the connection to the current connections
+                // Make request for auction house info
+                bankOut.writeChar('a');
+                bankOut.flush();
+
+                while(true){
+                    data = bankIn.readUTF(); // Read
+                    if(data.equals("0"))    // Check if end of data transmission was reached
+                        break;
+                    AHConnInfo = (JSONObject) parser.parse(data);
+                    AHID = Integer.parseInt((String) AHConnInfo.get("ID"));
+                    // New connection available
+                    if(!ahConns.containsKey(AHID)){
+                        // Get info
+                        AHIP = (String) AHConnInfo.get("ip");
+                        AHPort = Integer.parseInt((String) AHConnInfo.get("port"));
+                        addConnection(AHID, AHIP, AHPort);
+                    }
                 }
             }
         }catch(ParseException pe){
-            System.out.println("Error parsing data");
+            log.warn("Error parsing data", pe);
+        } catch (IOException e) {
+            log.warn("Unable to request auction house connection info from bank", e);
+        }
+    }
+
+    /**
+     * Connects to an auction house unless already connected
+     *
+     * @param AHID      Auction house ID
+     * @param AHIP      Auction house server IP
+     * @param AHPort    Auction house server port
+     */
+    private void addConnection(int AHID, String AHIP, int AHPort){
+        if(ahConns.containsKey(AHID))
+            return;
+        AuctionHouseConnection newConnection = new AuctionHouseConnection(AHPort, AHIP, this, AHID); // Create connection
+        new Thread(newConnection).start();      // Start connection thread
+        ahConns.put(AHID, newConnection);             // Add the connection to the current connections
+    }
+
+    /**
+     * Disconnects from an auction house that has left the bank
+     *
+     * @param AHID Auction house ID
+     */
+    private void dropConnection(int AHID){
+        AuctionHouseConnection connection = ahConns.remove(AHID);
+        if(connection != null)
+            connection.close();
+    }
+
+    /**
+     * Writes the frame in the encoder to the bank
+     */
+    private void sendFrame() throws IOException {
+        encoder.writeTo(bankOut);
+        bankOut.flush();
+    }
+
+    /**
+     * Sends the frame in the encoder and waits for the bank reader thread to hand over
+     * the response. A request the bank was too busy to take is sent again after a pause,
+     * doubled every time. Caller holds the bank lock.
+     *
+     * @return Decoded response
+     */
+    private Object request() throws IOException {
+        byte[] frame = encoder.toByteArray();
+        long pause = BUSY_MILLIS;
+        try {
+            while(true){
+                bankOut.write(frame);
+                bankOut.flush();
+                Object response = responses.take();
+                if(response == DISCONNECTED){
+                    responses.add(DISCONNECTED);    // Fail every later request too
+                    throw new IOException("Connection to bank lost");
+                }
+                if(response != BUSY)
+                    return response;
+                log.debug("Bank busy, sending request again in {} ms", pause);
+                Thread.sleep(pause);
+                pause = Math.min(pause * 2, MAX_BUSY_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Reads every frame from the bank in binary mode. Responses are handed to the waiting
+     * request, auction houses pushed by the bank are connected to or dropped straight away.
+     */
+    private void readBank(){
+        while(true){
+            try {
+                readFrames();
+            } catch (IOException e) {
+                heartbeats.unwatch(bankWatch);
+                bankWatch = null;
+                responses.add(DISCONNECTED);    // Fails the request waiting on a response
+                if(shuttingDown || !reconnect())
+                    return;
+            }
+        }
+    }
+
+    /**
+     * @return Socket connected to the first bank host that accepts the connection
+     */
+    private Socket connect() throws IOException {
+        IOException failure = null;
+        for(String host : hostName.split(",")){
+            try {
+                return new Socket(host, bankPort);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Connects to the first bank that answers, such as a standby that has taken over, and
+     * logs back into this agent's account. Keeps trying for a while before giving up.
+     *
+     * @return true if connected again
+     */
+    private boolean reconnect(){
+        long deadline = System.currentTimeMillis() + FAILOVER_MILLIS;
+        while(System.currentTimeMillis() < deadline){
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+
+            synchronized (bankLock){
+                try {
+                    Socket socket = connect();
+                    bankOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    bankIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    bankSocket = socket;
+                    int features = WireProtocol.offer(bankOut, bankIn, WireProtocol.FEATURE_BINARY
+                            | WireProtocol.FEATURE_DIRECTORY_PUSH | WireProtocol.FEATURE_IDEMPOTENCY_KEYS
+                            | WireProtocol.FEATURE_BUSY | WireProtocol.FEATURE_HEARTBEAT);
+                    if(!WireProtocol.isBinary(features))
+                        throw new IOException("Bank does not support binary frames");
+                    keyed = (features & WireProtocol.FEATURE_IDEMPOTENCY_KEYS) != 0;
+
+                    encoder.begin('l').putString(name).putLong(initBal).putInt(ID).putLong(token).end();
+                    sendFrame();
+                    if(decoder.readFrom(bankIn) != 'i')
+                        throw new IOException("Bank did not accept the login");
+
+                    // The new bank numbers its directory from the start
+                    directoryVersion = 0;
+                    subscribed = (features & WireProtocol.FEATURE_DIRECTORY_PUSH) != 0;
+                    if(subscribed){
+                        encoder.begin('S').end();
+                        sendFrame();
+                        if(decoder.readFrom(bankIn) != 'E')
+                            throw new IOException("Bank did not send its auction houses");
+                        applyDirectory();
+                    }
+                    responses.clear();
+                    watchBank(features);
+                    log.info("Reconnected to bank");
+                    return true;
+                } catch (IOException e) {
+                    log.debug("Unable to reconnect to bank");
+                }
+            }
+        }
+        log.error("Unable to reconnect to bank");
+        return false;
+    }
+
+    /**
+     * Watches the bank connection for silence if the bank agreed heartbeats
+     *
+     * @param features features agreed with the bank
+     */
+    private void watchBank(int features){
+        if((features & WireProtocol.FEATURE_HEARTBEAT) != 0)
+            bankWatch = heartbeats.watch(this, true);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !shuttingDown;
+    }
+
+    @Override
+    public void sendHeartbeat() throws IOException {
+        synchronized (bankLock){
+            encoder.begin('h').end();
+            sendFrame();
+        }
+    }
+
+    /**
+     * Closes a silent bank connection, so the bank reader thread reconnects
+     */
+    @Override
+    public void close() {
+        try {
+            bankSocket.close();
         } catch (IOException e) {
-            System.out.println("Unable to request auction house connection info from bank");
+            log.warn("Unable to close bank connection", e);
+        }
+    }
+
+    /**
+     * @return Watches of this agent's connections
+     */
+    Heartbeats getHeartbeats(){
+        return heartbeats;
+    }
+
+    /**
+     * Reads frames from the bank until the connection fails
+     */
+    private void readFrames() throws IOException {
+        while(true){
+            char opcode = decoder.readFrom(bankIn);
+            if(bankWatch != null)
+                bankWatch.heard();
+            long version;
+            int AHID;
+            switch (opcode){
+                // Auction houses changed since a version, or the full directory
+                case 'E':
+                    applyDirectory();
+                    responses.add(Boolean.TRUE);
+                    break;
+                // Auction house joined
+                case 'J':
+                    version = decoder.getLong();
+                    AHID = decoder.getInt();
+                    String AHIP = decoder.getString();
+                    int AHPort = decoder.getInt();
+                    if(version > directoryVersion){     // Otherwise already listed
+                        directoryVersion = version;
+                        addConnection(AHID, AHIP, AHPort);
+                    }
+                    break;
+                // Auction house left
+                case 'L':
+                    version = decoder.getLong();
+                    AHID = decoder.getInt();
+                    if(version > directoryVersion){
+                        directoryVersion = version;
+                        dropConnection(AHID);
+                    }
+                    break;
+                case 'I':
+                    // Same shape as the JSON info the original protocol sends, empty if there is no account
+                    JSONObject info = new JSONObject();
+                    if(decoder.remaining() >= 16){
+                        info.put("balance", decoder.getLong());
+                        info.put("blockedFunds", decoder.getLong());
+                    }
+                    responses.add(info);
+                    break;
+                case 'R':
+                    responses.add(decoder.getInt());
+                    break;
+                // Answer to a heartbeat
+                case 'h':
+                    break;
+                // Request refused, not applied
+                case 'z':
+                    decoder.getChar();
+                    responses.add(BUSY);
+                    break;
+                default:
+                    log.warn("Unknown frame received from bank");
+            }
+        }
+    }
+
+    /**
+     * Applies an 'E' frame of auction houses that joined and left
+     */
+    private void applyDirectory(){
+        directoryVersion = decoder.getLong();
+        boolean full = decoder.getBoolean();
+        HashMap<Integer, Boolean> listed = new HashMap<>();
+
+        int joined = decoder.getInt();
+        for(int i = 0; i < joined; i++){
+            int AHID = decoder.getInt();
+            String AHIP = decoder.getString();
+            int AHPort = decoder.getInt();
+            addConnection(AHID, AHIP, AHPort);
+            listed.put(AHID, Boolean.TRUE);
+        }
+        int left = decoder.getInt();
+        for(int i = 0; i < left; i++){
+            dropConnection(decoder.getInt());
+        }
+
+        // A full directory replaces whatever was known before
+        if(full){
+            for(Integer AHID : ahConns.keySet()){
+                if(!listed.containsKey(AHID))
+                    dropConnection(AHID);
+            }
         }
     }
 
@@ -164,7 +559,7 @@ public class AgentClient implements Runnable {
      * data from each bank and add it to the list of buffered items.
      */
     public synchronized void updateAuctions(){
-        System.out.println("updating auctions");
+        log.debug("updating auctions");
         updateAHConnections();
 
         Iterator<Integer> itr = ahConns.keySet().iterator();
@@ -260,14 +655,26 @@ public class AgentClient implements Runnable {
         JSONObject info;
 
         try{
-            bankOut.writeChar('b');
-            bankOut.flush();
-            info = (JSONObject) parser.parse(bankIn.readUTF());
+            synchronized (bankLock){
+                if(binary){
+                    encoder.begin('b').end();
+                    info = (JSONObject) request();
+                }
+                else{
+                    bankOut.writeChar('b');
+                    bankOut.flush();
+                    info = (JSONObject) parser.parse(bankIn.readUTF());
+                }
+            }
         } catch (IOException | ParseException e) {
-            System.out.println("Error requesting bank info from bank");
+            log.warn("Error requesting bank info from bank", e);
             return null;
         }
 
+        if(info == null || !info.containsKey("balance")){
+            log.warn("Bank has no account for this agent");
+            return null;
+        }
         return info;
     }
 
@@ -298,12 +705,21 @@ public class AgentClient implements Runnable {
     }
 
     public void shutDown(){
+        shuttingDown = true;
         try{
-            bankOut.writeChar('0');
-            bankOut.flush();
+            synchronized (bankLock){
+                if(binary){
+                    encoder.begin('0').end();
+                    sendFrame();
+                }
+                else{
+                    bankOut.writeChar('0');
+                    bankOut.flush();
+                }
+            }
             bankSocket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.warn("Unable to close bank connection", e);
         }
 
         for(AuctionHouseConnection conn : ahConns.values()){
@@ -313,24 +729,72 @@ public class AgentClient implements Runnable {
 
     public int transferFunds(long amount, int AHID, int itemID){
         int response;
-        JSONObject transferData = new JSONObject();
-        transferData.put("amount", amount);
-        transferData.put("AHID", String.valueOf(AHID));
-        transferData.put("agentID", String.valueOf(ID));
+
+        if(keyed)
+            return transferOnce(amount, AHID);
 
         try{
-            bankOut.writeChar('T');
-            bankOut.flush();
-            bankOut.writeUTF(transferData.toString());
-            bankOut.flush();
-            response = bankIn.readInt();
-            return response;
+            synchronized (bankLock){
+                if(binary){
+                    encoder.begin('T').putInt(AHID).putInt(ID).putLong(amount).end();
+                    return (Integer) request();
+                }
 
+                JSONObject transferData = new JSONObject();
+                transferData.put("amount", amount);
+                transferData.put("AHID", String.valueOf(AHID));
+                transferData.put("agentID", String.valueOf(ID));
+
+                bankOut.writeChar('T');
+                bankOut.flush();
+                bankOut.writeUTF(transferData.toString());
+                bankOut.flush();
+                response = bankIn.readInt();
+                return response;
+            }
         } catch (IOException e) {
             return -1;
         }
     }
 
+    /**
+     * Transfers funds with an idempotency key, sending the same transfer again if the bank
+     * connection is lost or the bank asks for it again, until it is answered. The bank only
+     * applies the transfer once.
+     *
+     * @return Bank response code, -1 if the bank could not be reached in time
+     */
+    private int transferOnce(long amount, int AHID){
+        long key = transferKeys.incrementAndGet();
+        long deadline = System.currentTimeMillis() + FAILOVER_MILLIS;
+        while(true){
+            try {
+                int response;
+                synchronized (bankLock){
+                    encoder.begin('T').putInt(AHID).putInt(ID).putLong(amount).putLong(key).end();
+                    response = (Integer) request();
+                }
+                if(response != WireProtocol.RESULT_RETRY)
+                    return response;
+                if(shuttingDown || System.currentTimeMillis() >= deadline){
+                    log.warn("Transfer to auction house {} still unsettled, giving up", AHID);
+                    return -1;
+                }
+                log.debug("Transfer to auction house {} still running, asking again", AHID);
+            } catch (IOException e) {
+                if(shuttingDown || System.currentTimeMillis() >= deadline)
+                    return -1;
+                log.debug("Retrying transfer to auction house {}", AHID);
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);     // Let the reader reconnect, or the first attempt finish
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+    }
+
     public void wonNotifRecieved(int ID){
         wonItems.put(ID, items.remove(ID));
         Platform.runLater(() -> app.wonAlert(ID)); ;
@@ -1,5 +1,9 @@
 package com.agentclient;
 
+import com.auctionprotocol.Heartbeats;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import javafx.application.Platform;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -9,8 +13,17 @@ import java.io.*;
 import java.net.Socket;
 import java.util.Vector;
 
-public class AuctionHouseConnection implements Runnable{
-    private Socket socket;
+/**
+ * Connection to a single auction house.
+ *
+ * The connection opens with a protocol hello. If the auction house agrees heartbeats, a
+ * heartbeat 'h' is sent once the connection has been quiet for a while and the auction house
+ * answers 'h', and the connection is closed if the auction house stays silent.
+ */
+public class AuctionHouseConnection implements Runnable, Heartbeats.Peer {
+    private static final Logger log = Log.get("agent.auction");
+
+    private volatile Socket socket;
     private DataInputStream in;
     private DataOutputStream out;
     private final AgentClient client;
@@ -20,7 +33,8 @@ public class AuctionHouseConnection implements Runnable{
     private Thread thread;
     private volatile boolean pauseRead;
     private JSONParser parser;
-
+    /** Watch of the connection, null unless heartbeats were agreed */
+    private Heartbeats.Watch watch;
 
 
     public AuctionHouseConnection(int port, String IP, AgentClient client, int ID){
@@ -40,7 +54,7 @@ public class AuctionHouseConnection implements Runnable{
         try {
             socket = new Socket(IP, port);
         } catch (IOException e) {
-            System.out.println("Unable to connect to auction house");
+            log.warn("Unable to connect to auction house {}", IP + ":" + port);
             return;
         }
 
@@ -48,18 +62,19 @@ public class AuctionHouseConnection implements Runnable{
             // Create input/output streams
             out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
             in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int features = WireProtocol.offer(out, in, WireProtocol.FEATURE_HEARTBEAT);
             out.writeInt(client.getID());   // Send client ID to auction house
             out.flush();
+            if((features & WireProtocol.FEATURE_HEARTBEAT) != 0)
+                watch = client.getHeartbeats().watch(this, true);
 
         } catch (IOException e) {
-            System.out.println("Unable to establish communication to Auction house");
+            log.warn("Unable to establish communication to Auction house");
             client.removeConnection(ID);
             return;
         }
 
-        System.out.println("connected to auction house");
-        System.out.println("IP: " + IP);
-        System.out.println("port: " + port);
+        log.info("connected to auction house {}:{}", IP, (long) port);
 
         synchronized (client){
             client.notify();
@@ -72,9 +87,10 @@ public class AuctionHouseConnection implements Runnable{
                     if(in.available() > 0) {
                         try {
                             request = in.readChar();
-                            System.out.println(request);
+                            heard();
+                            log.debug("Received {} from auction house", request);
                         } catch (IOException e) {
-                            System.out.println("Connection to auction house closed");
+                            log.info("Connection to auction house closed");
                             return;
                         }
 
@@ -91,6 +107,9 @@ public class AuctionHouseConnection implements Runnable{
                                 client.removeConnection(ID);
                                 socket.close();
                                 return;
+                            // Answer to a heartbeat
+                            case 'h':
+                                break;
                             default:
                                 break;
                         }
@@ -100,8 +119,13 @@ public class AuctionHouseConnection implements Runnable{
                     Platform.runLater(() -> client.getApp().updateAuctionView());
                     return;
                 }
-                catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
+                catch (IOException e) {
+                    // Connection closed, i.e. the auction house left the bank
+                    client.removeConnection(ID);
+                    return;
+                }
+                catch (InterruptedException e) {
+                    log.warn("Auction house connection interrupted", e);
                 }
             }
 
@@ -116,7 +140,7 @@ public class AuctionHouseConnection implements Runnable{
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    log.warn("Auction house connection interrupted", e);
                 }
             }
         }
@@ -129,7 +153,7 @@ public class AuctionHouseConnection implements Runnable{
         String data;
         auctionItems = new Vector<>(0);
 
-        System.out.println("getting items");
+        log.debug("getting items");
 
         try {
             out.writeChar('a');
@@ -138,7 +162,7 @@ public class AuctionHouseConnection implements Runnable{
             while(true){
                 data = in.readUTF();
                 if(data.equals("0")){
-                    System.out.println("Items received");
+                    log.debug("Items received");
                     synchronized (this){
                         pauseRead = false;
                         this.notify();
@@ -147,18 +171,18 @@ public class AuctionHouseConnection implements Runnable{
                 }
                 else{
                     auctionItems.add((JSONObject) parser.parse(data));
-                    System.out.println(data);
+                    log.debug("Item received: {}", data);
                 }
             }
         } catch (IOException e) {
-            System.out.println("Unable to request auction items");
+            log.warn("Unable to request auction items");
             synchronized (this){
                 pauseRead = false;
                 this.notify();
             }
             return null;
         } catch (ParseException e) {
-            System.out.println("Unable to parse item json data");
+            log.warn("Unable to parse item json data");
         }
         // Shouldn't be reached but placing here anyway
         // Will return in the above while loop
@@ -183,7 +207,7 @@ public class AuctionHouseConnection implements Runnable{
      * @return Bid Status Code
      */
     public synchronized int submitBid(String itemID, long amount){
-        System.out.println("Submitting Bid");
+        log.debug("Submitting Bid");
         JSONObject bidData;
         int response;
 
@@ -193,7 +217,7 @@ public class AuctionHouseConnection implements Runnable{
 
         try {
 
-            System.out.println("Packaging Bid Data");
+            log.debug("Packaging Bid Data");
             // Store bid data in a JSON object
             bidData = new JSONObject();
             // IDs are packaged as Strings because JSON object sets decimal values as
@@ -203,13 +227,13 @@ public class AuctionHouseConnection implements Runnable{
             bidData.put("accountID", String.valueOf(client.getID()));   // Client/Bank Account ID
 
 
-            System.out.println("Sending bid request");
+            log.debug("Sending bid request");
 
             out.writeChar('b'); // Send bid request command to auction house
             out.flush();
             out.writeUTF(bidData.toString()); // Send data to the auction house
             out.flush();
-            System.out.println("Waiting on response");
+            log.debug("Waiting on response");
             response = in.readInt();
 
             synchronized (this){
@@ -234,11 +258,54 @@ public class AuctionHouseConnection implements Runnable{
         }
     }
 
+    @Override
+    public boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
+
+    /**
+     * Sends a heartbeat and waits for the answer, handling any notification sent before it
+     */
+    @Override
+    public synchronized void sendHeartbeat() throws IOException {
+        pauseRead = true;
+        try {
+            out.writeChar('h');
+            out.flush();
+            while(true){
+                char message = in.readChar();
+                heard();
+                switch (message){
+                    case 'h':
+                        return;
+                    case 'o':
+                        client.outbidNotifReceived(in.readInt());
+                        break;
+                    case 'w':
+                        client.wonNotifRecieved(in.readInt());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            pauseRead = false;
+            this.notify();
+        }
+    }
+
+    private void heard(){
+        if(watch != null)
+            watch.heard();
+    }
+
+    @Override
     public void close() {
         try {
-            socket.close();
+            if(socket != null)  // Never connected
+                socket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.warn("Unable to close auction house connection", e);
         }
     }
 }
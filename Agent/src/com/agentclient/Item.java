@@ -26,7 +26,6 @@ public class Item {
         minBid = (String) itemInfo.get("minBid");
         currentBid = (String) itemInfo.get("currentBid");
         timeLeft =  (long) itemInfo.get("timeleft");
-        System.out.println(timeLeft);
         currentBidderID = Integer.parseInt((String) itemInfo.get("currentBidderID"));
         moneyTransferred = false;
     }
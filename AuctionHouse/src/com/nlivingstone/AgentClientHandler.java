@@ -1,5 +1,9 @@
 package com.nlivingstone;
 
+import com.auctionprotocol.Heartbeats;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -9,7 +13,14 @@ import java.net.Socket;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class AgentClientHandler implements Runnable{
+/**
+ * Connection of a single agent.
+ *
+ * Agents may open with a protocol hello before their ID. If heartbeats are agreed each heartbeat
+ * 'h' is answered with 'h', and the connection is closed once the agent has gone silent.
+ */
+public class AgentClientHandler implements Runnable, Heartbeats.Peer {
+    private static final Logger log = Log.get("auction.agent");
 
     private final Socket clientSocket;
     private AuctionHouseServer server;
@@ -19,6 +30,8 @@ public class AgentClientHandler implements Runnable{
     private JSONParser parser;
     private int ID;
     private volatile boolean pauseRead;
+    /** Watch of the connection, null unless heartbeats were agreed */
+    private Heartbeats.Watch watch;
 
 
     public AgentClientHandler (Socket clientSocket, AuctionHouseServer server){
@@ -38,19 +51,26 @@ public class AgentClientHandler implements Runnable{
         try {
             out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
             in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
-            ID = in.readInt(); // Client ID (initially given by bank to agent)
+            int first = in.readInt();
+            if(WireProtocol.isHello(first)){
+                int features = WireProtocol.accept(in, out, WireProtocol.FEATURE_HEARTBEAT);
+                if((features & WireProtocol.FEATURE_HEARTBEAT) != 0)
+                    watch = server.getHeartbeats().watch(this, false);
+                first = in.readInt();
+            }
+            ID = first; // Client ID (initially given by bank to agent)
         } catch (IOException e) {
-            System.out.println("Unable to establish data connection with agent client. Closing connection");
+            log.warn("Unable to establish data connection with agent client. Closing connection");
             try {
                 clientSocket.close();
             } catch (IOException ioException) {
-                System.out.println("Unable to close socket.");
+                log.warn("Unable to close socket.");
                 return;
             }
             return;
         }
 
-        System.out.println("Connection to client established");
+        log.info("Connection to agent client {} established", ID);
         server.addAgentClient(ID, this);
 
         // Begin listening
@@ -60,31 +80,37 @@ public class AgentClientHandler implements Runnable{
                     while (pauseRead) this.wait();
                     if (in.available() > 0) {
                         request = in.readChar();
+                        if(watch != null)
+                            watch.heard();
 
                         switch (request) {
                             case 'a':
                                 sendAuctionsToAgent();
                                 break;
+                            case 'h':
+                                sendHeartbeat();
+                                break;
                             case 'b':
                                 processBid();
                             default:
-                                System.out.println("Unknown request sent from Agent Client #" + ID);
+                                log.warn("Unknown request sent from Agent Client #{}", ID);
                         }
                     }
                 } catch (IOException e) {
                     // Thread disconnected
+                    server.removeClient(ID, this);
                     try {
                         in.close();
                         out.close();
                         clientSocket.close();
-                        System.out.println("Agent Client #" + ID + " disconnected");
+                        log.info("Agent Client #{} disconnected", ID);
                         return;
                     } catch (IOException ioException) {
-                        ioException.printStackTrace();
+                        log.warn("Unable to close agent client connection", ioException);
                     }
 
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    log.warn("Agent client handler interrupted", e);
                 }
 
             }
@@ -95,7 +121,7 @@ public class AgentClientHandler implements Runnable{
      * Sends all available auctions from this AH to the connected agent client.
      */
     private synchronized void sendAuctionsToAgent(){
-        System.out.println("Agent " + ID + " requested current auctions");
+        log.debug("Agent {} requested current auctions", ID);
 
 
         ConcurrentHashMap<Integer, Auction> auctions = server.getAuctions(); // Get current auctions of the server
@@ -109,9 +135,9 @@ public class AgentClientHandler implements Runnable{
             }
             out.writeUTF("0");
             out.flush();
-            System.out.println("Auction Items sent to client");
+            log.debug("Auction Items sent to client");
         } catch (IOException e) {
-            System.out.println("Unable to send auction data to client");
+            log.warn("Unable to send auction data to client");
         }
     }
 
@@ -121,8 +147,8 @@ public class AgentClientHandler implements Runnable{
      * result of bid submission.
      *
      * (2) Denied: Current bid is higher
-     * (1) Denied: Not enough funds
-     * (0) Accepted: Funds blocked through bank
+     * (1) Accepted: Funds blocked through bank
+     * (0) Denied: Not enough funds
      * (-1) Error in communication
      */
     private synchronized void processBid(){
@@ -140,33 +166,21 @@ public class AgentClientHandler implements Runnable{
             accountID = Integer.parseInt((String) bidData.get("accountID"));
             itemAuction = server.getAuction(id); // Acquire the auction
 
-            // Check if the current bid higher
-            if(amount < itemAuction.getCurrentBid()){
-                out.writeInt(2);    // Current bid is higher, return response
-                return;
-            }
-
-            response = server.requestFundBlock(bidData); // Request to block funds
-
-            switch (response){
-                case 1:
-                    itemAuction.acceptBid(amount, accountID); // accept the bid
-                case 0:
-                default:
-                    out.writeInt(response);         // send response back to the agent
-                    out.flush();
-            }
+            // Block funds and release the previous bid's if the bid is high enough
+            response = itemAuction.placeBid(amount, accountID);
+            out.writeInt(response);         // send response back to the agent
+            out.flush();
 
-            System.out.println("Response sent to client");
+            log.debug("Response sent to client");
 
 
         } catch (ParseException | IOException e) {
             try {
-                System.out.println("Unable to process agent bid request");
+                log.warn("Unable to process agent bid request", e);
                 out.writeInt(-1);
                 return;
             } catch (IOException ioException) {
-                System.out.println("Unable to to notify agent of process failure");
+                log.warn("Unable to to notify agent of process failure");
                 return;
             }
         }
@@ -189,19 +203,19 @@ public class AgentClientHandler implements Runnable{
     public int sendOutbidNotif(int itemID){
         pauseRead = true;
         try{
-            System.out.println("Sending outbid notification to client " + ID);
+            log.debug("Sending outbid notification to client {}", ID);
             out.writeChar('o');
             out.flush();
             out.writeInt(itemID);
             out.flush();
-            System.out.println("Request sent");
+            log.debug("Request sent");
             pauseRead = false;
             synchronized (this){
                 this.notify();
             }
             return 1;
         } catch (IOException e) {
-            System.out.println("Request unsuccessful");
+            log.warn("Request unsuccessful");
             pauseRead = false;
             synchronized (this){
                 this.notify();
@@ -214,19 +228,19 @@ public class AgentClientHandler implements Runnable{
     public int sendWonNotif(int itemID){
         pauseRead = true;
         try{
-            System.out.println("Sending auction won notification to client " + ID);
+            log.debug("Sending auction won notification to client {}", ID);
             out.writeChar('w');
             out.flush();
             out.writeInt(itemID);
             out.flush();
-            System.out.println("Request sent");
+            log.debug("Request sent");
             pauseRead = false;
             synchronized (this){
                 this.notify();
             }
             return 1;
         } catch (IOException e) {
-            System.out.println("Request unsuccessful");
+            log.warn("Request unsuccessful");
             pauseRead = false;
             synchronized (this){
                 this.notify();
@@ -235,6 +249,32 @@ public class AgentClientHandler implements Runnable{
         }
     }
 
+    @Override
+    public boolean isOpen() {
+        return !clientSocket.isClosed();
+    }
+
+    /**
+     * Answers the agent's heartbeat
+     */
+    @Override
+    public void sendHeartbeat() throws IOException {
+        out.writeChar('h');
+        out.flush();
+    }
+
+    /**
+     * Closes the connection of a silent agent
+     */
+    @Override
+    public void close() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            log.warn("Unable to close silent agent connection");
+        }
+    }
+
     public void closeConnection() throws IOException {
         out.writeChar('0');
         out.flush();
@@ -35,28 +35,41 @@ public class Auction {
     }
 
     /**
-     * Attempts to accept bid at specified amount
+     * Attempts a bid at specified amount. The bank blocks the bidder's funds and releases the
+     * previous bid's together, and bids on this auction are placed one at a time so each
+     * releases the bid it actually replaces.
+     * (2) Denied: Current bid is higher
+     * (1) Accepted: Funds blocked through bank
+     * (0) Denied: Not enough funds
+     * (-1) Error in communication with the bank
      *
      * @param amount new bid amount
      * @param bidderID ID of new bidder
-     * @return
+     * @return Bid status, see above
      */
-    public synchronized int acceptBid(long amount, int bidderID){
+    public synchronized int placeBid(long amount, int bidderID){
+        if(amount < currentBid)
+            return 2;
+
+        int response = AHServer.requestBidHold(bidderID, amount, currentBidderID, currentBid);
+        if(response == 1)
+            acceptBid(amount, bidderID);
+        return response;
+    }
+
+    /**
+     * Accepts a bid whose funds are blocked
+     *
+     * @param amount new bid amount
+     * @param bidderID ID of new bidder
+     */
+    private void acceptBid(long amount, int bidderID){
         active = true;
 
         // Bid had started
-        if(currentBidderID != 0){
+        if(currentBidderID != 0)
             AHServer.sendOutbidNotification(currentBidderID, itemID); // Send outbid notification to client
 
-            // Package old bid info
-            JSONObject requestData = new JSONObject();
-            requestData.put("accountID", String.valueOf(currentBidderID));
-            requestData.put("amount", amount);
-
-            // Request bank to unblock funds for previous bidder
-            AHServer.requestUnblockFunds(requestData);
-        }
-
         currentBid = amount;
         currentBidderID = bidderID; // Replace with new bidder
         timeLeft = 30;
@@ -79,8 +92,6 @@ public class Auction {
                 0,
                 1000
         );
-
-        return 1;
     }
 
     private void endAuction(){
@@ -1,34 +1,106 @@
 package com.nlivingstone;
 
+import com.auctionprotocol.FrameDecoder;
+import com.auctionprotocol.FrameEncoder;
+import com.auctionprotocol.Heartbeats;
+import com.auctionprotocol.Shards;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import javafx.application.Platform;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is to represent the client side of the auction house which connects to the bank.
+ *
+ * When the bank is sharded the auction house has one client per shard. The client of its own
+ * shard is given the auction house's ID, the others log in with that ID so the auction house
+ * can block funds of agents held by their shards.
+ *
+ * The bank IP may list a standby bank after the primary, separated by commas. If the connection
+ * is lost the client logs in again with its ID to the first bank that answers.
+ *
+ * If the bank supports hold leases, funds are blocked with a lease of {@link #LEASE_MILLIS}, and the
+ * client renews its holds on agents well within the lease. Should the auction house stop, the bank
+ * releases the agents' funds itself once the lease runs out.
+ *
+ * If the bank answers busy, a batch it had no room to queue fails with a {@link BusyException}
+ * and was not applied, so it can be sent again after a pause.
+ *
+ * If the bank agrees heartbeats the client sends one once the connection has been quiet for a
+ * while, and closes a connection the bank stays silent on, reconnecting as if it had failed.
+ *
+ * If the bank supports hold adjustments a new high bid blocks the bidder's funds and releases the
+ * previous bidder's in a single request, see {@link #requestHoldAdjust(int, long, int, long)}.
  */
-public class AuctionHouseClient implements Runnable{
+public class AuctionHouseClient implements Runnable, Heartbeats.Peer {
+    private static final Logger log = Log.get("auction.bank");
+
     /** Auction House ID*/
     private int ID;
-    private final int bankPort = 1025;
+    /** Token the home shard sent with the ID, to log in with the ID again */
+    private long token;
+    private final int bankPort;
+    /** Flag if the auction house's account is held by another shard of the bank */
+    private final boolean routed;
+    /** Time to keep trying to reconnect after losing the bank */
+    private static final long FAILOVER_MILLIS = 30_000;
+    private static final long RETRY_MILLIS = 500;
+    /** Lease of blocked funds, released by the bank unless renewed */
+    private static final int LEASE_MILLIS = 30_000;
+    /** Time between renewals of every hold */
+    private static final long RENEW_MILLIS = LEASE_MILLIS / 3;
+    /** Most agents renewed in one frame */
+    private static final int RENEW_BATCH = 4096;
+
     /** Hostname of the bank server */
     private final String bankIP;
+    /** Bank hosts to try in order, the primary followed by any standbys */
+    private final String[] bankHosts;
     /** Auction House Server Hostname */
     private String auctionIP;
     /** Auction House Server Port */
     private final int auctionPort;
     /** Socket connection with the bank */
-    private Socket clientSocket;
+    private volatile Socket clientSocket;
     /** Auction Server Instance */
     AuctionHouseServer server;
     private DataInputStream in;
     private DataOutputStream out;
-//    private ReentrantLock lock;
+    /** Groups block/unblock requests into batches */
+    private final BankRequestBatcher batcher;
+    /** Requests sent to the bank waiting on a response, by request ID */
+    private final ConcurrentHashMap<Integer, CompletableFuture<int[]>> pendingRequests;
+    /** Watch of the bank connection, null unless heartbeats were agreed. Only used by the reader thread. */
+    private Heartbeats.Watch watch;
+    /** Source of request IDs */
+    private final AtomicInteger nextRequestID;
+    /** Flag if the bank agreed to binary frames rather than JSON */
+    private boolean binary;
+    /** Flag if the bank accepts idempotency keys, so batches can be retried safely */
+    private volatile boolean keyed;
+    /** Flag if blocked funds are held with a lease that must be renewed */
+    private volatile boolean leased;
+    /** Flag if the bank accepts adjust requests */
+    private volatile boolean adjustable;
+    /** Agents the bank may hold funds on for this auction house */
+    private final Set<Integer> heldAgents;
+    /** Encodes frames sent to the bank, guarded by this */
+    private final FrameEncoder encoder;
+    /** Decodes frames read from the bank */
+    private final FrameDecoder decoder;
 
 
     /**
@@ -39,14 +111,39 @@ public class AuctionHouseClient implements Runnable{
      * @param server    Auction House Server Instance
      */
     public AuctionHouseClient (String IP, int port, AuctionHouseServer server){
+        this(IP, Shards.AUCTION_HOUSE_PORT, port, server, 0, 0);
+    }
+
+    /**
+     * Creates a new Auction House Client for one shard of the bank.
+     *
+     * @param IP        Bank's IP/hostname
+     * @param bankPort  Auction house port of the shard
+     * @param port      Auction House's Server port
+     * @param server    Auction House Server Instance
+     * @param homeID    ID given by the shard holding the auction house's account, 0 if this is that shard
+     * @param homeToken token sent with the ID
+     */
+    public AuctionHouseClient (String IP, int bankPort, int port, AuctionHouseServer server, int homeID, long homeToken){
         this.bankIP = IP;
+        this.bankHosts = IP.split(",");
+        this.bankPort = bankPort;
         this.auctionPort = port;
+        this.ID = homeID;
+        this.token = homeToken;
+        this.routed = homeID > 0;
         this.server = server;
+        batcher = new BankRequestBatcher(this);
+        pendingRequests = new ConcurrentHashMap<>();
+        heldAgents = ConcurrentHashMap.newKeySet();
+        nextRequestID = new AtomicInteger(0);
+        encoder = new FrameEncoder();
+        decoder = new FrameDecoder();
         try {
             this.auctionIP = InetAddress.getLocalHost().getHostAddress();
 
         } catch (UnknownHostException e) {
-            e.printStackTrace();
+            log.warn("Unable to determine local address", e);
             System.exit(-1);
             Platform.exit();
         }
@@ -54,27 +151,25 @@ public class AuctionHouseClient implements Runnable{
 
     /**
      * Attempts to connect to the bank and maintains a read/write
-     * channel with it as well.
+     * channel with it as well. Once connected this thread reads every
+     * response from the bank and completes the request it belongs to.
      */
     @Override
     public void run() {
-        //lock = new ReentrantLock(true);
         JSONParser parser = new JSONParser();
         JSONObject ahInfo;
-        String data;
-        char request;
 
         // Attempt to connect to the bank
         try{
-            clientSocket = new Socket(bankIP, bankPort);
+            clientSocket = connect();
 
         } catch (UnknownHostException e) {
-            System.out.println("Bank Host/IP " + bankIP + " cannot be found. Terminating.");
+            log.error("Bank Host/IP {} cannot be found. Terminating.", bankIP);
             System.exit(3);
             Platform.exit();
             return;
         } catch (IOException e) {
-            System.out.println("Unable to connect to bank. Terminating program.");
+            log.error("Unable to connect to bank. Terminating program.");
             System.exit(3);
             Platform.exit();
             return;
@@ -88,65 +183,326 @@ public class AuctionHouseClient implements Runnable{
             in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
 
 
-            // Package up auction information
-            ahInfo = new JSONObject();
-            ahInfo.put("ip", auctionIP);
-            ahInfo.put("port", String.valueOf(auctionPort));
-
-            // Send package to bank
-            out.writeUTF(ahInfo.toString());
-            out.flush();
-
-            // Receive ID
-            ID = in.readInt();
+            // Agree on binary frames if the bank supports them
+            int features = WireProtocol.offer(out, in, WireProtocol.FEATURE_BINARY
+                    | WireProtocol.FEATURE_JSON | WireProtocol.FEATURE_IDEMPOTENCY_KEYS | WireProtocol.FEATURE_HOLD_LEASES
+                    | WireProtocol.FEATURE_BUSY | WireProtocol.FEATURE_HEARTBEAT | WireProtocol.FEATURE_ADJUST_HOLDS);
+            binary = WireProtocol.isBinary(features);
+            keyed = (features & WireProtocol.FEATURE_IDEMPOTENCY_KEYS) != 0;
+            leased = binary && (features & WireProtocol.FEATURE_HOLD_LEASES) != 0;
+            adjustable = binary && (features & WireProtocol.FEATURE_ADJUST_HOLDS) != 0;
+
+            if(routed && !binary)
+                throw new IOException("Sharded bank requires binary frames");
+
+            if(binary){
+                // Send auction information and receive ID
+                encoder.begin('l').putString(auctionIP).putInt(auctionPort);
+                if(routed)
+                    encoder.putInt(ID).putLong(token);  // Log in with the ID from the auction house's shard
+                encoder.end();
+                encoder.writeTo(out);
+                out.flush();
+                if(decoder.readFrom(in) != 'i')
+                    throw new IOException("Bank did not send an ID");
+                ID = decoder.getInt();
+                token = decoder.getLong();
+                watchBank(features);
+                if(leased){
+                    encoder.begin('H').putInt(LEASE_MILLIS).end();
+                    encoder.writeTo(out);
+                    out.flush();
+                }
+            }
+            else{
+                // Package up auction information
+                ahInfo = new JSONObject();
+                ahInfo.put("ip", auctionIP);
+                ahInfo.put("port", String.valueOf(auctionPort));
+
+                // Send package to bank
+                out.writeUTF(ahInfo.toString());
+                out.flush();
+
+                // Receive ID
+                ID = in.readInt();
+            }
 
             // Set ID for server
-            server.assignID(ID);
-            synchronized (server){
-                server.notify();
+            if(!routed){
+                server.assignID(ID, token);
+                synchronized (server){
+                    server.notify();
+                }
             }
         } catch (IOException e) {
-            System.out.println("Unable to establish input/output stream with bank. Terminating.");
+            log.error("Unable to establish input/output stream with bank. Terminating.");
             System.exit(3);
             Platform.exit();
             return;
         }
 
-        System.out.println("Established connection to bank");
-
-//        while (true) {
-//                try {
-//                    lock.lock();
-//                    request = in.readChar();
-//                    switch (request){
-//                        case 'd': // transfer deposited into account
-//                            JSONObject depositInfo = (JSONObject) parser.parse(in.readUTF());
-//                            long amount = (long) depositInfo.get("amount");
-//                            long balance = (long) depositInfo.get("balance");
-//                            System.out.println("Bank transfer of $" + amount + " received");
-//                            System.out.printf("New Balance: $" + balance);
-//                            break;
-//                        default:
-//                            System.out.println(Integer.valueOf(request));
-//                            System.out.println("Unknown request received");
-//                    }
-//                } catch (IOException e) {
-//                    System.out.println("Connection to bank abruptly ended. Terminating auction server");
-//                    server.cleanUp();
-//                } catch (ParseException e) {
-//                    e.printStackTrace();
-//                }finally {
-//                    if(lock.isHeldByCurrentThread())
-//                        lock.unlock();
-//                    try {
-//                        Thread.sleep(100);
-//                    } catch (InterruptedException e) {
-//                        e.printStackTrace();
-//                    }
-//                }
-//
-//
-//        }
+        log.info("Established connection to bank port {}", bankPort);
+        new Thread(batcher).start();    // Begin sending batched requests
+        if(leased){
+            Thread renewer = new Thread(this::renewHolds, "hold-renewer");
+            renewer.setDaemon(true);
+            renewer.start();
+        }
+
+        // Read responses and notifications from the bank
+        while (true) {
+            try {
+                if(binary)
+                    readFrame();
+                else
+                    readLegacyMessage(parser);
+            } catch (IOException e) {
+                log.warn("Connection to bank abruptly ended");
+                server.getHeartbeats().unwatch(watch);
+                watch = null;
+                failPendingRequests(e);
+                if(!binary || !reconnect())
+                    return;
+            } catch (ParseException e) {
+                log.warn("Unable to parse bank message", e);
+            }
+        }
+    }
+
+    /**
+     * @return Socket connected to the first bank host that accepts the connection
+     */
+    private Socket connect() throws IOException {
+        IOException failure = null;
+        for(String host : bankHosts){
+            try {
+                return new Socket(host, bankPort);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Connects to the first bank that answers, such as a standby that has taken over, and
+     * logs in again with this auction house's ID. Keeps trying for a while before giving up.
+     *
+     * @return true if connected again
+     */
+    private boolean reconnect(){
+        long deadline = System.currentTimeMillis() + FAILOVER_MILLIS;
+        while(System.currentTimeMillis() < deadline){
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+
+            try {
+                Socket socket = connect();
+                DataOutputStream newOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream newIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                int features = WireProtocol.offer(newOut, newIn, WireProtocol.FEATURE_BINARY
+                        | WireProtocol.FEATURE_IDEMPOTENCY_KEYS | WireProtocol.FEATURE_HOLD_LEASES
+                        | WireProtocol.FEATURE_BUSY | WireProtocol.FEATURE_HEARTBEAT | WireProtocol.FEATURE_ADJUST_HOLDS);
+                if(!WireProtocol.isBinary(features))
+                    throw new IOException("Bank does not support binary frames");
+                keyed = (features & WireProtocol.FEATURE_IDEMPOTENCY_KEYS) != 0;
+                leased = (features & WireProtocol.FEATURE_HOLD_LEASES) != 0;
+                adjustable = (features & WireProtocol.FEATURE_ADJUST_HOLDS) != 0;
+
+                synchronized (this){
+                    encoder.begin('l').putString(auctionIP).putInt(auctionPort).putInt(ID).putLong(token).end();
+                    encoder.writeTo(newOut);
+                    if(leased){
+                        encoder.begin('H').putInt(LEASE_MILLIS).end();
+                        encoder.writeTo(newOut);
+                    }
+                    newOut.flush();
+                    clientSocket = socket;
+                    out = newOut;
+                }
+                if(decoder.readFrom(newIn) != 'i')
+                    throw new IOException("Bank did not accept the login");
+                in = newIn;
+                watchBank(features);
+                log.info("Reconnected to bank port {}", bankPort);
+                return true;
+            } catch (IOException e) {
+                log.debug("Unable to reconnect to bank");
+            }
+        }
+        log.error("Unable to reconnect to bank");
+        return false;
+    }
+
+    /**
+     * Reads and handles a single binary frame from the bank
+     */
+    private void readFrame() throws IOException {
+        char opcode = decoder.readFrom(in);
+        if(watch != null)
+            watch.heard();
+        switch (opcode){
+            case 'r': // Response to a batch of requests
+                int requestID = decoder.getInt();
+                int[] results = new int[decoder.getInt()];
+                for(int i = 0; i < results.length; i++){
+                    results[i] = decoder.getInt();
+                }
+                completeRequest(requestID, results);
+                break;
+            case 'h': // Answer to a heartbeat
+                break;
+            case 'z': // Batch refused by a busy bank
+                CompletableFuture<int[]> refused = pendingRequests.remove(decoder.getInt());
+                if(refused != null)
+                    refused.completeExceptionally(new BusyException());
+                break;
+            case 'd': // transfer deposited into account
+                printDeposit(decoder.getLong(), decoder.getLong());
+                break;
+            case 'n': // Renewed agents the bank no longer holds funds on
+                int released = decoder.getInt();
+                for(int i = 0; i < released; i++){
+                    heldAgents.remove(decoder.getInt());
+                }
+                break;
+            default:
+                log.warn("Unknown frame received");
+        }
+    }
+
+    /**
+     * Reads and handles a single message of the original protocol from the bank
+     */
+    private void readLegacyMessage(JSONParser parser) throws IOException, ParseException {
+        char request = in.readChar();
+        switch (request){
+            case 'r': // Response to a batch of requests
+                int requestID = in.readInt();
+                int[] results = new int[in.readInt()];
+                for(int i = 0; i < results.length; i++){
+                    results[i] = in.readInt();
+                }
+                completeRequest(requestID, results);
+                break;
+            case 'd': // transfer deposited into account
+                JSONObject depositInfo = (JSONObject) parser.parse(in.readUTF());
+                printDeposit((long) depositInfo.get("amount"), (long) depositInfo.get("balance"));
+                break;
+            default:
+                log.warn("Unknown request {} received", (int) request);
+        }
+    }
+
+    /**
+     * Watches the bank connection for silence if the bank agreed heartbeats
+     *
+     * @param features features agreed with the bank
+     */
+    private void watchBank(int features){
+        if((features & WireProtocol.FEATURE_HEARTBEAT) != 0)
+            watch = server.getHeartbeats().watch(this, true);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !clientSocket.isClosed();
+    }
+
+    @Override
+    public void sendHeartbeat() throws IOException {
+        synchronized (this){
+            encoder.begin('h').end();
+            encoder.writeTo(out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Closes a silent bank connection, so the reader thread reconnects
+     */
+    @Override
+    public void close() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            log.warn("Unable to close bank connection");
+        }
+    }
+
+    private void completeRequest(int requestID, int[] results){
+        CompletableFuture<int[]> response = pendingRequests.remove(requestID);
+        if(response != null)
+            response.complete(results);
+    }
+
+    /**
+     * Renews the bank's holds on every agent with funds blocked for this auction house.
+     * The bank answers with the agents it holds nothing on any more.
+     */
+    private void renewHolds(){
+        while(true){
+            try {
+                Thread.sleep(RENEW_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if(!leased || heldAgents.isEmpty())
+                continue;
+
+            Integer[] agentIDs = heldAgents.toArray(new Integer[0]);
+            synchronized (this){
+                try {
+                    for(int first = 0; first < agentIDs.length; first += RENEW_BATCH){
+                        int count = Math.min(RENEW_BATCH, agentIDs.length - first);
+                        encoder.begin('N').putInt(count);
+                        for(int i = first; i < first + count; i++){
+                            encoder.putInt(agentIDs[i]);
+                        }
+                        encoder.end();
+                        encoder.writeTo(out);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    log.debug("Unable to renew holds");     // Renewed after reconnecting
+                }
+            }
+        }
+    }
+
+    private void printDeposit(long amount, long balance){
+        log.info("Bank transfer of ${} received. New Balance: ${}", amount, balance);
+    }
+
+    /**
+     * Fails every request still waiting on a response from the bank
+     *
+     * @param cause reason the requests failed
+     */
+    private void failPendingRequests(Throwable cause){
+        for(Integer requestID : pendingRequests.keySet()){
+            CompletableFuture<int[]> response = pendingRequests.remove(requestID);
+            if(response != null)
+                response.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return true if the bank accepts idempotency keys, so a batch may be sent again
+     */
+    boolean isKeyed(){
+        return keyed;
+    }
+
+    /**
+     * @return true if the bank accepts adjust requests, see {@link #requestHoldAdjust(int, long, int, long)}
+     */
+    boolean isAdjustable(){
+        return adjustable;
     }
 
     public Socket getClientSocket() {
@@ -164,40 +520,30 @@ public class AuctionHouseClient implements Runnable{
      * @param requestData JSONObject of account ID to and amount to block
      * @return Block Request Status Code
      */
-    public synchronized int requestFundBlock(JSONObject requestData){
+    public int requestFundBlock(JSONObject requestData){
         int response;
         int returnValue = -1;
 
-        System.out.println("Requesting Bank to block $" + requestData.get("amount") + " from account: " + requestData.get("accountID"));
-
-        try {
-
-
-            out.writeChar('b'); // Send command request
-            out.flush();
-            out.writeUTF(requestData.toString()); // Send block request data
-            out.flush();
-
-            System.out.println("Waiting on response");
-            response = in.readInt(); // Receive response
-            System.out.println("Received response");
-
-
-            // Return the response
-            switch (response){
-                case 1:
-                    System.out.println("Bank accepted request");
-                    returnValue = 1;
-                    break;
-                case 0:
-                    System.out.println("Not enough funds to block");
-                    returnValue = 0;
-                    break;
-                default:
-                    throw new IOException();
-            }
-        } catch (IOException e) {
-            System.out.println("Error occurred when communicating with bank");
+        log.debug("Requesting Bank to block ${} from account: {}", requestData.get("amount"), requestData.get("accountID"));
+
+        response = batcher.submit('b',
+                Integer.parseInt((String) requestData.get("accountID")),
+                (long) requestData.get("amount"));
+
+        // Return the response
+        switch (response){
+            case 1:
+                log.debug("Bank accepted request");
+                if(leased)
+                    heldAgents.add(Integer.parseInt((String) requestData.get("accountID")));
+                returnValue = 1;
+                break;
+            case 0:
+                log.debug("Not enough funds to block");
+                returnValue = 0;
+                break;
+            default:
+                log.warn("Error occurred when communicating with bank");
         }
 
         return returnValue;
@@ -208,43 +554,136 @@ public class AuctionHouseClient implements Runnable{
      * @param requestData JSONObject Contains amount to unblock and accountID
      * @return (1) on success (0) unavailable funds to unblock (-1) communication failure with bank
      */
-    public synchronized int requestUnblockFunds(JSONObject requestData){
+    public int requestUnblockFunds(JSONObject requestData){
         int response;
         int returnValue = -1;
 
-        System.out.println("Requesting Bank to unblock $" + requestData.get("amount") + " from account: " + requestData.get("accountID"));
+        log.debug("Requesting Bank to unblock ${} from account: {}", requestData.get("amount"), requestData.get("accountID"));
+
+        response = batcher.submit('u',
+                Integer.parseInt((String) requestData.get("accountID")),
+                (long) requestData.get("amount"));
+
+        // Return the response
+        switch (response){
+            case 1:
+                log.debug("Bank accepted request");
+                returnValue = 1;
+                break;
+            case 0:
+                log.debug("Funds unavailable to unblock");
+                returnValue = 0;
+                break;
+            default:
+                log.warn("Error occurred when communicating with bank");
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * Requests the bank to block funds for a new high bid and release the funds of the bid it
+     * replaces, in a single request. When an agent raises its own bid only the difference is
+     * blocked, so it does not need funds for both bids at once. Only the bank shard holding both
+     * agents can adjust, and only if {@link #isAdjustable()}.
+     * Response Codes:
+     * (1) Funds were blocked and the previous bid's released
+     * (0) Not enough funds available to be blocked, the previous bid's funds stay blocked
+     * (-1) Error occurred during the request
+     * @param accountID     agent bank account ID of the new bid
+     * @param amount        amount of the new bid
+     * @param releaseID     agent bank account ID of the previous bid
+     * @param releaseAmount amount of the previous bid
+     * @return Adjust Request Status Code
+     */
+    public int requestHoldAdjust(int accountID, long amount, int releaseID, long releaseAmount){
+        log.debug("Requesting Bank to block ${} from account: {}", amount, accountID);
+
+        int response = batcher.submit('a', accountID, amount, releaseID, releaseAmount);
+        switch (response){
+            case 1:
+                log.debug("Bank accepted request");
+                if(leased)
+                    heldAgents.add(accountID);
+                return 1;
+            case 0:
+                log.debug("Not enough funds to block");
+                return 0;
+            default:
+                log.warn("Error occurred when communicating with bank");
+                return -1;
+        }
+    }
+
+    /**
+     * Sends a batch of block/unblock requests to the bank in a single request tagged
+     * with a new request ID. Does not wait for the bank, so many batches can be in
+     * flight at once and the bank may answer them in any order. Requests carry their
+     * idempotency keys if the bank accepts them.
+     *
+     * @param batch requests to send
+     * @return Bank response code for each request, in order, once the bank has responded
+     */
+    CompletableFuture<int[]> sendBatch(List<BankRequestBatcher.Request> batch){
+        int requestID = nextRequestID.incrementAndGet();
+        CompletableFuture<int[]> response = new CompletableFuture<>();
+        pendingRequests.put(requestID, response);
+        response.whenComplete((results, error) -> pendingRequests.remove(requestID));   // Including timed out
 
         try {
-            out.writeChar('u'); // Send command request
-            out.flush();
-            out.writeUTF(requestData.toString()); // Send block request data
-            out.flush();
-            System.out.println("Waiting on response");
-            response = in.readInt(); // Receive response
-            System.out.println("Received response");
-            // Return the response
-            switch (response){
-                case 1:
-                    System.out.println("Bank accepted request");
-                    returnValue = 1;
-                    break;
-                case 0:
-                    System.out.println("Funds unavailable to unblock");
-                    returnValue = 0;
-                    break;
-                default:
-                    throw new IOException();
+            synchronized (this){
+                if(binary){
+                    encoder.begin(keyed ? 'K' : 'B').putInt(requestID).putInt(batch.size());
+                    for(BankRequestBatcher.Request request : batch){
+                        if(keyed)
+                            encoder.putLong(request.key);
+                        encoder.putChar(request.operation).putInt(request.accountID).putLong(request.amount);
+                        if(request.operation == 'a')
+                            encoder.putInt(request.releaseID).putLong(request.releaseAmount);
+                    }
+                    encoder.end();
+                    encoder.writeTo(out);
+                }
+                else{
+                    out.writeChar(keyed ? 'K' : 'B');
+                    out.writeInt(requestID);
+                    out.writeInt(batch.size());
+                    for(BankRequestBatcher.Request request : batch){
+                        if(keyed)
+                            out.writeLong(request.key);
+                        out.writeChar(request.operation);
+                        out.writeInt(request.accountID);
+                        out.writeLong(request.amount);
+                    }
+                }
+                out.flush();
             }
         } catch (IOException e) {
-            System.out.println("Error occurred when communicating with bank");
-        }finally {
-            return returnValue;
+            pendingRequests.remove(requestID);
+            response.completeExceptionally(e);
         }
+        return response;
     }
 
-    public void shutdownClient() throws IOException {
-            out.writeChar('0'); // Send command request
+    public synchronized void shutdownClient() throws IOException {
+            if(binary){
+                encoder.begin('0').end();
+                encoder.writeTo(out);
+            }
+            else
+                out.writeChar('0'); // Send command request
             out.flush();
             clientSocket.close();
     }
+
+    /**
+     * Failure of a batch the bank was too busy to queue, which was not applied
+     */
+    static final class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BusyException(){
+            super("Bank busy");
+        }
+    }
 }
@@ -1,5 +1,10 @@
 package com.nlivingstone;
 
+import com.auctionprotocol.Heartbeats;
+import com.auctionprotocol.Shards;
+import com.auctionprotocol.TimingWheel;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import javafx.application.Platform;
 import org.json.simple.JSONObject;
 
@@ -15,6 +20,12 @@ import java.util.concurrent.ConcurrentHashMap;
 import static javafx.application.Platform.exit;
 
 public class AuctionHouseServer implements Runnable{
+    private static final Logger log = Log.get("auction.server");
+
+    /** Precision of heartbeat checks */
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_SLOTS = 256;
+
     /** The server's socket */
     private ServerSocket serverSocket;
     /** port the server runs on */
@@ -23,16 +34,24 @@ public class AuctionHouseServer implements Runnable{
     private String hostName;
     /** Auction House ID */
     private int ID;
+    /** Token the bank sent with the ID, presented to the other shards */
+    private long token;
     /** Flag denoting if the server is on */
     private boolean on;
     /** Auction House Client that connects to bank */
     private AuctionHouseClient ahClient;
+    /** Number of shards the bank is split across */
+    private final int shards;
+    /** Client connected to each bank shard, the auction house's own shard is ahClient */
+    private final AuctionHouseClient[] bankClients;
     /** Connected clients */
     ConcurrentHashMap<Integer, AgentClientHandler> connectedAgents;
     /** Auction Threads */
     ConcurrentHashMap<Integer, Auction> auctions;
     ConcurrentHashMap<Integer, Auction> soldItems;
     private Connection dbConnection;
+    /** Watches the bank and agent connections for silence, on one timing wheel */
+    private final Heartbeats heartbeats;
 
     /**
      * Creates a new Auction house server and saves the provided port argument
@@ -40,12 +59,32 @@ public class AuctionHouseServer implements Runnable{
      * @param port Server Port
      */
     public AuctionHouseServer(int port, String IP){
+        this(port, IP, 1);
+    }
+
+    /**
+     * Creates a new Auction house server for a bank split across shards. The auction house's
+     * account is held by the shard chosen by its port.
+     *
+     * @param port      Server Port
+     * @param IP        Bank IP/hostname
+     * @param shards    Number of bank shards
+     */
+    public AuctionHouseServer(int port, String IP, int shards){
         serverPort = port;
+        this.shards = shards;
+        bankClients = new AuctionHouseClient[shards];
         connectedAgents = new ConcurrentHashMap<>(0);
         dbConnection = null;
         auctions = new ConcurrentHashMap<>(3);
         soldItems = new ConcurrentHashMap<>(3);
         hostName = IP;
+
+        TimingWheel timers = new TimingWheel(TIMER_TICK_MILLIS, TIMER_SLOTS);
+        heartbeats = new Heartbeats(timers);
+        Thread wheel = new Thread(timers, "timing-wheel");
+        wheel.setDaemon(true);
+        wheel.start();
     }
 
     /**
@@ -61,7 +100,9 @@ public class AuctionHouseServer implements Runnable{
 
 
         // Create server client to connect to bank
-        ahClient = new AuctionHouseClient(hostName, serverPort, this);
+        int home = serverPort % shards;
+        ahClient = new AuctionHouseClient(hostName, Shards.auctionHousePort(home), serverPort, this, 0, 0);
+        bankClients[home] = ahClient;
         new Thread(ahClient).start(); // Start the Client
 
         // Hold current thread and wait for server client to attempt connection
@@ -70,18 +111,25 @@ public class AuctionHouseServer implements Runnable{
                 wait(10000); // Timeout after 10 seconds
             }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            log.warn("Interrupted while waiting for the bank connection", e);
             return;
         }
 
+        // Reach agents held by the other shards under the same ID
+        for(int shard = 0; shard < shards; shard++){
+            if(shard != home){
+                bankClients[shard] = new AuctionHouseClient(hostName, Shards.auctionHousePort(shard), serverPort, this, ID, token);
+                new Thread(bankClients[shard]).start();
+            }
+        }
+
         // Connect to item database
         if(dbConnection == null){
             try {
                 dbConnection = DriverManager.getConnection("jdbc:sqlite:./items.sqlite");
                 acquireItems(3);
             } catch (SQLException throwables) {
-                System.out.println("Unable to connect to item database");
-                System.out.println("Server terminating...");
+                log.error("Unable to connect to item database. Server terminating...", throwables);
                 Platform.exit();
                 System.exit(1);
                 return;
@@ -94,17 +142,15 @@ public class AuctionHouseServer implements Runnable{
         try {
             serverSocket = new ServerSocket(serverPort);
         } catch (IOException e) {
-            System.out.println("Cannot open port: " + serverPort);
+            log.error("Cannot open port: {}", (long) serverPort);
             exit();
             System.exit(2);
         }
 
-        System.out.println("Listening for client connections");
         try {
-            System.out.println("IP: " + InetAddress.getLocalHost().getHostAddress());
-            System.out.println("Port: " + serverPort);
+            log.info("Listening for client connections on {}:{}", InetAddress.getLocalHost().getHostAddress(), (long) serverPort);
         } catch (UnknownHostException e) {
-            e.printStackTrace();
+            log.warn("Unable to determine local address", e);
         }
         // Listen on socket
         while(on){
@@ -115,7 +161,7 @@ public class AuctionHouseServer implements Runnable{
 
             } catch (IOException e) {
                 if(on) {
-                    System.out.println("Error accepting new client.");
+                    log.warn("Error accepting new client.", e);
                 }
             }
         }
@@ -137,22 +183,38 @@ public class AuctionHouseServer implements Runnable{
             try {
                 ac.closeConnection();
             } catch (IOException e) {
-                System.out.println("Unable to close connection to client during cleanup.");
+                log.warn("Unable to close connection to client during cleanup.");
             }
         }
 
-        try {
-            ahClient.shutdownClient();
-        } catch (IOException e) {
-            System.out.println("Unable to close connection to bank");
+        for(AuctionHouseClient client : bankClients){
+            try {
+                if(client != null)
+                    client.shutdownClient();
+            } catch (IOException e) {
+                log.warn("Unable to close connection to bank");
+            }
         }
-        System.out.println("Server terminating...");
+        log.info("Server terminating...");
         Platform.exit();
         System.exit(1);
     }
 
-    public void removeClient(int ID){
-        connectedAgents.remove(ID);
+    /**
+     * Removes a disconnected agent client, unless the agent has connected again since
+     *
+     * @param ID        Client's ID
+     * @param client    agent client that disconnected
+     */
+    public void removeClient(int ID, AgentClientHandler client){
+        connectedAgents.remove(ID, client);
+    }
+
+    /**
+     * @return Watches of the auction house's connections
+     */
+    Heartbeats getHeartbeats(){
+        return heartbeats;
     }
 
     public void itemSold(int ID){
@@ -166,7 +228,7 @@ public class AuctionHouseServer implements Runnable{
      * @param n number of items to acquire
      */
     private void acquireItems(int n){
-        System.out.println("Requesting " + n + " items from database");
+        log.info("Requesting {} items from database", (long) n);
 
         ResultSet rs;
         Auction newItem;
@@ -194,12 +256,12 @@ public class AuctionHouseServer implements Runnable{
                 minBid = Long.parseLong(rs.getString("ref_num").substring(2,4)) * 10; // Randomly generate price using reference ID
                 newItem = new Auction(this, ID, itemID, title, category, minBid);
                 auctions.put(itemID, newItem); // Map the auctions based on itemID
-                System.out.println(newItem);
+                log.info("New auction: {}", newItem);
                 // Update the items that are going to be sold
                 statement.execute("UPDATE art set sold = 1 where id = " + rs.getString("id"));
             }
         } catch (SQLException throwables) {
-            throwables.printStackTrace();
+            log.error("Unable to acquire items from database", throwables);
             return;
         }
 
@@ -229,7 +291,57 @@ public class AuctionHouseServer implements Runnable{
      * Wrapper for AuctionHouseClient.requestFundBlock()
      */
     public int requestFundBlock(JSONObject requestData){
-        return ahClient.requestFundBlock(requestData);
+        return bankClientFor(requestData).requestFundBlock(requestData);
+    }
+
+    /**
+     * Blocks funds for a new high bid and releases the previous bidder's. Takes a single bank
+     * request when the bank supports it and one shard holds both agents, and a block followed
+     * by an unblock otherwise.
+     *
+     * @param accountID         new bidder's account ID
+     * @param amount            new bid
+     * @param previousID        previous bidder's account ID, 0 if there is none
+     * @param previousAmount    previous bid
+     * @return (1) funds blocked (0) not enough funds (-1) error communicating with the bank
+     */
+    public int requestBidHold(int accountID, long amount, int previousID, long previousAmount){
+        AuctionHouseClient client = bankClientFor(accountID);
+        if(previousID != 0 && client.isAdjustable() && bankClientFor(previousID) == client)
+            return client.requestHoldAdjust(accountID, amount, previousID, previousAmount);
+
+        int response = requestFundBlock(fundsRequest(accountID, amount));
+        if(response == 1 && previousID != 0)
+            requestUnblockFunds(fundsRequest(previousID, previousAmount));
+        return response;
+    }
+
+    /**
+     * @return Block or unblock request data for an agent's account
+     */
+    private static JSONObject fundsRequest(int accountID, long amount){
+        JSONObject requestData = new JSONObject();
+        requestData.put("accountID", String.valueOf(accountID));
+        requestData.put("amount", amount);
+        return requestData;
+    }
+
+    /**
+     * @param requestData request with the agent's account ID
+     * @return Client of the bank shard holding the agent's account
+     */
+    private AuctionHouseClient bankClientFor(JSONObject requestData){
+        return bankClientFor(Integer.parseInt((String) requestData.get("accountID")));
+    }
+
+    /**
+     * @param accountID agent's account ID
+     * @return Client of the bank shard holding the agent's account
+     */
+    private AuctionHouseClient bankClientFor(int accountID){
+        if(shards == 1)
+            return ahClient;
+        return bankClients[Shards.owner(accountID, shards)];
     }
 
     /**
@@ -271,7 +383,7 @@ public class AuctionHouseServer implements Runnable{
      * Wrapper for AuctionHouseClient.requestUnblockFunds()
      */
     public int requestUnblockFunds(JSONObject requestData){
-        return ahClient.requestUnblockFunds(requestData);
+        return bankClientFor(requestData).requestUnblockFunds(requestData);
     }
 
     public void attemptShutdown(){
@@ -293,7 +405,8 @@ public class AuctionHouseServer implements Runnable{
     }
 
 
-    public void assignID(int ID){
+    public void assignID(int ID, long token){
         this.ID = ID;
+        this.token = token;
     }
 }
@@ -0,0 +1,195 @@
+package com.nlivingstone;
+
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects block, unblock and adjust requests from concurrent bid threads and sends them
+ * to the bank in batches, so the number of bank operations per second is not
+ * limited to one per round trip.
+ *
+ * A batch is sent once it holds {@link #MAX_BATCH_SIZE} requests or once its
+ * first request has waited {@link #MAX_DELAY_NANOS}, whichever comes first.
+ * Up to {@link #MAX_IN_FLIGHT} batches may wait on the bank at once, so one
+ * slow batch does not hold up the requests behind it.
+ *
+ * Every request is given an idempotency key. When the bank accepts keys, a batch that fails, goes
+ * unanswered or has an entry the bank asks for again is sent again with the same keys until
+ * {@link #RETRY_MILLIS} has passed, and the bank answers requests it has already applied with their earlier result.
+ */
+public class BankRequestBatcher implements Runnable {
+    private static final Logger log = Log.get("auction.bank");
+
+    /** Most requests sent in a single batch */
+    static final int MAX_BATCH_SIZE = 64;
+    /** Longest a request waits for a batch to fill */
+    private static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** Most batches waiting on a response from the bank */
+    private static final int MAX_IN_FLIGHT = 32;
+    /** Longest a keyed batch waits for the bank before it is sent again */
+    private static final long ATTEMPT_TIMEOUT_MILLIS = 2_000;
+    /** Time between attempts at a keyed batch */
+    private static final long RETRY_DELAY_MILLIS = 250;
+    /** Longest a keyed batch is retried for, long enough to ride out a failover */
+    private static final long RETRY_MILLIS = 35_000;
+    /** Source of idempotency keys, seeded with the time so keys differ across restarts */
+    private static final AtomicLong nextKey = new AtomicLong(System.currentTimeMillis() << 20);
+
+    private final AuctionHouseClient client;
+    private final LinkedBlockingQueue<Request> queue;
+    /** Permits for batches sent but not yet answered */
+    private final Semaphore inFlight;
+
+    /**
+     * Creates a new batcher
+     *
+     * @param client connection to the bank batches are sent over
+     */
+    public BankRequestBatcher(AuctionHouseClient client){
+        this.client = client;
+        queue = new LinkedBlockingQueue<>();
+        inFlight = new Semaphore(MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Queues a request and waits for the bank's response.
+     *
+     * @param operation     'b' to block or 'u' to unblock funds
+     * @param accountID     agent bank account ID
+     * @param amount        amount of funds
+     * @return Bank response code, -1 if the batch could not be sent
+     */
+    public int submit(char operation, int accountID, long amount){
+        return submit(operation, accountID, amount, 0, 0);
+    }
+
+    /**
+     * Queues a request and waits for the bank's response.
+     *
+     * @param operation     'b' to block, 'u' to unblock or 'a' to block funds and release others
+     * @param accountID     agent bank account ID
+     * @param amount        amount of funds
+     * @param releaseID     agent whose funds an adjust releases, 0 otherwise
+     * @param releaseAmount amount an adjust releases
+     * @return Bank response code, -1 if the batch could not be sent
+     */
+    public int submit(char operation, int accountID, long amount, int releaseID, long releaseAmount){
+        Request request = new Request(operation, accountID, amount, releaseID, releaseAmount);
+        queue.add(request);
+        return request.result.join();
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Request> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        while(true){
+            try {
+                batch.add(queue.take());    // Wait for the first request of a batch
+                long deadline = System.nanoTime() + MAX_DELAY_NANOS;
+
+                // Fill the batch until it is full or the first request has waited long enough
+                while(batch.size() < MAX_BATCH_SIZE){
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            send(new ArrayList<>(batch), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS));
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sends a batch and completes its requests once the bank responds. Keyed batches are
+     * sent again with the same keys after a failure or a {@link WireProtocol#RESULT_RETRY},
+     * until the deadline. Any batch refused by a busy bank is sent again, since it was not applied.
+     *
+     * @param batch     requests to send
+     * @param deadline  time after which a failed batch is not retried
+     */
+    private void send(ArrayList<Request> batch, long deadline){
+        // Completed by the client's reader thread once the bank responds
+        CompletableFuture<int[]> response = client.sendBatch(batch);
+        if(client.isKeyed())
+            response = response.orTimeout(ATTEMPT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        response.whenComplete((results, error) -> {
+            boolean retry = error != null ? client.isKeyed() || isBusy(error) : hasRetry(results);
+            if(retry && System.nanoTime() - deadline < 0){
+                log.debug("Retrying batch of {} requests", batch.size());
+                CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+                        .execute(() -> send(batch, deadline));
+                return;
+            }
+            inFlight.release();
+            if(error != null || results.length != batch.size())
+                log.warn("Error occurred when sending batch to bank", error);
+            for(int i = 0; i < batch.size(); i++){
+                batch.get(i).result.complete(error == null && i < results.length ? results[i] : -1);
+            }
+        });
+    }
+
+    /**
+     * @return true if the bank asked for an entry of a keyed batch again, its first attempt still running
+     */
+    private static boolean hasRetry(int[] results){
+        for(int result : results){
+            if(result == WireProtocol.RESULT_RETRY)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a batch failed because the bank was busy
+     */
+    private static boolean isBusy(Throwable error){
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        return cause instanceof AuctionHouseClient.BusyException;
+    }
+
+    /**
+     * A single block, unblock or adjust request waiting for its batch
+     */
+    static final class Request {
+        final char operation;
+        final int accountID;
+        final long amount;
+        /** Agent whose funds an adjust releases, and the amount */
+        final int releaseID;
+        final long releaseAmount;
+        /** Idempotency key, the same on every attempt */
+        final long key;
+        final CompletableFuture<Integer> result;
+
+        Request(char operation, int accountID, long amount, int releaseID, long releaseAmount){
+            this.operation = operation;
+            this.accountID = accountID;
+            this.amount = amount;
+            this.releaseID = releaseID;
+            this.releaseAmount = releaseAmount;
+            key = nextKey.incrementAndGet();
+            result = new CompletableFuture<>();
+        }
+    }
+}
@@ -10,19 +10,22 @@ public class Main {
 
         final int auctionPort;
         final String bankIP;
+        final int bankShards;
 
-        if (args.length != 2) {
+        if (args.length != 2 && args.length != 3) {
             System.out.println("Error auction port number and bankIP required as arguments");
+            System.out.println("Optionally followed by the number of bank shards");
             return;
         }
         auctionPort = Integer.parseInt(args[0]);
         bankIP = args[1];
+        bankShards = args.length == 3 ? Integer.parseInt(args[2]) : 1;
 
         System.out.println("Type commands below");
         System.out.println("exit = attempt to close server");
 
 
-        AuctionHouseServer server = new AuctionHouseServer(auctionPort, bankIP);
+        AuctionHouseServer server = new AuctionHouseServer(auctionPort, bankIP, bankShards);
         new Thread(server).start();
 
         Scanner input = new Scanner(System.in);
@@ -0,0 +1,98 @@
+package com.bankserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+
+/**
+ * Compares {@link IntTable} with the ConcurrentHashMap it replaced for the bank's
+ * account and connection tables: heap retained per entry and lookup throughput from
+ * several threads.
+ *
+ * Usage: IntTableBenchmark [ACCOUNTS] [THREADS]
+ * Run with a fixed heap (e.g. -Xms2g -Xmx2g) so collections do not skew the results.
+ */
+public class IntTableBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final int LOOKUPS_PER_THREAD = 10_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        BankAccount account = new BankAccount(0);
+
+        System.out.println("Accounts: " + accounts + ", lookup threads: " + threads);
+
+        // Memory retained by each table, the shared account value is excluded
+        long before = usedMemory();
+        ConcurrentHashMap<Integer, BankAccount> map = new ConcurrentHashMap<>();
+        for(int ID = 1; ID <= accounts; ID++){
+            map.put(ID, account);
+        }
+        long mapBytes = usedMemory() - before;
+
+        before = usedMemory();
+        IntTable<BankAccount> table = new IntTable<>();
+        for(int ID = 1; ID <= accounts; ID++){
+            table.put(ID, account);
+        }
+        long tableBytes = usedMemory() - before;
+
+        System.out.printf("ConcurrentHashMap: %.1f bytes/entry%n", (double) mapBytes / accounts);
+        System.out.printf("IntTable:          %.1f bytes/entry%n", (double) tableBytes / accounts);
+
+        run("ConcurrentHashMap", ID -> map.get(ID), accounts, threads);
+        run("IntTable", table::get, accounts, threads);
+    }
+
+    /**
+     * Measures random lookups per second across all threads, best of the measured rounds
+     */
+    private static void run(String name, IntFunction<BankAccount> lookup, int accounts, int threads) throws InterruptedException {
+        double best = 0;
+        for(int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++){
+            Thread[] workers = new Thread[threads];
+            long[] found = new long[threads];
+            for(int t = 0; t < threads; t++){
+                int index = t;
+                workers[t] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long hits = 0;
+                    for(int i = 0; i < LOOKUPS_PER_THREAD; i++){
+                        if(lookup.apply(random.nextInt(accounts) + 1) != null)
+                            hits++;
+                    }
+                    found[index] = hits;    // Keeps the lookups from being optimized away
+                });
+            }
+
+            long start = System.nanoTime();
+            for(Thread worker : workers){
+                worker.start();
+            }
+            for(Thread worker : workers){
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            long hits = 0;
+            for(long count : found){
+                hits += count;
+            }
+            if(hits != (long) threads * LOOKUPS_PER_THREAD)
+                throw new IllegalStateException(name + " lost entries");
+            if(round >= WARMUP_ROUNDS)
+                best = Math.max(best, hits * 1e9 / elapsed);
+        }
+        System.out.printf("%-18s %.1f M lookups/s%n", name + ":", best / 1e6);
+    }
+
+    private static long usedMemory(){
+        for(int i = 0; i < 3; i++){
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,238 @@
+package com.bankserver;
+
+import com.auctionprotocol.FrameEncoder;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Throughput of the bank's hot paths across thread counts, account counts and
+ * contention patterns, as a baseline for changes to the ledger.
+ *
+ * Benchmarks:
+ *   account    - block, unblock, block and transfer the blocked funds out of one agent account
+ *   transfer   - block funds in the ledger and transfer them to an auction house account
+ *   directory  - read the encoded auction house listing sent for 'a' and the changes sent for 'D'
+ *
+ * Contention patterns pick the agent account of each operation:
+ *   uniform    - any account with equal probability
+ *   skewed     - 80% of operations on 1% of the accounts
+ *   hot        - every operation on a single account
+ *
+ * Usage: LedgerBenchmark [--benchmarks=account,transfer,directory] [--threads=1,4,16,64]
+ *                        [--accounts=1000,100000,1000000] [--contention=uniform,skewed,hot]
+ *                        [--houses=10,100,1000] [--seconds=2] [--warmup=1]
+ * Run with a fixed heap (e.g. -Xms2g -Xmx2g) so collections do not skew the results.
+ */
+public class LedgerBenchmark {
+    /** Auction house accounts transfers are spread over */
+    private static final int TRANSFER_HOUSES = 16;
+    private static final long BALANCE = Long.MAX_VALUE / 4;
+
+    private enum Contention { UNIFORM, SKEWED, HOT }
+
+    /** A single benchmarked operation, run repeatedly by every thread */
+    private interface Operation {
+        void run(ThreadLocalRandom random);
+    }
+
+    private static volatile boolean running;
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] benchmarks = {"account", "transfer", "directory"};
+        int[] threadCounts = {1, 4, 16, 64};
+        int[] accountCounts = {1_000, 100_000, 1_000_000};
+        int[] houseCounts = {10, 100, 1_000};
+        Contention[] patterns = Contention.values();
+        long seconds = 2;
+        long warmup = 1;
+
+        for(String arg : args){
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if(arg.startsWith("--benchmarks="))
+                benchmarks = value.split(",");
+            else if(arg.startsWith("--threads="))
+                threadCounts = parseInts(value);
+            else if(arg.startsWith("--accounts="))
+                accountCounts = parseInts(value);
+            else if(arg.startsWith("--houses="))
+                houseCounts = parseInts(value);
+            else if(arg.startsWith("--contention="))
+                patterns = Arrays.stream(value.split(",")).map(name -> Contention.valueOf(name.toUpperCase())).toArray(Contention[]::new);
+            else if(arg.startsWith("--seconds="))
+                seconds = Long.parseLong(value);
+            else if(arg.startsWith("--warmup="))
+                warmup = Long.parseLong(value);
+            else{
+                System.out.println("Unknown argument: " + arg);
+                return;
+            }
+        }
+
+        System.setProperty("auction.log.level.bank", "WARN");  // Auction houses joining would log every join
+        System.out.printf("%-10s %8s %10s %10s %12s %12s%n", "benchmark", "threads", "accounts", "contention", "Mops/s", "ns/op/thread");
+
+        for(String benchmark : benchmarks){
+            if(benchmark.equals("directory")){
+                for(int houses : houseCounts){
+                    for(int threads : threadCounts){
+                        report(benchmark, threads, houses, "-", measure(directory(houses), threads, warmup, seconds));
+                    }
+                }
+                continue;
+            }
+
+            for(int accounts : accountCounts){
+                Operation[] operations = new Operation[patterns.length];
+                for(int i = 0; i < patterns.length; i++){
+                    if(benchmark.equals("account"))
+                        operations[i] = accountCycle(accounts, patterns[i]);
+                    else if(benchmark.equals("transfer"))
+                        operations[i] = transfer(accounts, patterns[i]);
+                    else
+                        throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+                }
+                for(int i = 0; i < patterns.length; i++){
+                    for(int threads : threadCounts){
+                        report(benchmark, threads, accounts, patterns[i].name().toLowerCase(),
+                                measure(operations[i], threads, warmup, seconds));
+                    }
+                }
+            }
+        }
+
+        System.exit(0);     // The directory's push thread is not a daemon
+    }
+
+    /**
+     * Block, unblock, block and transfer out on a single agent account
+     */
+    private static Operation accountCycle(int accounts, Contention contention){
+        AgentBankAccount[] agents = new AgentBankAccount[accounts];
+        for(int i = 0; i < accounts; i++){
+            agents[i] = new AgentBankAccount(BALANCE, "agent", i + 1);
+        }
+        return random -> {
+            AgentBankAccount agent = agents[pick(random, accounts, contention) - 1];
+            agent.blockFunds(1);
+            agent.unblockFunds(1);
+            agent.blockFunds(1);
+            agent.transferBlockedFunds(1);
+        };
+    }
+
+    /**
+     * Block in the ledger and transfer to one of a few auction houses, the work behind an agent's 'T'.
+     * Calls the ledger directly since the bank server only delegates to it.
+     */
+    private static Operation transfer(int accounts, Contention contention){
+        Ledger ledger = new Ledger(new BankStats());
+        for(int ID = 1; ID <= accounts; ID++){
+            ledger.openAgentAccount(BALANCE, "agent", ID);
+        }
+        for(int i = 1; i <= TRANSFER_HOUSES; i++){
+            ledger.openAHAccount(accounts + i);
+        }
+        return random -> {
+            int agentID = pick(random, accounts, contention);
+            ledger.blockFunds(agentID, 1);
+            if(ledger.transferFunds(agentID, accounts + 1 + random.nextInt(TRANSFER_HOUSES), 1) != 1)
+                throw new IllegalStateException("Transfer failed");
+        };
+    }
+
+    /**
+     * Reads the listing agents are sent and encodes the changes since a recent version,
+     * the replacement for building the JSON list of auction houses on every request
+     */
+    private static Operation directory(int houses){
+        BankServer server = new BankServer();
+        for(int ID = 1; ID <= houses; ID++){
+            AHClientHandler house = new AHClientHandler(null, server, ID);
+            JSONObject info = new JSONObject();
+            info.put("ip", "10.0.0." + (ID % 250));
+            info.put("port", String.valueOf(5000 + ID));
+            house.login(info);  // Joins the directory
+        }
+        AHDirectory directory = server.getAHDirectory();
+        ThreadLocal<FrameEncoder> encoders = ThreadLocal.withInitial(FrameEncoder::new);
+
+        return random -> {
+            AHDirectory.Snapshot snapshot = directory.snapshot();
+            if(snapshot.listingFrame.length == 0)
+                throw new IllegalStateException("Empty listing");
+            FrameEncoder encoder = encoders.get();
+            directory.encodeChanges(snapshot.version - random.nextInt(8), encoder);
+        };
+    }
+
+    private static int pick(ThreadLocalRandom random, int accounts, Contention contention){
+        switch (contention){
+            case HOT:
+                return 1;
+            case SKEWED:
+                if(random.nextInt(100) < 80)
+                    return random.nextInt(Math.max(1, accounts / 100)) + 1;
+                return random.nextInt(accounts) + 1;
+            default:
+                return random.nextInt(accounts) + 1;
+        }
+    }
+
+    /**
+     * Runs an operation on every thread for the warmup and then the measured period
+     *
+     * @return Operations per second across all threads during the measured period
+     */
+    private static double measure(Operation operation, int threads, long warmupSeconds, long seconds) throws InterruptedException {
+        run(operation, threads, warmupSeconds);
+        return run(operation, threads, seconds);
+    }
+
+    private static double run(Operation operation, int threads, long seconds) throws InterruptedException {
+        long[] counts = new long[threads];
+        ArrayList<Thread> workers = new ArrayList<>();
+        running = true;
+        for(int t = 0; t < threads; t++){
+            int index = t;
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while(running){
+                    operation.run(random);
+                    count++;
+                }
+                counts[index] = count;
+            });
+            workers.add(worker);
+        }
+
+        long start = System.nanoTime();
+        for(Thread worker : workers){
+            worker.start();
+        }
+        Thread.sleep(seconds * 1000);
+        running = false;
+        for(Thread worker : workers){
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long total = 0;
+        for(long count : counts){
+            total += count;
+        }
+        return total * 1e9 / elapsed;
+    }
+
+    private static void report(String benchmark, int threads, int accounts, String contention, double opsPerSecond){
+        System.out.printf("%-10s %8d %10d %10s %12.2f %12.1f%n",
+                benchmark, threads, accounts, contention, opsPerSecond / 1e6, threads * 1e9 / opsPerSecond);
+    }
+
+    private static int[] parseInts(String values){
+        return Arrays.stream(values.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
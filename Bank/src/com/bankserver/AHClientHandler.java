@@ -1,26 +1,59 @@
 package com.bankserver;
 
+import com.auctionprotocol.FrameDecoder;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.ByteBuffer;
+import java.util.function.IntSupplier;
 
-public class AHClientHandler implements Runnable{
+/**
+ * Handles Auction Houses Connected to the Bank Server
+ *
+ * Binary frames: login 'l' [ip string][port int], batch 'B' [request ID int][count int]
+ * [operation char][account ID int][amount long]..., disconnect '0'. When idempotency keys are agreed
+ * batches may be sent as 'K' [request ID int][count int][key long][operation char][account ID int][amount long]...
+ * instead, and an entry whose key was already seen gets the earlier result rather than being applied again,
+ * or {@link WireProtocol#RESULT_RETRY} while the first attempt is still running.
+ * When hold adjustments are agreed an entry of either batch may be an adjust 'a', followed by
+ * [release account ID int][release amount long], which blocks the entry's amount and releases the
+ * funds of the bid it replaces, see {@link Ledger#applyBatch(int, int, char[], int[], long[], int[], long[])}.
+ * When hold leases are agreed, lease 'H' [lease millis int] makes every later block a hold the bank releases
+ * unless renewed within the lease, see {@link FundHolds}, and renew 'N' [count int][agent ID int]... renews
+ * the auction house's holds on those agents.
+ * Sent to the auction house: ID 'i' [ID int][token long], see {@link Credentials}, batch response 'r' [request ID int][count int][result int]...,
+ * deposit 'd' [amount long][balance long], agents renewed with no hold left 'n' [count int][agent ID int]....
+ * When busy answers are agreed a batch the bank has no room to queue is answered with busy 'z' [request ID int]
+ * instead, and none of it is applied.
+ *
+ * When the bank is sharded an auction house also logs into every other shard with the ID
+ * its own shard gave it and the token sent with the ID, 'l' [ip string][port int][ID int][token long],
+ * to reach agents owned there. An auction house reconnecting after a failover to a standby logs in the same way.
+ * Other shards log in with 'p' [shard int][token long], with the shard's token from {@link Credentials},
+ * and send credits 'C' [transfer ID long][AHID int][amount long], answered with 'c' [transfer ID long][result int]
+ * once durable. A connection that cannot present a shard's token is refused.
+ */
+public class AHClientHandler extends ClientHandler {
+    private static final Logger log = Log.get("bank.ah");
+
+    /** Size of a batch entry: operation char, account ID int, amount long */
+    private static final int BATCH_ENTRY_SIZE = 2 + 4 + 8;
+    /** Size of a keyed batch entry: key long, then a batch entry */
+    private static final int KEYED_ENTRY_SIZE = 8 + BATCH_ENTRY_SIZE;
+    /** Size of the header of a batch of the original protocol: opcode char, request ID int, count int */
+    private static final int LEGACY_BATCH_HEADER_SIZE = 2 + 4 + 4;
 
-    private final Socket socket;
-    private final int ID;
     private String serverIP;
     private int serverPort;
-    private final BankServer bankServer;
-    private volatile boolean pauseRead;
-    private DataInputStream in;
-    private DataOutputStream out;
-    private ReadWriteLock  lock;
+    /** Index of the shard on the other end of the connection, -1 if this is an auction house */
+    private int peerShard = -1;
+    /** Lease of funds blocked by this auction house, 0 if they stay blocked until unblocked */
+    private int leaseMillis = 0;
     /**
      * Creates a new Auction House Client
      *
@@ -29,98 +62,320 @@ public class AHClientHandler implements Runnable{
      * @param bankServer    Instance of Bank Server
      */
     AHClientHandler(Socket clientSocket, BankServer bankServer, int ID){
-        socket = clientSocket;
-        this.bankServer = bankServer;
-        this.ID = ID;
+        super(clientSocket, bankServer, ID, BankStats.AUCTION_HOUSE);
+    }
 
+    @Override
+    protected void login(JSONObject ahServerInfo) {
+        // Get server info from login
+        serverIP = (String) ahServerInfo.get("ip");
+        serverPort = Integer.parseInt((String) ahServerInfo.get("port"));
+        bankServer.openAHAccount(ID);
+        printConnected();
+    }
+
+    @Override
+    protected void login(char opcode, FrameDecoder frame) throws IOException {
+        switch (opcode){
+            case 'l':
+                serverIP = frame.getString();
+                serverPort = frame.getInt();
+                if(frame.remaining() >= 4){     // Already has an account, on its own shard or from before a failover
+                    int homeID = frame.getInt();
+                    if(frame.remaining() < 8 || !bankServer.getCredentials().verify(BankStats.AUCTION_HOUSE, homeID, frame.getLong()))
+                        throw new IOException("Auction house " + homeID + " did not present the account's token");
+                    bankServer.adoptAHClient(ID, homeID, this);
+                    ID = homeID;
+                }
+                else
+                    bankServer.openAHAccount(ID);
+                printConnected();
+                break;
+            case 'p':
+                int shard = frame.getInt();
+                if(frame.remaining() < 8 || !bankServer.getCredentials().verify(Credentials.SHARD, shard, frame.getLong()))
+                    throw new IOException("Connection claiming to be shard " + shard + " did not present its token");
+                peerShard = shard;
+                bankServer.removeAHClient(ID, this);  // Not an auction house
+                log.info("Shard {} connected", peerShard);
+                break;
+            default:
+                throw new IOException("Expected login frame");
+        }
+    }
+
+    private void printConnected(){
+        bankServer.getAHDirectory().join(this);   // Agents can now find the house
+        log.info("Auction House Connected. IP: {} port: {}", serverIP, serverPort);
+        log.info("Client ID: {}", ID);
+    }
+
+    @Override
+    protected boolean handleFrame(char opcode, FrameDecoder frame) throws IOException {
+        switch (opcode){
+            case 'B': // Auction House sent a batch of block/unblock requests
+                int requestID = frame.getInt();
+                int count = checkCount(frame.getInt(), frame.remaining(), BATCH_ENTRY_SIZE);
+                char[] operations = new char[count];
+                int[] accountIDs = new int[count];
+                long[] amounts = new long[count];
+                int[] releaseIDs = new int[count];
+                long[] releaseAmounts = new long[count];
+                for(int i = 0; i < count; i++){
+                    operations[i] = frame.getChar();
+                    accountIDs[i] = frame.getInt();
+                    amounts[i] = frame.getLong();
+                    if(operations[i] == 'a'){
+                        releaseIDs[i] = frame.getInt();
+                        releaseAmounts[i] = frame.getLong();
+                    }
+                }
+                applyBatch(requestID, operations, accountIDs, amounts, releaseIDs, releaseAmounts);
+                break;
+            case 'K': // Batch with an idempotency key for each request
+                requestID = frame.getInt();
+                count = checkCount(frame.getInt(), frame.remaining(), KEYED_ENTRY_SIZE);
+                long[] keys = new long[count];
+                operations = new char[count];
+                accountIDs = new int[count];
+                amounts = new long[count];
+                releaseIDs = new int[count];
+                releaseAmounts = new long[count];
+                for(int i = 0; i < count; i++){
+                    keys[i] = frame.getLong();
+                    operations[i] = frame.getChar();
+                    accountIDs[i] = frame.getInt();
+                    amounts[i] = frame.getLong();
+                    if(operations[i] == 'a'){
+                        releaseIDs[i] = frame.getInt();
+                        releaseAmounts[i] = frame.getLong();
+                    }
+                }
+                applyKeyedBatch(requestID, keys, operations, accountIDs, amounts, releaseIDs, releaseAmounts);
+                break;
+            case 'H': // Lease of every following block
+                if((bankServer.getSupportedFeatures() & WireProtocol.FEATURE_HOLD_LEASES) != 0)
+                    leaseMillis = Math.max(0, frame.getInt());
+                break;
+            case 'N': // Renew holds on agents
+                int[] agentIDs = new int[checkCount(frame.getInt(), frame.remaining(), 4)];
+                for(int i = 0; i < agentIDs.length; i++){
+                    agentIDs[i] = frame.getInt();
+                }
+                if(leaseMillis > 0)
+                    sendReleased(agentIDs, bankServer.renewHolds(ID, agentIDs));
+                break;
+            case 'C': // Another shard credited an auction house
+                if(peerShard < 0){
+                    log.warn("Credit from auction house {} ignored", ID);
+                    break;
+                }
+                receiveTransfer(frame.getLong(), frame.getInt(), frame.getLong());
+                break;
+            case '0':
+                disconnect();
+                return false;
+            default:
+                log.warn("Unknown frame from auction house {}", ID);
+        }
+        return true;
     }
 
     @Override
-    public void run() {
-        lock = new ReentrantReadWriteLock();
-        Lock readLock = lock.readLock();
-        JSONObject ahServerInfo;
-        JSONParser parser = new JSONParser(); // Parser for JSON data
+    protected boolean handleLegacyRequest(DataInputStream in) throws IOException, ParseException {
         JSONObject data;
+        int accountID;
+        long amount;
         int response;
 
-        char request;
+        char request = in.readChar();    // Read in request
+        switch (request) {
+            case 'b': // Auction House Attempting to block funds
+                log.debug("Auction House Requested Funds to Be Blocked");
+                // Receive and parse data
+                data = (JSONObject) parser.parse(in.readUTF());
+                accountID = Integer.parseInt((String) data.get("accountID"));
+                amount = (long) data.get("amount");
+                response = blockOrUnblock('b', accountID, amount, data);    // Have bank server attempt to block funds;
+                sendLegacyResponse(response);                           // Send response to auction house
+                log.debug("Response {} sent to auction house", response);
+                break;
+            case 'u': // Auction House requested funds to be unblocked
+                log.debug("Auction House requested funds to be unblocked");
+                data = (JSONObject) parser.parse(in.readUTF());
+                accountID = Integer.parseInt((String) data.get("accountID"));
+                amount = (long) data.get("amount");
+                response = blockOrUnblock('u', accountID, amount, data);    // Have bank server attempt to unblock funds;
+                sendLegacyResponse(response);                           // Send response to auction house
+                log.debug("Response {} sent to auction house", response);
+                break;
+            case 'B': // Auction House sent a batch of block/unblock requests
+                int requestID = in.readInt();
+                int count = checkCount(in.readInt(), FrameDecoder.MAX_FRAME_SIZE - LEGACY_BATCH_HEADER_SIZE, BATCH_ENTRY_SIZE);
+                char[] operations = new char[count];
+                int[] accountIDs = new int[count];
+                long[] amounts = new long[count];
+                for(int i = 0; i < count; i++){
+                    operations[i] = in.readChar();
+                    accountIDs[i] = in.readInt();
+                    amounts[i] = in.readLong();
+                }
+                applyBatch(requestID, operations, accountIDs, amounts, new int[count], new long[count]);
+                break;
+            case 'K': // Batch with an idempotency key for each request
+                requestID = in.readInt();
+                count = checkCount(in.readInt(), FrameDecoder.MAX_FRAME_SIZE - LEGACY_BATCH_HEADER_SIZE, KEYED_ENTRY_SIZE);
+                long[] keys = new long[count];
+                operations = new char[count];
+                accountIDs = new int[count];
+                amounts = new long[count];
+                for(int i = 0; i < count; i++){
+                    keys[i] = in.readLong();
+                    operations[i] = in.readChar();
+                    accountIDs[i] = in.readInt();
+                    amounts[i] = in.readLong();
+                }
+                applyKeyedBatch(requestID, keys, operations, accountIDs, amounts, new int[count], new long[count]);
+                break;
+            case '0':
+                disconnect();
+                return false;
+        }
+        return true;
+    }
 
+    /**
+     * Blocks or unblocks funds for a legacy request, only once per idempotency key if its JSON carries a "key"
+     */
+    private int blockOrUnblock(char operation, int accountID, long amount, JSONObject data){
+        IntSupplier request = operation == 'b'
+                ? () -> bankServer.blockFunds(accountID, amount)
+                : () -> bankServer.unblockFunds(accountID, amount);
+        Object key = data.get("key");
+        if(key == null)
+            return request.getAsInt();
+        return bankServer.runOnce(BankStats.AUCTION_HOUSE, ID, (long) key, request);
+    }
 
-        try {
-            // Open input stream via socket
-            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-            // Get server info from input stream
-            ahServerInfo = (JSONObject) parser.parse(in.readUTF());
-            serverIP = (String) ahServerInfo.get("ip");
-            serverPort = Integer.parseInt((String) ahServerInfo.get("port"));
-
-            // Send client ID to auction house
-            out.writeInt(ID);
-            out.flush();
+    @Override
+    protected int legacyFrameLength(ByteBuffer buffer) {
+        if(buffer.remaining() < 2)
+            return -1;
+        switch (buffer.getChar(buffer.position())){
+            case 'b':
+            case 'u':
+                return ClientProtocol.opcodeWithUTFLength(buffer);
+            case 'B':
+                return legacyBatchLength(buffer, BATCH_ENTRY_SIZE);
+            case 'K':
+                return legacyBatchLength(buffer, KEYED_ENTRY_SIZE);
+            default:
+                return 2;
+        }
+    }
 
-            System.out.println("Auction House Connected");
-            System.out.println("IP: " + serverIP);
-            System.out.println("port: " + serverPort);
-            System.out.println("Client ID: " + ID);
-        } catch (IOException | ParseException e){
-            System.out.println("Unable to create auction house connection");
-            bankServer.removeAHClient(ID);
+    /**
+     * @param entrySize size of each entry of the batch
+     * @return Length of a complete batch of the original protocol, -1 if incomplete,
+     *         or just its header if the count is invalid
+     */
+    private static int legacyBatchLength(ByteBuffer buffer, int entrySize){
+        if(buffer.remaining() < LEGACY_BATCH_HEADER_SIZE)
+            return -1;
+        int count = buffer.getInt(buffer.position() + 2 + 4);
+        long length = LEGACY_BATCH_HEADER_SIZE + (long) count * entrySize;
+        if(count < 0 || length > FrameDecoder.MAX_FRAME_SIZE)
+            return LEGACY_BATCH_HEADER_SIZE;    // Let handleLegacyRequest report the invalid count
+        return buffer.remaining() < length ? -1 : (int) length;
+    }
+
+    /**
+     * Checks the entry count sent with a batch before anything is allocated for it
+     *
+     * @param count     entry count sent by the auction house
+     * @param available bytes left for the entries
+     * @param entrySize smallest size of an entry
+     * @return The count, if the entries fit in the bytes available
+     * @throws IOException if the count is negative or too large
+     */
+    private static int checkCount(int count, long available, int entrySize) throws IOException {
+        if(count < 0 || count > available / entrySize)
+            throw new IOException("Invalid batch count " + count);
+        return count;
+    }
+
+    @Override
+    public void disconnected() {
+        if(peerShard >= 0){
+            log.warn("Shard {} disconnected", peerShard);
             return;
         }
+        log.info("Auction house {} abruptly disconnected", ID);
+        bankServer.removeAHClient(ID, this);
+    }
+
+    private void disconnect() throws IOException {
+        log.info("Auction House Client {} Disconnecting", ID);
+        bankServer.removeAHClient(ID, this);
+        socket.close();
+    }
 
+    /**
+     * Applies a batch of block/unblock requests and sends the results once they are durable
+     */
+    private void applyBatch(int requestID, char[] operations, int[] accountIDs, long[] amounts,
+                            int[] releaseIDs, long[] releaseAmounts){
+        log.debug("Auction House sent batch {} of {} requests", requestID, operations.length);
 
-        int accountID;
-        long amount;
-        // Maintain Data listener
-        while(true){
-            try{
-                        request = in.readChar();    // Read in request, thread suspends here
-                        switch (request) {
-                            case 'b': // Auction House Attempting to block funds
-                                System.out.println("Auction House Requested Funds to Be Blocked");
-                                // Receive and parse data
-                                data = (JSONObject) parser.parse(in.readUTF());
-                                accountID = Integer.parseInt((String) data.get("accountID"));
-                                amount = (long) data.get("amount");
-                                response = bankServer.blockFunds(accountID, amount);    // Have bank server attempt to block funds;
-                                System.out.println(response);
-                                out.writeInt(response);                                 // Send response to auction house
-                                out.flush();
-                                System.out.println("Response sent to auction house");
-                                break;
-                            case 'u': // Auction House requested funds to be unblocked
-                                System.out.println("Auction House requested funds to be unblocked");
-                                data = (JSONObject) parser.parse(in.readUTF());
-                                accountID = Integer.parseInt((String) data.get("accountID"));
-                                amount = (long) data.get("amount");
-                                response = bankServer.unblockFunds(accountID, amount);    // Have bank server attempt to block funds;
-                                out.writeInt(response);                                 // Send response to auction house
-                                out.flush();
-                                System.out.println("Response sent to auction house");
-                                break;
-                            case '0':
-                                System.out.println("Auction House Client " + ID + " Disconnecting");
-                                bankServer.removeAHClient(ID);
-                                socket.close();
-                                return;
-                        }
-            } catch (ParseException e) {
-                e.printStackTrace();
-            }
-            catch (EOFException e){
-                System.out.println("Auction house abruptly disconnected.");
-                bankServer.removeAHClient(ID);
-                return;
-            }catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        // Responses carry the request ID, so batches may complete in any order
+        int AHID = ID;
+        int lease = leaseMillis;
+        if(!bankServer.dispatch(RequestLanes.FUNDS, acceptsBusy(), () ->
+                sendBatchResponse(requestID, bankServer.applyFundsBatch(AHID, lease, operations, accountIDs, amounts,
+                        releaseIDs, releaseAmounts))))
+            sendBusy(requestID);
+    }
 
+    /**
+     * Applies a batch of keyed block/unblock requests, skipping keys already seen,
+     * and sends the results once they are durable
+     */
+    private void applyKeyedBatch(int requestID, long[] keys, char[] operations, int[] accountIDs, long[] amounts,
+                                 int[] releaseIDs, long[] releaseAmounts){
+        log.debug("Auction House sent keyed batch {} of {} requests", requestID, operations.length);
+        int AHID = ID;
+        int lease = leaseMillis;
+        if(!bankServer.dispatch(RequestLanes.FUNDS, acceptsBusy(), () ->
+                sendBatchResponse(requestID, bankServer.applyKeyedBatch(AHID, lease, keys, operations, accountIDs, amounts,
+                        releaseIDs, releaseAmounts))))
+            sendBusy(requestID);
+    }
 
+    /**
+     * Applies a credit from another shard and acknowledges it once durable. Credits are
+     * applied in the order they arrive, only the wait and the answer are dispatched.
+     */
+    private void receiveTransfer(long transferID, int AHID, long amount){
+        long sequence = bankServer.receiveTransfer(transferID, AHID, amount);
+        bankServer.dispatch(() -> {
+            bankServer.awaitDurable(sequence);
+            sendTransferResult(transferID, sequence < 0 ? -1 : 1);
+        });
+    }
 
+    private void sendTransferResult(long transferID, int result){
+        writeLock.lock();
+        try {
+            encoder.begin('c').putLong(transferID).putInt(result).end();
+            encoder.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Unable to answer credit from shard {}", peerShard);
+        } finally {
+            writeLock.unlock();
+        }
     }
+
     public JSONObject getJSONServerInfo(){
         JSONObject info = new JSONObject();
         info.put("port", String.valueOf(serverPort));
@@ -129,25 +384,128 @@ public class AHClientHandler implements Runnable{
         return info;
     }
 
+    public String getServerIP() {
+        return serverIP;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * Sends the result of a single legacy block/unblock request
+     */
+    private void sendLegacyResponse(int response) throws IOException {
+        writeLock.lock();
+        try {
+            out.writeInt(response);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the results of a batch to the auction house, tagged with the batch's request ID.
+     *
+     * @param requestID ID the auction house gave the batch
+     * @param results   result code of each request in the batch
+     */
+    private void sendBatchResponse(int requestID, int[] results){
+        writeLock.lock();
+        try {
+            if(binary){
+                encoder.begin('r').putInt(requestID).putInt(results.length);
+                for(int result : results){
+                    encoder.putInt(result);
+                }
+                encoder.end();
+                encoder.writeTo(out);
+            }
+            else{
+                out.writeChar('r');
+                out.writeInt(requestID);
+                out.writeInt(results.length);
+                for(int result : results){
+                    out.writeInt(result);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Unable to send batch response to auction house {}", ID);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Tells the auction house a batch was refused because the bank is busy, so it can be sent again later
+     *
+     * @param requestID ID the auction house gave the batch
+     */
+    private void sendBusy(int requestID){
+        writeLock.lock();
+        try {
+            encoder.begin('z').putInt(requestID).end();
+            encoder.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Unable to send busy response to auction house {}", ID);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Tells the auction house which renewed agents it no longer holds funds on
+     *
+     * @param agentIDs  renewed agents, those without a hold first
+     * @param released  number of agents without a hold
+     */
+    private void sendReleased(int[] agentIDs, int released){
+        if(released == 0)
+            return;
+        writeLock.lock();
+        try {
+            encoder.begin('n').putInt(released);
+            for(int i = 0; i < released; i++){
+                encoder.putInt(agentIDs[i]);
+            }
+            encoder.end();
+            encoder.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Unable to answer renewal from auction house {}", ID);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     public int sendDepositNotif(long amount, long balance){
-        lock.writeLock().lock();
+        writeLock.lock();
 
-        System.out.println("Sending deposit notification");
+        log.debug("Sending deposit notification");
 
         try{
-            out.writeChar('d');
-            out.flush();
-            JSONObject data = new JSONObject();
-            data.put("amount", amount);
-            data.put("balance", balance);
-            out.writeUTF(data.toString());
+            if(binary){
+                encoder.begin('d').putLong(amount).putLong(balance).end();
+                encoder.writeTo(out);
+            }
+            else{
+                out.writeChar('d');
+                out.flush();
+                JSONObject data = new JSONObject();
+                data.put("amount", amount);
+                data.put("balance", balance);
+                out.writeUTF(data.toString());
+            }
             out.flush();
         } catch (IOException e) {
-            lock.writeLock().unlock();
-            System.out.println("Error occurred when sending information");
+            log.warn("Error occurred when sending information");
             return -1;
+        } finally {
+            writeLock.unlock();
         }
-        lock.writeLock().unlock();
         return 1;
     }
 }
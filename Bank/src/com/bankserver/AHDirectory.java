@@ -0,0 +1,272 @@
+package com.bankserver;
+
+import com.auctionprotocol.FrameEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Directory of auction houses agents can connect to.
+ *
+ * The directory is an immutable snapshot, pre-serialized for both protocols and tagged
+ * with a version. It is only rebuilt when an auction house joins or leaves, so listing
+ * auction houses costs agents a single write of bytes that already exist. The most recent
+ * changes are kept so agents can ask for only what changed since the version they last saw.
+ *
+ * Agents may instead subscribe, and are then pushed every change as it happens.
+ * Pushes are delivered in version order by a single thread, so a slow agent never holds up
+ * the auction house joining and no lock is held while writing to agents.
+ */
+public class AHDirectory {
+    /** Changes kept for delta requests, older versions receive the full directory */
+    private static final int HISTORY_SIZE = 256;
+
+    /** A listed auction house */
+    static final class Entry {
+        final int ID;
+        final String ip;
+        final int port;
+        /** JSON sent to agents using the original protocol */
+        final String json;
+
+        Entry(int ID, String ip, int port, String json){
+            this.ID = ID;
+            this.ip = ip;
+            this.port = port;
+            this.json = json;
+        }
+    }
+
+    /** A directory change, a house joining or leaving */
+    private static final class Change {
+        final long version;
+        final Entry joined;
+        final int leftID;
+
+        Change(long version, Entry joined, int leftID){
+            this.version = version;
+            this.joined = joined;
+            this.leftID = leftID;
+        }
+    }
+
+    /** Immutable directory contents at one version */
+    static final class Snapshot {
+        final long version;
+        final Entry[] entries;
+        /** Every entry as a writeUTF string followed by the "0" terminator */
+        final byte[] legacyListing;
+        /** 'A' frame listing every entry */
+        final byte[] listingFrame;
+
+        Snapshot(long version, Entry[] entries){
+            this.version = version;
+            this.entries = entries;
+
+            FrameEncoder encoder = new FrameEncoder();
+            encoder.begin('A').putInt(entries.length);
+            for(Entry entry : entries){
+                encoder.putInt(entry.ID).putString(entry.ip).putInt(entry.port);
+            }
+            encoder.end();
+
+            listingFrame = encoder.toByteArray();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                for(Entry entry : entries){
+                    out.writeUTF(entry.json);
+                }
+                out.writeUTF("0");  // End of data transmission signal
+                legacyListing = bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);     // Writing to memory cannot fail
+            }
+        }
+    }
+
+    /** Listed houses by ID, in the order they joined, guarded by this */
+    private final LinkedHashMap<Integer, Entry> entries;
+    /** Recent changes, oldest first, guarded by this */
+    private final ArrayDeque<Change> history;
+    private volatile Snapshot current;
+    /** Agents pushed every change, by ID */
+    private final IntTable<AgentClientHandler> subscribers;
+    /** Delivers pushes in the order changes were made */
+    private final ExecutorService pushExecutor;
+    /** Encodes pushes, only used by the push thread */
+    private final FrameEncoder pushEncoder;
+
+    /**
+     * Creates an empty directory at version 1
+     */
+    public AHDirectory(){
+        entries = new LinkedHashMap<>();
+        history = new ArrayDeque<>(HISTORY_SIZE);
+        current = new Snapshot(1, new Entry[0]);
+        subscribers = new IntTable<>();
+        pushExecutor = Executors.newSingleThreadExecutor(task -> new Thread(task, "directory-push"));
+        pushEncoder = new FrameEncoder();
+    }
+
+    /**
+     * @return Current directory, never locks
+     */
+    Snapshot snapshot(){
+        return current;
+    }
+
+    /**
+     * Lists an auction house that has logged in
+     *
+     * @param house auction house client
+     */
+    public synchronized void join(AHClientHandler house){
+        Entry entry = new Entry(house.getID(), house.getServerIP(), house.getServerPort(),
+                house.getJSONServerInfo().toString());
+        entries.put(entry.ID, entry);
+        publish(new Change(current.version + 1, entry, 0));
+    }
+
+    /**
+     * Removes an auction house that has disconnected
+     *
+     * @param ID auction house ID
+     */
+    public synchronized void leave(int ID){
+        if(entries.remove(ID) != null)
+            publish(new Change(current.version + 1, null, ID));
+    }
+
+    private void publish(Change change){
+        if(history.size() == HISTORY_SIZE)
+            history.removeFirst();
+        history.addLast(change);
+        current = new Snapshot(change.version, entries.values().toArray(new Entry[0]));
+        pushExecutor.execute(() -> push(change));
+    }
+
+    /**
+     * Sends an agent the full directory in an 'E' frame, then pushes it every following
+     * change: joined 'J' [version long][ID int][ip string][port int], left 'L' [version long][ID int].
+     * A change made while subscribing may be both listed and pushed, agents ignore
+     * pushes for versions they already have.
+     *
+     * @param agent agent to subscribe
+     */
+    public void subscribe(AgentClientHandler agent){
+        pushExecutor.execute(() -> {
+            encodeFull(current, pushEncoder);
+            agent.sendDirectory(pushEncoder.toByteArray());
+            subscribers.put(agent.getID(), agent);
+        });
+    }
+
+    /**
+     * Stops pushing changes to an agent, unless a newer connection has since taken over its ID
+     *
+     * @param agent agent connection that no longer receives changes
+     */
+    public void unsubscribe(AgentClientHandler agent){
+        subscribers.remove(agent.getID(), agent);
+    }
+
+    /**
+     * Sends a change to every subscribed agent. Runs on the push thread.
+     */
+    private void push(Change change){
+        if(change.joined != null)
+            pushEncoder.begin('J').putLong(change.version).putInt(change.joined.ID)
+                    .putString(change.joined.ip).putInt(change.joined.port).end();
+        else
+            pushEncoder.begin('L').putLong(change.version).putInt(change.leftID).end();
+
+        byte[] frame = pushEncoder.toByteArray();   // Encoded once for every agent
+        for(AgentClientHandler agent : subscribers.values()){
+            agent.sendDirectory(frame);
+        }
+    }
+
+    /**
+     * Encodes an 'E' frame holding the changes since a version:
+     * [version long][full boolean][joined count int][ID int][ip string][port int]...[left count int][ID int]...
+     * When full is set the joined houses are the entire directory, because the version was
+     * too old or unknown, and the agent should drop any house not listed.
+     *
+     * @param since     directory version the agent last saw, 0 for none
+     * @param encoder   encoder to write the frame to
+     */
+    public void encodeChanges(long since, FrameEncoder encoder){
+        Snapshot snapshot = current;
+        if(since == snapshot.version){
+            // Up to date, the common case for agents refreshing often
+            encoder.begin('E').putLong(snapshot.version).putBoolean(false).putInt(0).putInt(0).end();
+            return;
+        }
+
+        Entry[] joined;
+        int[] left;
+        long version;
+        synchronized (this){
+            version = current.version;
+            Change oldest = history.peekFirst();
+            if(since <= 0 || since > version || oldest == null || oldest.version > since + 1){
+                encodeFull(current, encoder);
+                return;
+            }
+
+            // Replay the retained changes after the agent's version, keeping only the final state
+            LinkedHashMap<Integer, Entry> changed = new LinkedHashMap<>();
+            Iterator<Change> changes = history.iterator();
+            while(changes.hasNext()){
+                Change change = changes.next();
+                if(change.version <= since)
+                    continue;
+                if(change.joined != null)
+                    changed.put(change.joined.ID, change.joined);
+                else
+                    changed.put(change.leftID, null);
+            }
+
+            joined = new Entry[changed.size()];
+            left = new int[changed.size()];
+            int joinedCount = 0;
+            int leftCount = 0;
+            for(Integer ID : changed.keySet()){
+                Entry entry = changed.get(ID);
+                if(entry != null)
+                    joined[joinedCount++] = entry;
+                else
+                    left[leftCount++] = ID;
+            }
+            joined = Arrays.copyOf(joined, joinedCount);
+            left = Arrays.copyOf(left, leftCount);
+        }
+
+        encoder.begin('E').putLong(version).putBoolean(false).putInt(joined.length);
+        for(Entry entry : joined){
+            encoder.putInt(entry.ID).putString(entry.ip).putInt(entry.port);
+        }
+        encoder.putInt(left.length);
+        for(int ID : left){
+            encoder.putInt(ID);
+        }
+        encoder.end();
+    }
+
+    private static void encodeFull(Snapshot snapshot, FrameEncoder encoder){
+        encoder.begin('E').putLong(snapshot.version).putBoolean(true).putInt(snapshot.entries.length);
+        for(Entry entry : snapshot.entries){
+            encoder.putInt(entry.ID).putString(entry.ip).putInt(entry.port);
+        }
+        encoder.putInt(0).end();
+    }
+}
@@ -0,0 +1,58 @@
+package com.bankserver;
+
+import java.io.IOException;
+
+/**
+ * Storage of agent accounts by ID, chosen when the bank starts.
+ *
+ * {@link HeapAccountStore} keeps an {@link AgentBankAccount} object per account.
+ * {@link MappedAccountStore} keeps accounts in a memory-mapped file and only creates
+ * short-lived account objects while an operation runs, for very large numbers of accounts.
+ * {@link SqliteAccountStore} keeps accounts in a database and only the accounts in use in memory,
+ * so agents keep their accounts across logins and restarts.
+ */
+public interface AgentAccountStore {
+    /**
+     * Receives every account of a store
+     */
+    interface Visitor {
+        void visit(AgentBankAccount account) throws IOException;
+    }
+
+    /**
+     * @param ID agent ID
+     * @return Agent's account, null if there is no such account
+     */
+    AgentBankAccount get(int ID);
+
+    /**
+     * Stores an account, replacing any account with the same ID
+     *
+     * @param ID    agent ID
+     * @param name  name on the account
+     * @param funds account state
+     */
+    void put(int ID, String name, Funds funds);
+
+    /**
+     * Stores an account unless one with the same ID exists, used when restoring the ledger
+     *
+     * @param ID    agent ID
+     * @param name  name on the account
+     * @param funds account state
+     */
+    void putIfAbsent(int ID, String name, Funds funds);
+
+    /**
+     * @return Number of accounts
+     */
+    int size();
+
+    /**
+     * Hands every account to a visitor, in no particular order. Accounts opened
+     * meanwhile may or may not be visited.
+     *
+     * @param visitor visitor of each account
+     */
+    void forEach(Visitor visitor) throws IOException;
+}
@@ -1,9 +1,17 @@
 package com.bankserver;
 
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import org.json.simple.JSONObject;
 
+/**
+ * Agent bank account. The balance and blocked funds change together in a
+ * single compare-and-set, so every operation is lock free and readers always
+ * see a matching pair.
+ */
 public class AgentBankAccount extends BankAccount{
-    private long blockedFunds;
+    private static final Logger log = Log.get("bank.ledger");
+
     private final String name;
     private final int ID;
 
@@ -18,7 +26,19 @@ public class AgentBankAccount extends BankAccount{
     public AgentBankAccount(long balance, String name, int ID) {
         super(balance);
         this.name = name;
-        blockedFunds = 0;
+        this.ID = ID;
+    }
+
+    /**
+     * Creates an agent account with existing state, used when restoring the ledger.
+     *
+     * @param funds account state
+     * @param name  Name on Account
+     * @param ID    ID of account
+     */
+    AgentBankAccount(Funds funds, String name, int ID) {
+        super(funds);
+        this.name = name;
         this.ID = ID;
     }
 
@@ -29,36 +49,16 @@ public class AgentBankAccount extends BankAccount{
      * @param amount amount to block
      * @return Block Attempt status
      */
-    public synchronized int blockFunds(Long amount){
-        System.out.println("Attempting to blocking $" + amount + " from Agent Account: " + ID);
-        // Not enough funds to block
-        if(balance - amount < 0){
-            System.out.println("Block unsuccessful");
-            return 0;
-        }
-        // Block funds
-        else{
-            balance -= amount;
-            blockedFunds += amount;
-        }
-        System.out.println("Block successful");
-        return 1;
+    public int blockFunds(long amount){
+        return tryBlockFunds(amount) == null ? 0 : 1;
     }
 
     /**
      * Unblocks funds from account.
      * @param amount amount of funds to block
      */
-    public synchronized int unblockFunds(long amount){
-        // Attempting to unblock more funds than available
-        if(blockedFunds - amount < 0){
-            return -1;
-        }
-        else{
-            blockedFunds -= amount;
-            balance += amount;
-            return 1;
-        }
+    public int unblockFunds(long amount){
+        return tryUnblockFunds(amount) == null ? -1 : 1;
     }
 
     /**
@@ -70,23 +70,116 @@ public class AgentBankAccount extends BankAccount{
      * @param amount Amount of funds from blocked to transfer
      * @return Success Code, see above
      */
-    public synchronized int transferBlockedFunds(long amount){
-        if(blockedFunds - amount < 0){
-            return -1;
-        }
-        else{
-            blockedFunds -= amount;
-            return 1;
-        }
+    public int transferBlockedFunds(long amount){
+        return tryTransferBlockedFunds(amount) == null ? -1 : 1;
+    }
+
+    /**
+     * Blocks funds if enough are available.
+     *
+     * @param amount amount to block
+     * @return state after the block, null if there were not enough funds
+     */
+    Funds tryBlockFunds(long amount){
+        log.debug("Attempting to block ${} from agent account {}", amount, ID);
+        Funds current;
+        Funds next;
+        do {
+            current = getFunds();
+            // Not enough funds to block
+            if(current.balance - amount < 0){
+                log.debug("Block unsuccessful");
+                return null;
+            }
+            next = current.update(-amount, amount);
+        } while(!compareAndSetFunds(current, next));
+
+        log.debug("Block successful");
+        return next;
+    }
+
+    /**
+     * Returns blocked funds to the balance.
+     *
+     * @param amount amount to unblock
+     * @return state after the unblock, null if not enough funds are blocked
+     */
+    Funds tryUnblockFunds(long amount){
+        Funds current;
+        Funds next;
+        do {
+            current = getFunds();
+            // Attempting to unblock more funds than available
+            if(current.blocked - amount < 0){
+                return null;
+            }
+            next = current.update(amount, -amount);
+        } while(!compareAndSetFunds(current, next));
+
+        return next;
+    }
+
+    /**
+     * Returns blocked funds to the balance and blocks new funds in their place in one change,
+     * so raising a block only needs the difference to be available.
+     *
+     * @param release   blocked amount returned to the balance
+     * @param block     amount blocked in its place
+     * @return state after the change, null if not enough funds are blocked or available
+     */
+    Funds tryAdjustBlockedFunds(long release, long block){
+        long change = block - release;
+        Funds current;
+        Funds next;
+        do {
+            current = getFunds();
+            if(current.blocked - release < 0 || current.balance - change < 0){
+                return null;
+            }
+            if(change == 0)
+                return current;
+            next = current.update(-change, change);
+        } while(!compareAndSetFunds(current, next));
+
+        return next;
+    }
+
+    /**
+     * Removes blocked funds from the account.
+     *
+     * @param amount amount to remove
+     * @return state after the removal, null if not enough funds are blocked
+     */
+    Funds tryTransferBlockedFunds(long amount){
+        Funds current;
+        Funds next;
+        do {
+            current = getFunds();
+            if(current.blocked - amount < 0){
+                return null;
+            }
+            next = current.update(0, -amount);
+        } while(!compareAndSetFunds(current, next));
+
+        return next;
     }
 
     public JSONObject getJSONInfo(){
+        Funds current = getFunds();  // Single read for a consistent pair
         JSONObject info = new JSONObject();
-        info.put("balance", balance);
-        info.put("blockedFunds", blockedFunds);
+        info.put("balance", current.balance);
+        info.put("blockedFunds", current.blocked);
         return info;
     }
 
+    public long getBlockedFunds() {
+        return getFunds().blocked;
+    }
+
+    public String getName() {
+        return name;
+    }
+
     public int getID() {
         return ID;
     }
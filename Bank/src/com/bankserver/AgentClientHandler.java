@@ -1,23 +1,42 @@
 package com.bankserver;
 
+import com.auctionprotocol.FrameDecoder;
+import com.auctionprotocol.FrameEncoder;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.Vector;
+import java.nio.ByteBuffer;
 
 /**
  * Handles Agents Connected to the Bank Server
+ *
+ * Binary frames: login 'l' [name string][balance long], or 'l' [name string][balance long][ID int][token long]
+ * to log in to an existing account, such as after a failover or to an account kept across restarts
+ * with --identities, with the token the account's ID was sent with, auction houses 'a',
+ * auction house changes 'D' [since version long], subscribe to auction house changes 'S', bank info 'b',
+ * transfer 'T' [AHID int][agentID int][amount long], refused with -1 unless agentID is the agent's own, disconnect '0'.
+ * When idempotency keys are agreed a transfer
+ * may end with [key long], and a transfer whose key was already seen gets the earlier result instead of running again,
+ * or {@link WireProtocol#RESULT_RETRY} while the first attempt is still running.
+ * Sent to the agent: ID 'i' [ID int][token long], see {@link Credentials}, auction houses 'A' [count int][ID int][ip string][port int]...,
+ * auction house changes 'E' (see {@link AHDirectory#encodeChanges(long, FrameEncoder)}),
+ * pushed auction house changes 'J' and 'L' (see {@link AHDirectory#subscribe(AgentClientHandler)}),
+ * bank info 'I' [balance long][blocked long], or an empty 'I' if the agent has no account,
+ * transfer result 'R' [result int].
+ *
+ * Transfers, bank info and directory requests run on the bank's request lanes, transfers ahead
+ * of reads, see {@link RequestLanes}. When busy answers are agreed a request the bank has no room
+ * to queue is answered with busy 'z' [opcode char] instead, and is not applied.
  */
-public class AgentClientHandler implements Runnable {
-    private final int ID;
+public class AgentClientHandler extends ClientHandler {
+    private static final Logger log = Log.get("bank.agent");
+
     private String name;
-    private final Socket bankSocket;
-    private final BankServer bankServer;
-    private JSONObject agentInfo;
-    private Vector<JSONObject> ahConnInfo;
 
     /**
      * Creates a new agent client
@@ -27,103 +46,288 @@ public class AgentClientHandler implements Runnable {
      * @param ID            client ID
      */
     public AgentClientHandler(Socket bankSocket, BankServer server, int ID){
-        this.bankSocket = bankSocket;
-        this.ID = ID;
-        bankServer = server;
-        ahConnInfo = bankServer.getJsonAHConnectionsInfo();
+        super(bankSocket, server, ID, BankStats.AGENT);
     }
 
-    /**
-     * Opens communication stream between agent and bank server.
-     * Gathers Agent information, stores it, and creates a bank account
-     * for the agent. Begins listening for requests.
-     *
-     */
     @Override
-    public void run() {
-        DataInputStream in;
-        DataOutputStream out;
-        JSONParser parser = new JSONParser();
-        JSONObject JSONData;
-        String data;
-        char request;
-        long balance;
+    protected void login(JSONObject agentInfo) {
+        // Parse the info received
+        createAccount((String) agentInfo.get("name"), (long) agentInfo.get("balance"));
+    }
 
-        try {
+    @Override
+    protected void login(char opcode, FrameDecoder frame) throws IOException {
+        if(opcode != 'l')
+            throw new IOException("Expected login frame");
+        String name = frame.getString();
+        long balance = frame.getLong();
+        if(frame.remaining() < 4){
+            createAccount(name, balance);
+            return;
+        }
 
-            // Open input/output stream via socket
-            out = new DataOutputStream(new BufferedOutputStream(bankSocket.getOutputStream()));
-            in = new DataInputStream(new BufferedInputStream(bankSocket.getInputStream()));
+        int existingID = frame.getInt();
+        if(frame.remaining() < 8 || !bankServer.getCredentials().verify(BankStats.AGENT, existingID, frame.getLong()))
+            throw new IOException("Agent " + existingID + " did not present the account's token");
+        if(bankServer.getAgentFunds(existingID) == null)
+            throw new IOException("Agent " + existingID + " has no account");
+        bankServer.adoptAgentClient(ID, existingID, this);
+        ID = existingID;
+        this.name = name;
+        log.info("Agent {} reconnected", ID);
+    }
 
-            data = in.readUTF();
+    private void createAccount(String name, long balance){
+        this.name = name;
+        bankServer.createAgentBankAccount(balance, name, ID); // Create bank account
 
-            agentInfo = (JSONObject) parser.parse(data); // Acquire agent info which should be sent first by agent
-            // Parse the info received
-            name = (String) agentInfo.get("name");
-            balance = (long) agentInfo.get("balance");
+        // Print status information
+        log.info("Agent Client Connected. Name: {} Balance: {}", name, balance);
+        log.info("Client ID: {}", ID);
+    }
 
-            // Send client ID
-            out.writeInt(ID);
-            out.flush();
+    /** A request run on a request lane */
+    private interface Request {
+        boolean handle() throws IOException, ParseException;
+    }
 
-            bankServer.createAgentBankAccount(balance, name, ID); // Create bank account
-
-            // Print status information
-            System.out.println("Agent Client Connected");
-            System.out.println("Name: " + name);
-            System.out.println("Balance: " + balance);
-            System.out.println("Client ID: " + ID);
-
-
-            while(true){
-                request = in.readChar();
-                switch(request){
-                    // Request List of available auction houses
-                    case 'a':
-                        System.out.println("Agent Request Auction House Connection Information");
-                        ahConnInfo = bankServer.getJsonAHConnectionsInfo(); // Gather current auction houses
-                        System.out.println(ahConnInfo);
-                        for(JSONObject connInfo : ahConnInfo){
-                            out.writeUTF(connInfo.toString());
-                            out.flush();
-                        }
-                        out.writeUTF("0"); // Send end of data transmission signal
-                        out.flush();
-                        break;
-                    case 'b':
-                        System.out.println("Agent requested current bank information");
-                        JSONData = bankServer.getJSONAgentBankInfo(ID); // Acquire bank data
-                        out.writeUTF(JSONData.toString());          // Send to agent
-                        out.flush();
-                        break;
-                    case 'T':
-                        System.out.println("Agent requesting transfer of funds");
-                        JSONData = (JSONObject) parser.parse(in.readUTF());
-                        System.out.println("Data read");
-                        int AHID = Integer.parseInt((String) JSONData.get("AHID"));
-                        int agentID = Integer.parseInt((String) JSONData.get("agentID"));
-                        long amount = (long) JSONData.get("amount");
-                        System.out.println("Writing data");
-                        out.writeInt(bankServer.transferFunds(agentID, AHID, amount));
-                        out.flush();
-                        System.out.println("Data sent");
-                        break;
-                    case '0':
-                        System.out.println("Agent Client " + ID + " disconnecting");
-                        bankSocket.close();
-                        bankServer.removeAgentClient(ID);
-                        return;
-                    default:
+    @Override
+    protected boolean handleFrame(char opcode, FrameDecoder frame) throws IOException {
+        try {
+            return runInLane(opcode, acceptsBusy(), () -> respond(opcode, frame));
+        } catch (ParseException e) {
+            throw new IOException(e);   // Frames are never parsed as JSON
+        }
+    }
+
+    /**
+     * Handles a single binary frame
+     */
+    private boolean respond(char opcode, FrameDecoder frame) throws IOException {
+        writeLock.lock();
+        try {
+            switch (opcode){
+                // Request List of available auction houses
+                case 'a':
+                    out.write(bankServer.getAHDirectory().snapshot().listingFrame);  // Already encoded
+                    break;
+                // Request auction houses that joined or left since a directory version
+                case 'D':
+                    bankServer.getAHDirectory().encodeChanges(frame.getLong(), encoder);
+                    break;
+                // Push auction houses joining and leaving, answered by the directory
+                case 'S':
+                    if((bankServer.getSupportedFeatures() & WireProtocol.FEATURE_DIRECTORY_PUSH) == 0)
+                        return true;
+                    bankServer.getAHDirectory().subscribe(this);
+                    return true;
+                case 'b':
+                    Funds funds = bankServer.getAgentFunds(ID);
+                    if(funds == null){
+                        log.warn("Agent {} requested bank information without an account", ID);
+                        encoder.begin('I').end();   // Empty, no account
                         break;
+                    }
+                    encoder.begin('I').putLong(funds.balance).putLong(funds.blocked).end();
+                    break;
+                case 'T':
+                    int AHID = frame.getInt();
+                    int agentID = frame.getInt();
+                    long amount = frame.getLong();
+                    long key = frame.remaining() >= 8 ? frame.getLong() : 0;
+                    encoder.begin('R').putInt(transfer(agentID, AHID, amount, key)).end();
+                    break;
+                case '0':
+                    disconnect();
+                    return false;
+                default:
+                    log.warn("Unknown frame from agent {}", ID);
+                    return true;
+            }
+            encoder.writeTo(out);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean handleLegacyRequest(DataInputStream in) throws IOException, ParseException {
+        // Read the whole request here, so a slow client never holds up a lane worker
+        char request = in.readChar();
+        String body = request == 'T' ? in.readUTF() : null;
+        return runInLane(request, false, () -> respondLegacy(request, body));
+    }
+
+    /**
+     * Handles a single request of the original protocol
+     *
+     * @param request   request opcode
+     * @param body      JSON sent with a transfer, null for other requests
+     */
+    private boolean respondLegacy(char request, String body) throws IOException, ParseException {
+        JSONObject JSONData;
+
+        switch(request){
+            // Request List of available auction houses
+            case 'a':
+                log.debug("Agent Request Auction House Connection Information");
+                // Current auction houses and end of data transmission signal, already serialized
+                out.write(bankServer.getAHDirectory().snapshot().legacyListing);
+                out.flush();
+                break;
+            case 'b':
+                log.debug("Agent requested current bank information");
+                JSONData = bankServer.getJSONAgentBankInfo(ID); // Acquire bank data
+                if(JSONData == null){
+                    log.warn("Agent {} requested bank information without an account", ID);
+                    JSONData = new JSONObject();    // Empty, no account
                 }
+                out.writeUTF(JSONData.toString());          // Send to agent
+                out.flush();
+                break;
+            case 'T':
+                log.debug("Agent requesting transfer of funds");
+                JSONData = (JSONObject) parser.parse(body);
+                int AHID = Integer.parseInt((String) JSONData.get("AHID"));
+                int agentID = Integer.parseInt((String) JSONData.get("agentID"));
+                long amount = (long) JSONData.get("amount");
+                Object key = JSONData.get("key");
+                out.writeInt(transfer(agentID, AHID, amount, key == null ? 0 : (long) key));
+                out.flush();
+                log.debug("Transfer response sent");
+                break;
+            case '0':
+                disconnect();
+                return false;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a request on its request lane and waits for it, so requests are still answered in order.
+     * A request that fails unexpectedly leaves the agent without an answer, so its connection is closed.
+     *
+     * @param opcode    request opcode
+     * @param mayRefuse true if the agent accepts a busy answer
+     * @param request   request to run
+     * @return false once the agent has disconnected
+     */
+    private boolean runInLane(char opcode, boolean mayRefuse, Request request) throws IOException, ParseException {
+        int lane = laneOf(opcode);
+        if(lane < 0)
+            return request.handle();
+
+        Object[] outcome = new Object[1];
+        if(!bankServer.runInLane(lane, mayRefuse, () -> {
+            try {
+                outcome[0] = request.handle();
+            } catch (IOException | ParseException | RuntimeException e) {
+                outcome[0] = e;
             }
+        })){
+            sendBusy(opcode);
+            return true;
+        }
 
-        }catch (EOFException e){
-            System.out.println("Agent abruptly disconnected");
-            bankServer.removeAgentClient(ID);
+        if(outcome[0] instanceof IOException)
+            throw (IOException) outcome[0];
+        if(outcome[0] instanceof ParseException)
+            throw (ParseException) outcome[0];
+        if(outcome[0] instanceof RuntimeException){
+            RuntimeException failure = (RuntimeException) outcome[0];
+            log.warn("Request from agent failed, closing connection", failure);
+            throw new IOException("Request failed", failure);
+        }
+        return !Boolean.FALSE.equals(outcome[0]);
+    }
+
+    /**
+     * @return Request lane of a request, -1 to handle it on the connection's own thread
+     */
+    private static int laneOf(char opcode){
+        switch (opcode){
+            case 'T':
+                return RequestLanes.FUNDS;
+            case 'a':
+            case 'b':
+            case 'D':
+                return RequestLanes.READS;
+            default:
+                return -1;
         }
-        catch (ParseException | IOException e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * Tells the agent a request was refused because the bank is busy, so it can be sent again later
+     */
+    private void sendBusy(char opcode) throws IOException {
+        writeLock.lock();
+        try {
+            encoder.begin('z').putChar(opcode).end();
+            encoder.writeTo(out);
+            out.flush();
+        } finally {
+            writeLock.unlock();
         }
     }
+
+    /**
+     * Transfers funds, only once per idempotency key. An agent may only transfer its own funds.
+     *
+     * @param agentID   account named by the request, must be the agent's own
+     * @param key       key chosen by the agent, 0 if none
+     * @return Transfer result, -1 if the request names another agent's account
+     */
+    private int transfer(int agentID, int AHID, long amount, long key){
+        if(agentID != ID){
+            log.warn("Agent {} tried to transfer another agent's funds", ID);
+            return -1;
+        }
+        if(key == 0)
+            return bankServer.transferFunds(agentID, AHID, amount);
+        return bankServer.runOnce(BankStats.AGENT, ID, key, () -> bankServer.transferFunds(agentID, AHID, amount));
+    }
+
+    @Override
+    protected int legacyFrameLength(ByteBuffer buffer) {
+        if(buffer.remaining() < 2)
+            return -1;
+        if(buffer.getChar(buffer.position()) == 'T')
+            return ClientProtocol.opcodeWithUTFLength(buffer);
+        return 2;
+    }
+
+    @Override
+    public void disconnected() {
+        log.info("Agent {} abruptly disconnected", ID);
+        bankServer.removeAgentClient(ID, this);
+    }
+
+    /**
+     * Sends a pre-encoded auction house directory frame
+     *
+     * @param frame encoded frame
+     */
+    void sendDirectory(byte[] frame){
+        writeLock.lock();
+        try {
+            out.write(frame);
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Unable to send auction house changes to agent {}", ID);
+            bankServer.getAHDirectory().unsubscribe(this);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void disconnect() throws IOException {
+        log.info("Agent Client {} disconnecting", ID);
+        socket.close();
+        bankServer.removeAgentClient(ID, this);
+    }
 }
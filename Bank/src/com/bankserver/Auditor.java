@@ -0,0 +1,450 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Checks in the background that the ledger never creates or loses funds: agent balances,
+ * blocked funds and auction house balances always add up to the funds that entered this
+ * shard, less those that left it.
+ *
+ * Funds enter and leave through an outside account, kept in stripes so transfers do not all
+ * contend on one account. Opening balances, deposits and credits from other shards are taken
+ * from it, and transfers waiting to be settled or delivered to another shard are held in it,
+ * so every account together, the outside included, always adds up to 0. Outside stripes are
+ * reported with negative IDs.
+ *
+ * A pass reads every account once at a limited rate while requests continue, so the accounts
+ * are not read at one moment. Only operations moving funds between two accounts change the
+ * sum: opening an agent account, deposits, transfers, settlements and credits from other shards.
+ * Each of them enters the pass running, marks both accounts as touched before changing them,
+ * and records the move with the versions it produced. The version a touched account was read
+ * at tells whether the pass counted the account before or after each move, so the pass takes
+ * out every move it counted and checks the sum of the ledger as it was when the pass began.
+ * Blocks, unblocks and bids never move funds between accounts and are never recorded.
+ *
+ * Passes run back to back, so every move is recorded in some pass. Accounts are also summed in
+ * buckets by ID, and each bucket may only change between passes by the moves recorded on its
+ * accounts. A bucket changing otherwise is reported, naming the account when only one changed:
+ * each bucket also keeps its sum weighted by account ID, which then changes by the account's ID
+ * times the difference. The bucket's accounts are also watched one by one for the following
+ * passes, to name every account that keeps changing without a move.
+ */
+public class Auditor implements Runnable {
+    private static final Logger log = Log.get("bank.audit");
+
+    /** Number of stripes of the outside account, a power of two */
+    private static final int OUTSIDE_STRIPES = 64;
+    /** Number of buckets accounts are summed in, a power of two */
+    private static final int BUCKETS = 4096;
+    /** Number of bits accounts are marked touched in, a power of two */
+    private static final int TOUCHED_BITS = 1 << 20;
+    /** Passes a bucket is watched for after it last changed without a move */
+    private static final int WATCH_PASSES = 8;
+    /** Number of times a second a pass pauses to keep to its rate */
+    private static final long SLICES_PER_SECOND = 100;
+    /** Shortest time a pass takes, so a small ledger is not read continuously */
+    private static final long MIN_PASS_MILLIS = 1_000;
+
+    /** Funds moved from one account to another */
+    private static final class Move {
+        final int from;
+        final long fromVersion;
+        final int to;
+        final long toVersion;
+        final long amount;
+
+        Move(int from, long fromVersion, int to, long toVersion, long amount){
+            this.from = from;
+            this.fromVersion = fromVersion;
+            this.to = to;
+            this.toVersion = toVersion;
+            this.amount = amount;
+        }
+    }
+
+    /** Changes moves made to each bucket and watched account */
+    private static final class Changes {
+        final long[] sums = new long[BUCKETS];
+        final long[] weights = new long[BUCKETS];
+        final HashMap<Integer, Long> values = new HashMap<>();
+    }
+
+    /**
+     * One pass over the ledger, recording the moves made while it runs
+     */
+    static final class Pass {
+        /** Operations in this pass that have not left it */
+        private final AtomicInteger active;
+        /**
+         * Accounts changed by moves in this pass, a bit per hash of the ID. Accounts sharing a bit
+         * only cost the auditor a version kept for nothing.
+         */
+        private final AtomicLongArray touched;
+        private final ConcurrentLinkedQueue<Move> moves;
+
+        private Pass(){
+            active = new AtomicInteger();
+            touched = new AtomicLongArray(TOUCHED_BITS / 64);
+            moves = new ConcurrentLinkedQueue<>();
+        }
+
+        /**
+         * Marks an account as about to be changed by a move
+         */
+        private void touch(int ID){
+            int bit = bitOf(ID);
+            long mask = 1L << bit;
+            if((touched.get(bit >>> 6) & mask) == 0)
+                touched.getAndAccumulate(bit >>> 6, mask, (word, set) -> word | set);
+        }
+
+        /**
+         * @return true if a move may have changed the account
+         */
+        private boolean isTouched(int ID){
+            int bit = bitOf(ID);
+            return (touched.get(bit >>> 6) & (1L << bit)) != 0;
+        }
+
+        private static int bitOf(int ID){
+            return (ID * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(TOUCHED_BITS));
+        }
+
+        /**
+         * Records a move. Both accounts must have been touched before they were changed.
+         *
+         * @param from          account the funds were taken from
+         * @param fromVersion   version the move gave that account
+         * @param to            account the funds were added to
+         * @param toVersion     version the move gave that account
+         * @param amount        amount moved
+         */
+        void moved(int from, long fromVersion, int to, long toVersion, long amount){
+            moves.add(new Move(from, fromVersion, to, toVersion, amount));
+        }
+
+        /**
+         * Ends an operation that entered this pass
+         */
+        void leave(){
+            active.decrementAndGet();
+        }
+    }
+
+    private final Ledger ledger;
+    private final long accountsPerSecond;
+    /** Accounts read between pauses */
+    private final long slice;
+    private final BankAccount[] outside;
+    private final LatencyHistogram passTimes;
+    /** Pass moves are recorded in */
+    private volatile Pass current;
+
+    /*
+     * Read by the auditor thread only
+     */
+
+    /** Sum of each bucket as read by this pass */
+    private final long[] sums;
+    /** Sum of each bucket weighted by account ID, which names the account when only one changed */
+    private final long[] weights;
+    /** Version each touched account was read at */
+    private final HashMap<Integer, Long> seen;
+    /** Funds of each account in a watched bucket */
+    private final HashMap<Integer, Long> values;
+    /** Accounts read with negative funds */
+    private final ArrayList<Integer> negative;
+    /** Accounts reported with negative funds by the previous pass */
+    private HashSet<Integer> reportedNegative;
+    /** Imbalance reported by the previous pass */
+    private long reportedTotal;
+    /** Number of accounts read by this pass */
+    private long visited;
+    /** Time this pass started reading */
+    private long walkStart;
+    /** Sum each bucket must have without this pass's moves, null if unknown */
+    private long[] expected;
+    /** Weighted sum each bucket must have without this pass's moves */
+    private long[] expectedWeights;
+    /** Funds each watched account must have without this pass's moves */
+    private HashMap<Integer, Long> expectedValues;
+    /** Remaining passes each bucket is watched for */
+    private final int[] watched;
+
+    /**
+     * Takes the funds already in the ledger as having entered it. Must be created before the
+     * ledger changes, and set with {@link Ledger#setAuditor(Auditor)}.
+     *
+     * @param ledger            restored ledger to audit
+     * @param accountsPerSecond rate accounts are read at
+     * @param stats             statistics pass times are recorded in
+     */
+    public Auditor(Ledger ledger, long accountsPerSecond, BankStats stats) throws IOException {
+        this.ledger = ledger;
+        this.accountsPerSecond = Math.max(1, accountsPerSecond);
+        slice = Math.max(1, this.accountsPerSecond / SLICES_PER_SECOND);
+        passTimes = stats.histogram("audit pass");
+        outside = new BankAccount[OUTSIDE_STRIPES];
+        for(int i = 0; i < outside.length; i++){
+            outside[i] = new BankAccount(0);
+        }
+        sums = new long[BUCKETS];
+        weights = new long[BUCKETS];
+        seen = new HashMap<>();
+        values = new HashMap<>();
+        negative = new ArrayList<>();
+        reportedNegative = new HashSet<>();
+        reportedTotal = 0;
+        expected = null;
+        expectedWeights = null;
+        expectedValues = new HashMap<>();
+        watched = new int[BUCKETS];
+
+        long[] total = {0};
+        ledger.getAgentAccounts().forEach(account -> {
+            Funds funds = account.getFunds();
+            total[0] += funds.balance + funds.blocked;
+        });
+        for(BankAccount house : ledger.getAHAccounts().values()){
+            total[0] += house.getBalance();
+        }
+        outside[0].change(-total[0], 0);
+        current = new Pass();
+        log.info("Auditing {} in accounts at {} accounts per second", total[0], this.accountsPerSecond);
+    }
+
+    /**
+     * @param ID account the funds enter or leave through
+     * @return ID of the outside stripe funds move through
+     */
+    static int outsideID(int ID){
+        return -1 - (ID & (OUTSIDE_STRIPES - 1));
+    }
+
+    /**
+     * Changes the outside stripe of an account. Callers are in a pass.
+     *
+     * @param ID        account the funds enter or leave through
+     * @param amount    amount added to the outside
+     * @return Version of the stripe after the change
+     */
+    long changeOutside(int ID, long amount){
+        return outside[-1 - outsideID(ID)].change(amount, 0).version;
+    }
+
+    /**
+     * Enters the current pass before funds move between two accounts, touching both.
+     * The caller records the move and leaves the pass once both accounts have changed.
+     *
+     * @param from  account funds are taken from
+     * @param to    account funds are added to
+     * @return Pass to record the move in
+     */
+    Pass enter(int from, int to){
+        Pass pass;
+        while(true){
+            pass = current;
+            pass.active.incrementAndGet();
+            if(current == pass)
+                break;
+            pass.leave();   // Passed on while entering, the pass may already be checked
+        }
+        pass.touch(from);
+        pass.touch(to);
+        return pass;
+    }
+
+    /**
+     * Runs passes until interrupted
+     */
+    @Override
+    public void run() {
+        while(true){
+            long start = System.nanoTime();
+            Pass pass = current;
+            boolean complete = true;
+            try {
+                walk(pass);
+            } catch (IOException e) {
+                log.warn("Unable to read agent accounts, pass not checked", e);
+                complete = false;
+            }
+
+            long remaining = MIN_PASS_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if(remaining > 0){
+                try {
+                    Thread.sleep(remaining);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            // Later moves go to the next pass, once every move in this one has been recorded
+            current = new Pass();
+            while(pass.active.get() > 0){
+                Thread.yield();
+            }
+            if(complete)
+                check(pass);
+            else {
+                expected = null;
+                expectedValues = new HashMap<>();
+            }
+            passTimes.recordSince(start);
+        }
+    }
+
+    /**
+     * Reads every account once
+     */
+    private void walk(Pass pass) throws IOException {
+        Arrays.fill(sums, 0);
+        Arrays.fill(weights, 0);
+        seen.clear();
+        values.clear();
+        negative.clear();
+        visited = 0;
+        walkStart = System.nanoTime();
+
+        ledger.getAgentAccounts().forEach(account -> {
+            Funds funds = account.getFunds();
+            if(funds.balance < 0 || funds.blocked < 0)
+                negative.add(account.getID());
+            visit(pass, account.getID(), funds, funds.balance + funds.blocked);
+        });
+        IntTable<BankAccount> houses = ledger.getAHAccounts();
+        for(int ID : houses.keys()){
+            Funds funds = houses.get(ID).getFunds();
+            if(funds.balance < 0)
+                negative.add(ID);
+            visit(pass, ID, funds, funds.balance);
+        }
+        for(int i = 0; i < outside.length; i++){
+            Funds funds = outside[i].getFunds();
+            visit(pass, -1 - i, funds, funds.balance);
+        }
+    }
+
+    /**
+     * Adds an account to the sums, keeping its version if a move touched it
+     */
+    private void visit(Pass pass, int ID, Funds funds, long value){
+        // A move touching the account later only changes it after this read
+        if(pass.isTouched(ID))
+            seen.put(ID, funds.version);
+        int bucket = ID & (BUCKETS - 1);
+        sums[bucket] += value;
+        weights[bucket] += ID * value;
+        if(watched[bucket] > 0)
+            values.put(ID, value);
+
+        // Paced in slices of a few milliseconds, so requests are not interrupted by frequent wakeups
+        if(++visited % slice == 0){
+            long ahead = walkStart + visited * 1_000_000_000L / accountsPerSecond - System.nanoTime();
+            if(ahead > 0)
+                LockSupport.parkNanos(ahead);
+        }
+    }
+
+    /**
+     * Takes the moves the pass counted out of its sums and reports any funds created or lost
+     */
+    private void check(Pass pass){
+        Changes counted = new Changes();
+        Changes uncounted = new Changes();
+        for(Move move : pass.moves){
+            side(move.from, move.fromVersion, -move.amount, counted, uncounted);
+            side(move.to, move.toVersion, move.amount, counted, uncounted);
+        }
+
+        long total = 0;
+        int drifting = 0;
+        for(int bucket = 0; bucket < BUCKETS; bucket++){
+            long before = sums[bucket] - counted.sums[bucket];
+            total += before;
+            if(expected == null)
+                continue;
+            long drift = before - expected[bucket];
+            long weightDrift = weights[bucket] - counted.weights[bucket] - expectedWeights[bucket];
+            if(drift != 0 || weightDrift != 0){
+                if(drift == 0)
+                    log.error("Accounts in bucket {} exchanged funds without a transfer", bucket);
+                else if(weightDrift % drift == 0 && ((weightDrift / drift) & (BUCKETS - 1)) == bucket)
+                    log.error("Account {} changed by {} without a transfer", weightDrift / drift, drift);
+                else
+                    log.error("Accounts in bucket {} changed by {} without a transfer", bucket, drift);
+                watched[bucket] = WATCH_PASSES;
+                drifting++;
+            }
+            else if(watched[bucket] > 0)
+                watched[bucket]--;
+        }
+        // Imbalances and negative funds are reported once, not every pass they last
+        if(total != reportedTotal){
+            if(total != 0)
+                log.error("Ledger out of balance by {} over {} accounts", total, visited);
+            else
+                log.info("Ledger balanced again over {} accounts", visited);
+            reportedTotal = total;
+        }
+
+        for(Map.Entry<Integer, Long> account : expectedValues.entrySet()){
+            int ID = account.getKey();
+            long before = values.getOrDefault(ID, 0L) - counted.values.getOrDefault(ID, 0L);
+            if(before != account.getValue())
+                log.error("Account {} changed by {} without a transfer", ID, before - account.getValue());
+        }
+        HashSet<Integer> negatives = new HashSet<>(negative);
+        for(int ID : negatives){
+            if(!reportedNegative.contains(ID))
+                log.error("Account {} has negative funds", ID);
+        }
+        reportedNegative = negatives;
+
+        // What the next pass must find without its own moves, accounts only once their bucket was read watched
+        expected = new long[BUCKETS];
+        expectedWeights = new long[BUCKETS];
+        for(int bucket = 0; bucket < BUCKETS; bucket++){
+            expected[bucket] = sums[bucket] + uncounted.sums[bucket];
+            expectedWeights[bucket] = weights[bucket] + uncounted.weights[bucket];
+        }
+        expectedValues = new HashMap<>();
+        for(Map.Entry<Integer, Long> account : values.entrySet()){
+            if(watched[account.getKey() & (BUCKETS - 1)] > 0)
+                expectedValues.put(account.getKey(), account.getValue() + uncounted.values.getOrDefault(account.getKey(), 0L));
+        }
+        for(Map.Entry<Integer, Long> account : uncounted.values.entrySet()){
+            if(watched[account.getKey() & (BUCKETS - 1)] > 0 && !values.containsKey(account.getKey()))
+                expectedValues.put(account.getKey(), account.getValue());   // Opened after it was read
+        }
+
+        if(total == 0 && drifting == 0 && negative.isEmpty())
+            log.debug("Ledger balanced over {} accounts and {} transfers", visited, pass.moves.size());
+    }
+
+    /**
+     * Adds one side of a move to the changes the pass counted, or to those it did not
+     */
+    private void side(int ID, long version, long amount, Changes counted, Changes uncounted){
+        Long read = seen.get(ID);
+        Changes changes = read != null && read >= version ? counted : uncounted;
+        int bucket = ID & (BUCKETS - 1);
+        changes.sums[bucket] += amount;
+        changes.weights[bucket] += ID * amount;
+        if(watched[bucket] > 0)
+            changes.values.merge(ID, amount, Long::sum);
+    }
+}
@@ -1,30 +1,95 @@
 package com.bankserver;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Bank account whose state is a single {@link Funds} instance replaced by
+ * compare-and-set, so no operation ever takes a lock.
+ *
+ * Every operation reads and replaces the state through {@link #getFunds()} and
+ * {@link #compareAndSetFunds(Funds, Funds)}, so subclasses may keep it elsewhere,
+ * see {@link MappedAccountStore}.
+ */
 public class BankAccount {
-    protected Long balance;
+    /** Atomic access to the account state */
+    private static final VarHandle FUNDS;
 
-    public BankAccount(Long balance){
-        this.balance = balance;
+    static {
+        try {
+            FUNDS = MethodHandles.lookup().findVarHandle(BankAccount.class, "funds", Funds.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
     }
 
-    public synchronized Long getBalance(){
-        return balance;
+    private volatile Funds funds;
+
+    public BankAccount(long balance){
+        this(new Funds(balance, 0, 0));
     }
 
-    public synchronized Long deposit(Long value){
-        balance += value;
-        return balance;
+    /**
+     * Creates an account with existing state, used when restoring the ledger.
+     *
+     * @param funds account state
+     */
+    BankAccount(Funds funds){
+        this.funds = funds;
+    }
 
+    public long getBalance(){
+        return getFunds().balance;
     }
 
-    public synchronized Long withdraw(Long value) {
-        if(balance - value < 0){
-            return Long.valueOf(-1);
-        }
-        else{
-            balance -= value;
-        }
+    public long deposit(long value){
+        return change(value, 0).balance;
+    }
+
+    public long withdraw(long value) {
+        Funds current;
+        do {
+            current = getFunds();
+            if(current.balance - value < 0){
+                return -1;
+            }
+        } while(!compareAndSetFunds(current, current.update(-value, 0)));
+
+        return current.balance - value;
+    }
+
+    /**
+     * @return current state of the account
+     */
+    Funds getFunds(){
+        return funds;
+    }
+
+    /**
+     * Applies a change to the funds without any checks.
+     *
+     * @param balanceChange amount added to the balance
+     * @param blockedChange amount added to the blocked funds
+     * @return state after the change
+     */
+    Funds change(long balanceChange, long blockedChange){
+        Funds current;
+        Funds next;
+        do {
+            current = getFunds();
+            next = current.update(balanceChange, blockedChange);
+        } while(!compareAndSetFunds(current, next));
+        return next;
+    }
 
-        return balance;
+    /**
+     * Replaces the account state if it has not changed since it was read.
+     *
+     * @param expected  state the change was computed from
+     * @param next      new state
+     * @return true if the state was replaced
+     */
+    protected boolean compareAndSetFunds(Funds expected, Funds next){
+        return FUNDS.compareAndSet(this, expected, next);
     }
 }
@@ -1,5 +1,11 @@
 package com.bankserver;
 
+import com.auctionprotocol.Heartbeats;
+import com.auctionprotocol.Shards;
+import com.auctionprotocol.TimingWheel;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
 import javafx.application.Platform;
 import org.json.simple.JSONObject;
 
@@ -10,29 +16,31 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntSupplier;
 
 public class BankServer implements Runnable{
+    private static final Logger log = Log.get("bank.server");
 
     /** Host Name / IP for server */
     private String hostname;
     /** Port for Auction Houses to Connect */
-    private  final int AHConnectionPort = 1025;
+    private int AHConnectionPort;
     /** Port for Agents to Connect */
-    private  final int agentConnectionPort = 1026;
-    /** Ports as array for easy iteration */
-    private  final int[] ports = {AHConnectionPort, agentConnectionPort};
-    /** Auction House Bank Accounts */
-    private ConcurrentHashMap<Integer, BankAccount> AHBankAccounts;
-    /** Agent Bank Accounts */
-    private ConcurrentHashMap<Integer, AgentBankAccount> agentBankAccounts;
+    private int agentConnectionPort;
+    /** Index of this shard */
+    private int shard;
+    /** Number of shards the accounts are split across */
+    private int shards;
+    /** Agent and Auction House Bank Accounts */
+    private final Ledger ledger;
     /** Connected Auction House Clients */
-    private ConcurrentHashMap<Integer, AHClientHandler> AHConns;
+    private IntTable<AHClientHandler> AHConns;
     /** Connected Agent Clients */
-    private ConcurrentHashMap<Integer, AgentClientHandler> agentConns;
+    private IntTable<AgentClientHandler> agentConns;
     /** Flag if server is on */
     private boolean on;
     /**
@@ -40,18 +48,409 @@ public class BankServer implements Runnable{
      * Increments every time a new client (agent or AH) connects
      * */
     private SynchronizedCounter connectionID;
+    /** Flag if client connections are serviced by selector workers instead of a thread each */
+    private boolean nonBlocking;
+    /** Number of selector worker threads used in non-blocking mode */
+    private int selectorThreads;
+    /** Selector workers servicing client connections in non-blocking mode */
+    private SelectorWorker[] workers;
+    /** Worker the next accepted connection is assigned to */
+    private int nextWorker;
+    /** Write-ahead journal file, null if disabled */
+    private Path journalPath;
+    /** Snapshot file, null if disabled */
+    private Path snapshotPath;
+    /** Memory-mapped agent account file, null to keep accounts on the heap */
+    private Path accountStorePath;
+    /** Number of accounts the mapped account file makes room for */
+    private long accountStoreSize;
+    /** Agent account database, null unless agents keep their accounts across logins */
+    private Path identitiesPath;
+    /** Number of agent accounts the database keeps in memory */
+    private int identitiesCached;
+    /** Agent accounts kept in a database, null if disabled */
+    private SqliteAccountStore identities;
+    /** Time between snapshots */
+    private long snapshotInterval;
+    /** Write-ahead journal of ledger changes, null if disabled */
+    private Journal journal;
+    /** Runs requests by priority on a bounded pool in blocking mode */
+    private RequestLanes lanes;
+    /** Auction houses listed for agents */
+    private final AHDirectory directory;
+    /** Protocol features offered to clients that open with a hello */
+    private int supportedFeatures;
+    /** Request and ledger latencies */
+    private final BankStats stats;
+    /** Local port statistics are served on, 0 if disabled */
+    private int statsPort;
+    /** Port standbys connect to for the journal, 0 if not replicating */
+    private int replicationPort;
+    /** Flag if changes are only acknowledged once the standby has synced them */
+    private boolean synchronousReplication;
+    /** Host of the primary this bank is a standby of, null if it is not a standby */
+    private String primaryHost;
+    /** Primary's replication port */
+    private int primaryPort;
+    /** Time without hearing from the primary before this standby takes over */
+    private long promoteAfterMillis;
+    /** Results of requests sent with idempotency keys */
+    private IdempotencyCache dedupe;
+    /** Expires every lease and timeout kept by the bank */
+    private final TimingWheel timers;
+    /** Closes connections of clients that agreed heartbeats and went silent */
+    private final Heartbeats heartbeats;
+    /** Time between settlements of transfers to auction houses, 0 to credit them straight away */
+    private long settleMillis;
+    /** Accounts read per second by the ledger auditor, 0 if disabled */
+    private long auditRate;
+    /** File holding the secret shared with other shards and standbys, null to make one up */
+    private Path secretPath;
+    /** Issues and checks the tokens clients log in to their accounts again with */
+    private Credentials credentials;
+
+    /** Default time a request's idempotency key is remembered */
+    private static final long DEDUPE_RETENTION_MILLIS = 120_000;
+    /** Default number of idempotency keys remembered per retention period */
+    private static final int DEDUPE_CAPACITY = 1 << 18;
+    /** Default number of requests moving funds queued before clients are told the bank is busy */
+    private static final int FUNDS_QUEUE = 4096;
+    /** Default number of agent reads queued before agents are told the bank is busy */
+    private static final int READS_QUEUE = 256;
+    /** Precision of leases and timeouts */
+    private static final long TIMER_TICK_MILLIS = 100;
+    /** Timing wheel slots, one revolution is TIMER_SLOTS ticks */
+    private static final int TIMER_SLOTS = 1024;
+    /** Default time between settlements of transfers to auction houses */
+    private static final long SETTLE_MILLIS = 100;
 
     /**
      * Creates a new bank Server
      * Allocates hash maps and counters
      */
     public BankServer(){
-        AHBankAccounts = new ConcurrentHashMap<>(0);
-        agentBankAccounts = new ConcurrentHashMap<>(0);
-        AHConns = new ConcurrentHashMap<>(0);
-        agentConns = new ConcurrentHashMap<>(0);
+        stats = new BankStats();
+        ledger = new Ledger(stats);
+        timers = new TimingWheel(TIMER_TICK_MILLIS, TIMER_SLOTS);
+        ledger.setHolds(new FundHolds(timers));
+        heartbeats = new Heartbeats(timers);
+        AHConns = new IntTable<>();
+        agentConns = new IntTable<>();
+        directory = new AHDirectory();
         connectionID = new SynchronizedCounter(1);
         on = false;
+        nonBlocking = false;
+        selectorThreads = 1;
+        lanes = new RequestLanes(FUNDS_QUEUE, READS_QUEUE, stats);
+        supportedFeatures = WireProtocol.FEATURE_BINARY | WireProtocol.FEATURE_JSON
+                | WireProtocol.FEATURE_DIRECTORY_PUSH | WireProtocol.FEATURE_IDEMPOTENCY_KEYS
+                | WireProtocol.FEATURE_HOLD_LEASES | WireProtocol.FEATURE_BUSY | WireProtocol.FEATURE_HEARTBEAT
+                | WireProtocol.FEATURE_ADJUST_HOLDS;
+        dedupe = new IdempotencyCache(DEDUPE_RETENTION_MILLIS, DEDUPE_CAPACITY);
+        settleMillis = SETTLE_MILLIS;
+        auditRate = 0;
+        statsPort = 0;
+        replicationPort = 0;
+        primaryHost = null;
+        accountStorePath = null;
+        identitiesPath = null;
+        secretPath = null;
+        credentials = Credentials.generate();
+        setShard(0, 1);
+    }
+
+    /**
+     * Makes this server one shard of a bank split across several processes on the same host.
+     * It listens on the shard's own ports, only allocates IDs the shard owns and forwards
+     * transfers to auction houses owned by other shards. Must be set before the server is run.
+     *
+     * @param index     index of this shard
+     * @param count     number of shards
+     */
+    public void setShard(int index, int count){
+        shard = index;
+        shards = count;
+        AHConnectionPort = Shards.auctionHousePort(index);
+        agentConnectionPort = Shards.agentPort(index);
+        ledger.setShard(index, count);
+    }
+
+    /**
+     * Serves request and ledger latencies as text on a local port.
+     * Must be set before the server is run.
+     *
+     * @param port port on the loopback address to serve statistics on
+     */
+    public void enableStats(int port){
+        statsPort = port;
+    }
+
+    /**
+     * @return Watches of client connections that agreed heartbeats, on the bank's timing wheel
+     */
+    public Heartbeats getHeartbeats(){
+        return heartbeats;
+    }
+
+    /**
+     * @return Tokens of accounts and shards
+     */
+    public Credentials getCredentials(){
+        return credentials;
+    }
+
+    /**
+     * @return Request and ledger latencies
+     */
+    public BankStats getStats(){
+        return stats;
+    }
+
+    /**
+     * Sets the protocol features offered to clients, such as JSON only to debug traffic.
+     * Must be set before the server is run.
+     *
+     * @param features features from {@link WireProtocol}
+     */
+    public void setSupportedFeatures(int features){
+        supportedFeatures = features;
+    }
+
+    /**
+     * @return Protocol features offered to clients
+     */
+    public int getSupportedFeatures(){
+        return supportedFeatures;
+    }
+
+    /**
+     * Sets how often transfers to auction houses are settled. Agents' funds are removed
+     * straight away and each auction house is credited once per settlement with the net
+     * of its transfers. Must be set before the server is run.
+     *
+     * @param intervalMillis time between settlements, 0 to credit every transfer straight away
+     */
+    public void configureSettlement(long intervalMillis){
+        settleMillis = intervalMillis;
+    }
+
+    /**
+     * Checks in the background that no funds are created or lost, reading accounts at a
+     * limited rate while requests continue, see {@link Auditor}. Must be set before the server is run.
+     *
+     * @param accountsPerSecond rate accounts are read at
+     */
+    public void enableAudit(long accountsPerSecond){
+        auditRate = accountsPerSecond;
+    }
+
+    /**
+     * Sets how long idempotency keys are remembered and how many are kept per period.
+     * Must be set before the server is run.
+     *
+     * @param retentionMillis   shortest time a key is remembered
+     * @param capacity          keys remembered per retention period
+     */
+    public void configureDedupe(long retentionMillis, int capacity){
+        dedupe = new IdempotencyCache(retentionMillis, capacity);
+    }
+
+    /**
+     * Sets how many requests of each class are queued in blocking mode before clients
+     * that accept it are told the bank is busy. Must be set before the server is run.
+     *
+     * @param funds requests moving funds queued
+     * @param reads agent reads queued
+     */
+    public void configureLanes(int funds, int reads){
+        lanes = new RequestLanes(funds, reads, stats);
+    }
+
+    /**
+     * Records every ledger change in a journal before it is acknowledged. Any existing
+     * journal at the path is replayed on startup to restore the ledger.
+     * Must be set before the server is run.
+     *
+     * @param path journal file location
+     */
+    public void enableJournal(Path path){
+        journalPath = path;
+    }
+
+    /**
+     * Keeps agent accounts off the heap in a memory-mapped file, for very large numbers of accounts.
+     * The file only holds the accounts while the bank runs; use a journal or snapshots to keep them.
+     * Must be set before the server is run.
+     *
+     * @param path      account file location, replaced on startup
+     * @param accounts  number of accounts to make room for
+     */
+    public void useMappedAccounts(Path path, long accounts){
+        accountStorePath = path;
+        accountStoreSize = accounts;
+    }
+
+    /**
+     * Keeps agent accounts in a SQLite database, with only the accounts in use in memory.
+     * An agent logging in with the ID and token of an account it opened before resumes it,
+     * see {@link AgentClientHandler}. Must be set before the server is run.
+     *
+     * @param path      database file location, created if missing
+     * @param cached    number of accounts to keep in memory
+     */
+    public void useIdentities(Path path, int cached){
+        identitiesPath = path;
+        identitiesCached = cached;
+    }
+
+    /**
+     * Reads the secret tokens are derived from out of a file, so every shard and standby
+     * given the same file accepts the tokens the others issue. Must be set before the server is run.
+     *
+     * @param path file holding the secret
+     */
+    public void useSecret(Path path){
+        secretPath = path;
+    }
+
+    /**
+     * Periodically writes a snapshot of the ledger. An existing snapshot is loaded on
+     * startup so only journal records written after it need to be replayed.
+     * Must be set before the server is run.
+     *
+     * @param path              snapshot file location
+     * @param intervalMillis    time between snapshots
+     */
+    public void enableSnapshots(Path path, long intervalMillis){
+        snapshotPath = path;
+        snapshotInterval = intervalMillis;
+    }
+
+    /**
+     * Ships the journal to a standby bank connecting to the given port. Requires a journal.
+     * Must be set before the server is run.
+     *
+     * @param port          port standbys connect to
+     * @param synchronous   true if changes are only acknowledged once the standby has synced them
+     */
+    public void enableReplication(int port, boolean synchronous){
+        replicationPort = port;
+        synchronousReplication = synchronous;
+    }
+
+    /**
+     * Runs this bank as a standby that follows a primary's journal and only starts serving
+     * clients once the primary has been unreachable for a while. Requires a journal.
+     * Must be set before the server is run.
+     *
+     * @param host                  primary's host
+     * @param port                  primary's replication port
+     * @param promoteAfterMillis    time without hearing from the primary before taking over
+     */
+    public void followPrimary(String host, int port, long promoteAfterMillis){
+        primaryHost = host;
+        primaryPort = port;
+        this.promoteAfterMillis = promoteAfterMillis;
+    }
+
+    /**
+     * Restores the ledger from the latest snapshot and journal, if enabled,
+     * and starts the journal flusher and checkpointer threads.
+     */
+    private void restoreLedger() throws IOException {
+        Checkpointer checkpointer = null;
+        int highestID = 0;
+        long journalOffset = 0;
+
+        if(accountStorePath != null && identitiesPath != null)
+            throw new IOException("Agent accounts are kept in either a mapped file or a database");
+        if(secretPath != null)
+            credentials = Credentials.load(secretPath);
+        else if(shards > 1 || replicationPort > 0 || primaryHost != null)
+            throw new IOException("Shards and standbys require a shared secret");
+        if(accountStorePath != null)
+            ledger.setAgentStore(new MappedAccountStore(accountStorePath, accountStoreSize, shard, shards));
+        if(identitiesPath != null){
+            identities = new SqliteAccountStore(identitiesPath, identitiesCached);
+            ledger.setAgentStore(identities);
+            new Thread(identities, "account-writer").start();
+        }
+
+        if(journalPath != null)
+            journal = new Journal(journalPath, stats);
+        else if(replicationPort > 0 || primaryHost != null)
+            throw new IOException("Replication requires a journal");
+
+        if(snapshotPath != null){
+            checkpointer = new Checkpointer(ledger, journal, snapshotPath, snapshotInterval);
+            if(checkpointer.restore()){
+                highestID = checkpointer.getRestoredHighestID();
+                journalOffset = checkpointer.getRestoredOffset();
+            }
+        }
+
+        if(journal != null){
+            highestID = Math.max(highestID, journal.replay(ledger, journalOffset));
+            ledger.setJournal(journal);
+            ledger.setDeferSync(nonBlocking);   // Selector workers sync once per pass
+            new Thread(journal, "journal-flusher").start();
+        }
+
+        if(checkpointer != null)
+            new Thread(checkpointer, "checkpointer").start();
+
+        // A standby only serves clients once promoted, with every change received from the primary
+        if(primaryHost != null)
+            highestID = Math.max(highestID, new Standby(ledger, journal, primaryHost, primaryPort, promoteAfterMillis).follow());
+
+        if(replicationPort > 0){
+            Replicator replicator = new Replicator(journal, replicationPort, synchronousReplication, stats);
+            journal.setReplicator(replicator);
+            new Thread(replicator, "replicator").start();
+        }
+
+        // Audited from the restored ledger, before any funds move
+        if(auditRate > 0){
+            Auditor auditor = new Auditor(ledger, auditRate, stats);
+            ledger.setAuditor(auditor);
+            new Thread(auditor, "auditor").start();
+        }
+
+        // Leases only run once the bank serves clients, so auction houses can renew them
+        ledger.startHolds();
+        if(settleMillis > 0)
+            ledger.setSettlement(new Settlement(timers, settleMillis));
+        ledger.startSettlement();
+        new Thread(timers, "timing-wheel").start();
+
+        if(identities != null)
+            highestID = Math.max(highestID, identities.highestID());
+
+        // Never reuse a restored ID, and only allocate IDs this shard owns
+        connectionID = new SynchronizedCounter(Shards.nextID(shard, shards, highestID), shards);
+    }
+
+    /**
+     * Starts delivering transfers to every other shard
+     *
+     * @param host host every shard listens on
+     */
+    private void linkShards(String host){
+        for(int peer = 0; peer < shards; peer++){
+            if(peer != shard)
+                new Thread(new ShardLink(ledger, journal, credentials, host, peer), "shard-link-" + peer).start();
+        }
+    }
+
+    /**
+     * Services every client connection from a small pool of selector threads
+     * rather than a dedicated thread per connection. Must be set before the server is run.
+     *
+     * @param threads number of selector worker threads
+     */
+    public void setNonBlocking(int threads){
+        nonBlocking = true;
+        selectorThreads = Math.max(1, threads);
     }
 
     /**
@@ -64,27 +463,58 @@ public class BankServer implements Runnable{
         int clientPort;
         on = true;
 
+        try{
+            restoreLedger();
+        } catch (IOException e) {
+            log.error("Unable to restore bank ledger. Terminating", e);
+            System.exit(-1);
+            Platform.exit();
+        }
+
+        if(!nonBlocking)
+            lanes.start(Runtime.getRuntime().availableProcessors() * 4);
+
+        if(statsPort > 0){
+            try {
+                new StatsServer(stats, statsPort).start();
+            } catch (IOException e) {
+                log.warn("Unable to serve statistics on port {}", statsPort);
+            }
+        }
+
         try{
             selector = Selector.open(); // Create selector
             hostname = InetAddress.getLocalHost().getHostAddress();
             // Create channels for each port and register with selector
-            for(int port : ports){
+            for(int port : new int[]{AHConnectionPort, agentConnectionPort}){
                 ServerSocketChannel channel = ServerSocketChannel.open();   // create new channel
                 channel.configureBlocking(false);                           // Prevent blocking
                 channel.socket().bind(new InetSocketAddress(hostname,port)); // Add port info
                 channel.register(selector, SelectionKey.OP_ACCEPT);         // Register with selector
             }
+
+            if(nonBlocking){
+                workers = new SelectorWorker[selectorThreads];
+                for(int i = 0; i < selectorThreads; i++){
+                    workers[i] = new SelectorWorker(journal);
+                    new Thread(workers[i], "selector-worker-" + i).start();
+                }
+            }
         } catch (IOException e) {
-            System.out.println("Error opening server sockets. Terminating");
+            log.error("Error opening server sockets. Terminating", e);
             System.exit(-1);
             Platform.exit();
         }
 
-        System.out.println("Bank Server Successfully Initialized");
-        System.out.println("Listening for open connections");
-        System.out.println("IP: " + hostname);
-        System.out.println("Agent Port: " + agentConnectionPort);
-        System.out.println("Auction House Port: " + AHConnectionPort);
+        linkShards(hostname);
+
+        log.info("Bank Server Successfully Initialized");
+        log.info("Listening for open connections on IP: {}", hostname);
+        log.info("Agent Port: {} Auction House Port: {}", agentConnectionPort, AHConnectionPort);
+        if(shards > 1)
+            log.info("Shard {} of {}", shard, shards);
+        if(nonBlocking)
+            log.info("Non-blocking mode with {} selector thread(s)", selectorThreads);
 
 
         try{
@@ -96,63 +526,138 @@ public class BankServer implements Runnable{
 
                 while(iterator.hasNext()){
                     SelectionKey key = (SelectionKey) iterator.next(); // get new key port
+                    iterator.remove();
 
                     if(key.isAcceptable()){
                         SocketChannel newChannel = ((ServerSocketChannel) key.channel()).accept(); // Accept the new socket connection
                         if(newChannel != null){
                             clientPort = newChannel.socket().getLocalPort();     // Get the clients port
-                            switch (clientPort){
-                                // An auction house has connected to the server
-                                case AHConnectionPort:
-                                    AHBankAccounts.put(connectionID.value(), new BankAccount(0l)); // Open new bank account
-
-                                    //Create new AH connection thread
-                                    AHClientHandler AHClient = new AHClientHandler(newChannel.socket(), this,connectionID.value());  // Create new AH Handler
-                                    AHConns.put(connectionID.value(), AHClient);    // Store the new connection
-                                    new Thread(AHClient).start();                   // Create and start connection thread
-
-                                    connectionID.increment(); // Increment connection number
-                                    break;
-
-                                // An agent has connected to the server
-                                case agentConnectionPort:
-                                    AgentClientHandler agentClient = new AgentClientHandler(newChannel.socket(), this, connectionID.value()); // Create new AgentClient from socket
-
-                                    agentConns.put(connectionID.value(), agentClient);  // Add to list of connections
-                                    new Thread(agentClient).start();                    // Start and create new client thread
-
-                                    connectionID.increment();
-                                    break;
+                            // An auction house has connected to the server, its account is opened at login
+                            if(clientPort == AHConnectionPort){
+                                //Create new AH connection thread
+                                AHClientHandler AHClient = new AHClientHandler(newChannel.socket(), this,connectionID.value());  // Create new AH Handler
+                                AHConns.put(connectionID.value(), AHClient);    // Store the new connection
+                                startClient(newChannel, AHClient, AHClient);    // Start servicing the connection
+
+                                connectionID.increment(); // Increment connection number
+                            }
+                            // An agent has connected to the server
+                            else if(clientPort == agentConnectionPort){
+                                AgentClientHandler agentClient = new AgentClientHandler(newChannel.socket(), this, connectionID.value()); // Create new AgentClient from socket
 
+                                agentConns.put(connectionID.value(), agentClient);  // Add to list of connections
+                                startClient(newChannel, agentClient, agentClient);  // Start servicing the connection
 
-                                default:    // Should be unreachable but in case
-                                    System.out.println("Unknown port connected");
+                                connectionID.increment();
                             }
+                            else    // Should be unreachable but in case
+                                log.warn("Unknown port connected");
                         }
                     }
 
                 }
             }
         } catch (IOException e) {
-            System.out.println("Error accepting new connection");
+            log.error("Error accepting new connection", e);
         }
     }
 
     /**
-     * Acquires connection info for auction houses currently connected to the bank.
+     * Starts servicing a newly accepted client. In non-blocking mode the channel is handed
+     * to a selector worker, otherwise a new thread is created for the client.
      *
-     * @return Vector of Json Objects containing port and IP information for each auction house.
+     * @param channel   Accepted client channel
+     * @param client    Client handler runnable
+     * @param protocol  Client handler request protocol
      */
-    protected synchronized Vector<JSONObject> getJsonAHConnectionsInfo(){
-        Iterator<Integer> itr = AHConns.keySet().stream().iterator();
-        Vector<JSONObject> info = new Vector<>(AHConns.size());
+    private void startClient(SocketChannel channel, Runnable client, ClientProtocol protocol) throws IOException {
+        if(!nonBlocking){
+            new Thread(client).start();     // Create and start connection thread
+            return;
+        }
+
+        channel.configureBlocking(false);
+        SelectorWorker worker = workers[nextWorker];
+        nextWorker = (nextWorker + 1) % workers.length;
+        worker.register(new ChannelSession(channel, protocol, worker));
+    }
 
-        while(itr.hasNext()){
-            AHClientHandler ahClient = AHConns.get(itr.next());
-            info.add(ahClient.getJSONServerInfo());
+    /**
+     * Runs a request moving funds, waiting for room in its lane, see {@link #dispatch(int, boolean, Runnable)}
+     *
+     * @param request request to run
+     */
+    public void dispatch(Runnable request){
+        dispatch(RequestLanes.FUNDS, false, request);
+    }
+
+    /**
+     * Runs a request on the request lanes in blocking mode, so it can complete out of order
+     * and funds are moved ahead of agent reads. Selector workers run it straight away,
+     * since they already bound the number of threads and sync the journal once per pass.
+     *
+     * @param lane      {@link RequestLanes#FUNDS} or {@link RequestLanes#READS}
+     * @param mayRefuse true if the client accepts a busy answer, otherwise waits for room in the lane
+     * @param request   request to run
+     * @return false if the lane was full and the request was refused
+     */
+    public boolean dispatch(int lane, boolean mayRefuse, Runnable request){
+        if(nonBlocking){
+            request.run();
+            return true;
+        }
+        if(mayRefuse)
+            return lanes.offer(lane, request);
+        try {
+            lanes.put(lane, request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.run();
+        }
+        return true;
+    }
+
+    /**
+     * Runs a request on the request lanes and waits for it to finish, for clients whose
+     * requests must complete in the order they are sent, see {@link #dispatch(int, boolean, Runnable)}
+     *
+     * @return false if the lane was full and the request was refused
+     */
+    public boolean runInLane(int lane, boolean mayRefuse, Runnable request){
+        if(nonBlocking){
+            request.run();
+            return true;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        boolean queued = dispatch(lane, mayRefuse, () -> {
+            try {
+                request.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        if(!queued)
+            return false;
+
+        boolean interrupted = false;
+        while(true){
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
         }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        return true;
+    }
 
-        return info;
+    /**
+     * @return Directory of auction houses agents can connect to
+     */
+    public AHDirectory getAHDirectory(){
+        return directory;
     }
 
     /**
@@ -161,36 +666,86 @@ public class BankServer implements Runnable{
      * @param name agents name
      * @param id agent id
      */
-    public synchronized void createAgentBankAccount(long balance, String name, int id){
-        System.out.println("Creating New Bank Account with ID: " + id);
-        agentBankAccounts.put(id, new AgentBankAccount(balance, name, id));
+    public void createAgentBankAccount(long balance, String name, int id){
+        log.info("Creating New Bank Account with ID: {}", id);
+        ledger.openAgentAccount(balance, name, id);
+    }
+
+    /**
+     * Opens the bank account of a newly logged in auction house
+     *
+     * @param ID auction house ID
+     */
+    public void openAHAccount(int ID){
+        ledger.openAHAccount(ID);
+    }
+
+    /**
+     * Replaces the ID a connection was accepted with by the ID its auction house was given
+     * by the shard holding its account
+     *
+     * @param acceptedID    ID the connection was accepted with
+     * @param homeID        auction house's ID
+     * @param client        auction house connection
+     */
+    public void adoptAHClient(int acceptedID, int homeID, AHClientHandler client){
+        AHConns.remove(acceptedID, client);
+        AHConns.put(homeID, client);
     }
 
     /**
-     * Removes Auction House client from list of connected clients
+     * Replaces the ID a connection was accepted with by the ID of the account
+     * an agent reconnected to
      *
-     * @param ID ID of client to remove
+     * @param acceptedID    ID the connection was accepted with
+     * @param existingID    agent's ID
+     * @param client        agent connection
      */
-    public synchronized void removeAHClient(int ID){
-        AHConns.remove(ID);
+    public void adoptAgentClient(int acceptedID, int existingID, AgentClientHandler client){
+        agentConns.remove(acceptedID, client);
+        agentConns.put(existingID, client);
     }
 
     /**
-     * Removes Agent client from list of connected clients
+     * Removes Auction House client from list of connected clients, unless a newer
+     * connection has since taken over its ID
      *
-     * @param ID ID of agent client to remove
+     * @param ID        ID of client to remove
+     * @param client    connection being removed
      */
-    public synchronized void removeAgentClient(int ID){
-        agentConns.remove(ID);
+    public void removeAHClient(int ID, AHClientHandler client){
+        if(AHConns.remove(ID, client))
+            directory.leave(ID);
     }
 
     /**
-     * Returns an agents bank account information in JSON format
+     * Removes Agent client from list of connected clients, unless a newer
+     * connection has since taken over its ID
+     *
+     * @param ID        ID of agent client to remove
+     * @param client    connection being removed
+     */
+    public void removeAgentClient(int ID, AgentClientHandler client){
+        if(agentConns.remove(ID, client))
+            directory.unsubscribe(client);
+    }
+
+    /**
+     * Returns an agents bank account information in JSON format.
+     * The balance and blocked funds are one snapshot of the account, read without locking.
      * @param ID bank account ID
-     * @return  JSON with account info
+     * @return  JSON with account info, null if there is no such account
      */
-    public synchronized JSONObject getJSONAgentBankInfo(int ID){
-        return agentBankAccounts.get(ID).getJSONInfo();
+    public JSONObject getJSONAgentBankInfo(int ID){
+        return ledger.getJSONAgentInfo(ID);
+    }
+
+    /**
+     * @param ID bank account ID
+     * @return Agent's current balance and blocked funds
+     */
+    Funds getAgentFunds(int ID){
+        return ledger.getAgentFunds(ID);
     }
 
     /**
@@ -200,23 +755,40 @@ public class BankServer implements Runnable{
      * @param amount    Amount to transfer
      * @return          1 if transfer successful, -1 otherwise
      */
-    public synchronized int transferFunds(int agentID, int AHID, long amount){
-        System.out.println("Funds being transferred");
-        // Removing funds from agent account was unsuccessful
-        if(agentBankAccounts.get(agentID).transferBlockedFunds(amount) < 0)
-            return -1;
+    public int transferFunds(int agentID, int AHID, long amount){
+        log.debug("Funds being transferred");
+        if(ledger.getTransfers().isRemote(AHID))
+            return ledger.transferOut(agentID, AHID, amount);  // Completed by the auction house's shard
+        return ledger.transferFunds(agentID, AHID, amount);
+    }
 
-        depositToAH(AHID, amount);
-        return 1;
+    /**
+     * Credits one of this shard's auction houses with a transfer from another shard
+     *
+     * @param transferID    transfer ID
+     * @param AHID          Auction House ID
+     * @param amount        Amount to credit
+     * @return Journal sequence number to wait for before acknowledging, -1 if the auction house does not exist
+     */
+    public long receiveTransfer(long transferID, int AHID, long amount){
+        return ledger.transferIn(transferID, AHID, amount);
     }
 
-    public synchronized int depositToAH(int AHID, long amount){
-        System.out.println("Depositing to Auction House");
-        BankAccount account = AHBankAccounts.get(AHID);
-        account.deposit(amount);
+    /**
+     * Waits for a journal record to be durable, see {@link Ledger#awaitDurable(long)}
+     *
+     * @param sequence journal record sequence number
+     */
+    public void awaitDurable(long sequence){
+        ledger.awaitDurable(sequence);
+    }
+
+    public int depositToAH(int AHID, long amount){
+        log.debug("Depositing to Auction House");
+        long balance = ledger.depositToAH(AHID, amount);
         return 1;
-        //AHConns.get(AHID).sendDepositNotif(amount, account.getBalance());
-        //return AHConns.get(AHID).sendDepositNotif(amount, account.getBalance());
+        //AHConns.get(AHID).sendDepositNotif(amount, balance);
+        //return AHConns.get(AHID).sendDepositNotif(amount, balance);
     }
 
     /**
@@ -225,8 +797,8 @@ public class BankServer implements Runnable{
      * @param amount    Amount to block
      * @return (1) successful (-1) not enough funds
      */
-    public synchronized int blockFunds(int accountID, long amount){
-        return agentBankAccounts.get(accountID).blockFunds(amount);
+    public int blockFunds(int accountID, long amount){
+        return ledger.blockFunds(accountID, amount);
     }
 
     /**
@@ -235,7 +807,153 @@ public class BankServer implements Runnable{
      * @param amount    Amount to unblock
      * @return (1) successful (-1) not enough funds
      */
-    public synchronized int unblockFunds(int accountID, long amount){
-        return agentBankAccounts.get(accountID).unblockFunds(amount);
+    public int unblockFunds(int accountID, long amount){
+        return ledger.unblockFunds(accountID, amount);
+    }
+
+    /**
+     * Attempts a batch of block ('b'), unblock ('u') and adjust ('a') operations on agent accounts.
+     * An adjust blocks funds for a new high bid and releases the funds of the bid it replaces.
+     * @param AHID              Auction House making the requests
+     * @param leaseMillis       Lease of blocked funds, 0 if they stay blocked until unblocked
+     * @param operations        operation for each entry
+     * @param accountIDs        Agent's Bank Account ID for each entry
+     * @param amounts           Amount for each entry
+     * @param releaseIDs        Agent whose funds each adjust releases
+     * @param releaseAmounts    Amount each adjust releases
+     * @return result code of each entry, see {@link #blockFunds(int, long)} and {@link #unblockFunds(int, long)}
+     */
+    public int[] applyFundsBatch(int AHID, int leaseMillis, char[] operations, int[] accountIDs, long[] amounts,
+                                 int[] releaseIDs, long[] releaseAmounts){
+        return ledger.applyBatch(AHID, leaseMillis, operations, accountIDs, amounts, releaseIDs, releaseAmounts);
+    }
+
+    /**
+     * Restarts the leases of an auction house's holds on agents
+     *
+     * @param AHID      Auction House ID
+     * @param agentIDs  agents whose holds are renewed
+     * @return Number of agents at the start of the array with no hold left, moved there in place
+     */
+    public int renewHolds(int AHID, int[] agentIDs){
+        int missing = 0;
+        for(int i = 0; i < agentIDs.length; i++){
+            if(!ledger.getHolds().renew(AHID, agentIDs[i])){
+                int agentID = agentIDs[i];
+                agentIDs[i] = agentIDs[missing];
+                agentIDs[missing++] = agentID;
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Runs a request sent with an idempotency key unless a request with the same key has
+     * already run, in which case its result is returned instead. A retry arriving while the
+     * first attempt is still running is answered straight away with {@link WireProtocol#RESULT_RETRY},
+     * so it never holds a lane worker the first attempt may be queued behind. A request with a new key
+     * is not run while the cache has no room to remember it, and is answered the same way.
+     *
+     * @param connectionType    {@link BankStats#AUCTION_HOUSE} or {@link BankStats#AGENT}
+     * @param clientID          ID of the client sending the request
+     * @param key               key chosen by the client
+     * @param request           request to run, returning its result code
+     * @return Result code of the first request with the key, {@link WireProtocol#RESULT_RETRY} if it is still running
+     *         or the key cannot be remembered
+     */
+    public int runOnce(int connectionType, int clientID, long key, IntSupplier request){
+        long fingerprint = IdempotencyCache.fingerprint(connectionType, clientID, key);
+        int result = dedupe.claim(fingerprint);
+        if(result == IdempotencyCache.ABSENT){
+            result = -1;
+            try {
+                result = request.getAsInt();
+            } finally {
+                dedupe.complete(fingerprint, result);
+            }
+            return result;
+        }
+        return settled(result);
+    }
+
+    /**
+     * Attempts a batch of block, unblock and adjust operations sent with an idempotency key each.
+     * Entries whose key has been seen before are not applied again and get the earlier result.
+     *
+     * @param AHID              ID of the auction house sending the batch
+     * @param leaseMillis       Lease of blocked funds, 0 if they stay blocked until unblocked
+     * @param keys              key of each entry
+     * @param operations        operation for each entry
+     * @param accountIDs        Agent's Bank Account ID for each entry
+     * @param amounts           Amount for each entry
+     * @param releaseIDs        Agent whose funds each adjust releases
+     * @param releaseAmounts    Amount each adjust releases
+     * @return result code of each entry, see {@link #applyFundsBatch(int, int, char[], int[], long[], int[], long[])},
+     *         or {@link WireProtocol#RESULT_RETRY} for an entry whose first attempt is still running or whose key cannot be remembered
+     */
+    public int[] applyKeyedBatch(int AHID, int leaseMillis, long[] keys, char[] operations, int[] accountIDs, long[] amounts,
+                                 int[] releaseIDs, long[] releaseAmounts){
+        int count = keys.length;
+        int[] results = new int[count];
+        long[] fingerprints = new long[count];
+        int[] fresh = new int[count];
+        int freshCount = 0;
+        for(int i = 0; i < count; i++){
+            fingerprints[i] = IdempotencyCache.fingerprint(BankStats.AUCTION_HOUSE, AHID, keys[i]);
+            results[i] = dedupe.claim(fingerprints[i]);
+            if(results[i] == IdempotencyCache.ABSENT)
+                fresh[freshCount++] = i;
+        }
+
+        // Apply only the entries not seen before, in one ledger batch
+        if(freshCount > 0){
+            char[] freshOperations = new char[freshCount];
+            int[] freshAccounts = new int[freshCount];
+            long[] freshAmounts = new long[freshCount];
+            int[] freshReleaseIDs = new int[freshCount];
+            long[] freshReleaseAmounts = new long[freshCount];
+            for(int i = 0; i < freshCount; i++){
+                freshOperations[i] = operations[fresh[i]];
+                freshAccounts[i] = accountIDs[fresh[i]];
+                freshAmounts[i] = amounts[fresh[i]];
+                freshReleaseIDs[i] = releaseIDs[fresh[i]];
+                freshReleaseAmounts[i] = releaseAmounts[fresh[i]];
+            }
+            int[] applied = null;
+            try {
+                applied = ledger.applyBatch(AHID, leaseMillis, freshOperations, freshAccounts, freshAmounts,
+                        freshReleaseIDs, freshReleaseAmounts);
+            } finally {
+                for(int i = 0; i < freshCount; i++){
+                    results[fresh[i]] = applied == null ? -1 : applied[i];
+                    dedupe.complete(fingerprints[fresh[i]], results[fresh[i]]);
+                }
+            }
+        }
+
+        // Entries repeated within this batch are settled now, retries of entries still running elsewhere
+        // and entries the cache had no room for are not
+        for(int i = 0; i < count; i++){
+            if(results[i] == IdempotencyCache.PENDING)
+                results[i] = settled(dedupe.lookup(fingerprints[i]));
+            else if(results[i] == IdempotencyCache.FULL)
+                results[i] = settled(IdempotencyCache.FULL);
+        }
+        return results;
+    }
+
+    /**
+     * @param result result of a key not claimed by the caller, as returned by {@link IdempotencyCache#claim(long)}
+     * @return Result to answer a retry with, {@link WireProtocol#RESULT_RETRY} while the first attempt is still running
+     *         or the cache has no room for the key
+     */
+    private static int settled(int result){
+        if(result == IdempotencyCache.PENDING || result == IdempotencyCache.ABSENT){
+            log.debug("Retried request still running, asking the client to send it again");
+            return WireProtocol.RESULT_RETRY;
+        }
+        if(result == IdempotencyCache.FULL)
+            return WireProtocol.RESULT_RETRY;
+        return result;
     }
 }
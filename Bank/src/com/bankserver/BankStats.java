@@ -0,0 +1,116 @@
+package com.bankserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms kept by the bank, reported together as a text table.
+ *
+ * Requests are timed per connection type and opcode, from the request being read until its
+ * handler returns. Ledger operations are timed separately, without the time spent waiting
+ * for their journal record to sync. Waits are kept apart from service times: waiting for
+ * lock stripes, for a connection's output lock, for a pool thread to run a dispatched
+ * request and for the journal to sync.
+ */
+public class BankStats {
+    /** Connection types requests are timed by */
+    public static final int AUCTION_HOUSE = 0;
+    public static final int AGENT = 1;
+    private static final String[] CONNECTION_NAMES = {"ah", "agent"};
+
+    /** Every histogram created */
+    private final ArrayList<LatencyHistogram> histograms;
+    /** Request histograms by connection type and opcode, created on first use */
+    private final AtomicReferenceArray<LatencyHistogram>[] requests;
+    private final long startTime;
+    /** Counts at the previous report, for throughput since then, guarded by this */
+    private final HashMap<String, Long> reportedCounts;
+    private long reportedTime;
+
+    public BankStats(){
+        histograms = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        AtomicReferenceArray<LatencyHistogram>[] requests =
+                (AtomicReferenceArray<LatencyHistogram>[]) new AtomicReferenceArray<?>[CONNECTION_NAMES.length];
+        this.requests = requests;
+        for(int i = 0; i < requests.length; i++){
+            requests[i] = new AtomicReferenceArray<>(128);
+        }
+        startTime = System.nanoTime();
+        reportedCounts = new HashMap<>();
+        reportedTime = startTime;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     * Callers should look it up once and keep it rather than on every use.
+     *
+     * @param name name reported for the histogram
+     * @return Histogram with the name
+     */
+    public synchronized LatencyHistogram histogram(String name){
+        for(LatencyHistogram histogram : histograms){
+            if(histogram.getName().equals(name))
+                return histogram;
+        }
+        LatencyHistogram histogram = new LatencyHistogram(name);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * @param connectionType {@link #AUCTION_HOUSE} or {@link #AGENT}
+     * @param opcode         request opcode
+     * @return Histogram of handling times for the request
+     */
+    public LatencyHistogram request(int connectionType, char opcode){
+        int slot = opcode & 0x7F;   // Opcodes are ASCII, anything else shares a slot
+        LatencyHistogram histogram = requests[connectionType].get(slot);
+        if(histogram == null){
+            histogram = histogram("request " + CONNECTION_NAMES[connectionType] + " '" + (slot == opcode ? opcode : '?') + "'");
+            requests[connectionType].compareAndSet(slot, null, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Writes a table of every histogram: its count, throughput since the previous report
+     * and over the bank's lifetime, and its mean, percentiles and maximum in microseconds.
+     *
+     * @return Report text
+     */
+    public synchronized String report(){
+        long now = System.nanoTime();
+        double sinceReport = Math.max(1, now - reportedTime) / 1e9;
+        double sinceStart = Math.max(1, now - startTime) / 1e9;
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("uptime %.1fs, rates over the last %.1fs%n", sinceStart, sinceReport));
+        report.append(String.format("%-26s %10s %10s %10s %10s %10s %10s %10s %10s%n",
+                "name", "count", "rate/s", "avg rate/s", "mean us", "p50 us", "p99 us", "p999 us", "max us"));
+
+        ArrayList<LatencyHistogram> sorted = new ArrayList<>(histograms);
+        sorted.sort(Comparator.comparing(LatencyHistogram::getName));
+        for(LatencyHistogram histogram : sorted){
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            long previous = reportedCounts.getOrDefault(snapshot.getName(), 0L);
+            reportedCounts.put(snapshot.getName(), snapshot.getCount());
+
+            report.append(String.format("%-26s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    snapshot.getName(),
+                    snapshot.getCount(),
+                    (snapshot.getCount() - previous) / sinceReport,
+                    snapshot.getCount() / sinceStart,
+                    snapshot.getMean() / 1000,
+                    snapshot.getPercentile(50) / 1000.0,
+                    snapshot.getPercentile(99) / 1000.0,
+                    snapshot.getPercentile(99.9) / 1000.0,
+                    snapshot.getMax() / 1000.0));
+        }
+
+        reportedTime = now;
+        return report.toString();
+    }
+}
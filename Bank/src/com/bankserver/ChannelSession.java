@@ -0,0 +1,213 @@
+package com.bankserver;
+
+import com.auctionprotocol.FrameDecoder;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single non-blocking client connection owned by a selector worker.
+ * Buffers incoming bytes until a complete request has arrived, hands it to
+ * the connection's protocol handler and queues the handler's output until
+ * the channel is writable.
+ */
+public class ChannelSession {
+    private static final Logger log = Log.get("bank.nio");
+
+    /** Initial size of the read buffer, grown on demand for large requests */
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    /** Largest request possible: a full binary frame */
+    private static final int MAX_BUFFER_SIZE = 4 + FrameDecoder.MAX_FRAME_SIZE;
+
+    private final SocketChannel channel;
+    private final ClientProtocol protocol;
+    private final SelectorWorker worker;
+    /** Output waiting for the channel to become writable */
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue;
+    private ByteBuffer readBuffer;
+    private SelectionKey key;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new session for an accepted channel.
+     *
+     * @param channel   Accepted client channel, already non-blocking
+     * @param protocol  Handler for the connection's requests
+     * @param worker    Selector worker that will service the channel
+     */
+    public ChannelSession(SocketChannel channel, ClientProtocol protocol, SelectorWorker worker){
+        this.channel = channel;
+        this.protocol = protocol;
+        this.worker = worker;
+        writeQueue = new ConcurrentLinkedQueue<>();
+        readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        closed = false;
+        protocol.open(new ChannelOutputStream());
+    }
+
+    /**
+     * Registers the channel for reads. Must be called on the worker thread.
+     *
+     * @param selector Worker's selector
+     */
+    void register(Selector selector) throws ClosedChannelException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * @return Request lane of the connection, see {@link ClientProtocol#lane()}
+     */
+    int lane(){
+        return protocol.lane();
+    }
+
+    /**
+     * Reads whatever is available and handles every complete request received.
+     */
+    void onReadable(){
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+
+        if(read < 0){
+            close();
+            protocol.disconnected();
+            return;
+        }
+
+        readBuffer.flip();
+        try {
+            while(!closed){
+                int length = protocol.frameLength(readBuffer);
+                if(length < 0)
+                    break;
+
+                // Decode directly out of the read buffer's backing array
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                        readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), length));
+                readBuffer.position(readBuffer.position() + length);
+
+                if(!protocol.handleRequest(in)){
+                    close();
+                }
+            }
+        } catch (ParseException e) {
+            log.warn("Unable to parse client request", e);
+        } catch (IOException e) {
+            close();
+            protocol.disconnected();
+            return;
+        } catch (RuntimeException e) {
+            // Drop only this client, the worker keeps serving every other session
+            log.warn("Malformed client request, closing connection", e);
+            close();
+            protocol.disconnected();
+            return;
+        }
+
+        readBuffer.compact();
+        // A partial request filled the buffer, make room for the rest
+        if(!readBuffer.hasRemaining() && readBuffer.capacity() < MAX_BUFFER_SIZE){
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_BUFFER_SIZE));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        // Responses are written by the worker once the journal has synced them
+    }
+
+    /**
+     * Writes queued output until it is exhausted or the socket buffer is full.
+     * Must be called on the worker thread.
+     */
+    void writePending(){
+        if(closed || key == null)
+            return;
+
+        try {
+            ByteBuffer head;
+            while((head = writeQueue.peek()) != null){
+                channel.write(head);
+                if(head.hasRemaining())
+                    break;      // Socket buffer full, wait to become writable
+                writeQueue.poll();
+            }
+        } catch (IOException e) {
+            close();
+            protocol.disconnected();
+            return;
+        }
+
+        if(key.isValid())
+            key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Closes the channel and releases its selection key.
+     */
+    void close(){
+        closed = true;
+        if(key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Unable to close client channel");
+        }
+    }
+
+    /**
+     * Stream handed to the protocol handler. Bytes written are collected
+     * until flush, then queued as one buffer for the worker thread to send.
+     */
+    private class ChannelOutputStream extends OutputStream {
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            pending.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if(closed)
+                throw new IOException("Channel closed");
+            if(pending.size() == 0)
+                return;
+            writeQueue.add(ByteBuffer.wrap(pending.toByteArray()));
+            pending.reset();
+            worker.requestWrite(ChannelSession.this);
+        }
+
+        /**
+         * Drops the connection as if the client had, from any thread
+         */
+        @Override
+        public void close() {
+            if(closed)
+                return;
+            ChannelSession.this.close();
+            protocol.disconnected();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Periodically writes a binary image of every account to a snapshot file,
+ * so a restarting bank only replays the journal written since the last snapshot.
+ *
+ * Traffic is never stopped. Account state is immutable and versioned, so each account is
+ * captured with a single read while changes continue. The snapshot stores the journal
+ * offset reached before it started, and replay skips any change after that offset whose
+ * version the snapshot already contains.
+ *
+ * Image layout: [magic int][format int][journal offset long][highest ID int]
+ *               [agent count int][auction house count int]
+ *               agents: [ID int][balance long][blocked long][version long][name length short][name]
+ *               auction houses: [ID int][balance long][version long]
+ *               [last transfer sequence long][pending transfer count int]
+ *               pending transfers: [ID long][agent ID int][auction house ID int][amount long]
+ *               [shard count int] last applied transfer from each shard: [sequence long]
+ *               [hold count int] holds: [auction house ID int][agent ID int][amount long][lease int][version long]
+ * Format 1 snapshots end after the auction houses, format 2 snapshots after the transfers.
+ *
+ * Images are streamed through a buffer in both directions rather than mapped, since a ledger of
+ * tens of millions of accounts does not fit in a single mapping. Agent accounts are written as
+ * they are visited and the header is filled in once they are counted.
+ */
+public class Checkpointer implements Runnable {
+    private static final Logger log = Log.get("bank.snapshot");
+
+    private static final int MAGIC = 0x42414E4B; // "BANK"
+    private static final int FORMAT = 3;
+    private static final int UNHELD_FORMAT = 2;
+    private static final int UNSHARDED_FORMAT = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Ledger ledger;
+    /** Journal the snapshots are taken against, null if disabled */
+    private final Journal journal;
+    private final Path path;
+    private final long intervalMillis;
+    /** Journal offset stored in the restored snapshot */
+    private long restoredOffset;
+    /** Highest account ID stored in the restored snapshot */
+    private int restoredHighestID;
+
+    /**
+     * Creates a new checkpointer
+     *
+     * @param ledger            ledger to take snapshots of
+     * @param journal           bank journal, null if disabled
+     * @param path              snapshot file location
+     * @param intervalMillis    time between snapshots
+     */
+    public Checkpointer(Ledger ledger, Journal journal, Path path, long intervalMillis){
+        this.ledger = ledger;
+        this.journal = journal;
+        this.path = path;
+        this.intervalMillis = intervalMillis;
+        restoredOffset = 0;
+        restoredHighestID = 0;
+    }
+
+    /**
+     * Loads the latest snapshot, if one exists, into an empty ledger.
+     *
+     * @return true if a snapshot was restored
+     */
+    public boolean restore() throws IOException {
+        if(!Files.exists(path))
+            return false;
+
+        try(DataInputStream image = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))){
+            int format = Files.size(path) < HEADER_SIZE || image.readInt() != MAGIC ? 0 : image.readInt();
+            if(format != FORMAT && format != UNHELD_FORMAT && format != UNSHARDED_FORMAT){
+                log.warn("Snapshot file is not a bank snapshot. Ignoring it");
+                return false;
+            }
+            restoredOffset = image.readLong();
+            restoredHighestID = image.readInt();
+            int agents = image.readInt();
+            int houses = image.readInt();
+
+            for(int i = 0; i < agents; i++){
+                int ID = image.readInt();
+                Funds funds = new Funds(image.readLong(), image.readLong(), image.readLong());
+                byte[] name = new byte[image.readShort() & 0xFFFF];
+                image.readFully(name);
+                ledger.restoreAgentAccount(ID, new String(name, StandardCharsets.UTF_8), funds);
+            }
+            for(int i = 0; i < houses; i++){
+                int ID = image.readInt();
+                long balance = image.readLong();
+                ledger.restoreAHAccount(ID, new Funds(balance, 0, image.readLong()));
+            }
+
+            if(format >= UNHELD_FORMAT){
+                ShardTransfers transfers = ledger.getTransfers();
+                transfers.restoreLastSequence(image.readLong());
+                int pending = image.readInt();
+                for(int i = 0; i < pending; i++){
+                    transfers.restorePending(image.readLong(), image.readInt(), image.readInt(), image.readLong());
+                }
+                int shards = image.readInt();
+                for(int i = 0; i < shards; i++){
+                    transfers.restoreLastApplied(i, image.readLong());
+                }
+            }
+
+            if(format == FORMAT){
+                int holds = image.readInt();
+                for(int i = 0; i < holds; i++){
+                    int AHID = image.readInt();
+                    int agentID = image.readInt();
+                    long amount = image.readLong();
+                    int lease = image.readInt();
+                    if(ledger.getHolds() != null)
+                        ledger.getHolds().restore(AHID, agentID, amount, lease, image.readLong());
+                    else
+                        image.readLong();
+                }
+            }
+
+            log.info("Restored snapshot of {} agent and {} auction house accounts", agents, houses);
+        }
+        return true;
+    }
+
+    /**
+     * Writes a snapshot of the ledger to a temporary file and then
+     * atomically replaces the previous snapshot with it.
+     */
+    public void checkpoint() throws IOException {
+        // Every change appended before this offset is already applied to the ledger
+        long offset = journal == null ? 0 : journal.appendedOffset();
+        int[] houseIDs = ledger.getAHAccounts().keys();
+        ShardTransfers transfers = ledger.getTransfers();
+        long lastSequence = transfers.getLastSequence();
+        ArrayList<ShardTransfers.Transfer> pending = transfers.pendingTransfers();
+        long[] lastApplied = transfers.getLastApplied();
+        ArrayList<long[]> holds = ledger.getHolds() == null ? new ArrayList<>() : ledger.getHolds().snapshot();
+        int[] counts = new int[2];  // Agents written and highest ID
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            DataOutputStream image = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            image.write(new byte[HEADER_SIZE]);     // Filled in once the agents are counted
+
+            ledger.getAgentAccounts().forEach(account -> {
+                Funds funds = account.getFunds(); // Single read for a consistent state
+                byte[] name = account.getName().getBytes(StandardCharsets.UTF_8);
+                image.writeInt(account.getID());
+                image.writeLong(funds.balance);
+                image.writeLong(funds.blocked);
+                image.writeLong(funds.version);
+                image.writeShort(name.length);
+                image.write(name);
+                counts[0]++;
+                counts[1] = Math.max(counts[1], account.getID());
+            });
+            for(int ID : houseIDs){
+                Funds funds = ledger.getAHAccounts().get(ID).getFunds();
+                image.writeInt(ID);
+                image.writeLong(funds.balance);
+                image.writeLong(funds.version);
+                counts[1] = Math.max(counts[1], ID);
+            }
+
+            image.writeLong(lastSequence);
+            image.writeInt(pending.size());
+            for(ShardTransfers.Transfer transfer : pending){
+                image.writeLong(transfer.ID);
+                image.writeInt(transfer.agentID);
+                image.writeInt(transfer.AHID);
+                image.writeLong(transfer.amount);
+            }
+            image.writeInt(lastApplied.length);
+            for(long sequence : lastApplied){
+                image.writeLong(sequence);
+            }
+            image.writeInt(holds.size());
+            for(long[] hold : holds){
+                image.writeInt((int) hold[0]);
+                image.writeInt((int) hold[1]);
+                image.writeLong(hold[2]);
+                image.writeInt((int) hold[3]);
+                image.writeLong(hold[4]);
+            }
+            image.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT).putLong(offset).putInt(counts[1]);
+            header.putInt(counts[0]).putInt(houseIDs.length).flip();
+            while(header.hasRemaining()){
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+
+        // Never publish a change that could still be lost from the journal
+        if(journal != null)
+            journal.awaitDurable(journal.lastAppended());
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Snapshot written: {} agent and {} auction house accounts", counts[0], houseIDs.length);
+    }
+
+    public long getRestoredOffset() {
+        return restoredOffset;
+    }
+
+    public int getRestoredHighestID() {
+        return restoredHighestID;
+    }
+
+    /**
+     * Takes a snapshot at every interval
+     */
+    @Override
+    public void run() {
+        while(true){
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                log.error("Unable to write snapshot", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.bankserver;
+
+import com.auctionprotocol.FrameDecoder;
+import com.auctionprotocol.FrameEncoder;
+import com.auctionprotocol.Heartbeats;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connection handling shared by auction house and agent clients.
+ *
+ * A client either opens with a protocol hello, agreeing on binary frames or JSON, or
+ * sends its JSON login straight away as clients did before the hello existed. After the
+ * login the client is sent its ID and every following message is passed to the subclass
+ * as a decoded frame or a legacy request. The time each request takes to handle is recorded
+ * by connection type and opcode.
+ *
+ * Clients agreeing heartbeats are answered heartbeat 'h' for each of theirs, and their
+ * connection is closed once nothing has been read from it for a while, see {@link Heartbeats}.
+ */
+public abstract class ClientHandler implements Runnable, ClientProtocol, Heartbeats.Peer {
+    private static final Logger log = Log.get("bank.client");
+
+    protected final Socket socket;
+    /** Client ID, may be replaced at login by an auction house that already has one */
+    protected int ID;
+    protected final BankServer bankServer;
+    /** Connection type requests are recorded under, see {@link BankStats} */
+    private final int connectionType;
+    protected final JSONParser parser;
+    /** Guards the output stream and encoder, responses may come from several threads */
+    protected final ReentrantLock writeLock;
+    protected final FrameEncoder encoder;
+    private final FrameDecoder decoder;
+    protected DataOutputStream out;
+    /** Stream the connection was opened with, closed to drop the connection from another thread */
+    private OutputStream sink;
+    /** Watch for a silent client, null unless heartbeats were agreed */
+    private Heartbeats.Watch watch;
+    /** Flag if the connection uses binary frames rather than JSON */
+    protected boolean binary;
+    /** Protocol features agreed in the hello, none for clients that predate it */
+    protected int features;
+    /** Flag if the protocol has been decided */
+    private boolean negotiated;
+    /** Flag if the client has logged in */
+    private boolean connected;
+
+    /**
+     * @param socket        client socket
+     * @param bankServer    bank server instance
+     * @param ID            client ID
+     * @param connectionType {@link BankStats#AUCTION_HOUSE} or {@link BankStats#AGENT}
+     */
+    protected ClientHandler(Socket socket, BankServer bankServer, int ID, int connectionType){
+        this.socket = socket;
+        this.bankServer = bankServer;
+        this.ID = ID;
+        this.connectionType = connectionType;
+        parser = new JSONParser();
+        writeLock = new TimedLock(bankServer.getStats().histogram("wait output lock"));
+        encoder = new FrameEncoder();
+        decoder = new FrameDecoder();
+        binary = false;
+        features = 0;
+        negotiated = false;
+        connected = false;
+    }
+
+    /**
+     * Services the connection on a dedicated thread until the client disconnects
+     */
+    @Override
+    public void run() {
+        DataInputStream in;
+
+        try {
+            open(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException e) {
+            log.warn("Unable to open client connection");
+            disconnected();
+            return;
+        }
+
+        while(true){
+            try {
+                if(!handleRequest(in))  // Thread suspends here until a request is read
+                    return;
+            } catch (ParseException e) {
+                log.warn("Unable to parse client request", e);
+            } catch (IOException e) {
+                try {
+                    socket.close();     // Closed by the client, or a login that was refused
+                } catch (IOException closeFailed) {
+                    log.warn("Unable to close client connection");
+                }
+                disconnected();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void open(OutputStream out) {
+        sink = out;
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    @Override
+    public boolean handleRequest(DataInputStream in) throws IOException, ParseException {
+        if(watch != null)
+            watch.heard();
+
+        if(!negotiated){
+            negotiated = true;
+            in.mark(4);
+            if(WireProtocol.isHello(in.readInt())){
+                features = WireProtocol.accept(in, out, bankServer.getSupportedFeatures());
+                binary = WireProtocol.isBinary(features);
+                if(binary && (features & WireProtocol.FEATURE_HEARTBEAT) != 0)
+                    watch = bankServer.getHeartbeats().watch(this, false);
+                return true;
+            }
+            in.reset();     // Client predates the hello, this is its JSON login
+        }
+
+        if(!connected){
+            if(binary){
+                login(decoder.readFrom(in), decoder);
+            }
+            else
+                login((JSONObject) parser.parse(in.readUTF()));
+            sendID();
+            connected = true;
+            return true;
+        }
+
+        char opcode;
+        boolean open;
+        if(binary){
+            opcode = decoder.readFrom(in);
+            if(opcode == 'h'){
+                sendHeartbeat();
+                return true;
+            }
+            long start = System.nanoTime();
+            open = handleFrame(opcode, decoder);
+            bankServer.getStats().request(connectionType, opcode).recordSince(start);
+        }
+        else{
+            // Peek at the opcode, the handler reads it again
+            in.mark(2);
+            opcode = in.readChar();
+            in.reset();
+            long start = System.nanoTime();
+            open = handleLegacyRequest(in);
+            bankServer.getStats().request(connectionType, opcode).recordSince(start);
+        }
+        return open;
+    }
+
+    @Override
+    public int frameLength(ByteBuffer buffer) {
+        if(!negotiated){
+            if(buffer.remaining() < 4)
+                return -1;
+            if(WireProtocol.isHello(buffer.getInt(buffer.position())))
+                return buffer.remaining() < WireProtocol.HELLO_SIZE ? -1 : WireProtocol.HELLO_SIZE;
+            return ClientProtocol.utfLength(buffer, buffer.position());
+        }
+        if(binary)
+            return FrameDecoder.frameLength(buffer);
+        if(!connected)
+            return ClientProtocol.utfLength(buffer, buffer.position());
+        return legacyFrameLength(buffer);
+    }
+
+    public int getID() {
+        return ID;
+    }
+
+    @Override
+    public int lane() {
+        return connectionType == BankStats.AUCTION_HOUSE ? RequestLanes.FUNDS : RequestLanes.READS;
+    }
+
+    /**
+     * @return true if the client accepts a busy answer to a request the bank has no room to queue
+     */
+    protected boolean acceptsBusy(){
+        return binary && (features & WireProtocol.FEATURE_BUSY) != 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    /**
+     * Answers a client's heartbeat
+     */
+    @Override
+    public void sendHeartbeat() throws IOException {
+        writeLock.lock();
+        try {
+            encoder.begin('h').end();
+            encoder.writeTo(out);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the connection of a silent client. The client is disconnected as if its
+     * connection had failed.
+     */
+    @Override
+    public void close() {
+        try {
+            sink.close();
+        } catch (IOException e) {
+            log.warn("Unable to close silent client connection");
+        }
+    }
+
+    /**
+     * Sends the client its ID once it has logged in, and over binary frames the token
+     * it logs in to the same account with again
+     */
+    private void sendID() throws IOException {
+        writeLock.lock();
+        try {
+            if(binary){
+                encoder.begin('i').putInt(ID).putLong(bankServer.getCredentials().token(connectionType, ID)).end();
+                encoder.writeTo(out);
+            }
+            else
+                out.writeInt(ID);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Handles a JSON login from a client using the original protocol
+     *
+     * @param info login info sent by the client
+     */
+    protected abstract void login(JSONObject info) throws IOException;
+
+    /**
+     * Handles a login frame from a client using binary frames
+     *
+     * @param opcode    frame opcode
+     * @param frame     login frame, positioned after the opcode
+     * @throws IOException if the frame is not a login
+     */
+    protected abstract void login(char opcode, FrameDecoder frame) throws IOException;
+
+    /**
+     * Handles a single binary frame
+     *
+     * @param opcode    frame opcode
+     * @param frame     frame positioned after the opcode
+     * @return false once the client has disconnected
+     */
+    protected abstract boolean handleFrame(char opcode, FrameDecoder frame) throws IOException;
+
+    /**
+     * Handles a single request of the original protocol
+     *
+     * @param in input stream positioned at a request opcode
+     * @return false once the client has disconnected
+     */
+    protected abstract boolean handleLegacyRequest(DataInputStream in) throws IOException, ParseException;
+
+    /**
+     * Length of the next complete request of the original protocol, see {@link #frameLength(ByteBuffer)}
+     */
+    protected abstract int legacyFrameLength(ByteBuffer buffer);
+}
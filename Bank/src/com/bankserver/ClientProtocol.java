@@ -0,0 +1,76 @@
+package com.bankserver;
+
+import org.json.simple.parser.ParseException;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Request side of a bank connection. Implemented by both client handlers so
+ * the same request logic can be driven by a dedicated blocking thread or by
+ * a shared selector thread in non-blocking mode.
+ */
+public interface ClientProtocol {
+
+    /**
+     * Attaches the stream responses and notifications are written to.
+     *
+     * @param out Output stream of the connection
+     */
+    void open(OutputStream out);
+
+    /**
+     * Reads and handles a single message, the handshake and login included.
+     *
+     * @param in Input stream positioned at the start of a message
+     * @return false once the client has disconnected
+     */
+    boolean handleRequest(DataInputStream in) throws IOException, ParseException;
+
+    /**
+     * Determines the length of the next complete message at the buffer's position
+     * without consuming it.
+     *
+     * @param buffer Buffer of received bytes, ready to be read
+     * @return Length of the request in bytes, -1 if it has not fully arrived yet
+     */
+    int frameLength(ByteBuffer buffer);
+
+    /**
+     * Called when the connection is dropped without a disconnect request.
+     */
+    void disconnected();
+
+    /**
+     * @return Request lane of the connection, see {@link RequestLanes}. Selector workers read
+     *         connections in lower lanes first in every pass.
+     */
+    int lane();
+
+    /**
+     * Length of a writeUTF encoded string at the given offset of a buffer.
+     *
+     * @param buffer Buffer of received bytes
+     * @param offset Absolute offset the string starts at
+     * @return Length including the 2 byte prefix, -1 if incomplete
+     */
+    static int utfLength(ByteBuffer buffer, int offset){
+        if(buffer.limit() - offset < 2)
+            return -1;
+        int length = 2 + (buffer.getShort(offset) & 0xFFFF);
+        return buffer.limit() - offset < length ? -1 : length;
+    }
+
+    /**
+     * Length of a request made of a 2 byte opcode followed by one writeUTF string.
+     *
+     * @param buffer Buffer of received bytes
+     * @return Length of the request, -1 if incomplete
+     */
+    static int opcodeWithUTFLength(ByteBuffer buffer){
+        int length = utfLength(buffer, buffer.position() + 2);
+        return length < 0 ? -1 : 2 + length;
+    }
+}
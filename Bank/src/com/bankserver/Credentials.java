@@ -0,0 +1,87 @@
+package com.bankserver;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Tokens proving a client owns the account it logs in to, and that a bank connecting
+ * as a shard is one.
+ *
+ * A token is an HMAC of the account's ID under a secret shared by every bank of a deployment,
+ * so a shard or standby accepts tokens issued by the others without keeping any of them.
+ * Clients are sent their token with their ID and present it to log in to that ID again.
+ * A bank without a configured secret makes up its own, so its tokens only last while it runs.
+ */
+public class Credentials {
+    /** Token of a shard rather than an account */
+    public static final int SHARD = -1;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    /** Shortest secret accepted */
+    private static final int MIN_SECRET_SIZE = 16;
+
+    private final SecretKeySpec key;
+
+    /**
+     * @param secret secret shared by every bank of the deployment
+     */
+    public Credentials(byte[] secret){
+        key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * Reads the shared secret from a file
+     *
+     * @param path file holding the secret
+     * @return Credentials using the secret
+     */
+    public static Credentials load(Path path) throws IOException {
+        byte[] secret = Files.readAllBytes(path);
+        if(secret.length < MIN_SECRET_SIZE)
+            throw new IOException("Secret in " + path + " is shorter than " + MIN_SECRET_SIZE + " bytes");
+        return new Credentials(secret);
+    }
+
+    /**
+     * @return Credentials using a random secret known only to this bank
+     */
+    public static Credentials generate(){
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return new Credentials(secret);
+    }
+
+    /**
+     * @param kind  {@link BankStats#AGENT}, {@link BankStats#AUCTION_HOUSE} or {@link #SHARD}
+     * @param ID    account ID, or shard index
+     * @return Token of the account or shard
+     */
+    public long token(int kind, int ID){
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);   // Not thread safe, and only used at login
+            mac.init(key);
+            return ByteBuffer.wrap(mac.doFinal(ByteBuffer.allocate(8).putInt(kind).putInt(ID).array())).getLong();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to compute token", e);
+        }
+    }
+
+    /**
+     * @param kind  {@link BankStats#AGENT}, {@link BankStats#AUCTION_HOUSE} or {@link #SHARD}
+     * @param ID    account ID, or shard index
+     * @param token token presented by the client
+     * @return true if the token is the account's or shard's
+     */
+    public boolean verify(int kind, int ID, long token){
+        byte[] expected = ByteBuffer.allocate(8).putLong(token(kind, ID)).array();
+        byte[] presented = ByteBuffer.allocate(8).putLong(token).array();
+        return MessageDigest.isEqual(expected, presented);
+    }
+}
@@ -0,0 +1,269 @@
+package com.bankserver;
+
+import com.auctionprotocol.TimingWheel;
+
+import java.util.ArrayList;
+
+/**
+ * Funds auction houses have blocked on agents' accounts with a lease, released automatically
+ * if the lease is not renewed in time, such as when an auction house crashes mid-auction.
+ *
+ * All funds one auction house has blocked on one agent form a single hold. Blocks add to it,
+ * and unblocks and transfers to the auction house take from it. Every hold is a timeout on one
+ * shared {@link TimingWheel}, so scheduling, renewing and cancelling a hold are O(1) whatever the
+ * number of holds. The wheel hands every hold expiring in a tick to {@link Ledger} at once, which
+ * releases them with a single journal sync.
+ *
+ * Holds are kept in a chained hash table split into segments. The ledger changes a hold and the
+ * agent's funds together while holding the hold's segment, see {@link #lockFor(int, int)}, so
+ * holds change in the order of the account versions they are recorded with. Each hold remembers
+ * the version of its last change, which is how journal replay tells whether a snapshot of the
+ * holds already contains a change.
+ */
+public class FundHolds implements TimingWheel.Handler {
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_BUCKETS = 16;
+
+    /** Funds one auction house holds on one agent's account */
+    static final class Hold extends TimingWheel.Timeout {
+        final int AHID;
+        final int agentID;
+        /** Amount held, guarded by the segment */
+        long amount;
+        /** Lease given on every block and renewal, guarded by the segment */
+        int leaseMillis;
+        /** Agent account version of the hold's last change, guarded by the segment */
+        long version;
+        /** Next hold in the same bucket, guarded by the segment */
+        Hold chain;
+
+        Hold(FundHolds holds, int AHID, int agentID){
+            super(holds);
+            this.AHID = AHID;
+            this.agentID = agentID;
+        }
+    }
+
+    /** A share of the holds, guarded by itself */
+    private static final class Segment {
+        Hold[] buckets = new Hold[INITIAL_BUCKETS];
+        int size;
+    }
+
+    private final Segment[] segments;
+    private final TimingWheel wheel;
+    /** Ledger expired holds are released by, set once the ledger starts serving */
+    private volatile Ledger ledger;
+
+    /**
+     * @param wheel wheel the leases run on
+     */
+    public FundHolds(TimingWheel wheel){
+        this.wheel = wheel;
+        segments = new Segment[SEGMENTS];
+        for(int i = 0; i < SEGMENTS; i++){
+            segments[i] = new Segment();
+        }
+        ledger = null;
+    }
+
+    /**
+     * Schedules every hold with a full lease and starts releasing holds that expire.
+     * Holds restored before this are not scheduled, so they cannot expire while a
+     * bank is still restoring or following a primary.
+     *
+     * @param ledger ledger expired holds are released by
+     */
+    void start(Ledger ledger){
+        for(Segment segment : segments){
+            synchronized (segment){
+                for(Hold bucket : segment.buckets){
+                    for(Hold hold = bucket; hold != null; hold = hold.chain){
+                        wheel.schedule(hold, hold.leaseMillis);
+                    }
+                }
+            }
+        }
+        this.ledger = ledger;
+    }
+
+    /**
+     * @return Lock to hold while reading or changing the hold of an auction house on an agent
+     */
+    Object lockFor(int AHID, int agentID){
+        return segments[index(AHID, agentID) >>> 26 & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Caller holds {@link #lockFor(int, int)}
+     *
+     * @return Hold of an auction house on an agent, null if none
+     */
+    Hold find(int AHID, int agentID){
+        int index = index(AHID, agentID);
+        Segment segment = segments[index >>> 26 & (SEGMENTS - 1)];
+        for(Hold hold = segment.buckets[index & (segment.buckets.length - 1)]; hold != null; hold = hold.chain){
+            if(hold.AHID == AHID && hold.agentID == agentID)
+                return hold;
+        }
+        return null;
+    }
+
+    /**
+     * Adds funds to a hold, creating it if needed, and restarts its lease.
+     * Caller holds {@link #lockFor(int, int)}.
+     *
+     * @param amount        amount blocked
+     * @param leaseMillis   time until the hold is released unless renewed
+     * @param version       agent account version after the block
+     */
+    void add(int AHID, int agentID, long amount, int leaseMillis, long version){
+        Hold hold = find(AHID, agentID);
+        if(hold == null){
+            hold = new Hold(this, AHID, agentID);
+            insert(hold);
+        }
+        hold.amount += amount;
+        hold.leaseMillis = leaseMillis;
+        hold.version = version;
+        if(ledger != null)
+            wheel.schedule(hold, leaseMillis);
+    }
+
+    /**
+     * Takes funds from a hold, removing it once empty. Caller holds {@link #lockFor(int, int)}.
+     *
+     * @param amount    amount unblocked or transferred
+     * @param version   agent account version after the change
+     * @return Amount taken, less than requested if the hold had less, 0 if there is no hold
+     */
+    long take(int AHID, int agentID, long amount, long version){
+        Hold hold = find(AHID, agentID);
+        if(hold == null)
+            return 0;
+        long taken = Math.min(amount, hold.amount);
+        hold.amount -= taken;
+        hold.version = version;
+        if(hold.amount == 0)
+            remove(hold);
+        return taken;
+    }
+
+    /**
+     * Removes a hold and cancels its lease. Caller holds {@link #lockFor(int, int)}.
+     */
+    void remove(Hold hold){
+        int index = index(hold.AHID, hold.agentID);
+        Segment segment = segments[index >>> 26 & (SEGMENTS - 1)];
+        int bucket = index & (segment.buckets.length - 1);
+        if(segment.buckets[bucket] == hold){
+            segment.buckets[bucket] = hold.chain;
+        }
+        else{
+            Hold previous = segment.buckets[bucket];
+            while(previous != null && previous.chain != hold){
+                previous = previous.chain;
+            }
+            if(previous == null)
+                return;     // Already removed
+            previous.chain = hold.chain;
+        }
+        hold.chain = null;
+        segment.size--;
+        wheel.cancel(hold);
+    }
+
+    /**
+     * Restarts the lease of an auction house's hold on an agent
+     *
+     * @return false if there is no such hold, because it was released or used up
+     */
+    boolean renew(int AHID, int agentID){
+        synchronized (lockFor(AHID, agentID)){
+            Hold hold = find(AHID, agentID);
+            if(hold == null)
+                return false;
+            if(ledger != null)
+                wheel.extend(hold, hold.leaseMillis);
+            return true;
+        }
+    }
+
+    /**
+     * @return true if a hold's lease is running
+     */
+    boolean isScheduled(Hold hold){
+        return wheel.isScheduled(hold);
+    }
+
+    /**
+     * @return Every hold, for a snapshot. Each is read under its segment's lock.
+     */
+    ArrayList<long[]> snapshot(){
+        ArrayList<long[]> holds = new ArrayList<>();
+        for(Segment segment : segments){
+            synchronized (segment){
+                for(Hold bucket : segment.buckets){
+                    for(Hold hold = bucket; hold != null; hold = hold.chain){
+                        holds.add(new long[]{hold.AHID, hold.agentID, hold.amount, hold.leaseMillis, hold.version});
+                    }
+                }
+            }
+        }
+        return holds;
+    }
+
+    /**
+     * Restores a hold from a snapshot
+     */
+    void restore(int AHID, int agentID, long amount, int leaseMillis, long version){
+        synchronized (lockFor(AHID, agentID)){
+            add(AHID, agentID, amount, leaseMillis, version);
+        }
+    }
+
+    /**
+     * Hands holds whose lease ran out to the ledger to release together
+     */
+    @Override
+    public void expired(ArrayList<TimingWheel.Timeout> expired) {
+        Ledger current = ledger;
+        if(current != null)
+            current.releaseExpired(expired);
+    }
+
+    private void insert(Hold hold){
+        int index = index(hold.AHID, hold.agentID);
+        Segment segment = segments[index >>> 26 & (SEGMENTS - 1)];
+        if(segment.size >= segment.buckets.length * 3 / 4)
+            grow(segment);
+        int bucket = index & (segment.buckets.length - 1);
+        hold.chain = segment.buckets[bucket];
+        segment.buckets[bucket] = hold;
+        segment.size++;
+    }
+
+    private void grow(Segment segment){
+        Hold[] buckets = new Hold[segment.buckets.length * 2];
+        for(Hold bucket : segment.buckets){
+            Hold hold = bucket;
+            while(hold != null){
+                Hold next = hold.chain;
+                int index = index(hold.AHID, hold.agentID) & (buckets.length - 1);
+                hold.chain = buckets[index];
+                buckets[index] = hold;
+                hold = next;
+            }
+        }
+        segment.buckets = buckets;
+    }
+
+    /**
+     * @return Hash of an auction house and agent pair. The top bits pick the segment, the low bits the bucket.
+     */
+    private static int index(int AHID, int agentID){
+        int h = (AHID * 0x9E3779B9) ^ agentID;
+        h *= 0x85EBCA6B;
+        return h ^ (h >>> 15);
+    }
+}
@@ -0,0 +1,27 @@
+package com.bankserver;
+
+/**
+ * Immutable state of a bank account. Every change produces a new instance with
+ * the version incremented, so a single read always gives a consistent balance,
+ * blocked amount and the version they belong to.
+ */
+final class Funds {
+    final long balance;
+    final long blocked;
+    final long version;
+
+    Funds(long balance, long blocked, long version){
+        this.balance = balance;
+        this.blocked = blocked;
+        this.version = version;
+    }
+
+    /**
+     * @param balanceChange amount added to the balance
+     * @param blockedChange amount added to the blocked funds
+     * @return new state with the changes applied
+     */
+    Funds update(long balanceChange, long blockedChange){
+        return new Funds(balance + balanceChange, blocked + blockedChange, version + 1);
+    }
+}
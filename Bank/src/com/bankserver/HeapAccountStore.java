@@ -0,0 +1,41 @@
+package com.bankserver;
+
+import java.io.IOException;
+
+/**
+ * Agent accounts kept as objects on the heap, the default store
+ */
+public class HeapAccountStore implements AgentAccountStore {
+    private final IntTable<AgentBankAccount> accounts;
+
+    public HeapAccountStore(){
+        accounts = new IntTable<>();
+    }
+
+    @Override
+    public AgentBankAccount get(int ID) {
+        return accounts.get(ID);
+    }
+
+    @Override
+    public void put(int ID, String name, Funds funds) {
+        accounts.put(ID, new AgentBankAccount(funds, name, ID));
+    }
+
+    @Override
+    public void putIfAbsent(int ID, String name, Funds funds) {
+        accounts.putIfAbsent(ID, new AgentBankAccount(funds, name, ID));
+    }
+
+    @Override
+    public int size() {
+        return accounts.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        for(AgentBankAccount account : accounts.values()){
+            visitor.visit(account);
+        }
+    }
+}
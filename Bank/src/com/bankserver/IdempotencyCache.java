@@ -0,0 +1,215 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the result of every request sent with an idempotency key, so a client that
+ * retries or hedges a request gets the original result instead of running it twice.
+ *
+ * Keys are stored as 64-bit fingerprints of the connection type, client ID and key, with the
+ * result in a parallel byte array: 9 bytes a slot, no objects per key. The cache is split into
+ * segments by fingerprint, each with its own lock. Every segment holds two generations of
+ * open-addressing tables. New keys go into the current generation, lookups check both, and
+ * once the retention time has passed the previous generation is dropped whole and the
+ * current one takes its place. A key is therefore remembered for between one and two
+ * retention periods, without any per-key timers or eviction work. A generation that fills
+ * before its time takes no new keys until it is rotated, so memory stays bounded without
+ * forgetting a key early, and requests with new keys are refused until then.
+ *
+ * Results are kept in memory only, so a key is forgotten if the bank restarts or fails over.
+ */
+public class IdempotencyCache {
+    private static final Logger log = Log.get("bank.dedupe");
+
+    /** Returned by {@link #claim(long)} for a new key, which the caller must {@link #complete(long, int)} */
+    public static final int ABSENT = Integer.MIN_VALUE;
+    /** Returned while the first request with a key is still running */
+    public static final int PENDING = Integer.MIN_VALUE + 1;
+    /** Returned by {@link #claim(long)} for a new key when the cache has no room for it, the request must not run */
+    public static final int FULL = Integer.MIN_VALUE + 2;
+
+    private static final byte PENDING_RESULT = Byte.MIN_VALUE;
+    private static final int SEGMENTS = 16;
+    private static final long EMPTY = 0;
+
+    /** Two generations of fingerprint tables, guarded by the segment */
+    private static final class Segment {
+        long[] currentKeys;
+        byte[] currentResults;
+        int currentSize;
+        long[] previousKeys;
+        byte[] previousResults;
+        /** Time the current generation becomes the previous one */
+        long rotateAt;
+        /** Flag if a new key has been refused since the last rotation */
+        boolean refusing;
+    }
+
+    private final Segment[] segments;
+    private final long retentionNanos;
+    /** Keys a generation of a segment holds before new keys are refused */
+    private final int generationLimit;
+
+    /**
+     * @param retentionMillis   shortest time a key is remembered while the cache is not full
+     * @param capacity          keys remembered per retention period before new keys are refused
+     */
+    public IdempotencyCache(long retentionMillis, int capacity){
+        retentionNanos = TimeUnit.MILLISECONDS.toNanos(retentionMillis);
+        generationLimit = Math.max(1, capacity / SEGMENTS);
+        int slots = Integer.highestOneBit(generationLimit * 4 / 3) << 1;  // At most 75% full
+        segments = new Segment[SEGMENTS];
+        for(int i = 0; i < SEGMENTS; i++){
+            Segment segment = new Segment();
+            segment.currentKeys = new long[slots];
+            segment.currentResults = new byte[slots];
+            segment.previousKeys = new long[slots];
+            segment.previousResults = new byte[slots];
+            segment.rotateAt = System.nanoTime() + retentionNanos;
+            segments[i] = segment;
+        }
+    }
+
+    /**
+     * @param connectionType    {@link BankStats#AUCTION_HOUSE} or {@link BankStats#AGENT}
+     * @param clientID          ID of the client that chose the key
+     * @param key               key chosen by the client
+     * @return Fingerprint the request is remembered by
+     */
+    public static long fingerprint(int connectionType, int clientID, long key){
+        long fingerprint = mix(key ^ mix(((long) connectionType << 32) | (clientID & 0xFFFFFFFFL)));
+        return fingerprint == EMPTY ? 1 : fingerprint;
+    }
+
+    /**
+     * Looks up a key, claiming it for the caller if it is new
+     *
+     * @param fingerprint request fingerprint
+     * @return Result of the earlier request, {@link #PENDING} if it is still running,
+     *         {@link #ABSENT} if the key is new and now claimed by the caller,
+     *         or {@link #FULL} if the key is new and there is no room for it
+     */
+    public int claim(long fingerprint){
+        Segment segment = segment(fingerprint);
+        synchronized (segment){
+            rotateIfDue(segment);
+            int index = find(segment.currentKeys, fingerprint);
+            if(segment.currentKeys[index] == fingerprint)
+                return result(segment.currentResults[index]);
+            int previous = find(segment.previousKeys, fingerprint);
+            if(segment.previousKeys[previous] == fingerprint)
+                return result(segment.previousResults[previous]);
+            if(segment.currentSize >= generationLimit){
+                if(!segment.refusing)
+                    log.warn("Idempotency keys arriving faster than the cache holds. Refusing new keys");
+                segment.refusing = true;
+                return FULL;
+            }
+
+            segment.currentKeys[index] = fingerprint;
+            segment.currentResults[index] = PENDING_RESULT;
+            segment.currentSize++;
+            return ABSENT;
+        }
+    }
+
+    /**
+     * Records the result of a claimed key
+     *
+     * @param fingerprint   request fingerprint
+     * @param result        result code, between -127 and 127
+     */
+    public void complete(long fingerprint, int result){
+        Segment segment = segment(fingerprint);
+        synchronized (segment){
+            int index = find(segment.currentKeys, fingerprint);
+            if(segment.currentKeys[index] == fingerprint){
+                segment.currentResults[index] = (byte) result;
+            }
+            else{
+                int previous = find(segment.previousKeys, fingerprint);
+                if(segment.previousKeys[previous] == fingerprint)
+                    segment.previousResults[previous] = (byte) result;
+                else if(segment.currentSize < generationLimit){   // Dropped while running
+                    segment.currentKeys[index] = fingerprint;
+                    segment.currentResults[index] = (byte) result;
+                    segment.currentSize++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up a key without claiming it
+     *
+     * @param fingerprint request fingerprint
+     * @return Result of the request, {@link #PENDING} if it is still running, or {@link #ABSENT} if the key is unknown
+     */
+    public int lookup(long fingerprint){
+        Segment segment = segment(fingerprint);
+        synchronized (segment){
+            return lookup(segment, fingerprint);
+        }
+    }
+
+    private int lookup(Segment segment, long fingerprint){
+        int index = find(segment.currentKeys, fingerprint);
+        if(segment.currentKeys[index] == fingerprint)
+            return result(segment.currentResults[index]);
+        index = find(segment.previousKeys, fingerprint);
+        if(segment.previousKeys[index] == fingerprint)
+            return result(segment.previousResults[index]);
+        return ABSENT;
+    }
+
+    /**
+     * Drops the previous generation once the retention time has passed
+     */
+    private void rotateIfDue(Segment segment){
+        long now = System.nanoTime();
+        if(now - segment.rotateAt < 0)
+            return;
+
+        long[] keys = segment.previousKeys;
+        byte[] results = segment.previousResults;
+        Arrays.fill(keys, EMPTY);
+        segment.previousKeys = segment.currentKeys;
+        segment.previousResults = segment.currentResults;
+        segment.currentKeys = keys;
+        segment.currentResults = results;
+        segment.currentSize = 0;
+        segment.refusing = false;
+        segment.rotateAt = now + retentionNanos;
+    }
+
+    /**
+     * @return Slot holding the fingerprint, or the empty slot it would be stored in
+     */
+    private static int find(long[] keys, long fingerprint){
+        int mask = keys.length - 1;
+        int index = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while(keys[index] != fingerprint && keys[index] != EMPTY){
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private Segment segment(long fingerprint){
+        return segments[(int) (fingerprint >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static int result(byte stored){
+        return stored == PENDING_RESULT ? PENDING : stored;
+    }
+
+    /** SplitMix64 finalizer, spreads keys and client IDs over every bit */
+    private static long mix(long value){
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
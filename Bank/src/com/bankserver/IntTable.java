@@ -0,0 +1,293 @@
+package com.bankserver;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Concurrent open-addressing table keyed by a primitive int ID.
+ *
+ * Lookups never lock, box or allocate: they probe a flat int[] of keys and read the
+ * matching slot of a parallel value array. Writers (accounts opening, clients connecting
+ * and disconnecting) are rare and serialize on the table. A writer publishes a slot's value
+ * before its key, so a reader that sees a key always sees its value. Growing builds a new
+ * pair of arrays and publishes them at once.
+ *
+ * Removed entries keep their key with a null value so probe chains stay intact, and are
+ * dropped the next time the table is rebuilt. Key 0 is reserved for empty slots.
+ *
+ * @param <V> value type
+ */
+public class IntTable<V> {
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final int EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    /** Keys and values, replaced together when the table grows */
+    private static final class Slots {
+        final int[] keys;
+        final Object[] values;
+        final int mask;
+
+        Slots(int capacity){
+            keys = new int[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Slots slots;
+    /** Live entries, guarded by this */
+    private int size;
+    /** Slots holding a key, live or removed, guarded by this */
+    private int used;
+
+    /**
+     * Creates an empty table
+     */
+    public IntTable(){
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected number of entries to size the table for
+     */
+    public IntTable(int expected){
+        slots = new Slots(capacityFor(expected));
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * @param key ID to look up
+     * @return Value stored under the ID, null if none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key){
+        Slots current = slots;
+        int index = hash(key) & current.mask;
+        while(true){
+            int found = (int) KEYS.getAcquire(current.keys, index);
+            if(found == key)
+                return (V) VALUES.getAcquire(current.values, index);
+            if(found == EMPTY)
+                return null;
+            index = (index + 1) & current.mask;
+        }
+    }
+
+    /**
+     * @param key ID to check
+     * @return true if a value is stored under the ID
+     */
+    public boolean containsKey(int key){
+        return get(key) != null;
+    }
+
+    /**
+     * Stores a value under an ID, replacing any previous value
+     *
+     * @return Previous value, null if none
+     */
+    public synchronized V put(int key, V value){
+        return insert(key, value, true);
+    }
+
+    /**
+     * Stores a value under an ID unless one is already stored
+     *
+     * @return Existing value, null if the value was stored
+     */
+    public synchronized V putIfAbsent(int key, V value){
+        return insert(key, value, false);
+    }
+
+    /**
+     * Returns the value stored under an ID, storing a newly created one if there is none
+     *
+     * @param key       ID to look up
+     * @param factory   creates the value from the ID if absent
+     * @return Existing or newly stored value
+     */
+    public V computeIfAbsent(int key, IntFunction<? extends V> factory){
+        V value = get(key);
+        if(value != null)
+            return value;
+        synchronized (this){
+            value = get(key);
+            if(value == null){
+                value = factory.apply(key);
+                insert(key, value, false);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Removes the value stored under an ID
+     *
+     * @return Removed value, null if none
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key){
+        Slots current = slots;
+        int index = find(current, key);
+        if(index < 0 || current.values[index] == null)
+            return null;
+        V previous = (V) current.values[index];
+        VALUES.setRelease(current.values, index, null);
+        size--;
+        return previous;
+    }
+
+    /**
+     * Removes the value stored under an ID only if it is still the given value
+     *
+     * @param key   ID to remove
+     * @param value value expected under the ID
+     * @return true if the value was removed
+     */
+    public synchronized boolean remove(int key, V value){
+        Slots current = slots;
+        int index = find(current, key);
+        if(index < 0 || current.values[index] != value)
+            return false;
+        VALUES.setRelease(current.values, index, null);
+        size--;
+        return true;
+    }
+
+    /**
+     * @return Number of live entries
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * @return Copy of every live value, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> values(){
+        Slots current = slots;
+        ArrayList<V> values = new ArrayList<>();
+        for(int i = 0; i < current.keys.length; i++){
+            Object value = VALUES.getAcquire(current.values, i);
+            if(value != null)
+                values.add((V) value);
+        }
+        return values;
+    }
+
+    /**
+     * @return Copy of every live key, in no particular order
+     */
+    public int[] keys(){
+        Slots current = slots;
+        int[] keys = new int[current.keys.length];
+        int count = 0;
+        for(int i = 0; i < current.keys.length; i++){
+            int key = (int) KEYS.getAcquire(current.keys, i);
+            if(key != EMPTY && VALUES.getAcquire(current.values, i) != null)
+                keys[count++] = key;
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Inserts or replaces a value. Caller holds the table's lock.
+     */
+    @SuppressWarnings("unchecked")
+    private V insert(int key, V value, boolean replace){
+        if(key == EMPTY)
+            throw new IllegalArgumentException("ID 0 is reserved");
+        if(value == null)
+            throw new NullPointerException("Null values are not supported");
+
+        Slots current = slots;
+        int index = find(current, key);
+        if(index >= 0){
+            V previous = (V) current.values[index];
+            if(previous == null || replace)
+                VALUES.setRelease(current.values, index, value);
+            if(previous == null)
+                size++;
+            return previous;
+        }
+
+        // Keep probe chains short, rebuilding also drops removed entries
+        if((used + 1) * 2 > current.keys.length){
+            current = rebuild(capacityFor(size + 1));
+            slots = current;
+        }
+
+        index = hash(key) & current.mask;
+        while(current.keys[index] != EMPTY){
+            index = (index + 1) & current.mask;
+        }
+        VALUES.setRelease(current.values, index, value);
+        KEYS.setRelease(current.keys, index, key);  // Publish the key after its value
+        size++;
+        used++;
+        return null;
+    }
+
+    /**
+     * @return Slot holding the key, live or removed, -1 if absent
+     */
+    private int find(Slots current, int key){
+        int index = hash(key) & current.mask;
+        while(true){
+            int found = current.keys[index];
+            if(found == key)
+                return index;
+            if(found == EMPTY)
+                return -1;
+            index = (index + 1) & current.mask;
+        }
+    }
+
+    /**
+     * Copies every live entry into new arrays. Caller holds the table's lock.
+     */
+    private Slots rebuild(int capacity){
+        Slots current = slots;
+        Slots larger = new Slots(capacity);
+        used = 0;
+        for(int i = 0; i < current.keys.length; i++){
+            Object value = current.values[i];
+            if(value == null)
+                continue;
+            int index = hash(current.keys[i]) & larger.mask;
+            while(larger.keys[index] != EMPTY){
+                index = (index + 1) & larger.mask;
+            }
+            larger.keys[index] = current.keys[i];
+            larger.values[index] = value;
+            used++;
+        }
+        return larger;  // Published through the volatile field by the caller
+    }
+
+    /**
+     * @return Power of two capacity keeping the table at most half full
+     */
+    private static int capacityFor(int entries){
+        int capacity = MIN_CAPACITY;
+        while(capacity < entries * 2){
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spreads sequential IDs across the table
+     */
+    private static int hash(int key){
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
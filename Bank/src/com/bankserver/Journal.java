@@ -0,0 +1,469 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of every change made to the ledger.
+ *
+ * Records are appended to an in-memory buffer and a single flusher thread writes
+ * everything buffered since its last pass and syncs it with one force call (group commit).
+ * A request is only acknowledged once {@link #awaitDurable(long)} has returned for its record,
+ * so any number of concurrent requests share the cost of one disk sync.
+ *
+ * Every record is the change in funds an operation made along with the account version the
+ * change produced, so replaying them in any order rebuilds the same balances, and changes
+ * already contained in a snapshot can be recognised and skipped.
+ *
+ * Record layout: [body length int][body][crc32 of body int]
+ * Body layout: [type byte][first ID int][second ID int][amount long]
+ *              [first version long][second version long][name length short][name]
+ *
+ * Records of transfers between shards keep the transfer ID in place of the second version, and
+ * settlements the highest transfer ID they include.
+ * Blocks and unblocks of funds held with a lease keep the auction house's ID as the second ID,
+ * and blocks keep the lease in milliseconds in place of the second version.
+ *
+ * A primary bank ships every synced batch to its standby, see {@link Replicator}. The standby
+ * writes the batches to its own journal at the same offsets, so both files stay identical.
+ */
+public class Journal implements Runnable {
+    private static final Logger log = Log.get("bank.journal");
+
+    static final byte AGENT_OPENED = 1;
+    static final byte AH_OPENED = 2;
+    static final byte BLOCK = 3;
+    static final byte UNBLOCK = 4;
+    static final byte TRANSFER = 5;
+    static final byte DEPOSIT = 6;
+    /** Agent's funds removed for an auction house on another shard, or for a later settlement */
+    static final byte TRANSFER_OUT = 7;
+    /** Auction house credited by a transfer from another shard */
+    static final byte TRANSFER_IN = 8;
+    /** Transfer to another shard acknowledged, or refunded to the agent if the amount is not 0 */
+    static final byte TRANSFER_DONE = 9;
+    /** Auction house credited with the net of its pending transfers up to a transfer ID */
+    static final byte SETTLE = 10;
+
+    /** Size of a body without the name */
+    private static final int BODY_SIZE = 1 + 4 + 4 + 8 + 8 + 8 + 2;
+    /** Size of a body with the longest name */
+    private static final int MAX_BODY_SIZE = BODY_SIZE + 0xFFFF;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    /** Journal read per pass while replaying, always larger than a whole record */
+    private static final int REPLAY_CHUNK_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final CRC32 crc;
+    /** Buffer records are appended to, guarded by this */
+    private ByteBuffer active;
+    /** Buffer being written by the flusher */
+    private ByteBuffer flushing;
+    /** Sequence number of the last record appended, guarded by this */
+    private long appended;
+    /** File offset the end of the last appended record will be written at, guarded by this */
+    private long appendedOffset;
+    /** Sequence number of the last record synced to disk, guarded by durableLock */
+    private long durable;
+    private final Object durableLock;
+    /** Time callers spend waiting for their records to sync */
+    private final LatencyHistogram syncWaits;
+    /** File offset the flusher writes its next batch at */
+    private long flushedOffset;
+    /** Ships synced batches to a standby, null if not replicating */
+    private volatile Replicator replicator;
+    /**
+     * Version each account had before replay, first looked up when an account is seen.
+     * Kept while a standby applies shipped records, since records may arrive out of version order.
+     */
+    private HashMap<Integer, Long> baseVersions;
+
+    /**
+     * Opens or creates a journal file
+     *
+     * @param path  location of the journal file
+     * @param stats statistics waits for records to sync are recorded in
+     */
+    public Journal(Path path, BankStats stats) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        crc = new CRC32();
+        active = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        flushing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        appended = 0;
+        appendedOffset = 0;
+        durable = 0;
+        durableLock = new Object();
+        syncWaits = stats.histogram("wait journal sync");
+        flushedOffset = 0;
+        replicator = null;
+        baseVersions = new HashMap<>();
+    }
+
+    /**
+     * Ships every following batch to a standby once it is synced
+     *
+     * @param replicator replicator the batches are handed to
+     */
+    public void setReplicator(Replicator replicator){
+        this.replicator = replicator;
+    }
+
+    /**
+     * Rebuilds the ledger from every complete record in the journal after the given offset.
+     * Changes already reflected in the ledger's account versions, such as those captured by
+     * a snapshot, are skipped. The journal is read in chunks, and the file is only cut short at a
+     * partially written or corrupt record, which is discarded along with everything after it.
+     * Must be called before any records are appended.
+     *
+     * @param ledger    ledger to rebuild, empty or restored from a snapshot
+     * @param offset    file offset to start replaying from
+     * @return Highest account ID found, 0 if no records were replayed
+     */
+    public int replay(Ledger ledger, long offset) throws IOException {
+        long size = channel.size();
+        if(offset > size){
+            log.warn("Journal is shorter than the snapshot expects. Replaying entire journal");
+            offset = 0;
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(REPLAY_CHUNK_SIZE);
+        long read = offset;     // File offset of the next byte to read
+        long valid = offset;    // File offset after the last valid record
+        int highestID = 0;
+        int records = 0;
+        while(true){
+            while(chunk.hasRemaining() && read < size){
+                int count = channel.read(chunk, read);
+                if(count < 0){
+                    size = read;    // Cut short while reading
+                    break;
+                }
+                read += count;
+            }
+            chunk.flip();
+            int[] result = applyRecords(chunk, ledger);   // Stops at a torn write or the end of the chunk
+            highestID = Math.max(highestID, result[0]);
+            records += result[1];
+            valid += chunk.position();
+            if(read >= size || !incomplete(chunk))
+                break;
+            chunk.compact();
+        }
+
+        if(valid < size){
+            log.warn("Discarding {} bytes of torn or corrupt journal records", size - valid);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        appendedOffset = valid;
+        flushedOffset = appendedOffset;
+        log.info("Replayed {} journal records", records);
+        return highestID;
+    }
+
+    /**
+     * Checks whether records stopped applying only because the next one continues past the
+     * end of the buffer, rather than because it is torn or corrupt.
+     *
+     * @param chunk buffer positioned at the first record not applied
+     * @return true if more of the journal must be read to apply the next record
+     */
+    private static boolean incomplete(ByteBuffer chunk){
+        if(chunk.remaining() < 4)
+            return true;
+        int length = chunk.getInt(chunk.position());
+        return length >= BODY_SIZE && length <= MAX_BODY_SIZE && chunk.remaining() < 4 + length + 4;
+    }
+
+    /**
+     * Applies records shipped by the primary bank and writes them to this journal at the
+     * same offset, then syncs them. Used by a standby in place of appending its own records.
+     *
+     * @param records   whole records as written to the primary's journal
+     * @param offset    primary's journal offset of the first record
+     * @param ledger    standby's ledger
+     * @return Highest account ID referenced by the records
+     */
+    public synchronized int receive(ByteBuffer records, long offset, Ledger ledger) throws IOException {
+        if(offset > appendedOffset)
+            throw new IOException("Shipped records start at " + offset + " but the journal ends at " + appendedOffset);
+        if(offset < appendedOffset){
+            long skip = appendedOffset - offset;   // Already received
+            if(skip >= records.remaining())
+                return 0;
+            records.position(records.position() + (int) skip);
+        }
+
+        ByteBuffer shipped = records.duplicate();
+        int[] result = applyRecords(records, ledger);
+        if(records.hasRemaining())
+            throw new IOException("Shipped records are incomplete or corrupt");
+
+        long position = appendedOffset;
+        while(shipped.hasRemaining()){
+            position += channel.write(shipped, position);
+        }
+        channel.force(false);
+        channel.position(position);
+        appendedOffset = position;
+        flushedOffset = position;
+        return result[0];
+    }
+
+    /**
+     * Applies every complete record in a buffer, skipping changes already reflected in
+     * account versions. Leaves the buffer positioned after the last valid record.
+     *
+     * @return Highest account ID referenced and the number of records applied
+     */
+    private int[] applyRecords(ByteBuffer file, Ledger ledger){
+        int highestID = 0;
+        int records = 0;
+
+        while(file.remaining() >= 4){
+            int length = file.getInt(file.position());
+            if(length < BODY_SIZE || length > MAX_BODY_SIZE || file.remaining() < 4 + length + 4)
+                break;
+
+            ByteBuffer body = file.duplicate();
+            body.position(file.position() + 4).limit(file.position() + 4 + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if((int) crc.getValue() != file.getInt(file.position() + 4 + length))
+                break;  // Torn write
+
+            highestID = Math.max(highestID, apply(body, ledger, baseVersions));
+            file.position(file.position() + 4 + length + 4);
+            records++;
+        }
+        return new int[]{highestID, records};
+    }
+
+    /**
+     * Applies a single record to the ledger, skipping any account whose
+     * base version already includes the change.
+     *
+     * @return Highest account ID referenced by the record
+     */
+    private int apply(ByteBuffer body, Ledger ledger, HashMap<Integer, Long> baseVersions){
+        byte type = body.get();
+        int first = body.getInt();
+        int second = body.getInt();
+        long amount = body.getLong();
+        long firstVersion = body.getLong();
+        long secondVersion = body.getLong();
+        byte[] name = new byte[body.getShort() & 0xFFFF];
+        body.get(name);
+
+        switch (type){
+            case AGENT_OPENED:
+                if(ledger.versionOf(first) < 0)
+                    ledger.restoreAgentAccount(first, new String(name, StandardCharsets.UTF_8), new Funds(amount, 0, 0));
+                break;
+            case AH_OPENED:
+                if(ledger.versionOf(first) < 0)
+                    ledger.restoreAHAccount(first, new Funds(0, 0, 0));
+                break;
+            case BLOCK:
+                if(isNew(first, firstVersion, ledger, baseVersions))
+                    ledger.restoreAgentChange(first, -amount, amount);
+                if(second != 0)
+                    ledger.restoreHoldChange(second, first, amount, (int) secondVersion, firstVersion);
+                break;
+            case UNBLOCK:
+                if(isNew(first, firstVersion, ledger, baseVersions))
+                    ledger.restoreAgentChange(first, amount, -amount);
+                if(second != 0)
+                    ledger.restoreHoldChange(second, first, -amount, 0, firstVersion);
+                break;
+            case TRANSFER:
+                if(isNew(first, firstVersion, ledger, baseVersions))
+                    ledger.restoreAgentChange(first, 0, -amount);
+                if(isNew(second, secondVersion, ledger, baseVersions))
+                    ledger.restoreAHChange(second, amount);
+                ledger.restoreHoldChange(second, first, -amount, 0, firstVersion);
+                break;
+            case DEPOSIT:
+                if(isNew(first, firstVersion, ledger, baseVersions))
+                    ledger.restoreAHChange(first, amount);
+                break;
+            case TRANSFER_OUT:
+                if(isNew(first, firstVersion, ledger, baseVersions))
+                    ledger.restoreAgentChange(first, 0, -amount);
+                ledger.restoreHoldChange(second, first, -amount, 0, firstVersion);
+                ledger.getTransfers().restorePending(secondVersion, first, second, amount);
+                break;
+            case TRANSFER_IN:
+                if(isNew(first, firstVersion, ledger, baseVersions))
+                    ledger.restoreAHChange(first, amount);
+                ledger.getTransfers().restoreApplied(secondVersion);
+                break;
+            case SETTLE:
+                if(isNew(first, firstVersion, ledger, baseVersions))
+                    ledger.restoreAHChange(first, amount);
+                ledger.getTransfers().restoreSettled(first, secondVersion);
+                break;
+            case TRANSFER_DONE:
+                ledger.getTransfers().remove(secondVersion);
+                if(amount > 0 && isNew(first, firstVersion, ledger, baseVersions))
+                    ledger.restoreAgentChange(first, 0, amount);
+                break;
+            default:
+                log.warn("Unknown journal record type {}", type);
+        }
+        return Math.max(first, second);
+    }
+
+    /**
+     * @return true if a change to an account is not already reflected in the version it was restored with
+     */
+    private boolean isNew(int ID, long version, Ledger ledger, HashMap<Integer, Long> baseVersions){
+        return version > baseVersions.computeIfAbsent(ID, ledger::versionOf);
+    }
+
+    /**
+     * Appends a record to the journal. The record is not durable until
+     * {@link #awaitDurable(long)} returns for the returned sequence number.
+     *
+     * @param type      record type
+     * @param first     primary account ID
+     * @param second    secondary account ID, 0 if unused
+     * @param amount    amount of funds
+     * @param firstVersion  version of the primary account after the change
+     * @param secondVersion version of the secondary account after the change, 0 if unused
+     * @param name      account name, null if unused
+     * @return Sequence number of the record
+     */
+    public synchronized long append(byte type, int first, int second, long amount,
+                                    long firstVersion, long secondVersion, String name){
+        byte[] nameBytes = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        int length = BODY_SIZE + nameBytes.length;
+
+        if(active.remaining() < 4 + length + 4){
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + 4 + length + 4));
+            active.flip();
+            larger.put(active);
+            active = larger;
+        }
+
+        active.putInt(length);
+        int start = active.position();
+        active.put(type).putInt(first).putInt(second).putLong(amount);
+        active.putLong(firstVersion).putLong(secondVersion);
+        active.putShort((short) nameBytes.length).put(nameBytes);
+
+        ByteBuffer body = active.duplicate();
+        body.position(start).limit(start + length);
+        crc.reset();
+        crc.update(body);
+        active.putInt((int) crc.getValue());
+
+        appended++;
+        appendedOffset += 4 + length + 4;
+        notify();   // Wake the flusher
+        return appended;
+    }
+
+    /**
+     * @return Sequence number of the last record appended
+     */
+    public synchronized long lastAppended(){
+        return appended;
+    }
+
+    /**
+     * @return File offset just past the last appended record
+     */
+    public synchronized long appendedOffset(){
+        return appendedOffset;
+    }
+
+    /**
+     * Reads records already synced to disk, for a standby catching up
+     *
+     * @param destination   buffer to read into
+     * @param offset        file offset to read from
+     * @return Number of bytes read, -1 at the end of the file
+     */
+    int read(ByteBuffer destination, long offset) throws IOException {
+        return channel.read(destination, offset);
+    }
+
+    /**
+     * Blocks until the given record has been synced to disk
+     *
+     * @param sequence record sequence number
+     */
+    public void awaitDurable(long sequence){
+        synchronized (durableLock){
+            if(durable >= sequence)
+                return;
+            long start = System.nanoTime();
+            while(durable < sequence){
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            syncWaits.recordSince(start);
+        }
+    }
+
+    /**
+     * Flusher loop. Swaps buffers with appenders and writes each batch with a single sync.
+     */
+    @Override
+    public void run() {
+        long batchEnd;
+
+        while(true){
+            synchronized (this){
+                while(active.position() == 0){
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                // Hand the filled buffer to the flusher and keep appending to the empty one
+                ByteBuffer filled = active;
+                active = flushing;
+                flushing = filled;
+                batchEnd = appended;
+            }
+
+            try {
+                flushing.flip();
+                long start = flushedOffset;
+                while(flushing.hasRemaining()){
+                    channel.write(flushing);
+                }
+                channel.force(false);
+                flushedOffset += flushing.limit();
+                if(replicator != null){
+                    flushing.rewind();
+                    replicator.ship(flushing, start);   // Waits for the standby in synchronous mode
+                }
+                flushing.clear();
+            } catch (IOException e) {
+                log.error("Unable to write to journal. Terminating", e);
+                System.exit(4);
+                return;
+            }
+
+            synchronized (durableLock){
+                durable = batchEnd;
+                durableLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.bankserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of durations in nanoseconds with a fixed relative precision,
+ * laid out like an HDR histogram.
+ *
+ * Values below 128ns each have their own bucket. Above that every power of two is split
+ * into 64 equal buckets, so a recorded value is never off by more than 1/64 (1.6%) of
+ * itself however large it is. Recording is a single atomic increment of the value's
+ * bucket, so any number of threads can record without locking and without allocating.
+ *
+ * Values above about 73 minutes are counted in the last bucket.
+ */
+public class LatencyHistogram {
+    /** Buckets per power of two above the linear range */
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR_BITS = 7;
+    /** Largest value with its own bucket, about 73 minutes */
+    private static final long HIGHEST = (1L << 42) - 1;
+    private static final int BUCKETS = index(HIGHEST) + 1;
+
+    private final String name;
+    private final AtomicLongArray counts;
+    private final LongAdder total;
+    private final AtomicLong max;
+
+    /**
+     * @param name name the histogram is reported under
+     */
+    public LatencyHistogram(String name){
+        this.name = name;
+        counts = new AtomicLongArray(BUCKETS);
+        total = new LongAdder();
+        max = new AtomicLong();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param nanos duration to record
+     */
+    public void record(long nanos){
+        if(nanos < 0)
+            nanos = 0;
+        counts.getAndIncrement(index(Math.min(nanos, HIGHEST)));
+        total.add(nanos);
+
+        long current = max.get();
+        while(nanos > current && !max.compareAndSet(current, nanos)){
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since a start time
+     *
+     * @param start value of {@link System#nanoTime()} when the timed work began
+     */
+    public void recordSince(long start){
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * Copies the histogram. Values recorded while the copy is made may or may
+     * not be included, but the copy's percentiles are always consistent with its count.
+     *
+     * @return current counts
+     */
+    public Snapshot snapshot(){
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(name, copy, count, total.sum(), max.get());
+    }
+
+    private static int index(long value){
+        if(value < (1 << LINEAR_BITS))
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (LINEAR_BITS - 1);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return Largest value counted in a bucket
+     */
+    private static long highestIn(int index){
+        if(index < (1 << LINEAR_BITS))
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Counts of a histogram at one point in time
+     */
+    public static final class Snapshot {
+        private final String name;
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(String name, long[] counts, long count, long total, long max){
+            this.name = name;
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Number of values recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Largest value recorded in nanoseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return Mean of the values recorded in nanoseconds, 0 if none were
+         */
+        public double getMean(){
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @param percentile percentile between 0 and 100, e.g. 99.9
+         * @return Value in nanoseconds that the given percentage of recorded values
+         *         are at or below, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile){
+            if(count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++){
+                seen += counts[i];
+                if(seen >= rank)
+                    return Math.min(highestIn(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,890 @@
+package com.bankserver;
+
+import com.auctionprotocol.TimingWheel;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds every bank account and performs all operations on their funds.
+ * Single account operations are lock free. Operations spanning an agent and an
+ * auction house account hold both accounts' lock stripes, so unrelated accounts
+ * never wait on each other.
+ *
+ * When a journal is attached every change is recorded along with the account
+ * version it produced before the operation returns.
+ *
+ * Each operation's time is recorded, not counting the wait for its journal record to sync.
+ *
+ * When the bank is sharded, transfers to auction houses owned by another shard only remove
+ * the agent's funds here and are completed by that shard, see {@link ShardTransfers}.
+ * With a settlement set, transfers to this shard's auction houses take the same first step
+ * and are credited in periodic cycles, see {@link Settlement}.
+ *
+ * Funds an auction house blocks with a lease are also tracked as a hold, see {@link FundHolds}.
+ * Their journal records carry the auction house's ID, and blocks also carry the lease, so holds
+ * are rebuilt along with the funds on replay.
+ *
+ * With an auditor set every move of funds between two accounts is also recorded in the auditor's
+ * current pass, see {@link Auditor}. Blocks and unblocks only change one account and are not.
+ */
+public class Ledger {
+    private static final Logger log = Log.get("bank.ledger");
+
+    /** Auction House Bank Accounts */
+    private final IntTable<BankAccount> AHBankAccounts;
+    /** Agent Bank Accounts, on the heap unless another store is set */
+    private AgentAccountStore agentBankAccounts;
+    /** Locks for operations across two accounts */
+    private final LockStripes stripes;
+    /** Journal of changes, null if disabled */
+    private Journal journal;
+    /** Flag if callers sync the journal themselves instead of waiting on each change */
+    private boolean deferSync;
+    /** Transfers to and from other shards */
+    private ShardTransfers transfers;
+    /** Funds blocked with a lease, null if holds are not supported */
+    private FundHolds holds;
+    /** Settles transfers to this shard's auction houses, null if they are credited straight away */
+    private Settlement settlement;
+    /** Records every move of funds between accounts, null if the ledger is not audited */
+    private Auditor auditor;
+    private final LatencyHistogram blockTimes;
+    private final LatencyHistogram unblockTimes;
+    private final LatencyHistogram adjustTimes;
+    private final LatencyHistogram transferTimes;
+    private final LatencyHistogram depositTimes;
+    private final LatencyHistogram settleTimes;
+
+    /**
+     * Creates a new empty ledger
+     *
+     * @param stats statistics operation times are recorded in
+     */
+    public Ledger(BankStats stats){
+        AHBankAccounts = new IntTable<>();
+        agentBankAccounts = new HeapAccountStore();
+        stripes = new LockStripes(Runtime.getRuntime().availableProcessors() * 4, stats.histogram("wait lock stripes"));
+        blockTimes = stats.histogram("ledger block");
+        unblockTimes = stats.histogram("ledger unblock");
+        adjustTimes = stats.histogram("ledger adjust");
+        transferTimes = stats.histogram("ledger transfer");
+        depositTimes = stats.histogram("ledger deposit");
+        settleTimes = stats.histogram("ledger settle");
+        transfers = new ShardTransfers(0, 1);
+        holds = null;
+        settlement = null;
+        auditor = null;
+        journal = null;
+        deferSync = false;
+    }
+
+    /**
+     * Records every following change in a journal.
+     *
+     * @param journal journal to append changes to
+     */
+    public void setJournal(Journal journal){
+        this.journal = journal;
+    }
+
+    /**
+     * @param deferSync true if callers wait for the journal themselves, so changes return
+     *                  as soon as they are appended rather than once they are durable
+     */
+    public void setDeferSync(boolean deferSync){
+        this.deferSync = deferSync;
+    }
+
+    /**
+     * Makes this ledger one shard of a sharded bank. Must be called before it is restored.
+     *
+     * @param shard     index of this shard
+     * @param shards    number of shards
+     */
+    public void setShard(int shard, int shards){
+        transfers = new ShardTransfers(shard, shards);
+    }
+
+    /**
+     * Keeps agent accounts in another store than the heap. Must be called before the ledger is restored.
+     *
+     * @param store empty store for agent accounts
+     */
+    public void setAgentStore(AgentAccountStore store){
+        agentBankAccounts = store;
+    }
+
+    /**
+     * Records every following move of funds between accounts for an auditor.
+     * Must be called once the ledger is restored, before it changes.
+     *
+     * @param auditor auditor created from the restored ledger
+     */
+    public void setAuditor(Auditor auditor){
+        this.auditor = auditor;
+    }
+
+    /**
+     * Tracks funds blocked with a lease. Must be called before the ledger is restored.
+     *
+     * @param holds holds, released through this ledger once started
+     */
+    public void setHolds(FundHolds holds){
+        this.holds = holds;
+    }
+
+    /**
+     * @return Holds of funds blocked with a lease, null if not supported
+     */
+    public FundHolds getHolds(){
+        return holds;
+    }
+
+    /**
+     * Starts the leases of every restored hold. Called once the ledger is restored and serving.
+     */
+    public void startHolds(){
+        if(holds != null)
+            holds.start(this);
+    }
+
+    /**
+     * Credits transfers to this shard's auction houses in settlement cycles rather than straight away
+     *
+     * @param settlement settlement, run once started
+     */
+    public void setSettlement(Settlement settlement){
+        this.settlement = settlement;
+    }
+
+    /**
+     * Starts settling transfers, including any restored as pending. Called once the ledger is restored and serving.
+     */
+    public void startSettlement(){
+        if(settlement != null)
+            settlement.start(this);
+        else
+            settle();   // Credit transfers a settling bank left pending
+    }
+
+    /**
+     * @return Transfers to and from other shards
+     */
+    public ShardTransfers getTransfers(){
+        return transfers;
+    }
+
+    /**
+     * Opens a new empty auction house account
+     *
+     * @param ID auction house ID
+     */
+    public void openAHAccount(int ID){
+        AHBankAccounts.put(ID, new BankAccount(0));
+        record(Journal.AH_OPENED, ID, 0, 0, 0, 0, null);
+    }
+
+    /**
+     * Opens a new agent account
+     *
+     * @param balance   initial balance
+     * @param name      agent name
+     * @param ID        agent ID
+     */
+    public void openAgentAccount(long balance, String name, int ID){
+        Auditor.Pass pass = beginMove(Auditor.outsideID(ID), ID);
+        try {
+            agentBankAccounts.put(ID, name, new Funds(balance, 0, 0));
+            movedOutside(pass, ID, balance, 0);
+        } finally {
+            endMove(pass);
+        }
+        record(Journal.AGENT_OPENED, ID, 0, balance, 0, 0, name);
+    }
+
+    /**
+     * Reads an agent's funds without locking, so polling agents never hold up blocks and transfers
+     *
+     * @param ID agent ID
+     * @return JSON with the agent's balance and blocked funds, read together, null if there is no such account
+     */
+    public JSONObject getJSONAgentInfo(int ID){
+        AgentBankAccount account = agentBankAccounts.get(ID);
+        return account == null ? null : account.getJSONInfo();
+    }
+
+    /**
+     * @param ID agent ID
+     * @return Agent's balance and blocked funds, read together, null if there is no such account
+     */
+    public Funds getAgentFunds(int ID){
+        AgentBankAccount account = agentBankAccounts.get(ID);
+        return account == null ? null : account.getFunds();
+    }
+
+    /**
+     * @param accountID agent ID
+     * @param amount    amount to block
+     * @return (1) successful (0) not enough funds (-1) no such account
+     */
+    public int blockFunds(int accountID, long amount){
+        long start = System.nanoTime();
+        AgentBankAccount account = agentBankAccounts.get(accountID);
+        if(account == null)
+            return -1;
+        Funds funds = account.tryBlockFunds(amount);
+        long sequence = funds == null ? 0 : append(Journal.BLOCK, accountID, 0, amount, funds.version, 0, null);
+        blockTimes.recordSince(start);
+
+        commit(sequence);
+        return funds == null ? 0 : 1;
+    }
+
+    /**
+     * @param accountID agent ID
+     * @param amount    amount to unblock
+     * @return (1) successful (-1) not enough blocked funds or no such account
+     */
+    public int unblockFunds(int accountID, long amount){
+        long start = System.nanoTime();
+        AgentBankAccount account = agentBankAccounts.get(accountID);
+        if(account == null)
+            return -1;
+        Funds funds = account.tryUnblockFunds(amount);
+        long sequence = funds == null ? 0 : append(Journal.UNBLOCK, accountID, 0, amount, funds.version, 0, null);
+        unblockTimes.recordSince(start);
+
+        commit(sequence);
+        return funds == null ? -1 : 1;
+    }
+
+    /**
+     * Applies a batch of block ('b') and unblock ('u') operations. The journal is
+     * synced once for the whole batch rather than once per operation.
+     *
+     * @param operations    operation for each entry
+     * @param accountIDs    agent ID for each entry
+     * @param amounts       amount for each entry
+     * @return result code of each entry, as returned by {@link #blockFunds(int, long)}
+     *         and {@link #unblockFunds(int, long)}, -1 for an unknown operation
+     */
+    public int[] applyBatch(char[] operations, int[] accountIDs, long[] amounts){
+        return applyBatch(0, 0, operations, accountIDs, amounts);
+    }
+
+    /**
+     * Applies a batch of block ('b') and unblock ('u') operations for an auction house.
+     * With a lease, blocks are added to the auction house's hold on the agent and unblocks
+     * only return what is left of the hold, since expired holds were already released.
+     *
+     * @param AHID          auction house making the requests
+     * @param leaseMillis   lease of the funds blocked, 0 for funds blocked until unblocked
+     * @param operations    operation for each entry
+     * @param accountIDs    agent ID for each entry
+     * @param amounts       amount for each entry
+     * @return result code of each entry, see {@link #applyBatch(char[], int[], long[])}
+     */
+    public int[] applyBatch(int AHID, int leaseMillis, char[] operations, int[] accountIDs, long[] amounts){
+        return applyBatch(AHID, leaseMillis, operations, accountIDs, amounts, null, null);
+    }
+
+    /**
+     * Applies a batch of block ('b'), unblock ('u') and adjust ('a') operations for an auction house.
+     * An adjust blocks its amount on its agent and releases the funds of another entry, see
+     * {@link #adjustHold(int, int, int, long, int, long)}.
+     *
+     * @param AHID              auction house making the requests
+     * @param leaseMillis       lease of the funds blocked, 0 for funds blocked until unblocked
+     * @param operations        operation for each entry
+     * @param accountIDs        agent ID for each entry
+     * @param amounts           amount for each entry
+     * @param releaseIDs        agent whose funds each adjust releases, null if the batch has no adjusts
+     * @param releaseAmounts    amount each adjust releases, null if the batch has no adjusts
+     * @return result code of each entry, see {@link #applyBatch(char[], int[], long[])}
+     */
+    public int[] applyBatch(int AHID, int leaseMillis, char[] operations, int[] accountIDs, long[] amounts,
+                            int[] releaseIDs, long[] releaseAmounts){
+        int[] results = new int[operations.length];
+        long sequence = 0;
+        boolean held = leaseMillis > 0 && holds != null;
+
+        for(int i = 0; i < operations.length; i++){
+            long start = System.nanoTime();
+            AgentBankAccount account = agentBankAccounts.get(accountIDs[i]);
+            Funds funds;
+            if(account == null){
+                results[i] = -1;    // Unknown or owned by another shard
+                continue;
+            }
+            switch (operations[i]){
+                case 'b':
+                    funds = held ? blockHeld(account, AHID, amounts[i], leaseMillis) : account.tryBlockFunds(amounts[i]);
+                    results[i] = funds == null ? 0 : 1;
+                    if(funds != null)
+                        sequence = append(Journal.BLOCK, accountIDs[i], held ? AHID : 0, amounts[i], funds.version, held ? leaseMillis : 0, null);
+                    blockTimes.recordSince(start);
+                    break;
+                case 'u':
+                    if(held){
+                        long[] released = unblockHeld(account, AHID, amounts[i]);
+                        results[i] = released == null ? -1 : 1;
+                        if(released != null && released[0] > 0)
+                            sequence = append(Journal.UNBLOCK, accountIDs[i], AHID, released[0], released[1], 0, null);
+                    }
+                    else{
+                        funds = account.tryUnblockFunds(amounts[i]);
+                        results[i] = funds == null ? -1 : 1;
+                        if(funds != null)
+                            sequence = append(Journal.UNBLOCK, accountIDs[i], 0, amounts[i], funds.version, 0, null);
+                    }
+                    unblockTimes.recordSince(start);
+                    break;
+                case 'a':
+                    if(releaseIDs == null){
+                        results[i] = -1;
+                        break;
+                    }
+                    long[] adjusted = adjustHold(AHID, held ? leaseMillis : 0, accountIDs[i], amounts[i], releaseIDs[i], releaseAmounts[i]);
+                    results[i] = (int) adjusted[0];
+                    if(adjusted[1] > 0)
+                        sequence = adjusted[1];
+                    adjustTimes.recordSince(start);
+                    break;
+                default:
+                    results[i] = -1;
+            }
+        }
+
+        commit(sequence);
+        return results;
+    }
+
+    /**
+     * Blocks funds on an agent for an auction house's new high bid and releases the funds of the
+     * bid it replaces, so the two take one request and one journal sync. Nothing changes unless
+     * the new funds can be blocked. When an agent raises its own bid only the difference is blocked
+     * or returned, in a single change of the account, so it never needs room for both bids at once.
+     * Releasing another agent's funds follows the new block; if they are no longer blocked the
+     * new block still stands.
+     *
+     * @param AHID          auction house making the request
+     * @param leaseMillis   lease of the funds blocked, 0 for funds blocked until unblocked
+     * @param agentID       agent funds are blocked on
+     * @param amount        amount to block
+     * @param releaseID     agent whose blocked funds are released, may be the same agent
+     * @param releaseAmount amount to release
+     * @return Result code, (1) successful (0) not enough funds (-1) no such account, and the
+     *         sequence of the last journal record, 0 if none
+     */
+    private long[] adjustHold(int AHID, int leaseMillis, int agentID, long amount, int releaseID, long releaseAmount){
+        AgentBankAccount account = agentBankAccounts.get(agentID);
+        AgentBankAccount previous = agentBankAccounts.get(releaseID);
+        if(account == null || previous == null)
+            return new long[]{-1, 0};     // Unknown or owned by another shard
+        if(agentID == releaseID)
+            return adjustOne(account, AHID, leaseMillis, amount, releaseAmount);
+
+        Funds funds = leaseMillis > 0 ? blockHeld(account, AHID, amount, leaseMillis) : account.tryBlockFunds(amount);
+        if(funds == null)
+            return new long[]{0, 0};
+
+        // The release is journaled first, so replaying a journal cut between the records never blocks both bids
+        long sequence = 0;
+        if(leaseMillis > 0){
+            long[] released = unblockHeld(previous, AHID, releaseAmount);
+            if(released != null && released[0] > 0)
+                sequence = append(Journal.UNBLOCK, releaseID, AHID, released[0], released[1], 0, null);
+            else if(released == null)
+                log.warn("Unable to release the outbid funds of agent {}", releaseID);
+        }
+        else{
+            Funds releasedFunds = previous.tryUnblockFunds(releaseAmount);
+            if(releasedFunds != null)
+                sequence = append(Journal.UNBLOCK, releaseID, 0, releaseAmount, releasedFunds.version, 0, null);
+            else
+                log.warn("Unable to release the outbid funds of agent {}", releaseID);
+        }
+        long blocked = append(Journal.BLOCK, agentID, leaseMillis > 0 ? AHID : 0, amount, funds.version, leaseMillis, null);
+        return new long[]{1, Math.max(sequence, blocked)};
+    }
+
+    /**
+     * Replaces funds blocked on an agent with a new amount, blocking or returning only the difference.
+     * With a lease only what is left of the auction house's hold is replaced.
+     *
+     * @return Result code and journal sequence, see {@link #adjustHold(int, int, int, long, int, long)}
+     */
+    private long[] adjustOne(AgentBankAccount account, int AHID, int leaseMillis, long amount, long releaseAmount){
+        int agentID = account.getID();
+        Funds funds;
+        long change;
+        if(leaseMillis > 0){
+            synchronized (holds.lockFor(AHID, agentID)){
+                FundHolds.Hold hold = holds.find(AHID, agentID);
+                long release = hold == null ? 0 : Math.min(releaseAmount, hold.amount);
+                funds = account.tryAdjustBlockedFunds(release, amount);
+                if(funds == null)
+                    return new long[]{0, 0};
+                change = amount - release;
+                if(change >= 0)
+                    holds.add(AHID, agentID, change, leaseMillis, funds.version);   // Restarts the lease
+                else
+                    holds.take(AHID, agentID, -change, funds.version);
+            }
+        }
+        else{
+            funds = account.tryAdjustBlockedFunds(releaseAmount, amount);
+            if(funds == null)
+                return new long[]{0, 0};
+            change = amount - releaseAmount;
+        }
+
+        long sequence = 0;
+        if(change > 0)
+            sequence = append(Journal.BLOCK, agentID, leaseMillis > 0 ? AHID : 0, change, funds.version, leaseMillis, null);
+        else if(change < 0)
+            sequence = append(Journal.UNBLOCK, agentID, leaseMillis > 0 ? AHID : 0, -change, funds.version, 0, null);
+        return new long[]{1, sequence};
+    }
+
+    /**
+     * Blocks funds and adds them to an auction house's hold on the agent
+     *
+     * @return state after the block, null if there were not enough funds
+     */
+    private Funds blockHeld(AgentBankAccount account, int AHID, long amount, int leaseMillis){
+        synchronized (holds.lockFor(AHID, account.getID())){
+            Funds funds = account.tryBlockFunds(amount);
+            if(funds != null)
+                holds.add(AHID, account.getID(), amount, leaseMillis, funds.version);
+            return funds;
+        }
+    }
+
+    /**
+     * Unblocks what is left of an auction house's hold on an agent, up to an amount.
+     * Nothing is left if the hold expired and was released already.
+     *
+     * @return amount unblocked and the account version after it, null if the funds could not be unblocked
+     */
+    private long[] unblockHeld(AgentBankAccount account, int AHID, long amount){
+        synchronized (holds.lockFor(AHID, account.getID())){
+            FundHolds.Hold hold = holds.find(AHID, account.getID());
+            long held = hold == null ? 0 : Math.min(amount, hold.amount);
+            if(held == 0)
+                return new long[]{0, 0};
+            Funds funds = account.tryUnblockFunds(held);
+            if(funds == null)
+                return null;
+            holds.take(AHID, account.getID(), held, funds.version);
+            return new long[]{held, funds.version};
+        }
+    }
+
+    /**
+     * Releases holds whose lease ran out, with a single journal sync for all of them.
+     * A hold renewed, used up or replaced since it expired is left alone.
+     *
+     * @param expired holds handed over by the timing wheel
+     */
+    void releaseExpired(ArrayList<TimingWheel.Timeout> expired){
+        long sequence = 0;
+        int released = 0;
+        for(TimingWheel.Timeout timeout : expired){
+            FundHolds.Hold hold = (FundHolds.Hold) timeout;
+            AgentBankAccount account = agentBankAccounts.get(hold.agentID);
+            long amount;
+            Funds funds;
+            synchronized (holds.lockFor(hold.AHID, hold.agentID)){
+                if(holds.find(hold.AHID, hold.agentID) != hold || holds.isScheduled(hold))
+                    continue;
+                holds.remove(hold);
+                if(account == null)
+                    continue;
+                // Never release more than is blocked, whatever the hold says
+                do {
+                    amount = Math.min(hold.amount, account.getBlockedFunds());
+                    funds = amount > 0 ? account.tryUnblockFunds(amount) : null;
+                } while(amount > 0 && funds == null);
+            }
+            if(funds != null){
+                sequence = append(Journal.UNBLOCK, hold.agentID, hold.AHID, amount, funds.version, 0, null);
+                released++;
+            }
+        }
+        if(released > 0)
+            log.info("Released {} expired holds", released);
+        commit(sequence);
+    }
+
+    /**
+     * Moves blocked funds from an agent account into an auction house account. With a
+     * settlement the auction house is credited in the next cycle.
+     *
+     * @param agentID   Agent ID
+     * @param AHID      Auction House ID
+     * @param amount    Amount to transfer
+     * @return 1 if transfer successful, -1 otherwise
+     */
+    public int transferFunds(int agentID, int AHID, long amount){
+        if(settlement != null)
+            return AHBankAccounts.get(AHID) == null ? -1 : transferOut(agentID, AHID, amount);
+
+        long start = System.nanoTime();
+        AgentBankAccount agent = agentBankAccounts.get(agentID);
+        BankAccount house = AHBankAccounts.get(AHID);
+        if(agent == null || house == null){
+            transferTimes.recordSince(start);
+            return -1;
+        }
+        Funds agentFunds;
+        Funds houseFunds;
+
+        Auditor.Pass pass = beginMove(agentID, AHID);
+        stripes.lock(agentID, AHID);
+        try {
+            // Removing funds from agent account was unsuccessful
+            agentFunds = transferBlocked(agent, AHID, amount);
+            if(agentFunds == null){
+                transferTimes.recordSince(start);
+                return -1;
+            }
+            houseFunds = house.change(amount, 0);
+            if(pass != null)
+                pass.moved(agentID, agentFunds.version, AHID, houseFunds.version, amount);
+        } finally {
+            stripes.unlock(agentID, AHID);
+            endMove(pass);
+        }
+
+        long sequence = append(Journal.TRANSFER, agentID, AHID, amount, agentFunds.version, houseFunds.version, null);
+        transferTimes.recordSince(start);
+        commit(sequence);
+        return 1;
+    }
+
+    /**
+     * Removes an agent's blocked funds for a transfer to an auction house, taking them from
+     * the auction house's hold on the agent if it has one
+     *
+     * @return state after the removal, null if not enough funds are blocked
+     */
+    private Funds transferBlocked(AgentBankAccount agent, int AHID, long amount){
+        if(holds == null)
+            return agent.tryTransferBlockedFunds(amount);
+        synchronized (holds.lockFor(AHID, agent.getID())){
+            Funds funds = agent.tryTransferBlockedFunds(amount);
+            if(funds != null)
+                holds.take(AHID, agent.getID(), amount, funds.version);
+            return funds;
+        }
+    }
+
+    /**
+     * First step of a transfer to an auction house owned by another shard, or settled later.
+     * Removes the agent's blocked funds and queues the transfer to be sent to the auction
+     * house's shard or settled.
+     *
+     * @param agentID   Agent ID
+     * @param AHID      Auction House ID
+     * @param amount    Amount to transfer
+     * @return 1 if the funds were removed and the transfer will be delivered, -1 otherwise
+     */
+    public int transferOut(int agentID, int AHID, long amount){
+        long start = System.nanoTime();
+        AgentBankAccount agent = agentBankAccounts.get(agentID);
+        Funds funds;
+        Auditor.Pass pass = beginMove(agentID, Auditor.outsideID(agentID));
+        try {
+            funds = agent == null ? null : transferBlocked(agent, AHID, amount);
+            if(funds == null){
+                transferTimes.recordSince(start);
+                return -1;
+            }
+            movedOutside(pass, agentID, -amount, funds.version);  // Held outside until delivered or settled
+        } finally {
+            endMove(pass);
+        }
+
+        long sequence;
+        synchronized (transfers){   // Transfers are queued in ID order
+            long ID = transfers.nextID();
+            sequence = append(Journal.TRANSFER_OUT, agentID, AHID, amount, funds.version, ID, null);
+            transfers.add(new ShardTransfers.Transfer(ID, agentID, AHID, amount, sequence));
+        }
+        transferTimes.recordSince(start);
+
+        commit(sequence);
+        return 1;
+    }
+
+    /**
+     * Second step of a transfer from another shard, crediting one of this shard's auction houses.
+     * A credit that was already applied is ignored. The credit may only be acknowledged
+     * once the returned journal record is durable.
+     *
+     * @param ID        transfer ID
+     * @param AHID      Auction House ID
+     * @param amount    Amount to credit
+     * @return Journal sequence number to wait for, 0 if journaling is disabled, -1 if the auction house does not exist
+     */
+    public long transferIn(long ID, int AHID, long amount){
+        BankAccount house = AHBankAccounts.get(AHID);
+        if(house == null)
+            return -1;
+
+        synchronized (transfers){
+            if(!transfers.markApplied(ID))
+                return journal == null ? 0 : journal.lastAppended();   // Resent, already applied
+            Funds funds;
+            Auditor.Pass pass = beginMove(Auditor.outsideID(AHID), AHID);
+            try {
+                funds = house.change(amount, 0);
+                movedOutside(pass, AHID, amount, funds.version);
+            } finally {
+                endMove(pass);
+            }
+            return append(Journal.TRANSFER_IN, AHID, 0, amount, funds.version, ID, null);
+        }
+    }
+
+    /**
+     * Completes a transfer once the auction house's shard has answered. If the shard refused
+     * the credit the funds are returned to the agent's blocked funds.
+     * A refund with no agent account to return it to is logged and dropped.
+     *
+     * @param ID        transfer ID
+     * @param credited  true if the credit was applied
+     */
+    public void transferDone(long ID, boolean credited){
+        ShardTransfers.Transfer transfer = transfers.remove(ID);
+        if(transfer == null)
+            return;     // Answer to a resent credit
+        long refund = 0;
+        long version = 0;
+        AgentBankAccount agent = agentBankAccounts.get(transfer.agentID);
+        if(!credited && agent == null)
+            log.error("Refused transfer {} has no agent account {} to refund", ID, transfer.agentID);
+        else if(!credited){
+            refund = transfer.amount;
+            Auditor.Pass pass = beginMove(Auditor.outsideID(transfer.agentID), transfer.agentID);
+            try {
+                version = agent.change(0, refund).version;
+                movedOutside(pass, transfer.agentID, refund, version);
+            } finally {
+                endMove(pass);
+            }
+        }
+        append(Journal.TRANSFER_DONE, transfer.agentID, transfer.AHID, refund, version, ID, null);
+    }
+
+    /**
+     * Credits this shard's auction houses with every transfer queued for them since the last
+     * settlement, one change and journal record per auction house. The agents were acknowledged
+     * when their funds were removed, so the records are not waited for: should they be lost the
+     * transfers are pending again after replay and settled once more.
+     */
+    void settle(){
+        ArrayList<ShardTransfers.Transfer> queued = transfers.settling();
+        if(queued.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+        long upTo = queued.get(queued.size() - 1).ID;
+        LinkedHashMap<Integer, Long> net = new LinkedHashMap<>();
+        for(ShardTransfers.Transfer transfer : queued){
+            net.merge(transfer.AHID, transfer.amount, Long::sum);
+        }
+
+        for(Map.Entry<Integer, Long> house : net.entrySet()){
+            BankAccount account = AHBankAccounts.get(house.getKey());
+            if(account == null){
+                log.error("Transfers to unknown auction house {} left unsettled", house.getKey());
+                continue;
+            }
+            Funds funds;
+            Auditor.Pass pass = beginMove(Auditor.outsideID(house.getKey()), house.getKey());
+            try {
+                funds = account.change(house.getValue(), 0);
+                movedOutside(pass, house.getKey(), house.getValue(), funds.version);
+            } finally {
+                endMove(pass);
+            }
+            append(Journal.SETTLE, house.getKey(), 0, house.getValue(), funds.version, upTo, null);
+            transfers.settled(house.getKey(), upTo);
+        }
+        settleTimes.recordSince(start);
+        log.debug("Settled {} transfers to {} auction houses", queued.size(), net.size());
+    }
+
+    /**
+     * Waits for a journal record to be durable, unless the caller is a selector worker that syncs once per pass
+     *
+     * @param sequence journal record sequence number, 0 if nothing was appended
+     */
+    public void awaitDurable(long sequence){
+        commit(sequence);
+    }
+
+    /**
+     * @param AHID      Auction House ID
+     * @param amount    amount to deposit
+     * @return new balance of the account
+     */
+    public long depositToAH(int AHID, long amount){
+        long start = System.nanoTime();
+        Funds funds;
+        Auditor.Pass pass = beginMove(Auditor.outsideID(AHID), AHID);
+        try {
+            funds = AHBankAccounts.get(AHID).change(amount, 0);
+            movedOutside(pass, AHID, amount, funds.version);
+        } finally {
+            endMove(pass);
+        }
+        long sequence = append(Journal.DEPOSIT, AHID, 0, amount, funds.version, 0, null);
+        depositTimes.recordSince(start);
+
+        commit(sequence);
+        return funds.balance;
+    }
+
+    /**
+     * Enters the auditor's pass before funds move between two accounts
+     *
+     * @param from  account funds are taken from, the outside for funds entering the ledger
+     * @param to    account funds are added to, the outside for funds leaving it
+     * @return Pass to record the move in, null if the ledger is not audited
+     */
+    private Auditor.Pass beginMove(int from, int to){
+        return auditor == null ? null : auditor.enter(from, to);
+    }
+
+    /**
+     * Records a move between an account and the outside, changing the outside by the opposite amount
+     *
+     * @param pass      pass entered for the move, null if the ledger is not audited
+     * @param ID        agent or auction house changed
+     * @param amount    amount added to the account, negative if taken from it
+     * @param version   version the change gave the account
+     */
+    private void movedOutside(Auditor.Pass pass, int ID, long amount, long version){
+        if(pass == null)
+            return;
+        long outsideVersion = auditor.changeOutside(ID, -amount);
+        if(amount >= 0)
+            pass.moved(Auditor.outsideID(ID), outsideVersion, ID, version, amount);
+        else
+            pass.moved(ID, version, Auditor.outsideID(ID), outsideVersion, -amount);
+    }
+
+    /**
+     * Leaves the auditor's pass once a move is recorded or did not happen
+     */
+    private static void endMove(Auditor.Pass pass){
+        if(pass != null)
+            pass.leave();
+    }
+
+    /**
+     * Appends a change to the journal, if enabled, and waits for it to be durable
+     * unless callers sync it themselves.
+     */
+    private void record(byte type, int first, int second, long amount, long firstVersion, long secondVersion, String name){
+        commit(append(type, first, second, amount, firstVersion, secondVersion, name));
+    }
+
+    /**
+     * Appends a change to the journal, if enabled.
+     *
+     * @return Sequence number of the journal record, 0 if journaling is disabled
+     */
+    private long append(byte type, int first, int second, long amount, long firstVersion, long secondVersion, String name){
+        if(journal == null)
+            return 0;
+        return journal.append(type, first, second, amount, firstVersion, secondVersion, name);
+    }
+
+    /**
+     * Waits for a journal record to be durable unless callers sync the journal themselves.
+     *
+     * @param sequence journal record sequence number, 0 if nothing was appended
+     */
+    private void commit(long sequence){
+        if(journal != null && sequence > 0 && !deferSync)
+            journal.awaitDurable(sequence);
+    }
+
+    /*
+     * Restoring from snapshots and the journal. These bypass all checks and are
+     * never journaled themselves.
+     */
+
+    /**
+     * @return Auction house accounts by ID
+     */
+    IntTable<BankAccount> getAHAccounts(){
+        return AHBankAccounts;
+    }
+
+    /**
+     * @return Agent accounts by ID
+     */
+    AgentAccountStore getAgentAccounts(){
+        return agentBankAccounts;
+    }
+
+    /**
+     * @param ID account ID
+     * @return version of the agent or auction house account, -1 if it does not exist
+     */
+    long versionOf(int ID){
+        BankAccount account = agentBankAccounts.get(ID);
+        if(account == null)
+            account = AHBankAccounts.get(ID);
+        return account == null ? -1 : account.getFunds().version;
+    }
+
+    void restoreAHAccount(int ID, Funds funds){
+        AHBankAccounts.putIfAbsent(ID, new BankAccount(funds));
+    }
+
+    void restoreAgentAccount(int ID, String name, Funds funds){
+        agentBankAccounts.putIfAbsent(ID, name, funds);
+    }
+
+    void restoreAgentChange(int ID, long balanceChange, long blockedChange){
+        agentBankAccounts.get(ID).change(balanceChange, blockedChange);
+    }
+
+    void restoreAHChange(int ID, long balanceChange){
+        AHBankAccounts.get(ID).change(balanceChange, 0);
+    }
+
+    /**
+     * Replays a change to a hold, unless the hold already includes it
+     *
+     * @param AHID          auction house holding the funds
+     * @param agentID       agent the funds are held on
+     * @param amount        amount added, or taken if negative
+     * @param leaseMillis   lease of added funds
+     * @param version       agent account version the change produced
+     */
+    void restoreHoldChange(int AHID, int agentID, long amount, int leaseMillis, long version){
+        if(holds == null)
+            return;
+        synchronized (holds.lockFor(AHID, agentID)){
+            FundHolds.Hold hold = holds.find(AHID, agentID);
+            if(hold != null && version <= hold.version)
+                return;
+            if(amount > 0)
+                holds.add(AHID, agentID, amount, leaseMillis, version);
+            else
+                holds.take(AHID, agentID, -amount, version);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.bankserver;
+
+/**
+ * Fixed set of locks shared by all accounts, selected by account ID.
+ * Operations that must change two accounts together lock both stripes
+ * in index order so they never deadlock with each other.
+ * Time spent waiting on a stripe held by another operation is recorded.
+ */
+public class LockStripes {
+    private final TimedLock[] locks;
+    private final int mask;
+
+    /**
+     * Creates a new set of stripes
+     *
+     * @param stripes minimum number of stripes, rounded up to a power of two
+     * @param waits   histogram waits for a stripe are recorded in
+     */
+    public LockStripes(int stripes, LatencyHistogram waits){
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new TimedLock[size];
+        for(int i = 0; i < size; i++){
+            locks[i] = new TimedLock(waits);
+        }
+        mask = size - 1;
+    }
+
+    private int index(int ID){
+        int h = ID * 0x9E3779B9;    // Spread sequential IDs across stripes
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Locks the stripes of two accounts in a consistent order
+     *
+     * @param firstID   first account ID
+     * @param secondID  second account ID
+     */
+    public void lock(int firstID, int secondID){
+        int first = index(firstID);
+        int second = index(secondID);
+        locks[Math.min(first, second)].lock();
+        if(first != second)
+            locks[Math.max(first, second)].lock();
+    }
+
+    /**
+     * Unlocks the stripes of two accounts locked with {@link #lock(int, int)}
+     *
+     * @param firstID   first account ID
+     * @param secondID  second account ID
+     */
+    public void unlock(int firstID, int secondID){
+        int first = index(firstID);
+        int second = index(secondID);
+        if(first != second)
+            locks[Math.max(first, second)].unlock();
+        locks[Math.min(first, second)].unlock();
+    }
+}
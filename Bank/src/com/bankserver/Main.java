@@ -1,10 +1,95 @@
 package com.bankserver;
 
+import com.auctionprotocol.WireProtocol;
+
+import java.nio.file.Paths;
+
 public class Main {
     public static void main(String[] args) {
         BankServer server = new BankServer();
+
+        // Optional server flags
+        for(String arg : args){
+            if(arg.equals("--nio")){
+                server.setNonBlocking(Runtime.getRuntime().availableProcessors());
+            }
+            else if(arg.startsWith("--nio=")){
+                server.setNonBlocking(Integer.parseInt(arg.substring("--nio=".length())));
+            }
+            else if(arg.startsWith("--journal=")){
+                server.enableJournal(Paths.get(arg.substring("--journal=".length())));
+            }
+            else if(arg.startsWith("--snapshot=")){
+                // Optional interval in seconds after the path, i.e. --snapshot=ledger.snap,30
+                String[] values = arg.substring("--snapshot=".length()).split(",");
+                long seconds = values.length > 1 ? Long.parseLong(values[1]) : 60;
+                server.enableSnapshots(Paths.get(values[0]), seconds * 1000);
+            }
+            else if(arg.startsWith("--store=")){
+                // Memory-mapped agent account file and optional number of accounts, i.e. --store=accounts.map,50000000
+                String[] values = arg.substring("--store=".length()).split(",");
+                long accounts = values.length > 1 ? Long.parseLong(values[1]) : 1 << 24;
+                server.useMappedAccounts(Paths.get(values[0]), accounts);
+            }
+            else if(arg.startsWith("--identities=")){
+                // Agent account database and optional number of accounts kept in memory, i.e. --identities=identifier.sqlite,65536
+                String[] values = arg.substring("--identities=".length()).split(",");
+                int cached = values.length > 1 ? Integer.parseInt(values[1]) : 1 << 16;
+                server.useIdentities(Paths.get(values[0]), cached);
+            }
+            else if(arg.startsWith("--shard=")){
+                // Index and number of shards, i.e. --shard=0/2
+                String[] values = arg.substring("--shard=".length()).split("/");
+                server.setShard(Integer.parseInt(values[0]), Integer.parseInt(values[1]));
+            }
+            else if(arg.startsWith("--secret=")){
+                // File holding the secret shared by every shard and standby, i.e. --secret=bank.secret
+                server.useSecret(Paths.get(arg.substring("--secret=".length())));
+            }
+            else if(arg.startsWith("--replicate=")){
+                // Replication port and optional mode, i.e. --replicate=1100,sync
+                String[] values = arg.substring("--replicate=".length()).split(",");
+                server.enableReplication(Integer.parseInt(values[0]), values.length > 1 && values[1].equals("sync"));
+            }
+            else if(arg.startsWith("--standby=")){
+                // Primary's host and replication port, and optional promotion timeout in seconds, i.e. --standby=localhost:1100,5
+                String[] values = arg.substring("--standby=".length()).split(",");
+                String[] address = values[0].split(":");
+                long seconds = values.length > 1 ? Long.parseLong(values[1]) : 5;
+                server.followPrimary(address[0], Integer.parseInt(address[1]), seconds * 1000);
+            }
+            else if(arg.startsWith("--dedupe=")){
+                // Seconds idempotency keys are remembered and optional keys per period, i.e. --dedupe=120,262144
+                String[] values = arg.substring("--dedupe=".length()).split(",");
+                int capacity = values.length > 1 ? Integer.parseInt(values[1]) : 1 << 18;
+                server.configureDedupe(Long.parseLong(values[0]) * 1000, capacity);
+            }
+            else if(arg.startsWith("--settle=")){
+                // Milliseconds between settlements of transfers to auction houses, 0 to credit them straight away
+                server.configureSettlement(Long.parseLong(arg.substring("--settle=".length())));
+            }
+            else if(arg.startsWith("--audit=")){
+                // Accounts read per second by the ledger auditor, i.e. --audit=100000
+                server.enableAudit(Long.parseLong(arg.substring("--audit=".length())));
+            }
+            else if(arg.startsWith("--queues=")){
+                // Requests moving funds and agent reads queued before busy answers, i.e. --queues=4096,256
+                String[] values = arg.substring("--queues=".length()).split(",");
+                server.configureLanes(Integer.parseInt(values[0]), Integer.parseInt(values[values.length > 1 ? 1 : 0]));
+            }
+            else if(arg.startsWith("--stats=")){
+                server.enableStats(Integer.parseInt(arg.substring("--stats=".length())));
+            }
+            else if(arg.equals("--protocol=json")){
+                // Only offer the original JSON messages, i.e. to inspect traffic
+                server.setSupportedFeatures(WireProtocol.FEATURE_JSON);
+            }
+            else{
+                System.out.println("Unknown argument: " + arg);
+                return;
+            }
+        }
+
         new Thread(server).start();
     }
 }
-
-
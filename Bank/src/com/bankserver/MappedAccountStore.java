@@ -0,0 +1,266 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Agent accounts kept off the heap in fixed-width slots of a memory-mapped file, so the
+ * heap and garbage collection pauses stay the same however many accounts there are.
+ *
+ * An account's slot is picked by its ID, so lookups need no table. Slots are mapped
+ * in chunks of 1 GB when the store is created; the file is sparse and the operating
+ * system only backs the pages of slots in use.
+ *
+ * Slot layout: [sequence long][version long][balance long][blocked long][name length + 1 int][name 28 bytes]
+ * A name length of 0 marks a free slot. Names are cut to 28 bytes of UTF-8.
+ *
+ * Each slot is a sequence lock. A writer takes it by moving the sequence from even to odd
+ * with a compare-and-set, writes the funds and releases it by moving it to the next even
+ * number. Readers never write: they read the funds between two reads of the same even
+ * sequence, and retry otherwise. A compare-and-set of the funds only succeeds if the slot
+ * still has the expected version, which is unique to every state of an account.
+ *
+ * Operations see a slot through an {@link AgentBankAccount} created for the lookup, which
+ * is only referenced while the operation runs.
+ *
+ * The file is scratch space, not a durable copy of the ledger. It is emptied when the bank
+ * starts, which restores the accounts from the snapshot and journal as usual.
+ */
+public class MappedAccountStore implements AgentAccountStore {
+    private static final Logger log = Log.get("bank.ledger");
+
+    /** Atomic access to the fields of a slot */
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private static final int SLOT_SIZE = 64;
+    private static final int SEQUENCE = 0;
+    private static final int VERSION = 8;
+    private static final int BALANCE = 16;
+    private static final int BLOCKED = 24;
+    private static final int NAME_LENGTH = 32;
+    private static final int NAME = 36;
+    private static final int MAX_NAME_SIZE = SLOT_SIZE - NAME;
+    /** Slots per mapped chunk, 1 GB each */
+    private static final int CHUNK_BITS = 24;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private final MappedByteBuffer[] chunks;
+    /** Number of slots, the highest account index plus one */
+    private final long capacity;
+    /** Index of this shard and number of shards, since a shard only stores the IDs it owns */
+    private final int shard;
+    private final int shards;
+    private final AtomicInteger size;
+    /** Highest slot index in use, bounding the slots visited */
+    private final AtomicInteger highestIndex;
+
+    /**
+     * An account while an operation runs on it, reading and replacing its funds in the slot
+     */
+    private static final class SlotAccount extends AgentBankAccount {
+        private final MappedByteBuffer chunk;
+        private final int slot;
+
+        SlotAccount(MappedByteBuffer chunk, int slot, int ID){
+            super(null, null, ID);
+            this.chunk = chunk;
+            this.slot = slot;
+        }
+
+        @Override
+        Funds getFunds() {
+            return read(chunk, slot);
+        }
+
+        @Override
+        protected boolean compareAndSetFunds(Funds expected, Funds next) {
+            long sequence = lock(chunk, slot);
+            boolean matched = (long) LONGS.get(chunk, slot + VERSION) == expected.version;
+            if(matched)
+                write(chunk, slot, next);
+            LONGS.setRelease(chunk, slot + SEQUENCE, sequence + 2);
+            return matched;
+        }
+
+        @Override
+        public String getName() {
+            int length = (int) INTS.getAcquire(chunk, slot + NAME_LENGTH) - 1;
+            byte[] name = new byte[Math.max(0, length)];
+            for(int i = 0; i < name.length; i++){
+                name[i] = chunk.get(slot + NAME + i);
+            }
+            return new String(name, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Creates an empty store, replacing any existing file
+     *
+     * @param path      file location
+     * @param accounts  number of accounts to make room for, including IDs taken by auction houses
+     * @param shard     index of this shard, see {@link BankServer#setShard(int, int)}
+     * @param shards    number of shards
+     */
+    public MappedAccountStore(Path path, long accounts, int shard, int shards) throws IOException {
+        this.shard = shard;
+        this.shards = shards;
+        long chunkCount = (Math.max(1, accounts) + CHUNK_MASK) >>> CHUNK_BITS;
+        capacity = Math.min(chunkCount << CHUNK_BITS, (long) Integer.MAX_VALUE + 1);
+        chunks = new MappedByteBuffer[(int) ((capacity + CHUNK_MASK) >>> CHUNK_BITS)];
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            for(int i = 0; i < chunks.length; i++){
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, ((long) i << CHUNK_BITS) * SLOT_SIZE,
+                        (long) SLOT_SIZE << CHUNK_BITS);     // Mappings stay valid once the channel is closed
+            }
+        }
+        size = new AtomicInteger(0);
+        highestIndex = new AtomicInteger(-1);
+        log.info("Mapped account store for {} accounts at {}", capacity, path);
+    }
+
+    @Override
+    public AgentBankAccount get(int ID) {
+        long index = indexOf(ID);
+        if(index < 0 || index >= capacity)
+            return null;
+        MappedByteBuffer chunk = chunks[(int) (index >>> CHUNK_BITS)];
+        int slot = (int) (index & CHUNK_MASK) * SLOT_SIZE;
+        if((int) INTS.getAcquire(chunk, slot + NAME_LENGTH) == 0)
+            return null;
+        return new SlotAccount(chunk, slot, ID);
+    }
+
+    @Override
+    public void put(int ID, String name, Funds funds) {
+        store(ID, name, funds, true);
+    }
+
+    @Override
+    public void putIfAbsent(int ID, String name, Funds funds) {
+        store(ID, name, funds, false);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        int highest = highestIndex.get();
+        for(int index = 0; index <= highest; index++){
+            MappedByteBuffer chunk = chunks[index >>> CHUNK_BITS];
+            int slot = (index & CHUNK_MASK) * SLOT_SIZE;
+            if((int) INTS.getAcquire(chunk, slot + NAME_LENGTH) != 0)
+                visitor.visit(new SlotAccount(chunk, slot, (int) ((long) index * shards + shard + 1)));
+        }
+    }
+
+    /**
+     * Writes an account into its slot
+     *
+     * @param replace true to overwrite an account already in the slot
+     */
+    private void store(int ID, String name, Funds funds, boolean replace){
+        long index = indexOf(ID);
+        if(index < 0 || index >= capacity)
+            throw new IllegalStateException("Account store has no room for ID " + ID + ", it holds " + capacity + " accounts");
+        MappedByteBuffer chunk = chunks[(int) (index >>> CHUNK_BITS)];
+        int slot = (int) (index & CHUNK_MASK) * SLOT_SIZE;
+        byte[] bytes = truncate(name);
+
+        long sequence = lock(chunk, slot);
+        boolean free = (int) INTS.get(chunk, slot + NAME_LENGTH) == 0;
+        if(free || replace){
+            write(chunk, slot, funds);
+            for(int i = 0; i < bytes.length; i++){
+                chunk.put(slot + NAME + i, bytes[i]);
+            }
+            INTS.setRelease(chunk, slot + NAME_LENGTH, bytes.length + 1);  // Publish the slot after its contents
+        }
+        LONGS.setRelease(chunk, slot + SEQUENCE, sequence + 2);
+
+        if(free){
+            size.incrementAndGet();
+            highestIndex.accumulateAndGet((int) index, Math::max);
+        }
+    }
+
+    /**
+     * @return Slot index of an ID, -1 if the ID is not valid or owned by another shard
+     */
+    private long indexOf(int ID){
+        if(ID <= 0 || (ID - 1) % shards != shard)
+            return -1;
+        return (ID - 1) / shards;
+    }
+
+    /**
+     * Takes a slot's lock, spinning while another writer holds it
+     *
+     * @return Even sequence the slot had, to release the lock with
+     */
+    private static long lock(MappedByteBuffer chunk, int slot){
+        while(true){
+            long sequence = (long) LONGS.getVolatile(chunk, slot + SEQUENCE);
+            if((sequence & 1) == 0 && LONGS.compareAndSet(chunk, slot + SEQUENCE, sequence, sequence + 1)){
+                VarHandle.storeStoreFence();    // Readers see the odd sequence before any change
+                return sequence;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Reads a slot's funds without locking, retrying while a writer changes them
+     */
+    private static Funds read(MappedByteBuffer chunk, int slot){
+        while(true){
+            long sequence = (long) LONGS.getAcquire(chunk, slot + SEQUENCE);
+            if((sequence & 1) == 0){
+                long balance = (long) LONGS.getOpaque(chunk, slot + BALANCE);
+                long blocked = (long) LONGS.getOpaque(chunk, slot + BLOCKED);
+                long version = (long) LONGS.getOpaque(chunk, slot + VERSION);
+                VarHandle.loadLoadFence();
+                if((long) LONGS.getOpaque(chunk, slot + SEQUENCE) == sequence)
+                    return new Funds(balance, blocked, version);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Writes a slot's funds. Caller holds the slot's lock.
+     */
+    private static void write(MappedByteBuffer chunk, int slot, Funds funds){
+        LONGS.setOpaque(chunk, slot + BALANCE, funds.balance);
+        LONGS.setOpaque(chunk, slot + BLOCKED, funds.blocked);
+        LONGS.setOpaque(chunk, slot + VERSION, funds.version);
+    }
+
+    /**
+     * @return UTF-8 bytes of a name, cut to whole characters fitting in a slot
+     */
+    private static byte[] truncate(String name){
+        String cut = name == null ? "" : name;
+        byte[] bytes = cut.getBytes(StandardCharsets.UTF_8);
+        while(bytes.length > MAX_NAME_SIZE){
+            cut = cut.substring(0, cut.offsetByCodePoints(cut.length(), -1));
+            bytes = cut.getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,234 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ships the primary bank's journal to a standby bank, see {@link Standby}.
+ *
+ * A standby connects to the replication port and sends the length of its own journal. It is sent
+ * everything the primary has synced after that offset, and then every batch as the journal flusher
+ * syncs it. The standby answers every message with the offset its own journal is synced up to.
+ *
+ * Replication is asynchronous by default: a change is acknowledged to clients once it is synced
+ * locally, so a failover can lose the last few batches. In synchronous mode the flusher also waits
+ * for the standby to sync each batch, so acknowledged changes survive losing the primary. If the
+ * standby does not answer in time the flusher carries on without it rather than stopping the bank.
+ *
+ * Standby to primary: [magic int][journal length long], then [synced offset long]...
+ * Primary to standby: [offset long][length int][records]..., empty batches while idle
+ */
+public class Replicator implements Runnable {
+    private static final Logger log = Log.get("bank.replication");
+
+    static final int MAGIC = 0x52504C43; // "RPLC"
+    /** Time between messages to an idle standby, so it can tell the primary is alive */
+    static final long HEARTBEAT_MILLIS = 500;
+    /** Longest time the flusher waits for the standby in synchronous mode */
+    private static final long ACK_TIMEOUT_MILLIS = 1000;
+    /** Catch-up read size, larger than any single record */
+    private static final int CATCH_UP_CHUNK = 256 * 1024;
+
+    private final Journal journal;
+    private final int port;
+    private final boolean synchronous;
+    /** Time the flusher waits for the standby in synchronous mode */
+    private final LatencyHistogram ackWaits;
+    /** Connected standby, null if none, guarded by this */
+    private DataOutputStream standby;
+    /** Journal offset sent to the standby, guarded by this */
+    private long shippedOffset;
+    /** Journal offset synced by the flusher, guarded by this */
+    private long journalEnd;
+    /** Journal offset the standby has synced, guarded by this */
+    private long ackedOffset;
+    /** Time of the last message to the standby, guarded by this */
+    private long lastSent;
+
+    /**
+     * @param journal       primary's journal, with every appended record already synced
+     * @param port          port standbys connect to
+     * @param synchronous   true if the flusher waits for the standby to sync every batch
+     * @param stats         statistics waits for the standby are recorded in
+     */
+    public Replicator(Journal journal, int port, boolean synchronous, BankStats stats){
+        this.journal = journal;
+        this.port = port;
+        this.synchronous = synchronous;
+        ackWaits = stats.histogram("wait replication ack");
+        standby = null;
+        journalEnd = journal.appendedOffset();
+        shippedOffset = 0;
+        ackedOffset = 0;
+    }
+
+    /**
+     * Accepts one standby at a time and reads its acknowledgements until it disconnects
+     */
+    @Override
+    public void run() {
+        ServerSocket server;
+        try {
+            server = new ServerSocket(port);
+        } catch (IOException e) {
+            log.error("Unable to listen for standbys on port {}", port);
+            return;
+        }
+        log.info("Replicating {} to standbys on port {}", synchronous ? "synchronously" : "asynchronously", port);
+
+        while(true){
+            try(Socket socket = server.accept()){
+                follow(socket);
+            } catch (IOException e) {
+                log.warn("Standby disconnected");
+            } finally {
+                detach();
+            }
+        }
+    }
+
+    private void follow(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if(in.readInt() != MAGIC)
+            throw new IOException("Not a standby");
+        long offset = in.readLong();
+        log.info("Standby connected at journal offset {}", offset);
+
+        catchUp(out, offset);
+
+        socket.setSoTimeout((int) HEARTBEAT_MILLIS);
+        while(true){
+            long acked;
+            try {
+                acked = in.readLong();
+            } catch (SocketTimeoutException e) {
+                heartbeat();
+                continue;
+            }
+            synchronized (this){
+                ackedOffset = Math.max(ackedOffset, acked);
+                notifyAll();
+            }
+            heartbeat();
+        }
+    }
+
+    /**
+     * Sends the standby everything synced after its offset, then attaches it so the
+     * flusher ships it every following batch
+     */
+    private void catchUp(DataOutputStream out, long offset) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(CATCH_UP_CHUNK);
+        while(true){
+            long end;
+            synchronized (this){
+                end = journalEnd;
+                if(offset > end)
+                    throw new IOException("Standby journal is ahead of the primary's");
+                if(offset == end){
+                    standby = out;
+                    shippedOffset = offset;
+                    ackedOffset = offset;
+                    lastSent = System.nanoTime();
+                    return;
+                }
+            }
+
+            chunk.clear().limit((int) Math.min(chunk.capacity(), end - offset));
+            while(chunk.hasRemaining()){
+                if(journal.read(chunk, offset + chunk.position()) < 0)
+                    throw new IOException("Journal ended before offset " + end);
+            }
+            chunk.flip();
+            chunk.limit(wholeRecords(chunk));
+            if(!chunk.hasRemaining())
+                throw new IOException("Journal record at offset " + offset + " is corrupt");
+            send(out, offset, chunk);
+            offset += chunk.limit();
+        }
+    }
+
+    /**
+     * @return Length of the complete records at the start of a buffer
+     */
+    private static int wholeRecords(ByteBuffer records){
+        int position = 0;
+        while(records.limit() - position >= 4){
+            int next = position + 4 + records.getInt(position) + 4;
+            if(next > records.limit() || next <= position)
+                break;
+            position = next;
+        }
+        return position;
+    }
+
+    /**
+     * Ships a batch the flusher has synced. In synchronous mode waits for the standby to sync it.
+     *
+     * @param batch whole records, as written to the journal
+     * @param start journal offset of the batch
+     */
+    synchronized void ship(ByteBuffer batch, long start){
+        journalEnd = start + batch.remaining();
+        if(standby == null || journalEnd <= shippedOffset)
+            return;     // No standby, or it was sent while the standby caught up
+
+        try {
+            send(standby, start, batch);
+        } catch (IOException e) {
+            detach();
+            return;
+        }
+        shippedOffset = journalEnd;
+        lastSent = System.nanoTime();
+
+        if(!synchronous)
+            return;
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS);
+        while(standby != null && ackedOffset < journalEnd){
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if(remaining <= 0){
+                log.warn("Standby did not sync in time. Continuing without it");
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        ackWaits.recordSince(begin);
+    }
+
+    /**
+     * Sends an empty batch if the standby has not heard from the primary recently
+     */
+    private synchronized void heartbeat() throws IOException {
+        if(standby == null || System.nanoTime() - lastSent < TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS))
+            return;
+        send(standby, shippedOffset, ByteBuffer.allocate(0));
+        lastSent = System.nanoTime();
+    }
+
+    private void send(DataOutputStream out, long offset, ByteBuffer records) throws IOException {
+        out.writeLong(offset);
+        out.writeInt(records.remaining());
+        out.write(records.array(), records.arrayOffset() + records.position(), records.remaining());
+        out.flush();
+    }
+
+    private synchronized void detach(){
+        standby = null;
+        notifyAll();    // Release a flusher waiting on the standby
+    }
+}
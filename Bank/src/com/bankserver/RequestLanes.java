@@ -0,0 +1,188 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of threads running requests from bounded queues, one per class of request.
+ *
+ * Requests that move funds, auction house blocks and unblocks and agent transfers, are
+ * taken before agent reads, so bids are not held up when many agents poll the bank at
+ * once. Reads are only let through ahead of waiting funds requests once every
+ * {@link #FUNDS_BURST} requests, so they are slowed rather than starved.
+ *
+ * Each queue holds a fixed number of requests. A request arriving at a full queue is
+ * either refused straight away, for clients that accept a busy answer, or waits for room,
+ * which holds up the client's connection rather than piling up more work.
+ */
+public class RequestLanes {
+    private static final Logger log = Log.get("bank.lanes");
+
+    /** Auction house blocks and unblocks, agent transfers and credits from other shards */
+    public static final int FUNDS = 0;
+    /** Agent bank info and auction house directory requests */
+    public static final int READS = 1;
+    private static final String[] LANE_NAMES = {"funds", "reads"};
+    /** Funds requests taken in a row while reads wait, before one read is let through */
+    private static final int FUNDS_BURST = 16;
+
+    /** A queued request and when it was queued */
+    private static final class Queued {
+        final Runnable request;
+        final long queued;
+
+        Queued(Runnable request){
+            this.request = request;
+            queued = System.nanoTime();
+        }
+    }
+
+    /** Queue of one class of requests, guarded by the lanes' lock */
+    private static final class Lane {
+        final ArrayDeque<Queued> queue;
+        final int capacity;
+        /** Signalled when a request is taken from the queue */
+        final Condition space;
+        /** Time requests wait in the queue */
+        final LatencyHistogram waits;
+        /** Requests refused because the queue was full, timed from arrival to refusal */
+        final LatencyHistogram refused;
+
+        Lane(int capacity, Condition space, LatencyHistogram waits, LatencyHistogram refused){
+            queue = new ArrayDeque<>();
+            this.capacity = capacity;
+            this.space = space;
+            this.waits = waits;
+            this.refused = refused;
+        }
+    }
+
+    private final Lane[] lanes;
+    private final ReentrantLock lock;
+    /** Signalled when a request is queued */
+    private final Condition work;
+    /** Funds requests taken in a row while reads waited, guarded by the lock */
+    private int fundsInARow;
+
+    /**
+     * @param fundsCapacity requests the funds queue holds
+     * @param readsCapacity requests the reads queue holds
+     * @param stats         statistics queue waits and refusals are recorded in
+     */
+    public RequestLanes(int fundsCapacity, int readsCapacity, BankStats stats){
+        lock = new ReentrantLock();
+        work = lock.newCondition();
+        int[] capacities = {fundsCapacity, readsCapacity};
+        lanes = new Lane[LANE_NAMES.length];
+        for(int i = 0; i < lanes.length; i++){
+            lanes[i] = new Lane(Math.max(1, capacities[i]), lock.newCondition(),
+                    stats.histogram("wait lane " + LANE_NAMES[i]), stats.histogram("busy lane " + LANE_NAMES[i]));
+        }
+        fundsInARow = 0;
+    }
+
+    /**
+     * Starts the threads running queued requests
+     *
+     * @param threads number of threads
+     */
+    public void start(int threads){
+        for(int i = 0; i < threads; i++){
+            new Thread(this::runRequests, "request-lanes-" + i).start();
+        }
+    }
+
+    /**
+     * Queues a request unless its queue is full
+     *
+     * @param lane      {@link #FUNDS} or {@link #READS}
+     * @param request   request to run
+     * @return false if the queue was full and the request was refused
+     */
+    public boolean offer(int lane, Runnable request){
+        long start = System.nanoTime();
+        Lane queue = lanes[lane];
+        lock.lock();
+        try {
+            if(queue.queue.size() >= queue.capacity){
+                queue.refused.recordSince(start);
+                return false;
+            }
+            queue.queue.add(new Queued(request));
+            work.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a request, waiting for room in its queue if it is full
+     *
+     * @param lane      {@link #FUNDS} or {@link #READS}
+     * @param request   request to run
+     */
+    public void put(int lane, Runnable request) throws InterruptedException {
+        Lane queue = lanes[lane];
+        lock.lock();
+        try {
+            while(queue.queue.size() >= queue.capacity){
+                queue.space.await();
+            }
+            queue.queue.add(new Queued(request));
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs queued requests, funds first, until interrupted
+     */
+    private void runRequests(){
+        while(true){
+            Queued next;
+            Lane lane;
+            lock.lock();
+            try {
+                while((lane = nextLane()) == null){
+                    work.await();
+                }
+                next = lane.queue.poll();
+                lane.space.signal();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            lane.waits.recordSince(next.queued);
+            try {
+                next.request.run();
+            } catch (RuntimeException e) {
+                log.error("Request failed", e);
+            }
+        }
+    }
+
+    /**
+     * Picks the queue to take the next request from. Caller holds the lock.
+     *
+     * @return Queue of the next request, null if every queue is empty
+     */
+    private Lane nextLane(){
+        Lane funds = lanes[FUNDS];
+        Lane reads = lanes[READS];
+        if(funds.queue.isEmpty() || (!reads.queue.isEmpty() && fundsInARow >= FUNDS_BURST)){
+            fundsInARow = 0;
+            return reads.queue.isEmpty() ? null : reads;
+        }
+        if(!reads.queue.isEmpty())
+            fundsInARow++;
+        return funds;
+    }
+}
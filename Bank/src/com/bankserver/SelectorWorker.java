@@ -0,0 +1,122 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Services reads and writes for many non-blocking client sessions
+ * on a single thread.
+ *
+ * Sessions of auction houses are read before agents' in every pass, so blocks and unblocks
+ * are not held up behind a burst of agent requests.
+ */
+public class SelectorWorker implements Runnable {
+    private static final Logger log = Log.get("bank.nio");
+
+    private final Selector selector;
+    /** Sessions accepted by the server waiting to be registered */
+    private final ConcurrentLinkedQueue<ChannelSession> registrations;
+    /** Sessions with output queued from another thread */
+    private final ConcurrentLinkedQueue<ChannelSession> writeRequests;
+    /** Readable sessions of later lanes, read once the rest of the pass is done */
+    private final ArrayList<ChannelSession> deferred;
+    /** Journal responses must be synced to before they are written, null if disabled */
+    private final Journal journal;
+    private volatile Thread thread;
+
+    /**
+     * Creates a new selector worker
+     *
+     * @param journal bank journal, null if journaling is disabled
+     */
+    public SelectorWorker(Journal journal) throws IOException {
+        this.journal = journal;
+        selector = Selector.open();
+        registrations = new ConcurrentLinkedQueue<>();
+        writeRequests = new ConcurrentLinkedQueue<>();
+        deferred = new ArrayList<>();
+    }
+
+    /**
+     * Hands a new session to this worker.
+     *
+     * @param session session to service
+     */
+    public void register(ChannelSession session){
+        registrations.add(session);
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules a session's queued output to be written.
+     * Output produced on the worker thread is written before it selects again.
+     *
+     * @param session session with pending output
+     */
+    public void requestWrite(ChannelSession session){
+        writeRequests.add(session);
+        if(Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        ChannelSession session;
+
+        while(true){
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("Selector worker failed. Terminating worker", e);
+                return;
+            }
+
+            // Register newly accepted sessions
+            while((session = registrations.poll()) != null){
+                try {
+                    session.register(selector);
+                } catch (ClosedChannelException e) {
+                    session.close();
+                }
+            }
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while(iterator.hasNext()){
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                session = (ChannelSession) key.attachment();
+
+                if(key.isValid() && key.isWritable())
+                    session.writePending();
+                if(key.isValid() && key.isReadable()){
+                    if(session.lane() == RequestLanes.FUNDS)
+                        session.onReadable();
+                    else
+                        deferred.add(session);
+                }
+            }
+
+            for(ChannelSession later : deferred){
+                later.onReadable();
+            }
+            deferred.clear();
+
+            // Every request handled this pass shares a single journal sync
+            if(journal != null && !writeRequests.isEmpty())
+                journal.awaitDurable(journal.lastAppended());
+
+            // Flush output queued since the last pass
+            while((session = writeRequests.poll()) != null){
+                session.writePending();
+            }
+        }
+    }
+}
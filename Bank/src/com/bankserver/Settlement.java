@@ -0,0 +1,61 @@
+package com.bankserver;
+
+import com.auctionprotocol.TimingWheel;
+
+import java.util.ArrayList;
+
+/**
+ * Credits transfers to this shard's auction houses in periodic cycles rather than one by one.
+ *
+ * A transfer only removes the agent's blocked funds and journals the transfer as pending, as
+ * transfers to other shards do, so the agent's acknowledgement never waits on the auction
+ * house's account. Every cycle the ledger nets the pending transfers by auction house and
+ * credits each auction house once, see {@link Ledger#settle()}. Cycles run on the bank's
+ * shared {@link TimingWheel}.
+ */
+public class Settlement implements TimingWheel.Handler {
+    /** The timeout of the next cycle */
+    private static final class Cycle extends TimingWheel.Timeout {
+        Cycle(Settlement settlement){
+            super(settlement);
+        }
+    }
+
+    private final TimingWheel wheel;
+    private final long intervalMillis;
+    private final Cycle cycle;
+    /** Ledger settled every cycle, set once the ledger starts serving */
+    private volatile Ledger ledger;
+
+    /**
+     * @param wheel             wheel cycles run on
+     * @param intervalMillis    time between cycles
+     */
+    public Settlement(TimingWheel wheel, long intervalMillis){
+        this.wheel = wheel;
+        this.intervalMillis = intervalMillis;
+        cycle = new Cycle(this);
+    }
+
+    /**
+     * Starts settling, beginning with any transfers restored as pending
+     *
+     * @param ledger ledger to settle
+     */
+    void start(Ledger ledger){
+        this.ledger = ledger;
+        wheel.schedule(cycle, intervalMillis);
+    }
+
+    /**
+     * Settles the pending transfers and schedules the next cycle
+     */
+    @Override
+    public void expired(ArrayList<TimingWheel.Timeout> expired) {
+        try {
+            ledger.settle();
+        } finally {
+            wheel.schedule(cycle, intervalMillis);
+        }
+    }
+}
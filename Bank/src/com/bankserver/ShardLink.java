@@ -0,0 +1,135 @@
+package com.bankserver;
+
+import com.auctionprotocol.FrameDecoder;
+import com.auctionprotocol.FrameEncoder;
+import com.auctionprotocol.Shards;
+import com.auctionprotocol.WireProtocol;
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * Delivers this shard's transfers to auction houses owned by one other shard.
+ *
+ * The link connects to the other shard's auction house port and logs in as a shard, with the token
+ * of this shard under the secret every shard shares. It sends every pending transfer to that shard
+ * in ID order, each only once its journal record is durable,
+ * and completes a transfer when the shard answers. After a dropped connection every transfer
+ * still pending is sent again, and the other shard skips the credits it has already applied.
+ */
+public class ShardLink implements Runnable {
+    private static final Logger log = Log.get("bank.shard");
+
+    /** Time between connection attempts */
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Ledger ledger;
+    private final Journal journal;
+    /** Proves this bank is a shard when logging in */
+    private final Credentials credentials;
+    /** Host every shard listens on */
+    private final String host;
+    /** Shard the link delivers to */
+    private final int peer;
+
+    /**
+     * @param ledger        this shard's ledger
+     * @param journal       this shard's journal, null if disabled
+     * @param credentials   credentials every shard shares
+     * @param host          host the other shard listens on
+     * @param peer          index of the other shard
+     */
+    public ShardLink(Ledger ledger, Journal journal, Credentials credentials, String host, int peer){
+        this.ledger = ledger;
+        this.journal = journal;
+        this.credentials = credentials;
+        this.host = host;
+        this.peer = peer;
+    }
+
+    /**
+     * Connects to the other shard and sends transfers until the connection drops, then reconnects
+     */
+    @Override
+    public void run() {
+        while(true){
+            try(Socket socket = new Socket(host, Shards.auctionHousePort(peer))){
+                log.info("Connected to shard {}", peer);
+                deliver(socket);
+            } catch (IOException e) {
+                log.debug("No connection to shard {}", peer);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void deliver(Socket socket) throws IOException, InterruptedException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        FrameEncoder encoder = new FrameEncoder();
+        FrameDecoder decoder = new FrameDecoder();
+
+        if(!WireProtocol.isBinary(WireProtocol.offer(out, in, WireProtocol.FEATURE_BINARY)))
+            throw new IOException("Shard " + peer + " does not support binary frames");
+        int shard = ledger.getTransfers().getShard();
+        encoder.begin('p').putInt(shard).putLong(credentials.token(Credentials.SHARD, shard)).end();
+        encoder.writeTo(out);
+        out.flush();
+        if(decoder.readFrom(in) != 'i')
+            throw new IOException("Shard " + peer + " did not accept the login");
+
+        Thread reader = new Thread(() -> readResults(socket, in), "shard-link-reader-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+
+        // Send every pending transfer, starting over from the first on each connection
+        long lastSent = 0;
+        ShardTransfers transfers = ledger.getTransfers();
+        while(!socket.isClosed()){
+            ShardTransfers.Transfer transfer = transfers.next(peer, lastSent, RETRY_MILLIS);
+            if(transfer == null)
+                continue;
+            if(journal != null && transfer.journalSequence > 0)
+                journal.awaitDurable(transfer.journalSequence);     // Never credit funds that could still be restored
+            encoder.begin('C').putLong(transfer.ID).putInt(transfer.AHID).putLong(transfer.amount).end();
+            encoder.writeTo(out);
+            if(transfers.next(peer, transfer.ID, 0) == null)
+                out.flush();    // Flush once the backlog is sent
+            lastSent = transfer.ID;
+        }
+    }
+
+    /**
+     * Completes transfers as the other shard answers them, closing the socket once it fails
+     */
+    private void readResults(Socket socket, DataInputStream in){
+        FrameDecoder decoder = new FrameDecoder();
+        try {
+            while(true){
+                if(decoder.readFrom(in) != 'c')
+                    continue;
+                long ID = decoder.getLong();
+                int result = decoder.getInt();
+                if(result != 1)
+                    log.error("Shard " + peer + " refused transfer " + ID + ". Refunding the agent");
+                ledger.transferDone(ID, result == 1);
+            }
+        } catch (IOException e) {
+            log.warn("Connection to shard {} lost", peer);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.bankserver;
+
+import com.auctionprotocol.Shards;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers from agents on this shard to auction houses owned by other shards, and to this
+ * shard's own auction houses when they are credited in settlement cycles, see {@link Settlement}.
+ *
+ * A transfer is made in two steps. This shard removes the agent's blocked funds and journals
+ * the transfer as pending, then its link to the auction house's shard sends a credit. The
+ * receiving shard applies the credit and acknowledges it once durable, and only then is the
+ * transfer removed. Pending transfers are resent after reconnecting or restarting, so every
+ * credit is delivered at least once.
+ *
+ * Transfer IDs are made of the sending shard and a sequence number, and each link sends its
+ * credits in ID order. A receiving shard therefore only needs the highest sequence number it
+ * has applied from each shard to recognise a resent credit.
+ *
+ * Transfers to this shard's own auction houses are never sent. They wait under this shard until
+ * a settlement credits every transfer to an auction house up to an ID at once.
+ *
+ * ID layout: [sending shard 16 bits][sequence 48 bits]
+ */
+public class ShardTransfers {
+    private static final int SEQUENCE_BITS = 48;
+
+    /** A transfer waiting to be acknowledged by the auction house's shard */
+    static final class Transfer {
+        final long ID;
+        final int agentID;
+        final int AHID;
+        final long amount;
+        /** Journal record the transfer must be durable at before it is sent, 0 if already durable */
+        final long journalSequence;
+
+        Transfer(long ID, int agentID, int AHID, long amount, long journalSequence){
+            this.ID = ID;
+            this.agentID = agentID;
+            this.AHID = AHID;
+            this.amount = amount;
+            this.journalSequence = journalSequence;
+        }
+    }
+
+    private final int shard;
+    private final int shards;
+    /** Pending transfers by destination shard, then ID */
+    private final ConcurrentSkipListMap<Long, Transfer>[] pending;
+    /** Sequence number of the last transfer created, guarded by this */
+    private long lastSequence;
+    /** Highest sequence number applied from each shard, guarded by this */
+    private final long[] lastApplied;
+
+    /**
+     * @param shard     index of this shard
+     * @param shards    number of shards
+     */
+    public ShardTransfers(int shard, int shards){
+        this.shard = shard;
+        this.shards = shards;
+        @SuppressWarnings("unchecked")
+        ConcurrentSkipListMap<Long, Transfer>[] pending =
+                (ConcurrentSkipListMap<Long, Transfer>[]) new ConcurrentSkipListMap<?, ?>[shards];
+        this.pending = pending;
+        for(int i = 0; i < shards; i++){
+            pending[i] = new ConcurrentSkipListMap<>();
+        }
+        lastSequence = 0;
+        lastApplied = new long[shards];
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @param ID account ID
+     * @return true if the account belongs to another shard
+     */
+    public boolean isRemote(int ID){
+        return Shards.owner(ID, shards) != shard;
+    }
+
+    /**
+     * Allocates the ID of a new transfer. The transfer must be added before this is called
+     * again, so callers hold this object's lock across both.
+     *
+     * @return New transfer ID
+     */
+    synchronized long nextID(){
+        return ((long) shard << SEQUENCE_BITS) | ++lastSequence;
+    }
+
+    /**
+     * Queues a transfer to be sent and wakes the link to its shard
+     *
+     * @param transfer transfer with an ID from {@link #nextID()}
+     */
+    synchronized void add(Transfer transfer){
+        pending[Shards.owner(transfer.AHID, shards)].put(transfer.ID, transfer);
+        notifyAll();
+    }
+
+    /**
+     * Removes a transfer once its shard has acknowledged it
+     *
+     * @param ID transfer ID
+     * @return Removed transfer, null if it was not pending
+     */
+    Transfer remove(long ID){
+        for(ConcurrentSkipListMap<Long, Transfer> transfers : pending){
+            Transfer removed = transfers.remove(ID);
+            if(removed != null)
+                return removed;
+        }
+        return null;
+    }
+
+    /**
+     * @return Every transfer to this shard's own auction houses waiting to be settled, in ID order
+     */
+    synchronized ArrayList<Transfer> settling(){
+        return new ArrayList<>(pending[shard].values());
+    }
+
+    /**
+     * Removes the settled transfers to one of this shard's auction houses
+     *
+     * @param AHID  auction house ID
+     * @param upTo  highest transfer ID settled
+     */
+    synchronized void settled(int AHID, long upTo){
+        pending[shard].headMap(upTo, true).values().removeIf(transfer -> transfer.AHID == AHID);
+    }
+
+    /**
+     * Waits for the next pending transfer to a shard after a given ID
+     *
+     * @param destination   destination shard
+     * @param after         ID of the last transfer sent, 0 for none
+     * @param timeoutMillis longest time to wait
+     * @return Next transfer in ID order, null if none arrived in time
+     */
+    Transfer next(int destination, long after, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this){
+            while(true){
+                Map.Entry<Long, Transfer> next = pending[destination].higherEntry(after);
+                if(next != null)
+                    return next.getValue();
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if(remaining <= 0)
+                    return null;
+                wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * Records a credit from another shard as applied, unless it already was.
+     * Callers hold this object's lock while applying the credit.
+     *
+     * @param ID transfer ID
+     * @return true if the credit had not been applied before
+     */
+    synchronized boolean markApplied(long ID){
+        int source = (int) (ID >>> SEQUENCE_BITS);
+        long sequence = ID & ((1L << SEQUENCE_BITS) - 1);
+        if(source >= shards || sequence <= lastApplied[source])
+            return false;
+        lastApplied[source] = sequence;
+        return true;
+    }
+
+    /*
+     * Writing and restoring snapshots, and replaying the journal
+     */
+
+    /**
+     * @return Every pending transfer
+     */
+    synchronized ArrayList<Transfer> pendingTransfers(){
+        ArrayList<Transfer> transfers = new ArrayList<>();
+        for(ConcurrentSkipListMap<Long, Transfer> destination : pending){
+            transfers.addAll(destination.values());
+        }
+        return transfers;
+    }
+
+    synchronized long getLastSequence(){
+        return lastSequence;
+    }
+
+    synchronized long[] getLastApplied(){
+        return lastApplied.clone();
+    }
+
+    synchronized void restorePending(long ID, int agentID, int AHID, long amount){
+        lastSequence = Math.max(lastSequence, ID & ((1L << SEQUENCE_BITS) - 1));
+        pending[Shards.owner(AHID, shards)].put(ID, new Transfer(ID, agentID, AHID, amount, 0));
+    }
+
+    synchronized void restoreLastSequence(long sequence){
+        lastSequence = Math.max(lastSequence, sequence);
+    }
+
+    synchronized void restoreSettled(int AHID, long upTo){
+        settled(AHID, upTo);
+    }
+
+    synchronized void restoreApplied(long ID){
+        markApplied(ID);
+    }
+
+    synchronized void restoreLastApplied(int source, long sequence){
+        if(source < shards)
+            lastApplied[source] = Math.max(lastApplied[source], sequence);
+    }
+}
@@ -0,0 +1,457 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Agent accounts kept in a SQLite database, with only the accounts in use cached in memory.
+ * The bank's memory follows the number of active agents rather than every agent it has seen,
+ * and an agent logging in again with its account's ID and token gets its account back.
+ *
+ * Cached accounts are looked up without locking. A writer thread sweeps the cache every
+ * {@link #SWEEP_MILLIS}: it writes back every changed account, and evicts accounts unused for
+ * {@link #IDLE_SWEEPS} sweeps, then the least recently used while more than the capacity are
+ * cached, all in one transaction. An evicted account is retired before it leaves the cache, and
+ * an operation still holding it reads and changes the account loaded in its place, so no change
+ * is lost. Retired and restored states are kept in memory until written, so a load never reads
+ * an older row.
+ *
+ * Accounts are inserted as they are opened. Changes reach the database within a sweep, so the
+ * journal is still needed to keep the latest changes across a crash. Restoring a snapshot or
+ * journal keeps whichever state of an account is newer by version, the database's or the restored one.
+ */
+public class SqliteAccountStore implements AgentAccountStore, Runnable {
+    private static final Logger log = Log.get("bank.ledger");
+
+    /** Time between sweeps of the cache */
+    private static final long SWEEP_MILLIS = 1_000;
+    /** Sweeps an account may go unused before it is evicted */
+    private static final long IDLE_SWEEPS = 60;
+    /** State of a retired account object */
+    private static final Funds RETIRED = new Funds(0, 0, -1);
+
+    /** State of an account waiting to be written */
+    private static final class Row {
+        final String name;
+        final Funds funds;
+
+        Row(String name, Funds funds){
+            this.name = name;
+            this.funds = funds;
+        }
+    }
+
+    /**
+     * A cached account. Once retired its own state is {@link #RETIRED} and every operation
+     * on it goes to the account loaded in its place.
+     */
+    private final class CachedAccount extends AgentBankAccount {
+        /** Version of the state written to the database, only used by the writer thread */
+        long storedVersion;
+        /** Sweep the account was last looked up in */
+        volatile long lastUsed;
+
+        CachedAccount(Funds funds, String name, int ID, long storedVersion){
+            super(funds, name, ID);
+            this.storedVersion = storedVersion;
+            lastUsed = sweeps;
+        }
+
+        @Override
+        Funds getFunds() {
+            Funds funds = super.getFunds();
+            return funds == RETIRED ? get(getID()).getFunds() : funds;
+        }
+
+        @Override
+        protected boolean compareAndSetFunds(Funds expected, Funds next) {
+            if(super.compareAndSetFunds(expected, next))
+                return true;
+            return isRetired() && get(getID()).compareAndSetFunds(expected, next);
+        }
+
+        boolean isRetired(){
+            return super.getFunds() == RETIRED;
+        }
+
+        /**
+         * Stops every later change to this object. Caller holds the store's lock.
+         *
+         * @return Last state of the account
+         */
+        Funds retire(){
+            Funds current;
+            do {
+                current = super.getFunds();
+            } while(!super.compareAndSetFunds(current, RETIRED));
+            return current;
+        }
+    }
+
+    private final String url;
+    /** Connection of loads, guarded by the lock */
+    private final Connection reads;
+    private final PreparedStatement selectByID;
+    /** Connection of inserts and write-backs, guarded by itself */
+    private final Connection writes;
+    private final PreparedStatement upsert;
+    /** Accounts in use */
+    private final IntTable<CachedAccount> cache;
+    /** States of evicted and restored accounts not written yet, guarded by the lock */
+    private final HashMap<Integer, Row> pending;
+    /** Guards loads, evictions and the read connection */
+    private final ReentrantLock lock;
+    /** Accounts cached before the least recently used are evicted */
+    private final int capacity;
+    private final AtomicInteger size;
+    /** Number of sweeps so far, the clock accounts are stamped with when looked up */
+    private volatile long sweeps;
+
+    /**
+     * Opens or creates an account database
+     *
+     * @param path      database file location
+     * @param capacity  number of accounts to cache
+     */
+    public SqliteAccountStore(Path path, int capacity) throws IOException {
+        url = "jdbc:sqlite:" + path;
+        this.capacity = Math.max(1, capacity);
+        cache = new IntTable<>();
+        pending = new HashMap<>();
+        lock = new ReentrantLock();
+        sweeps = 0;
+        try {
+            writes = DriverManager.getConnection(url);
+            try(Statement statement = writes.createStatement()){
+                statement.execute("PRAGMA journal_mode=WAL");   // Loads are not held up by write-backs
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS accounts (id INTEGER PRIMARY KEY, name TEXT NOT NULL, "
+                        + "balance INTEGER NOT NULL, blocked INTEGER NOT NULL, version INTEGER NOT NULL)");
+                try(ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM accounts")){
+                    size = new AtomicInteger(count.next() ? count.getInt(1) : 0);
+                }
+            }
+            upsert = writes.prepareStatement("INSERT OR REPLACE INTO accounts (id, name, balance, blocked, version) VALUES (?, ?, ?, ?, ?)");
+            reads = DriverManager.getConnection(url);
+            selectByID = reads.prepareStatement("SELECT name, balance, blocked, version FROM accounts WHERE id = ?");
+        } catch (SQLException e) {
+            throw new IOException("Unable to open account database " + path, e);
+        }
+        log.info("Agent accounts in {}, caching {}", path, this.capacity);
+    }
+
+    @Override
+    public AgentBankAccount get(int ID) {
+        CachedAccount account = cache.get(ID);
+        if(account == null || account.isRetired()){
+            account = load(ID);
+            if(account == null)
+                return null;
+        }
+        long now = sweeps;
+        if(account.lastUsed != now)
+            account.lastUsed = now;
+        return account;
+    }
+
+    @Override
+    public void put(int ID, String name, Funds funds) {
+        lock.lock();
+        try {
+            boolean added = !exists(ID);
+            synchronized (writes){
+                upsert.setInt(1, ID);
+                upsert.setString(2, name);
+                upsert.setLong(3, funds.balance);
+                upsert.setLong(4, funds.blocked);
+                upsert.setLong(5, funds.version);
+                upsert.executeUpdate();
+            }
+            pending.remove(ID);
+            cache.put(ID, new CachedAccount(funds, name, ID, funds.version));
+            if(added)
+                size.incrementAndGet();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to store agent account " + ID, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Restores an account, keeping the stored state if it is at least as new
+     */
+    @Override
+    public void putIfAbsent(int ID, String name, Funds funds) {
+        lock.lock();
+        try {
+            CachedAccount cached = cache.get(ID);
+            if(cached != null){
+                Funds current;
+                do {
+                    current = cached.getFunds();
+                    if(current.version >= funds.version)
+                        return;
+                } while(!cached.compareAndSetFunds(current, funds));
+                return;
+            }
+            Row row = pending.get(ID);
+            if(row == null)
+                row = select(ID);
+            if(row == null)
+                size.incrementAndGet();
+            if(row == null || row.funds.version < funds.version)
+                pending.put(ID, new Row(name, funds));     // Written by the next sweep
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Visits the accounts in memory, then every other account in the database
+     */
+    @Override
+    public void forEach(Visitor visitor) throws IOException {
+        ArrayList<AgentBankAccount> inMemory = new ArrayList<>();
+        HashSet<Integer> visited = new HashSet<>();
+        lock.lock();
+        try {
+            for(CachedAccount account : cache.values()){
+                if(!account.isRetired())
+                    inMemory.add(account);
+            }
+            for(Map.Entry<Integer, Row> entry : pending.entrySet()){
+                if(cache.get(entry.getKey()) == null)
+                    inMemory.add(new AgentBankAccount(entry.getValue().funds, entry.getValue().name, entry.getKey()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        for(AgentBankAccount account : inMemory){
+            visited.add(account.getID());
+            visitor.visit(account);
+        }
+
+        try(Connection scan = DriverManager.getConnection(url);
+            Statement statement = scan.createStatement();
+            ResultSet rows = statement.executeQuery("SELECT id, name, balance, blocked, version FROM accounts")){
+            while(rows.next()){
+                int ID = rows.getInt(1);
+                if(!visited.contains(ID))
+                    visitor.visit(new AgentBankAccount(new Funds(rows.getLong(3), rows.getLong(4), rows.getLong(5)), rows.getString(2), ID));
+            }
+        } catch (SQLException e) {
+            throw new IOException("Unable to read agent accounts", e);
+        }
+    }
+
+    /**
+     * @return Highest account ID stored, 0 if there are no accounts
+     */
+    public int highestID(){
+        lock.lock();
+        try(Statement statement = reads.createStatement();
+            ResultSet result = statement.executeQuery("SELECT MAX(id) FROM accounts")){
+            int highest = result.next() ? result.getInt(1) : 0;
+            for(int ID : pending.keySet()){
+                highest = Math.max(highest, ID);
+            }
+            return highest;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to read agent accounts", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sweeps the cache until interrupted
+     */
+    @Override
+    public void run() {
+        while(true){
+            try {
+                Thread.sleep(SWEEP_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                log.error("Unable to sweep agent accounts", e);
+            }
+        }
+    }
+
+    /**
+     * Evicts idle and least recently used accounts, and writes back every changed account
+     */
+    private void sweep(){
+        long now = sweeps + 1;
+        sweeps = now;
+        ArrayList<CachedAccount> cached = cache.values();
+
+        // Least recently used first, by the stamps as they were at the start of the sweep
+        long[] order = new long[cached.size()];
+        for(int i = 0; i < order.length; i++){
+            order[i] = (cached.get(i).lastUsed << 32) | i;
+        }
+        int excess = order.length - capacity;
+        if(excess > 0)
+            Arrays.sort(order);
+
+        ArrayList<CachedAccount> evicted = new ArrayList<>();
+        ArrayList<CachedAccount> changed = new ArrayList<>();
+        ArrayList<Funds> changes = new ArrayList<>();
+        for(int i = 0; i < order.length; i++){
+            CachedAccount account = cached.get((int) order[i]);
+            if(i < excess || now - (order[i] >>> 32) >= IDLE_SWEEPS)
+                evicted.add(account);
+            else {
+                Funds funds = account.getFunds();
+                if(funds.version != account.storedVersion){
+                    changed.add(account);
+                    changes.add(funds);
+                }
+            }
+        }
+
+        HashMap<Integer, Row> rows;
+        lock.lock();
+        try {
+            for(CachedAccount account : evicted){
+                if(cache.get(account.getID()) != account)
+                    continue;
+                Funds funds = account.retire();
+                cache.remove(account.getID());
+                if(funds.version != account.storedVersion)
+                    pending.put(account.getID(), new Row(account.getName(), funds));
+            }
+            rows = new HashMap<>(pending);
+        } finally {
+            lock.unlock();
+        }
+        if(rows.isEmpty() && changed.isEmpty())
+            return;
+
+        try {
+            synchronized (writes){
+                writes.setAutoCommit(false);
+                try {
+                    for(Map.Entry<Integer, Row> entry : rows.entrySet()){
+                        addRow(entry.getKey(), entry.getValue().name, entry.getValue().funds);
+                    }
+                    for(int i = 0; i < changed.size(); i++){
+                        addRow(changed.get(i).getID(), changed.get(i).getName(), changes.get(i));
+                    }
+                    upsert.executeBatch();
+                    writes.commit();
+                } catch (SQLException e) {
+                    writes.rollback();
+                    throw e;
+                } finally {
+                    writes.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            log.warn("Unable to write back agent accounts, retrying next sweep", e);
+            return;
+        }
+
+        for(int i = 0; i < changed.size(); i++){
+            changed.get(i).storedVersion = changes.get(i).version;
+        }
+        lock.lock();
+        try {
+            for(Map.Entry<Integer, Row> entry : rows.entrySet()){
+                pending.remove(entry.getKey(), entry.getValue());    // Unless replaced since
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.debug("Wrote back {} agent accounts, evicted {}", rows.size() + changed.size(), evicted.size());
+    }
+
+    /**
+     * Adds a row to the write-back batch. Caller holds the write connection.
+     */
+    private void addRow(int ID, String name, Funds funds) throws SQLException {
+        upsert.setInt(1, ID);
+        upsert.setString(2, name);
+        upsert.setLong(3, funds.balance);
+        upsert.setLong(4, funds.blocked);
+        upsert.setLong(5, funds.version);
+        upsert.addBatch();
+    }
+
+    /**
+     * Loads an account into the cache
+     *
+     * @return Cached account, null if there is no such account
+     */
+    private CachedAccount load(int ID){
+        lock.lock();
+        try {
+            CachedAccount account = cache.get(ID);
+            if(account != null && !account.isRetired())
+                return account;
+            Row row = pending.get(ID);
+            if(row == null)
+                row = select(ID);
+            if(row == null)
+                return null;
+            account = new CachedAccount(row.funds, row.name, ID, row.funds.version);
+            cache.put(ID, account);
+            return account;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if an account is cached, waiting to be written or stored. Caller holds the lock.
+     */
+    private boolean exists(int ID){
+        CachedAccount account = cache.get(ID);
+        return (account != null && !account.isRetired()) || pending.containsKey(ID) || select(ID) != null;
+    }
+
+    /**
+     * Reads an account's row. Caller holds the lock.
+     *
+     * @return Stored state, null if there is no such account
+     */
+    private Row select(int ID){
+        try {
+            selectByID.setInt(1, ID);
+            try(ResultSet result = selectByID.executeQuery()){
+                if(!result.next())
+                    return null;
+                return new Row(result.getString(1), new Funds(result.getLong(2), result.getLong(3), result.getLong(4)));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to load agent account " + ID, e);
+        }
+    }
+}
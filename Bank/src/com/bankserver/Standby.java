@@ -0,0 +1,101 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a standby bank's ledger and journal in step with a primary bank until the standby is promoted.
+ *
+ * The standby receives every batch the primary's journal syncs, see {@link Replicator}, writes it to
+ * its own journal, applies it to its ledger and acknowledges it. Once nothing has been heard from the
+ * primary for the promotion timeout, the standby stops following and the bank starts serving clients.
+ * Nothing stops a primary that was only unreachable from carrying on, so the old primary must not
+ * be restarted as a primary after a failover.
+ */
+public class Standby {
+    private static final Logger log = Log.get("bank.replication");
+
+    /** Time between connection attempts */
+    private static final long RETRY_MILLIS = 250;
+
+    private final Ledger ledger;
+    private final Journal journal;
+    private final String host;
+    private final int port;
+    private final long promoteAfterMillis;
+
+    /**
+     * @param ledger                standby's ledger, already restored
+     * @param journal               standby's journal, already replayed
+     * @param host                  primary's host
+     * @param port                  primary's replication port
+     * @param promoteAfterMillis    time without hearing from the primary before promotion
+     */
+    public Standby(Ledger ledger, Journal journal, String host, int port, long promoteAfterMillis){
+        this.ledger = ledger;
+        this.journal = journal;
+        this.host = host;
+        this.port = port;
+        this.promoteAfterMillis = Math.max(promoteAfterMillis, 2 * Replicator.HEARTBEAT_MILLIS);
+    }
+
+    /**
+     * Follows the primary until it has been unreachable for the promotion timeout
+     *
+     * @return Highest account ID received from the primary
+     */
+    public int follow(){
+        long lastContact = System.nanoTime();
+        int highestID = 0;
+        log.info("Standby of {}:{}", host, port);
+
+        while(System.nanoTime() - lastContact < TimeUnit.MILLISECONDS.toNanos(promoteAfterMillis)){
+            try(Socket socket = new Socket(host, port)){
+                socket.setSoTimeout((int) promoteAfterMillis);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(Replicator.MAGIC);
+                out.writeLong(journal.appendedOffset());
+                out.flush();
+                log.info("Following primary from journal offset {}", journal.appendedOffset());
+
+                while(true){
+                    long offset = in.readLong();
+                    byte[] records = new byte[in.readInt()];
+                    in.readFully(records);
+                    lastContact = System.nanoTime();
+                    if(records.length > 0)
+                        highestID = Math.max(highestID, receive(records, offset));
+                    out.writeLong(journal.appendedOffset());
+                    out.flush();
+                }
+            } catch (IOException e) {
+                log.debug("No connection to primary");
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        log.warn("Primary unreachable for {} ms. Promoting standby", promoteAfterMillis);
+        return highestID;
+    }
+
+    private int receive(byte[] records, long offset){
+        try {
+            return journal.receive(ByteBuffer.wrap(records), offset, ledger);
+        } catch (IOException e) {
+            log.error("Unable to apply records from the primary. Terminating", e);
+            System.exit(4);
+            return 0;
+        }
+    }
+}
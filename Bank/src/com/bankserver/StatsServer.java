@@ -0,0 +1,58 @@
+package com.bankserver;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the bank's statistics as plain text over HTTP, i.e. {@code curl localhost:PORT/stats}.
+ * Only listens on the loopback address, so the statistics are not exposed to the network.
+ */
+public class StatsServer {
+    private static final Logger log = Log.get("bank.stats");
+
+    private final BankStats stats;
+    private final int port;
+    private HttpServer server;
+
+    /**
+     * @param stats statistics to serve
+     * @param port  local port to listen on
+     */
+    public StatsServer(BankStats stats, int port){
+        this.stats = stats;
+        this.port = port;
+    }
+
+    /**
+     * Starts listening on a background thread
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/stats", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        log.info("Serving statistics at http://localhost:{}/stats", port);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = stats.report().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(body);
+        }
+    }
+}
@@ -2,11 +2,21 @@ package com.bankserver;
 
 public class SynchronizedCounter {
     private int c;
+    private final int step;
 
     public SynchronizedCounter(int c){
+        this(c, 1);
+    }
+
+    public SynchronizedCounter(int c, int step){
         this.c = c;
+        this.step = step;
     }
 
-    public synchronized int increment(){return c++;}
+    public synchronized int increment(){
+        int value = c;
+        c += step;
+        return value;
+    }
     public synchronized int value(){return c;}
 }
@@ -0,0 +1,29 @@
+package com.bankserver;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock that records how long threads wait for it. Uncontended acquisitions
+ * are not timed, so only threads that actually wait pay for reading the clock.
+ */
+public class TimedLock extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
+
+    private final LatencyHistogram waits;
+
+    /**
+     * @param waits histogram contended acquisitions are recorded in
+     */
+    public TimedLock(LatencyHistogram waits){
+        this.waits = waits;
+    }
+
+    @Override
+    public void lock() {
+        if(tryLock())
+            return;
+        long start = System.nanoTime();
+        super.lock();
+        waits.recordSince(start);
+    }
+}
@@ -0,0 +1,102 @@
+package com.auctionprotocol;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes frames written by {@link FrameEncoder} into a reusable buffer.
+ * Only strings allocate when read. A decoder is not thread safe.
+ */
+public class FrameDecoder {
+    /** Largest frame accepted */
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    /**
+     * Creates a new decoder with a 256 byte buffer
+     */
+    public FrameDecoder(){
+        buffer = new byte[256];
+        position = 0;
+        limit = 0;
+    }
+
+    /**
+     * Reads the next frame from a stream, replacing the previous one
+     *
+     * @param in stream positioned at the start of a frame
+     * @return Opcode of the frame
+     */
+    public char readFrom(DataInput in) throws IOException {
+        int length = in.readInt();
+        if(length < 2 || length > MAX_FRAME_SIZE)
+            throw new IOException("Invalid frame length " + length);
+        if(length > buffer.length)
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+
+        in.readFully(buffer, 0, length);
+        position = 0;
+        limit = length;
+        return getChar();
+    }
+
+    /**
+     * Length of the frame at the buffer's position without consuming it
+     *
+     * @param received bytes received so far, ready to be read
+     * @return Length of the frame including its length prefix, -1 if it has not fully arrived
+     */
+    public static int frameLength(ByteBuffer received){
+        if(received.remaining() < 4)
+            return -1;
+        int length = received.getInt(received.position());
+        if(length < 0 || length > MAX_FRAME_SIZE)
+            return 4;   // Let readFrom report the invalid length
+        return received.remaining() < 4 + length ? -1 : 4 + length;
+    }
+
+    public char getChar(){
+        check(2);
+        return (char) (((buffer[position++] & 0xFF) << 8) | (buffer[position++] & 0xFF));
+    }
+
+    public boolean getBoolean(){
+        check(1);
+        return buffer[position++] != 0;
+    }
+
+    public int getInt(){
+        check(4);
+        return ((buffer[position++] & 0xFF) << 24) | ((buffer[position++] & 0xFF) << 16)
+                | ((buffer[position++] & 0xFF) << 8) | (buffer[position++] & 0xFF);
+    }
+
+    public long getLong(){
+        return ((long) getInt() << 32) | (getInt() & 0xFFFFFFFFL);
+    }
+
+    public String getString(){
+        int length = getInt();
+        check(length);
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    /**
+     * @return Bytes left unread in the current frame
+     */
+    public int remaining(){
+        return limit - position;
+    }
+
+    private void check(int bytes){
+        if(bytes < 0 || position + bytes > limit)
+            throw new IllegalStateException("Read past the end of the frame");
+    }
+}
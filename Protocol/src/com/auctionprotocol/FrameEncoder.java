@@ -0,0 +1,176 @@
+package com.auctionprotocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes frames into a reusable buffer. Any number of frames can be encoded
+ * before they are written out together, and the buffer is only reallocated when
+ * a frame is larger than any before it.
+ *
+ * Frame layout: [length int][opcode char][fields], where length counts the opcode
+ * and fields. Fields are big-endian, strings are UTF-8 prefixed with their byte length.
+ * An encoder is not thread safe.
+ */
+public class FrameEncoder {
+    private byte[] buffer;
+    private int position;
+    /** Offset of the length of the frame being encoded */
+    private int frameStart;
+
+    /**
+     * Creates a new encoder with a 256 byte buffer
+     */
+    public FrameEncoder(){
+        this(256);
+    }
+
+    /**
+     * @param capacity initial buffer size
+     */
+    public FrameEncoder(int capacity){
+        buffer = new byte[capacity];
+        position = 0;
+        frameStart = -1;
+    }
+
+    /**
+     * Starts a new frame
+     *
+     * @param opcode frame opcode
+     * @return this encoder
+     */
+    public FrameEncoder begin(char opcode){
+        frameStart = position;
+        ensure(4);
+        position += 4;  // Length is filled in by end()
+        return putChar(opcode);
+    }
+
+    /**
+     * Finishes the current frame by filling in its length
+     */
+    public void end(){
+        int length = position - frameStart - 4;
+        buffer[frameStart] = (byte) (length >>> 24);
+        buffer[frameStart + 1] = (byte) (length >>> 16);
+        buffer[frameStart + 2] = (byte) (length >>> 8);
+        buffer[frameStart + 3] = (byte) length;
+        frameStart = -1;
+    }
+
+    public FrameEncoder putChar(char value){
+        ensure(2);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    public FrameEncoder putBoolean(boolean value){
+        ensure(1);
+        buffer[position++] = (byte) (value ? 1 : 0);
+        return this;
+    }
+
+    public FrameEncoder putInt(int value){
+        ensure(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    public FrameEncoder putLong(long value){
+        putInt((int) (value >>> 32));
+        return putInt((int) value);
+    }
+
+    /**
+     * Writes a string as UTF-8 directly into the buffer without an intermediate array
+     *
+     * @param value string to write, null is written as an empty string
+     * @return this encoder
+     */
+    public FrameEncoder putString(String value){
+        if(value == null)
+            value = "";
+
+        int length = 0;
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c < 0x80)
+                length += 1;
+            else if(c < 0x800)
+                length += 2;
+            else if(Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))){
+                length += 4;
+                i++;
+            }
+            else
+                length += 3;
+        }
+
+        putInt(length);
+        ensure(length);
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c < 0x80){
+                buffer[position++] = (byte) c;
+            }
+            else if(c < 0x800){
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))){
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else{
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes every finished frame to a stream and empties the buffer.
+     * The stream is not flushed.
+     *
+     * @param out stream to write to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if(frameStart >= 0)
+            throw new IllegalStateException("Frame was not ended");
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    /**
+     * Copies every finished frame into a new array and empties the buffer,
+     * for frames encoded once and sent to many connections.
+     *
+     * @return Encoded frames
+     */
+    public byte[] toByteArray(){
+        if(frameStart >= 0)
+            throw new IllegalStateException("Frame was not ended");
+        byte[] frames = new byte[position];
+        System.arraycopy(buffer, 0, frames, 0, position);
+        position = 0;
+        return frames;
+    }
+
+    private void ensure(int bytes){
+        if(position + bytes > buffer.length){
+            byte[] larger = new byte[Math.max(buffer.length * 2, position + bytes)];
+            System.arraycopy(buffer, 0, larger, 0, position);
+            buffer = larger;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.auctionprotocol;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches any number of connections for a peer that has gone silent, on one shared
+ * {@link TimingWheel} rather than a timer or read timeout per connection.
+ *
+ * Every connection agreeing {@link WireProtocol#FEATURE_HEARTBEAT} has a {@link Watch}, due
+ * every {@link WireProtocol#HEARTBEAT_MILLIS}. Reading from the peer only stamps the watch,
+ * so it costs a field write. When the watch comes due a connection nothing was read from
+ * for {@link WireProtocol#IDLE_MILLIS} is closed, as a half-open socket would never fail a read.
+ *
+ * The client side of a connection probes: once it has read nothing for half a heartbeat it
+ * sends a heartbeat, which the server answers. A quiet connection is heard from by both sides
+ * well within the idle time, while a busy one sends no heartbeats at all.
+ *
+ * Probes are sent on their own threads, at most one per connection, so a connection stuck
+ * writing never holds up the wheel, which goes on to close it once it is idle.
+ */
+public class Heartbeats implements TimingWheel.Handler {
+    private static final Logger log = Log.get("heartbeat");
+
+    /**
+     * A connection watched for silence
+     */
+    public interface Peer {
+        /**
+         * @return false once the connection has closed, its watch is then dropped
+         */
+        boolean isOpen();
+
+        /**
+         * Sends a heartbeat frame. Only called on connections that probe their peer.
+         */
+        void sendHeartbeat() throws IOException;
+
+        /**
+         * Closes a connection whose peer has gone silent. Called on the wheel thread, so it must
+         * not wait on the connection's output.
+         */
+        void close();
+    }
+
+    /**
+     * Watch of one connection
+     */
+    public static final class Watch extends TimingWheel.Timeout {
+        private final Peer peer;
+        /** Flag if this side sends heartbeats */
+        private final boolean probing;
+        /** Time anything was last read from the peer */
+        private volatile long lastRead;
+        /** Flag if a heartbeat is being sent */
+        private final AtomicBoolean probe;
+
+        private Watch(Heartbeats heartbeats, Peer peer, boolean probing){
+            super(heartbeats);
+            this.peer = peer;
+            this.probing = probing;
+            lastRead = System.nanoTime();
+            probe = new AtomicBoolean(false);
+        }
+
+        /**
+         * Records that something was read from the peer
+         */
+        public void heard(){
+            lastRead = System.nanoTime();
+        }
+    }
+
+    private final TimingWheel wheel;
+    private final long idleNanos;
+    private final long probeNanos;
+    /** Sends heartbeats, threads are only started by connections that probe */
+    private final ExecutorService probes;
+
+    /**
+     * @param wheel timing wheel watches are scheduled on, run by its owner
+     */
+    public Heartbeats(TimingWheel wheel){
+        this.wheel = wheel;
+        idleNanos = TimeUnit.MILLISECONDS.toNanos(WireProtocol.IDLE_MILLIS);
+        probeNanos = TimeUnit.MILLISECONDS.toNanos(WireProtocol.HEARTBEAT_MILLIS) / 2;
+        probes = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts watching a connection, until its peer is closed or {@link #unwatch(Watch)}
+     *
+     * @param peer      connection to watch
+     * @param probing   true on the client side, which sends heartbeats
+     * @return Watch to record reads on
+     */
+    public Watch watch(Peer peer, boolean probing){
+        Watch watch = new Watch(this, peer, probing);
+        wheel.schedule(watch, WireProtocol.HEARTBEAT_MILLIS);
+        return watch;
+    }
+
+    /**
+     * @param watch watch to stop, ignored if null
+     */
+    public void unwatch(Watch watch){
+        if(watch != null)
+            wheel.cancel(watch);
+    }
+
+    @Override
+    public void expired(ArrayList<TimingWheel.Timeout> expired) {
+        long now = System.nanoTime();
+        for(TimingWheel.Timeout timeout : expired){
+            Watch watch = (Watch) timeout;
+            if(!watch.peer.isOpen())
+                continue;
+
+            long silent = now - watch.lastRead;
+            if(silent >= idleNanos){
+                log.info("Closing connection silent for {} ms", TimeUnit.NANOSECONDS.toMillis(silent));
+                watch.peer.close();
+                continue;
+            }
+            if(watch.probing && silent >= probeNanos && watch.probe.compareAndSet(false, true))
+                probes.execute(() -> probe(watch));
+            wheel.schedule(watch, WireProtocol.HEARTBEAT_MILLIS);
+        }
+    }
+
+    private static void probe(Watch watch){
+        try {
+            watch.peer.sendHeartbeat();
+        } catch (IOException e) {
+            log.debug("Unable to send heartbeat");     // Closed once idle
+        } finally {
+            watch.probe.set(false);
+        }
+    }
+}
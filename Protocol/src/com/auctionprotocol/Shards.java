@@ -0,0 +1,54 @@
+package com.auctionprotocol;
+
+/**
+ * Partitioning of bank accounts across bank shards.
+ *
+ * Shard i of n owns every account ID with (ID - 1) % n == i and only allocates such IDs,
+ * so shards never hand out the same ID and anyone can find an account's owner from its ID
+ * alone. Shard i listens for auction houses on {@link #AUCTION_HOUSE_PORT} + 2i and for
+ * agents on {@link #AGENT_PORT} + 2i, so a single bank is shard 0 of 1 on the original ports.
+ */
+public final class Shards {
+    /** Auction house port of shard 0 */
+    public static final int AUCTION_HOUSE_PORT = 1025;
+    /** Agent port of shard 0 */
+    public static final int AGENT_PORT = 1026;
+
+    private Shards(){}
+
+    /**
+     * @param ID     account ID, starting at 1
+     * @param shards number of shards
+     * @return Index of the shard owning the account
+     */
+    public static int owner(int ID, int shards){
+        return (ID - 1) % shards;
+    }
+
+    /**
+     * @param shard shard index
+     * @return Port the shard accepts auction houses on
+     */
+    public static int auctionHousePort(int shard){
+        return AUCTION_HOUSE_PORT + 2 * shard;
+    }
+
+    /**
+     * @param shard shard index
+     * @return Port the shard accepts agents on
+     */
+    public static int agentPort(int shard){
+        return AGENT_PORT + 2 * shard;
+    }
+
+    /**
+     * @param shard     shard index
+     * @param shards    number of shards
+     * @param after     ID to allocate after, 0 for none
+     * @return Smallest ID greater than the given one owned by the shard
+     */
+    public static int nextID(int shard, int shards, int after){
+        int ID = after + 1;
+        return ID + Math.floorMod(shard - owner(ID, shards), shards);
+    }
+}
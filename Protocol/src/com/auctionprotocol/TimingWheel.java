@@ -0,0 +1,232 @@
+package com.auctionprotocol;
+
+import com.auctionprotocol.log.Log;
+import com.auctionprotocol.log.Logger;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel: a single thread expiring any number of timeouts.
+ *
+ * Time is divided into ticks and the wheel into a power of two of slots. A timeout is kept in
+ * the slot of the tick it is due in, on an intrusive doubly linked list, so scheduling and
+ * cancelling are O(1) and no object is allocated per timeout. Once per tick the wheel thread
+ * walks the slot of the current tick. Timeouts due more than one revolution ahead share slots
+ * with earlier ones and are skipped until their own revolution comes round.
+ *
+ * Extending a timeout only moves its deadline. It stays in the slot it is linked into and is
+ * moved to its new slot when that slot is next walked, so frequent renewals cost a field write.
+ *
+ * Expired timeouts are handed to their {@link Handler} together, one call per handler per tick.
+ */
+public class TimingWheel implements Runnable {
+    private static final Logger log = Log.get("timer");
+
+    /**
+     * Receives the timeouts that expired in a tick
+     */
+    public interface Handler {
+        /**
+         * Called on the wheel thread, without the wheel's lock held
+         *
+         * @param expired timeouts of this handler that expired, no longer scheduled
+         */
+        void expired(ArrayList<Timeout> expired);
+    }
+
+    /**
+     * Entry scheduled on a wheel. Subclasses carry whatever the handler needs.
+     */
+    public abstract static class Timeout {
+        private final Handler handler;
+        /** Tick the timeout is due in, guarded by the wheel */
+        private long deadline;
+        /** Slot list links, guarded by the wheel. prev is null for the head, and for unscheduled timeouts */
+        private Timeout next;
+        private Timeout prev;
+        /** Slot the timeout is linked into, which lags its deadline once extended, guarded by the wheel */
+        private int slot;
+        /** Flag if linked into a slot, guarded by the wheel */
+        private boolean scheduled;
+
+        protected Timeout(Handler handler){
+            this.handler = handler;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startTime;
+    /** Last tick walked, guarded by this */
+    private long currentTick;
+    /** Scheduled timeouts, guarded by this */
+    private long size;
+
+    /**
+     * @param tickMillis    length of a tick, the precision of every timeout
+     * @param slotCount     number of slots, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int slotCount){
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int capacity = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        slots = new Timeout[capacity];
+        mask = capacity - 1;
+        startTime = System.nanoTime();
+        currentTick = 0;
+        size = 0;
+    }
+
+    /**
+     * Schedules a timeout, or moves it if already scheduled
+     *
+     * @param timeout       timeout to schedule
+     * @param delayMillis   time until it expires
+     */
+    public synchronized void schedule(Timeout timeout, long delayMillis){
+        if(timeout.scheduled)
+            unlink(timeout);
+        timeout.deadline = deadlineFor(delayMillis);
+        link(timeout);
+    }
+
+    /**
+     * Pushes a scheduled timeout's deadline back without moving it between slots.
+     * Schedules it if it is not scheduled.
+     *
+     * @param timeout       timeout to extend
+     * @param delayMillis   time from now until it expires
+     */
+    public synchronized void extend(Timeout timeout, long delayMillis){
+        long deadline = deadlineFor(delayMillis);
+        if(!timeout.scheduled){
+            timeout.deadline = deadline;
+            link(timeout);
+        }
+        else if(deadline > timeout.deadline)
+            timeout.deadline = deadline;    // Moved when its current slot is walked
+    }
+
+    /**
+     * @param timeout timeout to cancel, ignored if not scheduled
+     */
+    public synchronized void cancel(Timeout timeout){
+        if(timeout.scheduled)
+            unlink(timeout);
+    }
+
+    /**
+     * @param timeout timeout to check
+     * @return true if the timeout is scheduled
+     */
+    public synchronized boolean isScheduled(Timeout timeout){
+        return timeout.scheduled;
+    }
+
+    /**
+     * @return Number of scheduled timeouts
+     */
+    public synchronized long size(){
+        return size;
+    }
+
+    /**
+     * Walks the slot of every tick as it passes and hands expired timeouts to their handlers
+     */
+    @Override
+    public void run() {
+        ArrayList<Handler> handlers = new ArrayList<>();
+        ArrayList<ArrayList<Timeout>> batches = new ArrayList<>();
+
+        while(true){
+            long now = System.nanoTime();
+            long tick = (now - startTime) / tickNanos;
+
+            synchronized (this){
+                while(currentTick < tick){
+                    currentTick++;
+                    walk(currentTick, handlers, batches);
+                }
+            }
+
+            for(int i = 0; i < handlers.size(); i++){
+                try {
+                    handlers.get(i).expired(batches.get(i));
+                } catch (RuntimeException e) {
+                    log.error("Timeout handler failed", e);
+                }
+            }
+            handlers.clear();
+            batches.clear();
+
+            long sleep = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            try {
+                if(sleep > 0)
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Expires the due timeouts of a tick's slot and moves extended ones to their new slots
+     */
+    private void walk(long tick, ArrayList<Handler> handlers, ArrayList<ArrayList<Timeout>> batches){
+        Timeout timeout = slots[(int) (tick & mask)];
+        while(timeout != null){
+            Timeout next = timeout.next;
+            if(timeout.deadline <= tick){
+                unlink(timeout);
+                batchFor(timeout.handler, handlers, batches).add(timeout);
+            }
+            else if((timeout.deadline & mask) != timeout.slot){
+                unlink(timeout);    // Extended past this slot
+                link(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private static ArrayList<Timeout> batchFor(Handler handler, ArrayList<Handler> handlers, ArrayList<ArrayList<Timeout>> batches){
+        for(int i = 0; i < handlers.size(); i++){
+            if(handlers.get(i) == handler)
+                return batches.get(i);
+        }
+        handlers.add(handler);
+        batches.add(new ArrayList<>());
+        return batches.get(batches.size() - 1);
+    }
+
+    private long deadlineFor(long delayMillis){
+        long ticks = (TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) + tickNanos - 1) / tickNanos;
+        return Math.max(currentTick + 1, (System.nanoTime() - startTime) / tickNanos + ticks);
+    }
+
+    private void link(Timeout timeout){
+        int slot = (int) (timeout.deadline & mask);
+        Timeout head = slots[slot];
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = head;
+        if(head != null)
+            head.prev = timeout;
+        slots[slot] = timeout;
+        timeout.scheduled = true;
+        size++;
+    }
+
+    private void unlink(Timeout timeout){
+        if(timeout.prev == null)
+            slots[timeout.slot] = timeout.next;
+        else
+            timeout.prev.next = timeout.next;
+        if(timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.next = null;
+        timeout.prev = null;
+        timeout.scheduled = false;
+        size--;
+    }
+}
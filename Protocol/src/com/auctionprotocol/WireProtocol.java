@@ -0,0 +1,109 @@
+package com.auctionprotocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Connection handshake shared by the bank, auction house and agent.
+ *
+ * A client opens every connection with a hello: [magic int][version short][features int].
+ * The server answers with the same layout holding the version and features both sides
+ * support. When {@link #FEATURE_BINARY} is agreed the rest of the connection uses length
+ * prefixed frames (see {@link FrameEncoder}), otherwise it falls back to the original
+ * writeUTF/JSON messages.
+ */
+public final class WireProtocol {
+    /** First bytes of a hello, "AUCT" */
+    public static final int MAGIC = 0x41554354;
+    /** Current protocol version */
+    public static final short VERSION = 1;
+    /** Size of a hello in bytes */
+    public static final int HELLO_SIZE = 4 + 2 + 4;
+
+    /** Length prefixed binary frames */
+    public static final int FEATURE_BINARY = 1;
+    /** Original writeUTF/JSON messages */
+    public static final int FEATURE_JSON = 1 << 1;
+    /** Agents may subscribe to auction houses joining and leaving, binary frames only */
+    public static final int FEATURE_DIRECTORY_PUSH = 1 << 2;
+    /** Fund requests may carry a key the bank remembers, so retrying one never applies it twice */
+    public static final int FEATURE_IDEMPOTENCY_KEYS = 1 << 3;
+    /** Auction houses may block funds with a lease the bank releases unless renewed, binary frames only */
+    public static final int FEATURE_HOLD_LEASES = 1 << 4;
+    /** The bank may refuse a request it has no room to queue with a busy frame, to be sent again later, binary frames only */
+    public static final int FEATURE_BUSY = 1 << 5;
+    /** Both sides send heartbeat 'h' messages on a quiet connection and close one that stays silent, see {@link Heartbeats} */
+    public static final int FEATURE_HEARTBEAT = 1 << 6;
+    /** Batches may adjust a hold, releasing one agent's funds and blocking another's in one entry, binary frames only */
+    public static final int FEATURE_ADJUST_HOLDS = 1 << 7;
+
+    /**
+     * Result of a keyed request the bank did not apply on this attempt, because an earlier attempt
+     * with the same key is still running or the bank has no room left to remember the key.
+     * The client sends it again later with the same key.
+     */
+    public static final int RESULT_RETRY = -2;
+
+    /** Interval a connection agreeing heartbeats is checked at */
+    public static final long HEARTBEAT_MILLIS = 10_000;
+    /** Time without reading anything from a peer agreeing heartbeats before its connection is closed */
+    public static final long IDLE_MILLIS = 30_000;
+
+    private WireProtocol(){}
+
+    /**
+     * Client side of the handshake. Sends a hello and waits for the server's answer.
+     *
+     * @param out       connection output stream
+     * @param in        connection input stream
+     * @param features  features the client supports
+     * @return Features both sides support
+     */
+    public static int offer(DataOutputStream out, DataInputStream in, int features) throws IOException {
+        writeHello(out, VERSION, features);
+        if(in.readInt() != MAGIC)
+            throw new IOException("Server does not support the auction protocol handshake");
+        in.readShort();     // Version agreed on, only version 1 exists
+        return in.readInt() & features;
+    }
+
+    /**
+     * Server side of the handshake. Reads the rest of a hello whose magic has already
+     * been read and answers with the features both sides support.
+     *
+     * @param in        connection input stream, positioned after the magic
+     * @param out       connection output stream
+     * @param supported features the server supports
+     * @return Features both sides support
+     */
+    public static int accept(DataInputStream in, DataOutputStream out, int supported) throws IOException {
+        short version = in.readShort();
+        int agreed = in.readInt() & supported;
+        writeHello(out, (short) Math.min(version, VERSION), agreed);
+        return agreed;
+    }
+
+    /**
+     * @param firstInt first four bytes received on a connection
+     * @return true if the connection was opened with a hello
+     */
+    public static boolean isHello(int firstInt){
+        return firstInt == MAGIC;
+    }
+
+    /**
+     * @param features agreed features
+     * @return true if the connection uses binary frames
+     */
+    public static boolean isBinary(int features){
+        return (features & FEATURE_BINARY) != 0;
+    }
+
+    private static void writeHello(DataOutputStream out, short version, int features) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(version);
+        out.writeInt(features);
+        out.flush();
+    }
+}
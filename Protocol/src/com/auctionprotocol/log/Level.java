@@ -0,0 +1,13 @@
+package com.auctionprotocol.log;
+
+/**
+ * Log levels, from most to least verbose
+ */
+public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    /** Disables a category entirely */
+    OFF
+}
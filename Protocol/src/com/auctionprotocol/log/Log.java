@@ -0,0 +1,87 @@
+package com.auctionprotocol.log;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entry point of the asynchronous logging shared by the bank, auction house and agent.
+ *
+ * Configured with system properties, read when the first logger is created:
+ * <ul>
+ *     <li>auction.log.level: level of every category, default INFO</li>
+ *     <li>auction.log.level.CATEGORY: level of a category and the categories below it,
+ *         i.e. auction.log.level.bank=DEBUG covers bank.ledger</li>
+ *     <li>auction.log.file: rolling log file, none by default</li>
+ *     <li>auction.log.maxBytes: size a log file is rolled at, default 10MB</li>
+ *     <li>auction.log.files: number of rolled files kept, default 5</li>
+ *     <li>auction.log.console: false to stop writing to standard output</li>
+ *     <li>auction.log.ringSize: events buffered for the writer, default 8192</li>
+ * </ul>
+ */
+public final class Log {
+    private static final String PREFIX = "auction.log.";
+
+    private static final ConcurrentHashMap<String, Logger> loggers = new ConcurrentHashMap<>();
+    private static final LogRing ring;
+
+    static {
+        String file = System.getProperty(PREFIX + "file");
+        LogWriter writer = new LogWriter(
+                !"false".equals(System.getProperty(PREFIX + "console")),
+                file == null ? null : Paths.get(file),
+                Long.getLong(PREFIX + "maxBytes", 10L * 1024 * 1024),
+                Integer.getInteger(PREFIX + "files", 5));
+        ring = new LogRing(Integer.getInteger(PREFIX + "ringSize", 8192), writer);
+
+        Thread thread = new Thread(ring, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        // Write whatever is still buffered when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> ring.awaitFlushed(1000), "log-shutdown"));
+    }
+
+    private Log(){}
+
+    /**
+     * @param category dot separated category, i.e. "bank.ledger"
+     * @return Logger for the category, shared by every caller
+     */
+    public static Logger get(String category){
+        return loggers.computeIfAbsent(category, name -> new Logger(name, configuredLevel(name)));
+    }
+
+    /**
+     * Changes the level of a category and every existing category below it
+     *
+     * @param category  dot separated category
+     * @param level     new level
+     */
+    public static void setLevel(String category, Level level){
+        for(Logger logger : loggers.values()){
+            String name = logger.getCategory();
+            if(name.equals(category) || name.startsWith(category + "."))
+                logger.setLevel(level);
+        }
+    }
+
+    static LogRing ring(){
+        return ring;
+    }
+
+    /**
+     * Level set for the closest configured category, falling back to the global level
+     */
+    private static Level configuredLevel(String category){
+        String name = category;
+        while(true){
+            String value = System.getProperty(PREFIX + "level." + name);
+            if(value != null)
+                return Level.valueOf(value.trim().toUpperCase());
+            int dot = name.lastIndexOf('.');
+            if(dot < 0)
+                break;
+            name = name.substring(0, dot);
+        }
+        return Level.valueOf(System.getProperty(PREFIX + "level", "INFO").trim().toUpperCase());
+    }
+}
@@ -0,0 +1,144 @@
+package com.auctionprotocol.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring of preallocated log events shared by every logging thread and drained
+ * by a single writer thread.
+ *
+ * A logging thread claims the next sequence number with a CAS, fills the slot it maps to
+ * and publishes it by writing the sequence into the slot. The writer reads slots in sequence
+ * order and formats them off the logging threads. When the writer falls a full ring behind,
+ * new events are dropped and counted instead of blocking the caller.
+ */
+final class LogRing implements Runnable {
+    static final byte NONE = 0;
+    static final byte OBJECT = 1;
+    static final byte LONG = 2;
+
+    /** Time the writer sleeps when the ring is empty */
+    private static final long IDLE_NANOS = 2_000_000;
+
+    /** A preallocated event, reused every time the ring wraps */
+    static final class Slot {
+        /** Sequence of the event in the slot, written last to publish it */
+        volatile long sequence = -1;
+        Logger logger;
+        Level level;
+        String template;
+        byte firstKind;
+        Object first;
+        long firstLong;
+        byte secondKind;
+        Object second;
+        long secondLong;
+        Throwable error;
+        long time;
+        String thread;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final LogWriter writer;
+    /** Next sequence to claim */
+    private final AtomicLong claimed;
+    /** Next sequence the writer will read, every slot before it may be reused */
+    private volatile long consumed;
+    /** Every sequence before this has been written and flushed */
+    private volatile long flushed;
+    /** Events dropped because the ring was full */
+    private final AtomicLong dropped;
+
+    /**
+     * @param capacity  number of slots, rounded up to a power of two
+     * @param writer    writes formatted events
+     */
+    LogRing(int capacity, LogWriter writer){
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[size];
+        for(int i = 0; i < size; i++){
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+        this.writer = writer;
+        claimed = new AtomicLong(0);
+        consumed = 0;
+        flushed = 0;
+        dropped = new AtomicLong(0);
+    }
+
+    /**
+     * Copies an event into the ring without blocking
+     */
+    void publish(Logger logger, Level level, String template, byte firstKind, Object first, long firstLong,
+                 byte secondKind, Object second, long secondLong, Throwable error){
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if(sequence - consumed >= slots.length){
+                dropped.incrementAndGet();  // Writer is a full ring behind
+                return;
+            }
+        } while(!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) sequence & mask];
+        slot.logger = logger;
+        slot.level = level;
+        slot.template = template;
+        slot.firstKind = firstKind;
+        slot.first = first;
+        slot.firstLong = firstLong;
+        slot.secondKind = secondKind;
+        slot.second = second;
+        slot.secondLong = secondLong;
+        slot.error = error;
+        slot.time = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.sequence = sequence;   // Publish
+    }
+
+    /**
+     * Waits for every event logged so far to be written, used when the program exits
+     *
+     * @param timeoutMillis longest time to wait
+     */
+    void awaitFlushed(long timeoutMillis){
+        long target = claimed.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(flushed < target && System.currentTimeMillis() < deadline){
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Writer loop. Writes events in sequence order and flushes whenever the ring is empty.
+     */
+    @Override
+    public void run() {
+        long next = 0;
+
+        while(true){
+            Slot slot = slots[(int) next & mask];
+            if(slot.sequence != next){
+                // Nothing published yet, report drops and flush what was written
+                long lost = dropped.getAndSet(0);
+                if(lost > 0)
+                    writer.dropped(lost);
+                writer.flush();
+                flushed = next;
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+
+            writer.write(slot);
+
+            // Release references so logged objects are not kept alive by the ring
+            slot.first = null;
+            slot.second = null;
+            slot.error = null;
+            next++;
+            consumed = next;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.auctionprotocol.log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Formats log events and writes them to the console and/or a rolling log file.
+ * Only used by the log writer thread.
+ *
+ * When the file reaches its size limit it is renamed to FILE.1, FILE.1 to FILE.2 and
+ * so on, keeping a fixed number of old files.
+ */
+final class LogWriter {
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final boolean console;
+    /** Log file, null if only logging to the console */
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final StringBuilder line;
+    private Writer out;
+    /** Bytes written to the current file, approximated by characters */
+    private long written;
+
+    /**
+     * @param console   true to write to standard output
+     * @param file      log file, null for none
+     * @param maxBytes  size a file is rolled at
+     * @param maxFiles  number of old files kept
+     */
+    LogWriter(boolean console, Path file, long maxBytes, int maxFiles){
+        this.console = console;
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        line = new StringBuilder(256);
+        if(file != null)
+            open();
+    }
+
+    /**
+     * Formats and writes one event
+     */
+    void write(LogRing.Slot slot){
+        line.setLength(0);
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(slot.time), line);
+        line.append(' ').append(slot.level);
+        for(int i = slot.level.name().length(); i < 5; i++){
+            line.append(' ');
+        }
+        line.append(" [").append(slot.thread).append("] ").append(slot.logger.getCategory()).append(" - ");
+        format(slot);
+        line.append(System.lineSeparator());
+
+        if(slot.error != null){
+            StringWriter trace = new StringWriter();
+            slot.error.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+        emit(line);
+    }
+
+    /**
+     * Reports events lost because the ring was full
+     */
+    void dropped(long count){
+        line.setLength(0);
+        TIME_FORMAT.formatTo(Instant.now(), line);
+        line.append(" WARN  [log-writer] log - ").append(count)
+                .append(" log messages dropped, the log ring was full").append(System.lineSeparator());
+        emit(line);
+    }
+
+    void flush(){
+        if(console)
+            System.out.flush();
+        if(out != null){
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed();
+            }
+        }
+    }
+
+    /**
+     * Replaces each "{}" in the template with the next argument
+     */
+    private void format(LogRing.Slot slot){
+        String template = slot.template;
+        int argument = 0;
+        int start = 0;
+        int index;
+        while(argument < 2 && (index = template.indexOf("{}", start)) >= 0){
+            line.append(template, start, index);
+            if(argument == 0)
+                appendArgument(slot.firstKind, slot.first, slot.firstLong);
+            else
+                appendArgument(slot.secondKind, slot.second, slot.secondLong);
+            argument++;
+            start = index + 2;
+        }
+        line.append(template, start, template.length());
+    }
+
+    private void appendArgument(byte kind, Object value, long longValue){
+        if(kind == LogRing.LONG)
+            line.append(longValue);
+        else if(kind == LogRing.OBJECT)
+            line.append(value);
+        else
+            line.append("{}");
+    }
+
+    private void emit(StringBuilder text){
+        if(console)
+            System.out.append(text);
+        if(out == null)
+            return;
+
+        try {
+            if(written + text.length() > maxBytes)
+                roll();
+            out.append(text);
+            written += text.length();
+        } catch (IOException e) {
+            failed();
+        }
+    }
+
+    /**
+     * Shifts every old file up by one and starts a new log file
+     */
+    private void roll() throws IOException {
+        out.close();
+        for(int i = maxFiles - 1; i >= 1; i--){
+            Path older = file.resolveSibling(file.getFileName() + "." + i);
+            if(Files.exists(older))
+                Files.move(older, file.resolveSibling(file.getFileName() + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if(maxFiles > 0)
+            Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        else
+            Files.delete(file);
+        open();
+    }
+
+    private void open(){
+        try {
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            written = Files.size(file);
+        } catch (IOException e) {
+            failed();
+        }
+    }
+
+    /**
+     * Stops writing to the file, the console keeps working
+     */
+    private void failed(){
+        System.err.println("Unable to write log file " + file + ". Logging to file disabled");
+        out = null;
+    }
+}
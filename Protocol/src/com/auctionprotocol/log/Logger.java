@@ -0,0 +1,133 @@
+package com.auctionprotocol.log;
+
+/**
+ * Logs messages for one category, such as "bank.ledger".
+ *
+ * Messages are templates with "{}" placeholders. Logging only copies the template and
+ * arguments into a preallocated ring slot, long arguments are never boxed, and the message
+ * is formatted and written later on the log writer thread. A disabled level costs a single
+ * volatile read, so hot paths can stay instrumented.
+ */
+public final class Logger {
+    private final String category;
+    private volatile Level level;
+
+    Logger(String category, Level level){
+        this.category = category;
+        this.level = level;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level lowest level this category logs
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * @param level level to check
+     * @return true if messages at the level are logged
+     */
+    public boolean isEnabled(Level level){
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public boolean isDebugEnabled(){
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message){
+        log(Level.DEBUG, message, LogRing.NONE, null, 0, LogRing.NONE, null, 0, null);
+    }
+
+    public void debug(String template, Object first){
+        log(Level.DEBUG, template, LogRing.OBJECT, first, 0, LogRing.NONE, null, 0, null);
+    }
+
+    public void debug(String template, long first){
+        log(Level.DEBUG, template, LogRing.LONG, null, first, LogRing.NONE, null, 0, null);
+    }
+
+    public void debug(String template, Object first, Object second){
+        log(Level.DEBUG, template, LogRing.OBJECT, first, 0, LogRing.OBJECT, second, 0, null);
+    }
+
+    public void debug(String template, Object first, long second){
+        log(Level.DEBUG, template, LogRing.OBJECT, first, 0, LogRing.LONG, null, second, null);
+    }
+
+    public void debug(String template, long first, long second){
+        log(Level.DEBUG, template, LogRing.LONG, null, first, LogRing.LONG, null, second, null);
+    }
+
+    public void info(String message){
+        log(Level.INFO, message, LogRing.NONE, null, 0, LogRing.NONE, null, 0, null);
+    }
+
+    public void info(String template, Object first){
+        log(Level.INFO, template, LogRing.OBJECT, first, 0, LogRing.NONE, null, 0, null);
+    }
+
+    public void info(String template, long first){
+        log(Level.INFO, template, LogRing.LONG, null, first, LogRing.NONE, null, 0, null);
+    }
+
+    public void info(String template, Object first, Object second){
+        log(Level.INFO, template, LogRing.OBJECT, first, 0, LogRing.OBJECT, second, 0, null);
+    }
+
+    public void info(String template, Object first, long second){
+        log(Level.INFO, template, LogRing.OBJECT, first, 0, LogRing.LONG, null, second, null);
+    }
+
+    public void info(String template, long first, long second){
+        log(Level.INFO, template, LogRing.LONG, null, first, LogRing.LONG, null, second, null);
+    }
+
+    public void warn(String message){
+        log(Level.WARN, message, LogRing.NONE, null, 0, LogRing.NONE, null, 0, null);
+    }
+
+    public void warn(String template, Object first){
+        log(Level.WARN, template, LogRing.OBJECT, first, 0, LogRing.NONE, null, 0, null);
+    }
+
+    public void warn(String template, long first){
+        log(Level.WARN, template, LogRing.LONG, null, first, LogRing.NONE, null, 0, null);
+    }
+
+    public void warn(String message, Throwable error){
+        log(Level.WARN, message, LogRing.NONE, null, 0, LogRing.NONE, null, 0, error);
+    }
+
+    public void error(String message){
+        log(Level.ERROR, message, LogRing.NONE, null, 0, LogRing.NONE, null, 0, null);
+    }
+
+    public void error(String template, Object first){
+        log(Level.ERROR, template, LogRing.OBJECT, first, 0, LogRing.NONE, null, 0, null);
+    }
+
+    public void error(String template, long first, long second){
+        log(Level.ERROR, template, LogRing.LONG, null, first, LogRing.LONG, null, second, null);
+    }
+
+    public void error(String message, Throwable error){
+        log(Level.ERROR, message, LogRing.NONE, null, 0, LogRing.NONE, null, 0, error);
+    }
+
+    private void log(Level level, String template, byte firstKind, Object first, long firstLong,
+                     byte secondKind, Object second, long secondLong, Throwable error){
+        if(level.compareTo(this.level) < 0)
+            return;
+        Log.ring().publish(this, level, template, firstKind, first, firstLong, secondKind, second, secondLong, error);
+    }
+}